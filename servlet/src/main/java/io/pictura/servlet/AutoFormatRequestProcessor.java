@@ -16,6 +16,7 @@
 package io.pictura.servlet;
 
 import java.io.IOException;
+import java.util.Map;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -160,6 +161,22 @@ public class AutoFormatRequestProcessor extends ImageRequestProcessor
 	return o;
     }
 
+    /**
+     * Returns the default request parameters without the compression quality,
+     * since the default compression quality depends on the automatically
+     * choosed output image format.
+     *
+     * @return The default request parameters.
+     *
+     * @since 1.2
+     */
+    @Override
+    protected Map<String, String> getDefaultRequestParameters() {
+	Map<String, String> defaults = super.getDefaultRequestParameters();
+	defaults.remove(QPARAM_NAME_COMPRESSION_QUALITY);
+	return defaults;
+    }
+
     @Override
     public String getTrueCacheKey() {
 	if (trueCacheKey == null) {
@@ -0,0 +1,41 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A {@link HttpCache} which is able to look up multiple entries at once, e.g.
+ * to load the entries of a remote cache with a few round trips only.
+ *
+ * @author Steffen Kremp
+ *
+ * @since 1.2
+ */
+interface BatchHttpCache extends HttpCache {
+
+    /**
+     * Returns the entries for the specified keys. Keys which are not found are
+     * not contained in the returned map.
+     *
+     * @param keys The cache keys.
+     *
+     * @return The found entries by key.
+     */
+    Map<String, HttpCacheEntry> getAll(Collection<String> keys);
+
+}
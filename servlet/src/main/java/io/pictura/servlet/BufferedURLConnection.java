@@ -0,0 +1,157 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A completed (already received) HTTP response which is replayed as an
+ * {@link HttpURLConnection}.
+ * <p>
+ * The response body is kept in a byte array which is shared by all copies of
+ * the connection and must be treated as read-only. Each copy returns a new
+ * input stream on the shared body.
+ *
+ * @author Steffen Kremp
+ *
+ * @since 1.2
+ */
+final class BufferedURLConnection extends HttpURLConnection {
+
+    private final int code;
+    private final String message;
+
+    // Lower case header names
+    private final Map<String, List<String>> headers;
+
+    private final byte[] body;
+    private final int length;
+
+    /**
+     * Creates a new connection from the response of the given (connected)
+     * connection and the already read response body. The
+     * <code>Content-Length</code> header is set to the length of the given
+     * body, if the body is complete.
+     *
+     * @param con The origin connection.
+     * @param body The response body.
+     * @param length The number of valid bytes in the body.
+     * @param complete <code>true</code> if the body was read to the end.
+     *
+     * @throws IOException if an I/O error occurs while the response
+     * status is read.
+     */
+    BufferedURLConnection(HttpURLConnection con, byte[] body, int length,
+            boolean complete) throws IOException {
+
+        super(con.getURL());
+        this.code = con.getResponseCode();
+        this.message = con.getResponseMessage();
+        this.headers = new LinkedHashMap<>();
+        this.body = body;
+        this.length = length;
+
+        for (Map.Entry<String, List<String>> e : con.getHeaderFields().entrySet()) {
+            if (e.getKey() != null) {
+                headers.put(e.getKey().toLowerCase(Locale.ENGLISH),
+                        Collections.unmodifiableList(new ArrayList<>(e.getValue())));
+            }
+        }
+        headers.remove("transfer-encoding");
+        if (complete) {
+            headers.put("content-length", Collections.singletonList(String.valueOf(length)));
+        } else {
+            headers.remove("content-length");
+        }
+        this.connected = true;
+    }
+
+    // Copy constructor
+    private BufferedURLConnection(BufferedURLConnection con) {
+        super(con.getURL());
+        this.code = con.code;
+        this.message = con.message;
+        this.headers = con.headers;
+        this.body = con.body;
+        this.length = con.length;
+        this.connected = true;
+    }
+
+    /**
+     * @return A new connection which shares the response of this connection.
+     */
+    BufferedURLConnection copy() {
+        return new BufferedURLConnection(this);
+    }
+
+    /**
+     * @return The number of bytes of the response body.
+     */
+    int getLength() {
+        return length;
+    }
+
+    @Override
+    public void connect() {
+    }
+
+    @Override
+    public void disconnect() {
+    }
+
+    @Override
+    public boolean usingProxy() {
+        return false;
+    }
+
+    @Override
+    public int getResponseCode() {
+        return code;
+    }
+
+    @Override
+    public String getResponseMessage() {
+        return message;
+    }
+
+    @Override
+    public String getHeaderField(String name) {
+        if (name == null) {
+            return null;
+        }
+        List<String> values = headers.get(name.toLowerCase(Locale.ENGLISH));
+        return values != null && !values.isEmpty() ? values.get(values.size() - 1) : null;
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new FastByteArrayInputStream(body, 0, length);
+    }
+
+}
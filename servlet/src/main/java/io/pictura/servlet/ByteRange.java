@@ -0,0 +1,242 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A single byte range of a response body as requested by the HTTP
+ * <code>Range</code> header (RFC 7233).
+ * <p>
+ * Only a single range per request is supported. Requests for multiple ranges,
+ * syntactically invalid ranges or ranges with an <code>If-Range</code>
+ * precondition which does not match the current representation are answered
+ * with the full body, as permitted by the specification. Weak entity tags are
+ * never used to validate an <code>If-Range</code> precondition.
+ *
+ * @author Steffen Kremp
+ *
+ * @since 1.2
+ */
+final class ByteRange {
+
+    static final String HEADER_RANGE = "Range";
+    static final String HEADER_IFRANGE = "If-Range";
+    static final String HEADER_ACCEPTRANGES = "Accept-Ranges";
+    static final String HEADER_CONTRANGE = "Content-Range";
+
+    private final long start;
+    private final long end;
+    private final long total;
+
+    private ByteRange(long start, long end, long total) {
+        this.start = start;
+        this.end = end;
+        this.total = total;
+    }
+
+    /**
+     * Returns the requested range of a body with the given length.
+     *
+     * @param req The request.
+     * @param length The length of the (full) body.
+     * @param eTag The entity tag of the body or <code>null</code>.
+     * @param lastModified The last modification date of the body or a value
+     * less than 1 if unknown.
+     *
+     * @return The requested range or <code>null</code> if the full body has
+     * to be sent. If the range could not be satisfied, the returned range is
+     * not {@link #isSatisfiable() satisfiable}.
+     */
+    static ByteRange getRequestedRange(HttpServletRequest req, long length,
+            String eTag, long lastModified) {
+
+        String method = req.getMethod();
+        if (length < 0 || (method != null && !"GET".equalsIgnoreCase(method))) {
+            return null;
+        }
+
+        ByteRange range = parse(req.getHeader(HEADER_RANGE), length);
+        if (range != null && req.getHeader(HEADER_IFRANGE) != null
+                && !isIfRangeMatching(req, eTag, lastModified)) {
+            return null;
+        }
+        return range;
+    }
+
+    /**
+     * Evaluates the requested range of a body with the given length and
+     * prepares the response headers. The response status is set to
+     * <code>206</code> (or <code>416</code> if the range could not be
+     * satisfied) and the <code>Content-Range</code> and
+     * <code>Content-Length</code> headers are set accordingly. If the full body
+     * has to be sent, only the <code>Accept-Ranges</code> header is set.
+     *
+     * @param req The request.
+     * @param resp The response.
+     * @param length The length of the (full) body.
+     * @param eTag The entity tag of the body or <code>null</code>.
+     * @param lastModified The last modification date of the body or a value
+     * less than 1 if unknown.
+     *
+     * @return The range to send or <code>null</code> if the full body has to be
+     * sent.
+     */
+    static ByteRange apply(HttpServletRequest req, HttpServletResponse resp,
+            long length, String eTag, long lastModified) {
+
+        resp.setHeader(HEADER_ACCEPTRANGES, "bytes");
+
+        ByteRange range = getRequestedRange(req, length, eTag, lastModified);
+        if (range == null) {
+            return null;
+        }
+
+        if (range.isSatisfiable()) {
+            resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            resp.setHeader(HEADER_CONTRANGE, range.getContentRange());
+            resp.setContentLength((int) range.getLength());
+        } else {
+            resp.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            resp.setHeader(HEADER_CONTRANGE, range.getContentRange());
+            resp.setContentLength(0);
+        }
+        return range;
+    }
+
+    /**
+     * Parses the value of a <code>Range</code> header.
+     *
+     * @param value The header value.
+     * @param length The length of the (full) body.
+     *
+     * @return The range or <code>null</code> if the value is not a single,
+     * syntactically valid byte range.
+     */
+    static ByteRange parse(String value, long length) {
+        if (value == null) {
+            return null;
+        }
+        value = value.trim();
+        if (value.length() < 7 || !value.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+
+        String spec = value.substring(6).trim();
+        int i = spec.indexOf('-');
+        if (i < 0 || spec.indexOf(',') > -1) {
+            return null;
+        }
+
+        long first = parseLong(spec.substring(0, i).trim());
+        long last = parseLong(spec.substring(i + 1).trim());
+
+        if (i == 0) {
+            // Suffix range, e.g. bytes=-500
+            if (last < 0) {
+                return null;
+            } else if (last == 0 || length == 0) {
+                return new ByteRange(-1L, -1L, length);
+            }
+            return new ByteRange(Math.max(0L, length - last), length - 1, length);
+        }
+
+        if (first < 0 || (last < 0 && i < spec.length() - 1) || (last > -1 && last < first)) {
+            return null;
+        }
+        if (first >= length) {
+            return new ByteRange(-1L, -1L, length);
+        }
+        return new ByteRange(first, last < 0 ? length - 1 : Math.min(last, length - 1), length);
+    }
+
+    private static long parseLong(String s) {
+        if (s.isEmpty()) {
+            return -1L;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (!Character.isDigit(s.charAt(i))) {
+                return -2L;
+            }
+        }
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException ex) {
+            return -2L;
+        }
+    }
+
+    // Tests whether the If-Range precondition matches the current body
+    private static boolean isIfRangeMatching(HttpServletRequest req, String eTag,
+            long lastModified) {
+
+        String ifRange = req.getHeader(HEADER_IFRANGE).trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return eTag != null && !eTag.startsWith("W/") && eTag.equals(ifRange);
+        }
+        if (lastModified < 1L) {
+            return false;
+        }
+        try {
+            long date = req.getDateHeader(HEADER_IFRANGE);
+            return date > -1L && date / 1000L == lastModified / 1000L;
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the range overlaps the body.
+     */
+    boolean isSatisfiable() {
+        return start > -1L;
+    }
+
+    /**
+     * @return The position of the first byte of the range.
+     */
+    long getStart() {
+        return start;
+    }
+
+    /**
+     * @return The position of the last byte of the range (inclusive).
+     */
+    long getEnd() {
+        return end;
+    }
+
+    /**
+     * @return The number of bytes of the range.
+     */
+    long getLength() {
+        return isSatisfiable() ? end - start + 1 : 0L;
+    }
+
+    /**
+     * @return The value of the <code>Content-Range</code> response header.
+     */
+    String getContentRange() {
+        return isSatisfiable() ? "bytes " + start + "-" + end + "/" + total : "bytes */" + total;
+    }
+
+    @Override
+    public String toString() {
+        return getContentRange();
+    }
+
+}
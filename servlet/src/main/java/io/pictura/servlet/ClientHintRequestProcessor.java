@@ -16,6 +16,7 @@
 package io.pictura.servlet;
 
 import java.io.IOException;
+import java.util.Map;
 import javax.servlet.ServletException;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
@@ -178,6 +179,22 @@ public class ClientHintRequestProcessor extends AutoFormatRequestProcessor {
 	return originWidth;
     }
 
+    /**
+     * Returns the default request parameters without the pixel ratio, since
+     * the pixel ratio is given by the client hints if it is not specified by
+     * the request parameters.
+     *
+     * @return The default request parameters.
+     *
+     * @since 1.2
+     */
+    @Override
+    protected Map<String, String> getDefaultRequestParameters() {
+	Map<String, String> defaults = super.getDefaultRequestParameters();
+	defaults.remove(QPARAM_NAME_SCALE_PIXEL_RATIO);
+	return defaults;
+    }
+
     /**
      * Sets automatically an requested pixel ratio if nothing else was specified
      * by the user and the client hint device pixel ratio header is present as
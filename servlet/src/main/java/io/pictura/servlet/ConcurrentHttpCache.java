@@ -0,0 +1,420 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A built-in in-memory {@link HttpCache} implementation which is bounded by
+ * the total content size (bytes) of all cached entries instead of the number
+ * of entries.
+ * <p>
+ * The cache is split into a fixed number of segments, each with its own lock
+ * and LRU order. Lookups are lock-free; the access order of a segment is only
+ * updated if the segment lock is not contended. New entries must pass a
+ * TinyLFU like admission filter before an existing entry is evicted. In this
+ * case the estimated access frequency of the new entry must be greater than
+ * the frequency of the victim(s). This prevents one-off requests (e.g. from
+ * crawlers) to flush frequently requested entries out of the cache.
+ *
+ * @author Steffen Kremp
+ *
+ * @see HttpCache
+ * @see HttpCacheServlet#createConcurrentHttpCache(long, int)
+ *
+ * @since 1.2
+ */
+final class ConcurrentHttpCache implements IterableHttpCache {
+
+    private static final int MAX_SEGMENTS = 64;
+
+    // Assumed average entry size to estimate the number of cache entries
+    private static final int AVG_ENTRY_SIZE = 1024 * 8;
+
+    final long maxSize;
+    final int maxEntrySize;
+
+    private final ConcurrentHashMap<String, Node> map;
+    private final Set<String> keys;
+
+    private final Segment[] segments;
+    private final int segmentMask;
+
+    private final FrequencySketch sketch;
+
+    ConcurrentHttpCache(long maxSize, int maxEntrySize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Maximum cache size must be greater than 0");
+        }
+
+        this.maxSize = maxSize;
+        this.maxEntrySize = maxEntrySize;
+
+        int estimatedEntries = (int) Math.min(1 << 20, Math.max(256, maxSize / AVG_ENTRY_SIZE));
+
+        // Do not create more segments than useful for the given cache size;
+        // each segment must be able to hold at least one max. sized entry
+        final long minSegmentSize = Math.max(AVG_ENTRY_SIZE, maxEntrySize);
+
+        int n = 1;
+        while (n < MAX_SEGMENTS && n < Runtime.getRuntime().availableProcessors() * 4
+                && (maxSize / (n << 1)) >= minSegmentSize) {
+            n <<= 1;
+        }
+
+        this.segments = new Segment[n];
+        for (int i = 0; i < n; i++) {
+            segments[i] = new Segment(maxSize / n + (i < maxSize % n ? 1 : 0));
+        }
+        this.segmentMask = n - 1;
+
+        this.map = new ConcurrentHashMap<>(estimatedEntries, 0.75f, n);
+        this.keys = Collections.unmodifiableSet(map.keySet());
+        this.sketch = new FrequencySketch(estimatedEntries);
+    }
+
+    @Override
+    public HttpCacheEntry get(String key) {
+        if (key == null) {
+            return null;
+        }
+
+        final int hash = spread(key.hashCode());
+        sketch.increment(hash);
+
+        Node node = map.get(key);
+        if (node == null) {
+            return null;
+        }
+
+        // Reordering is only a hint, so do not wait if another thread holds
+        // the segment lock
+        Segment s = segmentFor(hash);
+        if (s.tryLock()) {
+            try {
+                if (node.linked()) {
+                    s.moveToTail(node);
+                }
+            } finally {
+                s.unlock();
+            }
+        }
+        return node.entry;
+    }
+
+    @Override
+    public void put(String key, HttpCacheEntry entry) {
+        if (key == null) {
+            return;
+        }
+
+        // Remove if the value is null
+        if (entry == null) {
+            remove(key);
+            return;
+        }
+
+        // Do not cache if the entry content size is larger than the maximum
+        // allowed content length per entry
+        final int weight = entry.getContentLength();
+        if (maxEntrySize > 0 && weight > maxEntrySize) {
+            return;
+        }
+
+        final int hash = spread(key.hashCode());
+        final Segment s = segmentFor(hash);
+        if (weight > s.maxWeight) {
+            return;
+        }
+
+        sketch.increment(hash);
+
+        s.lock();
+        try {
+            Node old = map.get(key);
+            long required = weight - (old != null ? old.weight : 0);
+
+            if (s.weight + required > s.maxWeight) {
+                // Admission; the candidate must be more popular than every
+                // entry we would have to evict to make room for it
+                final int candidateFreq = sketch.frequency(hash);
+
+                long freed = 0;
+                Node victim = s.head.next;
+                while (victim != s.head && s.weight + required - freed > s.maxWeight) {
+                    if (victim != old) {
+                        if (sketch.frequency(spread(victim.key.hashCode())) >= candidateFreq) {
+                            if (old != null) {
+                                // Do not serve the outdated entry any longer
+                                s.unlink(old);
+                                map.remove(key, old);
+                            }
+                            return;
+                        }
+                        freed += victim.weight;
+                    }
+                    victim = victim.next;
+                }
+
+                Node n = s.head.next;
+                while (n != victim) {
+                    Node next = n.next;
+                    if (n != old) {
+                        s.unlink(n);
+                        map.remove(n.key, n);
+                    }
+                    n = next;
+                }
+            }
+
+            if (old != null) {
+                s.unlink(old);
+            }
+
+            Node node = new Node(key, entry, weight);
+            s.link(node);
+            map.put(key, node);
+        } finally {
+            s.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(String key) {
+        if (key == null) {
+            return false;
+        }
+
+        Segment s = segmentFor(spread(key.hashCode()));
+        s.lock();
+        try {
+            Node node = map.remove(key);
+            if (node != null) {
+                s.unlink(node);
+                return true;
+            }
+            return false;
+        } finally {
+            s.unlock();
+        }
+    }
+
+    /**
+     * Returns an unmodifiable, weakly consistent view of the cache keys. The
+     * keys are not copied.
+     *
+     * @return All cache keys.
+     */
+    @Override
+    public Set<String> keySet() {
+        return keys;
+    }
+
+    /**
+     * Returns the cached entries without to record an access.
+     *
+     * @return The cached entries.
+     */
+    @Override
+    public Collection<HttpCacheEntry> entries() {
+        ArrayList<HttpCacheEntry> entries = new ArrayList<>(map.size());
+        for (Node node : map.values()) {
+            entries.add(node.entry);
+        }
+        return entries;
+    }
+
+    /**
+     * @return The total content size in bytes of all cached entries.
+     */
+    long weightedSize() {
+        long size = 0;
+        for (Segment s : segments) {
+            s.lock();
+            try {
+                size += s.weight;
+            } finally {
+                s.unlock();
+            }
+        }
+        return size;
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[(hash >>> 16) & segmentMask];
+    }
+
+    private static int spread(int h) {
+        h ^= (h >>> 20) ^ (h >>> 12);
+        return h ^ (h >>> 7) ^ (h >>> 4);
+    }
+
+    // Cache node, linked in the LRU list of the owning segment
+    private static final class Node {
+
+        private final String key;
+        private final HttpCacheEntry entry;
+        private final int weight;
+
+        private Node prev;
+        private Node next;
+
+        private Node(String key, HttpCacheEntry entry, int weight) {
+            this.key = key;
+            this.entry = entry;
+            this.weight = weight;
+        }
+
+        private boolean linked() {
+            return next != null;
+        }
+    }
+
+    // Lock protected LRU list; eldest entry at head.next
+    private static final class Segment extends ReentrantLock {
+
+        private static final long serialVersionUID = -1826310736254102858L;
+
+        private final long maxWeight;
+        private final Node head;
+
+        private long weight;
+
+        private Segment(long maxWeight) {
+            this.maxWeight = maxWeight;
+            this.head = new Node(null, null, 0);
+            this.head.prev = head;
+            this.head.next = head;
+        }
+
+        private void link(Node n) {
+            n.prev = head.prev;
+            n.next = head;
+            head.prev.next = n;
+            head.prev = n;
+            weight += n.weight;
+        }
+
+        private void unlink(Node n) {
+            if (n.linked()) {
+                n.prev.next = n.next;
+                n.next.prev = n.prev;
+                n.prev = null;
+                n.next = null;
+                weight -= n.weight;
+            }
+        }
+
+        private void moveToTail(Node n) {
+            if (head.prev != n) {
+                n.prev.next = n.next;
+                n.next.prev = n.prev;
+                n.prev = head.prev;
+                n.next = head;
+                head.prev.next = n;
+                head.prev = n;
+            }
+        }
+    }
+
+    /**
+     * Count-Min sketch with 4-bit counters to estimate the popularity of a key
+     * within a time window. All counters are halved after a sample period, so
+     * that older accesses will lose their weight over the time.
+     * <p>
+     * The counters are not updated atomically. Lost updates in case of
+     * concurrent access are accepted, because the result is an estimation
+     * anyway.
+     */
+    static final class FrequencySketch {
+
+        private static final int[] SEEDS = {
+            0x97cb3127, 0xb1c8e1b5, 0x7f4a7c15, 0x5bd1e995
+        };
+
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+        private final int tableMask;
+        private final int sampleSize;
+
+        private int size;
+
+        FrequencySketch(int expectedEntries) {
+            int n = 1;
+            while (n < Math.max(16, expectedEntries >>> 2)) {
+                n <<= 1;
+            }
+            this.table = new long[n];
+            this.tableMask = n - 1;
+            this.sampleSize = expectedEntries * 10;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                added |= incrementAt(indexOf(hash, i), offsetOf(hash, i));
+            }
+
+            if (added && ++size >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(int hash) {
+            int freq = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                int count = (int) ((table[indexOf(hash, i)] >>> (offsetOf(hash, i) << 2)) & 0xfL);
+                freq = Math.min(freq, count);
+            }
+            return freq;
+        }
+
+        private boolean incrementAt(int index, int offset) {
+            int shift = offset << 2;
+            long mask = 0xfL << shift;
+            if ((table[index] & mask) != mask) {
+                table[index] += 1L << shift;
+                return true;
+            }
+            return false;
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            size = size >>> 1;
+        }
+
+        private int indexOf(int hash, int i) {
+            int h = (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 16;
+            return h & tableMask;
+        }
+
+        // 16 counters per long value
+        private int offsetOf(int hash, int i) {
+            return ((hash >>> (i << 3)) & 0x3) + (i << 2);
+        }
+    }
+
+}
@@ -16,11 +16,20 @@
 package io.pictura.servlet;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.ServletRequest;
 
 /**
  * Context related servlet output stream to track the number of written bytes.
+ * <p>
+ * Bulk writes are passed through to the underlying stream with a single call.
+ * The stream is also a {@link GatheringByteChannel}, so (direct) byte buffers
+ * could be written without an intermediate copy if the underlying stream is a
+ * channel, too.
  *
  * @see ServletOutputStream
  * @see ContextInputStream
@@ -29,12 +38,21 @@ import javax.servlet.ServletRequest;
  *
  * @since 1.0
  */
-final class ContextOutputStream extends ServletOutputStream {
+final class ContextOutputStream extends ServletOutputStream implements GatheringByteChannel {
+
+    private static final int TRANSFER_BUFFER_SIZE = 1024 * 8;
+
+    // Buffer size to copy file regions if no channel transfer is possible
+    private static final int FILE_TRANSFER_BUFFER_SIZE = 1024 * 64;
 
     private final ServletRequest ctx;
     private final ServletOutputStream os;
 
     private long bytesWritten;
+    private boolean closed;
+
+    // Lazy initialized to copy non-array backed byte buffers
+    private byte[] transferBuffer;
 
     ContextOutputStream(ServletRequest ctx, ServletOutputStream os) {
 	this.ctx = ctx;
@@ -43,7 +61,8 @@ final class ContextOutputStream extends ServletOutputStream {
 
     @Override
     public void write(int b) throws IOException {
-	write0(b, -1);
+	bytesWritten++;
+	os.write(b);
     }
 
     @Override
@@ -56,22 +75,164 @@ final class ContextOutputStream extends ServletOutputStream {
 	} else if (len == 0) {
 	    return;
 	}
-	for (int i = 0; i < len; i++) {
-	    write0(b[off + i], len);
+	os.write(b, off, len);
+	bytesWritten += len;
+	updateContextStats();
+    }
+
+    /**
+     * Writes the remaining bytes of the given buffer to the underlying stream.
+     *
+     * @param src The buffer from which bytes are to be retrieved.
+     *
+     * @return The number of bytes written.
+     *
+     * @throws IOException if an I/O error occurs.
+     *
+     * @since 1.2
+     */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+	int len = write0(src);
+	if (len > 0) {
+	    bytesWritten += len;
+	    updateContextStats();
 	}
+	return len;
     }
 
-    private void write0(int b, int len) throws IOException {
-	bytesWritten++;
-	os.write(b);
+    /**
+     * Writes the remaining bytes of the given buffers to the underlying
+     * stream.
+     *
+     * @since 1.2
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+	if ((offset < 0) || (length < 0) || (offset > srcs.length - length)) {
+	    throw new IndexOutOfBoundsException();
+	}
+	long len = 0L;
+	for (int i = offset; i < offset + length; i++) {
+	    len += write0(srcs[i]);
+	}
+	if (len > 0) {
+	    bytesWritten += len;
+	    updateContextStats();
+	}
+	return len;
+    }
+
+    /**
+     * @since 1.2
+     */
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+	return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Transfers the given region of a file to the underlying stream. If the
+     * underlying stream is a channel, the bytes are transferred by
+     * {@link FileChannel#transferTo(long, long, WritableByteChannel)} without
+     * copying them into the heap. Otherwise the region is copied by positional
+     * reads in large blocks.
+     *
+     * @param src The file channel.
+     * @param position The position of the first byte to transfer.
+     * @param count The number of bytes to transfer.
+     *
+     * @return The number of bytes written.
+     *
+     * @throws IOException if an I/O error occurs or the file ends before the
+     * given number of bytes were transferred.
+     *
+     * @since 1.2
+     */
+    long transferFrom(FileChannel src, long position, long count) throws IOException {
+	long pos = position;
+	long remaining = count;
+
+	if (os instanceof WritableByteChannel) {
+	    while (remaining > 0) {
+		long n = src.transferTo(pos, remaining, (WritableByteChannel) os);
+		if (n <= 0) {
+		    break;
+		}
+		pos += n;
+		remaining -= n;
+	    }
+	} else {
+	    byte[] b = new byte[(int) Math.max(1L, Math.min(FILE_TRANSFER_BUFFER_SIZE, remaining))];
+	    ByteBuffer buf = ByteBuffer.wrap(b);
+	    while (remaining > 0) {
+		buf.clear();
+		buf.limit((int) Math.min(b.length, remaining));
+		int n = src.read(buf, pos);
+		if (n <= 0) {
+		    break;
+		}
+		os.write(b, 0, n);
+		pos += n;
+		remaining -= n;
+	    }
+	}
 
-	if (len > 0 && bytesWritten == len) {
+	long len = count - remaining;
+	if (len > 0) {
+	    bytesWritten += len;
 	    updateContextStats();
 	}
+	if (remaining > 0) {
+	    throw new IOException("Unexpected end of file after " + len + " of " + count + " bytes");
+	}
+	return len;
+    }
+
+    private int write0(ByteBuffer src) throws IOException {
+	final int len = src.remaining();
+	if (len == 0) {
+	    return 0;
+	}
+
+	if (os instanceof WritableByteChannel) {
+	    int n = 0;
+	    while (src.hasRemaining()) {
+		n += ((WritableByteChannel) os).write(src);
+	    }
+	    return n;
+	}
+
+	if (src.hasArray()) {
+	    os.write(src.array(), src.arrayOffset() + src.position(), len);
+	    src.position(src.limit());
+	    return len;
+	}
+
+	if (transferBuffer == null) {
+	    transferBuffer = new byte[Math.min(TRANSFER_BUFFER_SIZE, len)];
+	} else if (transferBuffer.length < Math.min(TRANSFER_BUFFER_SIZE, len)) {
+	    transferBuffer = new byte[Math.min(TRANSFER_BUFFER_SIZE, len)];
+	}
+	while (src.hasRemaining()) {
+	    int n = Math.min(transferBuffer.length, src.remaining());
+	    src.get(transferBuffer, 0, n);
+	    os.write(transferBuffer, 0, n);
+	}
+	return len;
+    }
+
+    /**
+     * @since 1.2
+     */
+    @Override
+    public boolean isOpen() {
+	return !closed;
     }
 
     @Override
     public void close() throws IOException {
+	closed = true;
 	updateContextStats();
 	super.close();
     }
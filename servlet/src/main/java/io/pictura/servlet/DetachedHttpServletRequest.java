@@ -0,0 +1,638 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.security.Principal;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.Part;
+
+/**
+ * A copy of a {@link HttpServletRequest} which is independent from the servlet
+ * container. The copy could be used to process the origin request again, e.g.
+ * in a background thread, after the origin request was completed and recycled
+ * by the container.
+ * <p>
+ * Conditional and range headers are not copied, because a detached request is
+ * always used to produce the complete response.
+ *
+ * @author Steffen Kremp
+ *
+ * @see DetachedHttpServletResponse
+ *
+ * @since 1.2
+ */
+final class DetachedHttpServletRequest implements HttpServletRequest {
+
+    // Headers which are not copied from the origin request
+    private static final String[] IGNORED_HEADERS = new String[]{
+        "If-Modified-Since",
+        "If-Unmodified-Since",
+        "If-None-Match",
+        "If-Match",
+        "If-Range",
+        "Range"
+    };
+
+    private final String method;
+    private final String requestURI;
+    private final String requestURL;
+    private final String queryString;
+    private final String contextPath;
+    private final String servletPath;
+    private final String pathInfo;
+    private final String protocol;
+    private final String scheme;
+    private final String serverName;
+    private final int serverPort;
+    private final String remoteAddr;
+    private final String remoteHost;
+    private final int remotePort;
+    private final String localAddr;
+    private final String localName;
+    private final int localPort;
+    private final String remoteUser;
+    private final String contentType;
+    private final int contentLength;
+    private final boolean secure;
+    private final Locale locale;
+    private final Cookie[] cookies;
+    private final ServletContext servletContext;
+
+    private String characterEncoding;
+
+    private final Map<String, List<String>> headers;
+    private final Map<String, String[]> parameters;
+    private final Map<String, Object> attributes;
+
+    /**
+     * Creates a new detached copy of the given request.
+     *
+     * @param req The origin request.
+     *
+     * @throws IllegalArgumentException if the given request is
+     * <code>null</code>.
+     */
+    DetachedHttpServletRequest(HttpServletRequest req) {
+        if (req == null) {
+            throw new IllegalArgumentException("Request must be not null");
+        }
+
+        this.method = req.getMethod();
+        this.requestURI = req.getRequestURI();
+        this.requestURL = req.getRequestURL() != null ? req.getRequestURL().toString() : null;
+        this.queryString = req.getQueryString();
+        this.contextPath = req.getContextPath();
+        this.servletPath = req.getServletPath();
+        this.pathInfo = req.getPathInfo();
+        this.protocol = req.getProtocol();
+        this.scheme = req.getScheme();
+        this.serverName = req.getServerName();
+        this.serverPort = req.getServerPort();
+        this.remoteAddr = req.getRemoteAddr();
+        this.remoteHost = req.getRemoteHost();
+        this.remotePort = req.getRemotePort();
+        this.localAddr = req.getLocalAddr();
+        this.localName = req.getLocalName();
+        this.localPort = req.getLocalPort();
+        this.remoteUser = req.getRemoteUser();
+        this.contentType = req.getContentType();
+        this.contentLength = req.getContentLength();
+        this.secure = req.isSecure();
+        this.locale = req.getLocale();
+        this.cookies = req.getCookies() != null ? req.getCookies().clone() : null;
+        this.servletContext = req.getServletContext();
+        this.characterEncoding = req.getCharacterEncoding();
+
+        this.headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        Enumeration<String> headerNames = req.getHeaderNames();
+        if (headerNames != null) {
+            while (headerNames.hasMoreElements()) {
+                String name = headerNames.nextElement();
+                if (!isIgnoredHeader(name)) {
+                    Enumeration<String> values = req.getHeaders(name);
+                    headers.put(name, values != null
+                            ? Collections.list(values) : new ArrayList<String>(0));
+                }
+            }
+        }
+
+        this.parameters = new LinkedHashMap<>();
+        Map<String, String[]> parameterMap = req.getParameterMap();
+        if (parameterMap != null) {
+            for (Map.Entry<String, String[]> e : parameterMap.entrySet()) {
+                parameters.put(e.getKey(), e.getValue() != null ? e.getValue().clone() : null);
+            }
+        }
+
+        this.attributes = new HashMap<>();
+        Enumeration<String> attributeNames = req.getAttributeNames();
+        if (attributeNames != null) {
+            while (attributeNames.hasMoreElements()) {
+                String name = attributeNames.nextElement();
+                Object value = req.getAttribute(name);
+                if (value != null) {
+                    attributes.put(name, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a new synthetic <code>GET</code> request for the given request
+     * URI, e.g. to produce a response without a client request.
+     *
+     * @param ctx The servlet context.
+     * @param servletPath The servlet path.
+     * @param uri The request URI (incl. the context path) with an optional
+     * query string.
+     *
+     * @throws IllegalArgumentException if the given URI is <code>null</code>
+     * or not absolute.
+     */
+    DetachedHttpServletRequest(ServletContext ctx, String servletPath, String uri) {
+        if (uri == null || !uri.startsWith("/")) {
+            throw new IllegalArgumentException("Request URI must be not null and starts with \"/\"");
+        }
+
+        int q = uri.indexOf('?');
+        String path = q > -1 ? uri.substring(0, q) : uri;
+
+        this.method = "GET";
+        this.requestURI = path;
+        this.requestURL = "http://localhost" + path;
+        this.queryString = q > -1 && q < uri.length() - 1 ? uri.substring(q + 1) : null;
+        this.contextPath = ctx != null && ctx.getContextPath() != null ? ctx.getContextPath() : "";
+        this.servletPath = servletPath != null ? servletPath : "";
+
+        String prefix = contextPath + this.servletPath;
+        this.pathInfo = path.startsWith(prefix) && path.length() > prefix.length()
+                ? path.substring(prefix.length()) : null;
+
+        this.protocol = "HTTP/1.1";
+        this.scheme = "http";
+        this.serverName = "localhost";
+        this.serverPort = 80;
+        this.remoteAddr = "127.0.0.1";
+        this.remoteHost = "localhost";
+        this.remotePort = -1;
+        this.localAddr = "127.0.0.1";
+        this.localName = "localhost";
+        this.localPort = 80;
+        this.remoteUser = null;
+        this.contentType = null;
+        this.contentLength = -1;
+        this.secure = false;
+        this.locale = Locale.getDefault();
+        this.cookies = null;
+        this.servletContext = ctx;
+        this.characterEncoding = "UTF-8";
+
+        this.headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        this.parameters = new LinkedHashMap<>();
+        this.attributes = new HashMap<>();
+
+        if (queryString != null) {
+            for (String pair : queryString.split("&")) {
+                if (pair.isEmpty()) {
+                    continue;
+                }
+                int i = pair.indexOf('=');
+                String name = decode(i > -1 ? pair.substring(0, i) : pair);
+                String value = i > -1 ? decode(pair.substring(i + 1)) : "";
+
+                String[] values = parameters.get(name);
+                if (values == null) {
+                    parameters.put(name, new String[]{value});
+                } else {
+                    String[] v = Arrays.copyOf(values, values.length + 1);
+                    v[values.length] = value;
+                    parameters.put(name, v);
+                }
+            }
+        }
+    }
+
+    private static String decode(String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException ex) {
+            return s;
+        }
+    }
+
+    private static boolean isIgnoredHeader(String name) {
+        for (String s : IGNORED_HEADERS) {
+            if (s.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String getAuthType() {
+        return null;
+    }
+
+    @Override
+    public Cookie[] getCookies() {
+        return cookies;
+    }
+
+    @Override
+    public long getDateHeader(String name) {
+        String value = getHeader(name);
+        if (value == null) {
+            return -1L;
+        }
+        SimpleDateFormat sdf = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return sdf.parse(value).getTime();
+        } catch (ParseException ex) {
+            throw new IllegalArgumentException(ex);
+        }
+    }
+
+    @Override
+    public String getHeader(String name) {
+        List<String> values = headers.get(name);
+        return values != null && !values.isEmpty() ? values.get(0) : null;
+    }
+
+    @Override
+    public Enumeration<String> getHeaders(String name) {
+        List<String> values = headers.get(name);
+        return Collections.enumeration(values != null ? values : Collections.<String>emptyList());
+    }
+
+    @Override
+    public Enumeration<String> getHeaderNames() {
+        return Collections.enumeration(headers.keySet());
+    }
+
+    @Override
+    public int getIntHeader(String name) {
+        String value = getHeader(name);
+        return value != null ? Integer.parseInt(value) : -1;
+    }
+
+    @Override
+    public String getMethod() {
+        return method;
+    }
+
+    @Override
+    public String getPathInfo() {
+        return pathInfo;
+    }
+
+    @Override
+    public String getPathTranslated() {
+        return pathInfo != null && servletContext != null ? servletContext.getRealPath(pathInfo) : null;
+    }
+
+    @Override
+    public String getContextPath() {
+        return contextPath;
+    }
+
+    @Override
+    public String getQueryString() {
+        return queryString;
+    }
+
+    @Override
+    public String getRemoteUser() {
+        return remoteUser;
+    }
+
+    @Override
+    public boolean isUserInRole(String role) {
+        return false;
+    }
+
+    @Override
+    public Principal getUserPrincipal() {
+        return null;
+    }
+
+    @Override
+    public String getRequestedSessionId() {
+        return null;
+    }
+
+    @Override
+    public String getRequestURI() {
+        return requestURI;
+    }
+
+    @Override
+    public StringBuffer getRequestURL() {
+        return requestURL != null ? new StringBuffer(requestURL) : null;
+    }
+
+    @Override
+    public String getServletPath() {
+        return servletPath;
+    }
+
+    @Override
+    public HttpSession getSession(boolean create) {
+        return null;
+    }
+
+    @Override
+    public HttpSession getSession() {
+        return null;
+    }
+
+    @Override
+    public boolean isRequestedSessionIdValid() {
+        return false;
+    }
+
+    @Override
+    public boolean isRequestedSessionIdFromCookie() {
+        return false;
+    }
+
+    @Override
+    public boolean isRequestedSessionIdFromURL() {
+        return false;
+    }
+
+    @Override
+    @Deprecated
+    public boolean isRequestedSessionIdFromUrl() {
+        return false;
+    }
+
+    @Override
+    public boolean authenticate(HttpServletResponse response) throws IOException, ServletException {
+        return false;
+    }
+
+    @Override
+    public void login(String username, String password) throws ServletException {
+        throw new ServletException("Not supported by a detached request");
+    }
+
+    @Override
+    public void logout() throws ServletException {
+    }
+
+    @Override
+    public Collection<Part> getParts() throws IOException, ServletException {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Part getPart(String name) throws IOException, ServletException {
+        return null;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public Enumeration<String> getAttributeNames() {
+        return Collections.enumeration(new ArrayList<>(attributes.keySet()));
+    }
+
+    @Override
+    public String getCharacterEncoding() {
+        return characterEncoding;
+    }
+
+    @Override
+    public void setCharacterEncoding(String env) throws UnsupportedEncodingException {
+        this.characterEncoding = env;
+    }
+
+    @Override
+    public int getContentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * The request body is not copied, therefore this method always returns an
+     * empty stream.
+     *
+     * @return An empty input stream.
+     */
+    @Override
+    public ServletInputStream getInputStream() throws IOException {
+        return new ServletInputStream() {
+            @Override
+            public int read() throws IOException {
+                return -1;
+            }
+        };
+    }
+
+    @Override
+    public String getParameter(String name) {
+        String[] values = parameters.get(name);
+        return values != null && values.length > 0 ? values[0] : null;
+    }
+
+    @Override
+    public Enumeration<String> getParameterNames() {
+        return Collections.enumeration(parameters.keySet());
+    }
+
+    @Override
+    public String[] getParameterValues(String name) {
+        String[] values = parameters.get(name);
+        return values != null ? values.clone() : null;
+    }
+
+    @Override
+    public Map<String, String[]> getParameterMap() {
+        return Collections.unmodifiableMap(parameters);
+    }
+
+    @Override
+    public String getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public String getScheme() {
+        return scheme;
+    }
+
+    @Override
+    public String getServerName() {
+        return serverName;
+    }
+
+    @Override
+    public int getServerPort() {
+        return serverPort;
+    }
+
+    @Override
+    public BufferedReader getReader() throws IOException {
+        return new BufferedReader(new InputStreamReader(getInputStream(),
+                characterEncoding != null ? characterEncoding : "ISO-8859-1"));
+    }
+
+    @Override
+    public String getRemoteAddr() {
+        return remoteAddr;
+    }
+
+    @Override
+    public String getRemoteHost() {
+        return remoteHost;
+    }
+
+    @Override
+    public void setAttribute(String name, Object o) {
+        if (o == null) {
+            removeAttribute(name);
+        } else {
+            attributes.put(name, o);
+        }
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+        attributes.remove(name);
+    }
+
+    @Override
+    public Locale getLocale() {
+        return locale != null ? locale : Locale.getDefault();
+    }
+
+    @Override
+    public Enumeration<Locale> getLocales() {
+        return Collections.enumeration(Collections.singletonList(getLocale()));
+    }
+
+    @Override
+    public boolean isSecure() {
+        return secure;
+    }
+
+    @Override
+    public RequestDispatcher getRequestDispatcher(String path) {
+        return null;
+    }
+
+    @Override
+    @Deprecated
+    public String getRealPath(String path) {
+        return servletContext != null ? servletContext.getRealPath(path) : null;
+    }
+
+    @Override
+    public int getRemotePort() {
+        return remotePort;
+    }
+
+    @Override
+    public String getLocalName() {
+        return localName;
+    }
+
+    @Override
+    public String getLocalAddr() {
+        return localAddr;
+    }
+
+    @Override
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    @Override
+    public ServletContext getServletContext() {
+        return servletContext;
+    }
+
+    @Override
+    public AsyncContext startAsync() throws IllegalStateException {
+        throw new IllegalStateException("Async not supported by a detached request");
+    }
+
+    @Override
+    public AsyncContext startAsync(ServletRequest servletRequest,
+            ServletResponse servletResponse) throws IllegalStateException {
+        throw new IllegalStateException("Async not supported by a detached request");
+    }
+
+    @Override
+    public boolean isAsyncStarted() {
+        return false;
+    }
+
+    @Override
+    public boolean isAsyncSupported() {
+        return false;
+    }
+
+    @Override
+    public AsyncContext getAsyncContext() {
+        throw new IllegalStateException("Async not supported by a detached request");
+    }
+
+    @Override
+    public DispatcherType getDispatcherType() {
+        return DispatcherType.REQUEST;
+    }
+
+}
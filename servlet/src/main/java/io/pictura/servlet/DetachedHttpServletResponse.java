@@ -0,0 +1,342 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A {@link HttpServletResponse} which is not connected to a client. The status,
+ * the headers and the content are buffered in memory and could be used to
+ * create a new {@link HttpCacheEntry}.
+ *
+ * @author Steffen Kremp
+ *
+ * @see DetachedHttpServletRequest
+ *
+ * @since 1.2
+ */
+final class DetachedHttpServletResponse implements HttpServletResponse {
+
+    private final Map<String, List<String>> headers;
+
+    private int status = SC_OK;
+    private String characterEncoding = "ISO-8859-1";
+    private Locale locale = Locale.getDefault();
+    private int bufferSize = 1024 * 8;
+    private boolean committed;
+
+    private FastByteArrayOutputStream content;
+    private ServletOutputStream outputStream;
+    private PrintWriter writer;
+
+    /**
+     * Creates a new empty response with the status code <code>200</code>.
+     */
+    DetachedHttpServletResponse() {
+        this.headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        this.content = new FastByteArrayOutputStream();
+    }
+
+    /**
+     * Returns a copy of the content written to this response so far.
+     *
+     * @return The response content.
+     */
+    byte[] getContent() {
+        if (writer != null) {
+            writer.flush();
+        }
+        return content.toByteArray();
+    }
+
+    @Override
+    public void addCookie(Cookie cookie) {
+    }
+
+    @Override
+    public boolean containsHeader(String name) {
+        return headers.containsKey(name);
+    }
+
+    @Override
+    public String encodeURL(String url) {
+        return url;
+    }
+
+    @Override
+    public String encodeRedirectURL(String url) {
+        return url;
+    }
+
+    @Override
+    @Deprecated
+    public String encodeUrl(String url) {
+        return url;
+    }
+
+    @Override
+    @Deprecated
+    public String encodeRedirectUrl(String url) {
+        return url;
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+        if (committed) {
+            throw new IllegalStateException("Response already committed");
+        }
+        resetBuffer();
+        status = sc;
+        committed = true;
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+        sendError(sc, null);
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException {
+        if (committed) {
+            throw new IllegalStateException("Response already committed");
+        }
+        resetBuffer();
+        setHeader(RequestProcessor.HEADER_LOCATION, location);
+        status = SC_FOUND;
+        committed = true;
+    }
+
+    @Override
+    public void setDateHeader(String name, long date) {
+        setHeader(name, formatDate(date));
+    }
+
+    @Override
+    public void addDateHeader(String name, long date) {
+        addHeader(name, formatDate(date));
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        if (name == null) {
+            return;
+        }
+        if (value == null) {
+            headers.remove(name);
+            return;
+        }
+        List<String> values = new ArrayList<>(1);
+        values.add(value);
+        headers.put(name, values);
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        if (name == null || value == null) {
+            return;
+        }
+        List<String> values = headers.get(name);
+        if (values == null) {
+            headers.put(name, values = new ArrayList<>(1));
+        }
+        values.add(value);
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+        setHeader(name, String.valueOf(value));
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+        addHeader(name, String.valueOf(value));
+    }
+
+    @Override
+    public void setStatus(int sc) {
+        this.status = sc;
+    }
+
+    @Override
+    @Deprecated
+    public void setStatus(int sc, String sm) {
+        setStatus(sc);
+    }
+
+    @Override
+    public int getStatus() {
+        return status;
+    }
+
+    @Override
+    public String getHeader(String name) {
+        List<String> values = headers.get(name);
+        return values != null && !values.isEmpty() ? values.get(0) : null;
+    }
+
+    @Override
+    public Collection<String> getHeaders(String name) {
+        List<String> values = headers.get(name);
+        return values != null ? new ArrayList<>(values) : Collections.<String>emptyList();
+    }
+
+    @Override
+    public Collection<String> getHeaderNames() {
+        return new ArrayList<>(headers.keySet());
+    }
+
+    @Override
+    public String getCharacterEncoding() {
+        return characterEncoding;
+    }
+
+    @Override
+    public String getContentType() {
+        return getHeader(RequestProcessor.HEADER_CONTTYPE);
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (writer != null) {
+            throw new IllegalStateException("getWriter() has already been called on this response.");
+        }
+        if (outputStream == null) {
+            outputStream = new ServletOutputStream() {
+
+                @Override
+                public void write(int b) throws IOException {
+                    content.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    content.write(b, off, len);
+                }
+            };
+        }
+        return outputStream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (outputStream != null) {
+            throw new IllegalStateException("getOutputStream() has already been called on this response.");
+        }
+        if (writer == null) {
+            writer = new PrintWriter(new OutputStreamWriter(content, characterEncoding));
+        }
+        return writer;
+    }
+
+    @Override
+    public void setCharacterEncoding(String charset) {
+        if (charset != null && writer == null) {
+            this.characterEncoding = charset;
+        }
+    }
+
+    @Override
+    public void setContentLength(int len) {
+        setIntHeader(RequestProcessor.HEADER_CONTLEN, len);
+    }
+
+    @Override
+    public void setContentType(String type) {
+        setHeader(RequestProcessor.HEADER_CONTTYPE, type);
+    }
+
+    @Override
+    public void setBufferSize(int size) {
+        this.bufferSize = size;
+    }
+
+    @Override
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+        committed = true;
+    }
+
+    @Override
+    public void resetBuffer() {
+        if (committed) {
+            throw new IllegalStateException("Response already committed");
+        }
+        if (writer != null) {
+            writer.flush();
+        }
+        content = new FastByteArrayOutputStream();
+        if (writer != null) {
+            try {
+                writer = new PrintWriter(new OutputStreamWriter(content, characterEncoding));
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+
+    @Override
+    public boolean isCommitted() {
+        return committed;
+    }
+
+    @Override
+    public void reset() {
+        resetBuffer();
+        headers.clear();
+        status = SC_OK;
+    }
+
+    @Override
+    public void setLocale(Locale loc) {
+        if (loc != null) {
+            this.locale = loc;
+        }
+    }
+
+    @Override
+    public Locale getLocale() {
+        return locale;
+    }
+
+    private static String formatDate(long date) {
+        SimpleDateFormat sdf = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return sdf.format(new Date(date));
+    }
+
+}
@@ -0,0 +1,884 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A built-in {@link HttpCache} implementation which persists the cache entries
+ * (content and meta data) to append-only segment files on the local file
+ * system. The segment files are memory mapped and only a key index is kept in
+ * memory. The cache is restored from the segment files if a new instance is
+ * created for an existing cache directory.
+ * <p>
+ * An update or removal of an entry only appends a new record to the active
+ * segment. If the maximum cache size is reached, the segment with the least
+ * live data will be compacted; e.g. live entries are rewritten to the active
+ * segment and the old segment file is deleted. If the segment contains more
+ * than 50% live data, only entries which were requested since they were
+ * written will survive. Keys of the compacted segment which are not live
+ * anymore get a new tombstone as long as an older segment still contains a
+ * record of the same key, so removed or replaced entries are not restored
+ * after a restart.
+ * <p>
+ * The compaction runs in a background thread as soon as the last free segment
+ * is in use. New entries are not cached if there is no space left until the
+ * compaction has finished.
+ * <p>
+ * Cache hits are served from the mapped region. If the given output stream is
+ * a {@link WritableByteChannel}, the content is transferred by
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+ *
+ * @author Steffen Kremp
+ *
+ * @see HttpCache
+ * @see HttpCacheServlet#createDiskHttpCache(java.io.File, long, int)
+ *
+ * @since 1.2
+ */
+final class DiskHttpCache implements IterableHttpCache, Closeable {
+
+    private static final Log LOG = Log.getLog(DiskHttpCache.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String SEGMENT_FILE_SUFFIX = ".seg";
+
+    private static final int MAGIC = 0x50435347; // PCSG
+    private static final int TOMBSTONE = -1;
+
+    // magic, crc, key length, meta length, content length
+    private static final int RECORD_HEADER_SIZE = 20;
+
+    private static final int MAX_SEGMENT_SIZE = 1024 * 1024 * 64;
+    private static final int MIN_SEGMENT_SIZE = 1024 * 64;
+
+    private static final int TRANSFER_BUFFER_SIZE = 1024 * 16;
+
+    final File dir;
+    final long maxSize;
+    final int maxEntrySize;
+
+    private final int segmentSize;
+
+    private final ConcurrentHashMap<String, DiskEntry> index;
+    private final Set<String> keys;
+
+    // Guarded by this
+    private final List<Segment> segments;
+    private Segment active;
+    private long nextSegmentId;
+    private boolean compacting;
+    private boolean closed;
+
+    private final ThreadPoolExecutor compactor;
+
+    DiskHttpCache(File dir, long maxSize, int maxEntrySize) throws IOException {
+        if (dir == null) {
+            throw new IllegalArgumentException("Cache directory must be not null");
+        }
+
+        this.dir = dir;
+        this.maxSize = maxSize;
+        this.maxEntrySize = maxEntrySize;
+
+        long size = Math.min(MAX_SEGMENT_SIZE, maxSize / 8);
+        if (maxEntrySize > 0) {
+            size = Math.max(size, maxEntrySize * 2L + MIN_SEGMENT_SIZE);
+        }
+        this.segmentSize = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(MIN_SEGMENT_SIZE, size));
+
+        if (maxSize < segmentSize * 2L) {
+            throw new IllegalArgumentException("Maximum cache size must be at "
+                    + "least " + (segmentSize * 2L) + " bytes");
+        }
+
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Can't create cache directory \"" + dir.getAbsolutePath() + "\"");
+        }
+        if (!dir.isDirectory() || !dir.canWrite()) {
+            throw new IOException("\"" + dir.getAbsolutePath() + "\" is not a writable directory");
+        }
+
+        this.index = new ConcurrentHashMap<>();
+        this.keys = Collections.unmodifiableSet(index.keySet());
+        this.segments = new ArrayList<>();
+
+        this.compactor = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ServerThreadFactory(Thread.NORM_PRIORITY));
+
+        restore();
+    }
+
+    // Rebuilds the index from the existing segment files
+    private synchronized void restore() throws IOException {
+        File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.isFile() && f.getName().endsWith(SEGMENT_FILE_SUFFIX);
+            }
+        });
+
+        long[] ids = new long[files != null ? files.length : 0];
+        int n = 0;
+        for (int i = 0; i < ids.length; i++) {
+            String name = files[i].getName();
+            try {
+                ids[n] = Long.parseLong(name.substring(0, name.length() - SEGMENT_FILE_SUFFIX.length()));
+                n++;
+            } catch (NumberFormatException ex) {
+                LOG.warn("Ignore unknown file \"" + files[i].getAbsolutePath() + "\" in cache directory");
+            }
+        }
+        ids = Arrays.copyOf(ids, n);
+        Arrays.sort(ids);
+
+        for (long id : ids) {
+            File f = segmentFile(id);
+            if (f.length() != segmentSize) {
+                LOG.warn("Segment file \"" + f.getAbsolutePath() + "\" has an unexpected size and will be deleted");
+                deleteFile(f);
+                continue;
+            }
+
+            Segment s = openSegment(id);
+            segments.add(s);
+            s.writePos = scan(s);
+            nextSegmentId = id + 1;
+        }
+
+        // Delete segments (oldest first) if the cache size has been reduced
+        while (segments.size() > maxSegments()) {
+            Segment s = segments.get(0);
+            for (Map.Entry<String, DiskEntry> me : index.entrySet()) {
+                if (me.getValue().segment == s) {
+                    removeIndex(me.getKey());
+                }
+            }
+            dropSegment(s);
+        }
+
+        if (!segments.isEmpty()) {
+            active = segments.get(segments.size() - 1);
+        } else {
+            active = newSegment();
+        }
+
+        if (LOG.isInfoEnabled() && !index.isEmpty()) {
+            LOG.info("Restored " + index.size() + " cache entries from \"" + dir.getAbsolutePath() + "\"");
+        }
+    }
+
+    // Reads all records of the given segment into the index and returns the
+    // end position of the last valid record
+    private int scan(Segment s) {
+        ByteBuffer buf = s.buf.duplicate();
+        int pos = 0;
+
+        while (pos + RECORD_HEADER_SIZE <= segmentSize) {
+            buf.clear();
+            buf.position(pos);
+
+            if (buf.getInt() != MAGIC) {
+                break;
+            }
+            int crc = buf.getInt();
+            int keyLen = buf.getInt();
+            int metaLen = buf.getInt();
+            int contentLen = buf.getInt();
+
+            long end = (long) pos + RECORD_HEADER_SIZE + keyLen + Math.max(0, metaLen)
+                    + Math.max(0, contentLen);
+            if (keyLen < 0 || metaLen < 0 || end > segmentSize) {
+                break;
+            }
+
+            byte[] b = new byte[keyLen + metaLen];
+            buf.get(b);
+            if (crc(b, buf, contentLen) != crc) {
+                LOG.warn("Corrupted record in segment " + s.id + " at position " + pos);
+                break;
+            }
+
+            String key = new String(b, 0, keyLen, UTF8);
+            s.keys.add(key);
+            if (contentLen == TOMBSTONE) {
+                removeIndex(key);
+            } else {
+                try {
+                    HttpCacheEntry meta = readMeta(b, keyLen, metaLen);
+                    if (!meta.isExpired()) {
+                        putIndex(key, new DiskEntry(meta, s, pos
+                                + RECORD_HEADER_SIZE + keyLen + metaLen, contentLen));
+                    } else {
+                        removeIndex(key);
+                    }
+                } catch (IOException ex) {
+                    LOG.warn("Unable to read cache entry \"" + key + "\" from segment " + s.id);
+                    removeIndex(key);
+                }
+            }
+            pos = (int) end;
+        }
+        return pos;
+    }
+
+    @Override
+    public HttpCacheEntry get(String key) {
+        if (key == null) {
+            return null;
+        }
+
+        DiskEntry e = index.get(key);
+        if (e != null) {
+            e.accessed = true;
+        }
+        return e;
+    }
+
+    @Override
+    public void put(String key, HttpCacheEntry entry) {
+        if (key == null) {
+            return;
+        }
+
+        // Remove if the value is null
+        if (entry == null) {
+            remove(key);
+            return;
+        }
+
+        // Do not cache if the entry content size is larger than the maximum
+        // allowed content length per entry
+        if (maxEntrySize > 0 && entry.getContentLength() > maxEntrySize) {
+            return;
+        }
+
+        try {
+            byte[] meta = HttpCacheSnapshot.writeMeta(entry);
+            byte[] content = entry.getContent();
+            if (content == null) {
+                return;
+            }
+
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                DiskEntry e = append(key, meta, content, entry, false);
+                if (e != null) {
+                    putIndex(key, e);
+                }
+            }
+        } catch (IOException ex) {
+            LOG.error("Unable to write cache entry \"" + key + "\" to disk", ex);
+        }
+    }
+
+    @Override
+    public boolean remove(String key) {
+        if (key == null) {
+            return false;
+        }
+
+        synchronized (this) {
+            if (removeIndex(key)) {
+                if (!closed) {
+                    try {
+                        // Tombstone, otherwise the entry is restored again;
+                        // wait for the compaction if there is no space left
+                        if (!appendTombstone(key, true)) {
+                            LOG.warn("Unable to write tombstone of cache entry \"" + key + "\"");
+                        }
+                    } catch (IOException ex) {
+                        LOG.error("Unable to remove cache entry \"" + key + "\" from disk", ex);
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns an unmodifiable, weakly consistent view of the cache keys. The
+     * keys are not copied.
+     *
+     * @return All cache keys.
+     */
+    @Override
+    public Set<String> keySet() {
+        return keys;
+    }
+
+    /**
+     * Returns the cached entries without to record an access.
+     *
+     * @return The cached entries.
+     */
+    @Override
+    public Collection<HttpCacheEntry> entries() {
+        return new ArrayList<HttpCacheEntry>(index.values());
+    }
+
+    /**
+     * Forces all changes to the storage device and closes the segment files.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        compactor.shutdown();
+        notifyAll();
+        for (Segment s : segments) {
+            s.close();
+        }
+    }
+
+    /**
+     * @return The number of segment files.
+     */
+    synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    int segmentSize() {
+        return segmentSize;
+    }
+
+    // Must be called with lock held
+    private DiskEntry append(String key, byte[] meta, byte[] content,
+            HttpCacheEntry entry, boolean wait) throws IOException {
+
+        byte[] k = key.getBytes(UTF8);
+        int pos = write(key, k, meta, content, content.length, wait);
+        if (pos < 0) {
+            return null;
+        }
+        return new DiskEntry(entry, active, pos + RECORD_HEADER_SIZE + k.length + meta.length, content.length);
+    }
+
+    // Must be called with lock held
+    private boolean appendTombstone(String key, boolean wait) throws IOException {
+        return write(key, key.getBytes(UTF8), new byte[0], null, TOMBSTONE, wait) >= 0;
+    }
+
+    // Writes a record to the active segment and returns its position or -1 if
+    // there is no space left; must be called with lock held
+    private int write(String key, byte[] k, byte[] meta, byte[] content, int len,
+            boolean wait) throws IOException {
+
+        int recordLen = RECORD_HEADER_SIZE + k.length + meta.length + Math.max(0, len);
+        if (recordLen > segmentSize) {
+            return -1;
+        }
+
+        while (active.writePos + recordLen > segmentSize) {
+            if (!roll(wait)) {
+                return -1;
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(k);
+        crc.update(meta);
+        if (len > 0) {
+            crc.update(content, 0, len);
+        }
+
+        int pos = active.writePos;
+        ByteBuffer buf = active.buf.duplicate();
+        buf.clear();
+        buf.position(pos);
+        buf.putInt(MAGIC);
+        buf.putInt((int) crc.getValue());
+        buf.putInt(k.length);
+        buf.putInt(meta.length);
+        buf.putInt(len);
+        buf.put(k);
+        buf.put(meta);
+        if (len > 0) {
+            buf.put(content, 0, len);
+        }
+        active.writePos = buf.position();
+        active.keys.add(key);
+        return pos;
+    }
+
+    // Seals the active segment and creates a new one. Returns false if the
+    // maximum cache size is reached and the caller does not wait for the
+    // compaction; must be called with lock held
+    private boolean roll(boolean wait) throws IOException {
+        while (segments.size() >= maxSegments()) {
+            scheduleCompaction();
+            if (!wait || closed) {
+                return false;
+            }
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        active = newSegment();
+
+        // Free the space for the next segment in the background
+        if (segments.size() >= maxSegments()) {
+            scheduleCompaction();
+        }
+        return true;
+    }
+
+    // Must be called with lock held
+    private void scheduleCompaction() {
+        if (compacting || closed) {
+            return;
+        }
+        compacting = true;
+        try {
+            compactor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    compact();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            compacting = false;
+        }
+    }
+
+    // Compacts the segment with the least live data until there is space for
+    // a new segment. Only the survivors are copied while the cache lock is
+    // held, the reads from the compacted segment are done without the lock.
+    private void compact() {
+        try {
+            while (compactNext()) {
+                // Next segment
+            }
+        } catch (IOException | RuntimeException ex) {
+            LOG.error("Unable to compact cache segments in \"" + dir.getAbsolutePath() + "\"", ex);
+        } finally {
+            synchronized (this) {
+                compacting = false;
+                notifyAll();
+            }
+        }
+    }
+
+    private boolean compactNext() throws IOException {
+        Segment victim = null;
+        List<Survivor> survivors = new ArrayList<>();
+
+        synchronized (this) {
+            if (closed || segments.size() < maxSegments()) {
+                return false;
+            }
+
+            // Segment with the most garbage first (or the oldest)
+            for (Segment s : segments) {
+                if (s != active && (victim == null || s.liveBytes < victim.liveBytes)) {
+                    victim = s;
+                }
+            }
+            if (victim == null) {
+                return false;
+            }
+
+            // Keep all live entries if there is enough garbage, otherwise only
+            // entries which were accessed since they were written
+            final boolean keepAll = victim.liveBytes <= segmentSize / 2;
+            long budget = segmentSize / 2;
+
+            for (Map.Entry<String, DiskEntry> me : index.entrySet()) {
+                DiskEntry e = me.getValue();
+                if (e.segment != victim) {
+                    continue;
+                }
+                if ((keepAll || e.accessed) && !e.isExpired()) {
+                    Survivor sv = new Survivor(me.getKey(), e, HttpCacheSnapshot.writeMeta(e));
+                    if (budget >= sv.size()) {
+                        budget -= sv.size();
+                        survivors.add(sv);
+                        continue;
+                    }
+                }
+                removeIndex(me.getKey());
+            }
+        }
+
+        // Copy the survivor contents before the segment is dropped
+        for (Survivor sv : survivors) {
+            sv.read();
+        }
+
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            dropSegment(victim);
+
+            for (Survivor sv : survivors) {
+                if (index.get(sv.key) == sv.entry) {
+                    DiskEntry e = append(sv.key, sv.meta, sv.content, sv.entry, false);
+                    if (e != null) {
+                        putIndex(sv.key, e);
+                    } else {
+                        removeIndex(sv.key);
+                    }
+                }
+            }
+
+            // A dropped record may have shadowed an older record of the same
+            // key, so the key needs a new tombstone if it is not live anymore
+            for (String key : victim.keys) {
+                if (!index.containsKey(key) && isRecorded(key)) {
+                    if (!appendTombstone(key, false)) {
+                        LOG.warn("Unable to write tombstone of cache entry \"" + key + "\"");
+                    }
+                }
+            }
+
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Waits until a running compaction has finished.
+     *
+     * @throws InterruptedException if the current thread was interrupted.
+     */
+    synchronized void awaitCompaction() throws InterruptedException {
+        while (compacting) {
+            wait();
+        }
+    }
+
+    // Whether any segment contains a record of the given key
+    private boolean isRecorded(String key) {
+        for (Segment s : segments) {
+            if (s.keys.contains(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int maxSegments() {
+        return (int) Math.max(2, maxSize / segmentSize);
+    }
+
+    private Segment newSegment() throws IOException {
+        Segment s = openSegment(nextSegmentId++);
+        segments.add(s);
+        return s;
+    }
+
+    private Segment openSegment(long id) throws IOException {
+        File f = segmentFile(id);
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            FileChannel ch = raf.getChannel();
+            // The mapping remains valid after the channel was closed
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            return new Segment(id, f, buf);
+        }
+    }
+
+    private void dropSegment(Segment s) {
+        segments.remove(s);
+        s.close();
+        deleteFile(s.file);
+    }
+
+    private void deleteFile(File f) {
+        if (!f.delete() && f.exists()) {
+            LOG.warn("Unable to delete cache segment file \"" + f.getAbsolutePath() + "\"");
+            f.deleteOnExit();
+        }
+    }
+
+    private File segmentFile(long id) {
+        return new File(dir, String.format("%016d", id) + SEGMENT_FILE_SUFFIX);
+    }
+
+    private void putIndex(String key, DiskEntry e) {
+        e.segment.liveBytes += e.length;
+        DiskEntry old = index.put(key, e);
+        if (old != null) {
+            old.segment.liveBytes -= old.length;
+        }
+    }
+
+    private boolean removeIndex(String key) {
+        DiskEntry old = index.remove(key);
+        if (old != null) {
+            old.segment.liveBytes -= old.length;
+            return true;
+        }
+        return false;
+    }
+
+    private static int crc(byte[] b, ByteBuffer buf, int contentLen) {
+        CRC32 crc = new CRC32();
+        crc.update(b);
+        if (contentLen > 0) {
+            byte[] tmp = new byte[Math.min(TRANSFER_BUFFER_SIZE, contentLen)];
+            int remaining = contentLen;
+            while (remaining > 0) {
+                int len = Math.min(tmp.length, remaining);
+                buf.get(tmp, 0, len);
+                crc.update(tmp, 0, len);
+                remaining -= len;
+            }
+        }
+        return (int) crc.getValue();
+    }
+
+    // The meta data uses the same format as the cache snapshots
+    private static HttpCacheEntry readMeta(byte[] b, int off, int len) throws IOException {
+        return HttpCacheSnapshot.readMeta(Arrays.copyOfRange(b, off, off + len), null);
+    }
+
+    // Entry to rewrite while compaction
+    private static final class Survivor {
+
+        private final String key;
+        private final DiskEntry entry;
+
+        private final byte[] meta;
+        private byte[] content;
+
+        private Survivor(String key, DiskEntry entry, byte[] meta) {
+            this.key = key;
+            this.entry = entry;
+            this.meta = meta;
+        }
+
+        // Copies the content from the segment
+        private void read() {
+            content = entry.getContent();
+        }
+
+        private long size() {
+            return RECORD_HEADER_SIZE + key.length() * 3L + meta.length + entry.getContentLength();
+        }
+    }
+
+    // Memory mapped segment file
+    private static final class Segment {
+
+        private final long id;
+        private final File file;
+        private final MappedByteBuffer buf;
+
+        // Guarded by the cache lock
+        private int writePos;
+        private long liveBytes;
+
+        // Keys of all records (incl. tombstones), guarded by the cache lock
+        private final Set<String> keys = new HashSet<>();
+
+        // Shared read channel to transfer the content of cache hits, opened
+        // on demand and guarded by this segment
+        private FileChannel channel;
+        private int readers;
+        private boolean closed;
+
+        private Segment(long id, File file, MappedByteBuffer buf) {
+            this.id = id;
+            this.file = file;
+            this.buf = buf;
+        }
+
+        // Returns the read channel or null if the segment is closed; the
+        // channel must be released after use
+        private synchronized FileChannel acquireChannel() {
+            if (closed) {
+                return null;
+            }
+            // The channel is also closed if a reading thread was interrupted
+            if (channel == null || !channel.isOpen()) {
+                try {
+                    channel = new RandomAccessFile(file, "r").getChannel();
+                } catch (FileNotFoundException ex) {
+                    return null;
+                }
+            }
+            readers++;
+            return channel;
+        }
+
+        private synchronized void releaseChannel() {
+            if (--readers == 0 && closed) {
+                closeChannel();
+            }
+        }
+
+        private void close() {
+            try {
+                buf.force();
+            } catch (RuntimeException ex) {
+                // Unable to sync
+            }
+            synchronized (this) {
+                closed = true;
+                if (readers == 0) {
+                    closeChannel();
+                }
+            }
+        }
+
+        // Must be called with lock held
+        private void closeChannel() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    LOG.debug("Unable to close cache segment file \"" + file.getAbsolutePath() + "\"", ex);
+                }
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * Cache entry where the content is stored in a memory mapped segment file.
+     */
+    private static final class DiskEntry extends HttpCacheEntry {
+
+        private static final long serialVersionUID = -6310926745530883815L;
+
+        private final transient Segment segment;
+        private final int offset;
+        private final int length;
+
+        // Requested since the entry was written
+        private transient volatile boolean accessed;
+
+        private DiskEntry(HttpCacheEntry entry, Segment segment, int offset,
+                int length) {
+
+            super(entry, null);
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        private ByteBuffer slice() {
+            ByteBuffer buf = segment.buf.asReadOnlyBuffer();
+            buf.limit(offset + length);
+            buf.position(offset);
+            return buf;
+        }
+
+        @Override
+        boolean isContentDirect() {
+            return true;
+        }
+
+        @Override
+        public int getContentLength() {
+            return length;
+        }
+
+        @Override
+        public byte[] getContent() {
+            byte[] b = new byte[length];
+            slice().get(b);
+            return b;
+        }
+
+        @Override
+        void writeContentTo(OutputStream os, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || off > length - len) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (os instanceof WritableByteChannel) {
+                FileChannel ch = segment.acquireChannel();
+
+                // If the segment was dropped in the meantime, we have to use
+                // the mapped region
+                if (ch != null) {
+                    try {
+                        long pos = offset + off;
+                        long remaining = len;
+                        while (remaining > 0) {
+                            long n = ch.transferTo(pos, remaining, (WritableByteChannel) os);
+                            if (n <= 0) {
+                                throw new IOException("Unable to transfer cache entry \"" + getKey() + "\"");
+                            }
+                            pos += n;
+                            remaining -= n;
+                        }
+                    } finally {
+                        segment.releaseChannel();
+                    }
+                    return;
+                }
+            }
+
+            ByteBuffer buf = slice();
+            buf.position(offset + off);
+            buf.limit(offset + off + len);
+            byte[] b = new byte[Math.min(TRANSFER_BUFFER_SIZE, Math.max(1, len))];
+            while (buf.hasRemaining()) {
+                int n = Math.min(b.length, buf.remaining());
+                buf.get(b, 0, n);
+                os.write(b, 0, n);
+            }
+        }
+
+        // Serialize as normal heap entry
+        private Object writeReplace() throws ObjectStreamException {
+            return new HttpCacheEntry(this, getContent());
+        }
+    }
+
+}
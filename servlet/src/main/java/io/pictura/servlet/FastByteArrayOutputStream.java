@@ -17,6 +17,7 @@ package io.pictura.servlet;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -101,6 +102,20 @@ final class FastByteArrayOutputStream extends OutputStream {
         count += len;
     }
 
+    /**
+     * Writes the remaining bytes of the given buffer to this stream.
+     *
+     * @param src The buffer to write.
+     *
+     * @since 1.2
+     */
+    public void write(ByteBuffer src) {
+        int len = src.remaining();
+        ensureCapacity(count + len);
+        src.get(buf, count, len);
+        count += len;
+    }
+
     public void writeTo(OutputStream out) throws IOException {
         out.write(buf, 0, count);
     }
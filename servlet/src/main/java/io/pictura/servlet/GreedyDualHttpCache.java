@@ -0,0 +1,388 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A built-in in-memory {@link HttpCache} implementation which is bounded by
+ * the total content size (bytes) of all cached entries and evicts entries by
+ * the GreedyDual-Size-Frequency (GDSF) policy.
+ * <p>
+ * Each entry has a priority of <code>L + hits * cost / size</code>, where
+ * <i>cost</i> is the time it took to produce the entry (e.g. to process the
+ * image), <i>size</i> the content length and <i>L</i> an inflation value of the
+ * segment which is set to the priority of the last evicted entry. The entry
+ * with the lowest priority is evicted first. So, expensive to rebuild, small
+ * and frequently requested entries are kept longer than cheap, large or rarely
+ * requested entries. The inflation value ages entries which were not
+ * requested for a while.
+ * <p>
+ * Like {@link ConcurrentHttpCache}, the cache is split into a fixed number of
+ * segments, each with its own lock and priority queue. Lookups are lock-free;
+ * the priority of an entry is only updated if the segment lock is not
+ * contended.
+ *
+ * @author Steffen Kremp
+ *
+ * @see HttpCache
+ * @see HttpCacheServlet#createCostAwareHttpCache(long, int)
+ *
+ * @since 1.2
+ */
+final class GreedyDualHttpCache implements IterableHttpCache {
+
+    private static final int MAX_SEGMENTS = 64;
+
+    // Assumed average entry size to estimate the number of cache entries
+    private static final int AVG_ENTRY_SIZE = 1024 * 8;
+
+    // Production cost in millis if unknown
+    static final double DEFAULT_COST = 1d;
+
+    final long maxSize;
+    final int maxEntrySize;
+
+    private final ConcurrentHashMap<String, Node> map;
+    private final Set<String> keys;
+
+    private final Segment[] segments;
+    private final int segmentMask;
+
+    GreedyDualHttpCache(long maxSize, int maxEntrySize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Maximum cache size must be greater than 0");
+        }
+
+        this.maxSize = maxSize;
+        this.maxEntrySize = maxEntrySize;
+
+        int estimatedEntries = (int) Math.min(1 << 20, Math.max(256, maxSize / AVG_ENTRY_SIZE));
+
+        // Each segment must be able to hold at least one max. sized entry
+        final long minSegmentSize = Math.max(AVG_ENTRY_SIZE, maxEntrySize);
+
+        int n = 1;
+        while (n < MAX_SEGMENTS && n < Runtime.getRuntime().availableProcessors() * 4
+                && (maxSize / (n << 1)) >= minSegmentSize) {
+            n <<= 1;
+        }
+
+        this.segments = new Segment[n];
+        for (int i = 0; i < n; i++) {
+            segments[i] = new Segment(maxSize / n + (i < maxSize % n ? 1 : 0));
+        }
+        this.segmentMask = n - 1;
+
+        this.map = new ConcurrentHashMap<>(estimatedEntries, 0.75f, n);
+        this.keys = Collections.unmodifiableSet(map.keySet());
+    }
+
+    @Override
+    public HttpCacheEntry get(String key) {
+        if (key == null) {
+            return null;
+        }
+
+        Node node = map.get(key);
+        if (node == null) {
+            return null;
+        }
+
+        // The priority update is only a hint, so do not wait if another
+        // thread holds the segment lock
+        Segment s = segmentFor(spread(key.hashCode()));
+        if (s.tryLock()) {
+            try {
+                if (node.index >= 0) {
+                    node.hits++;
+                    s.update(node);
+                }
+            } finally {
+                s.unlock();
+            }
+        }
+        return node.entry;
+    }
+
+    @Override
+    public void put(String key, HttpCacheEntry entry) {
+        if (key == null) {
+            return;
+        }
+
+        // Remove if the value is null
+        if (entry == null) {
+            remove(key);
+            return;
+        }
+
+        final int weight = entry.getContentLength();
+        if (maxEntrySize > 0 && weight > maxEntrySize) {
+            return;
+        }
+
+        final Segment s = segmentFor(spread(key.hashCode()));
+        if (weight > s.maxWeight) {
+            return;
+        }
+
+        final Node node = new Node(key, entry, weight, costOf(entry));
+
+        s.lock();
+        try {
+            Node old = map.get(key);
+            if (old != null) {
+                // Keep the popularity of the replaced entry
+                node.hits = old.hits;
+                s.remove(old);
+            }
+
+            while (s.weight + weight > s.maxWeight && s.size > 0) {
+                Node victim = s.poll();
+                s.inflation = victim.priority;
+                map.remove(victim.key, victim);
+            }
+
+            s.add(node);
+            map.put(key, node);
+        } finally {
+            s.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(String key) {
+        if (key == null) {
+            return false;
+        }
+
+        Segment s = segmentFor(spread(key.hashCode()));
+        s.lock();
+        try {
+            Node node = map.remove(key);
+            if (node != null) {
+                s.remove(node);
+                return true;
+            }
+            return false;
+        } finally {
+            s.unlock();
+        }
+    }
+
+    /**
+     * Returns an unmodifiable, weakly consistent view of the cache keys. The
+     * keys are not copied.
+     *
+     * @return All cache keys.
+     */
+    @Override
+    public Set<String> keySet() {
+        return keys;
+    }
+
+    /**
+     * Returns the cached entries without to record an access.
+     *
+     * @return The cached entries.
+     */
+    @Override
+    public Collection<HttpCacheEntry> entries() {
+        ArrayList<HttpCacheEntry> entries = new ArrayList<>(map.size());
+        for (Node node : map.values()) {
+            entries.add(node.entry);
+        }
+        return entries;
+    }
+
+    /**
+     * @return The total content size in bytes of all cached entries.
+     */
+    long weightedSize() {
+        long size = 0;
+        for (Segment s : segments) {
+            s.lock();
+            try {
+                size += s.weight;
+            } finally {
+                s.unlock();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the production cost of the given entry in milliseconds as
+     * recorded by the {@link HttpCacheServlet} or {@link #DEFAULT_COST} if the
+     * cost is unknown.
+     *
+     * @param entry The cache entry.
+     *
+     * @return The production cost.
+     */
+    static double costOf(HttpCacheEntry entry) {
+        String delta = entry.getUserProperty("__delta");
+        if (delta != null) {
+            try {
+                long cost = Long.parseLong(delta);
+                if (cost > 0) {
+                    return cost;
+                }
+            } catch (NumberFormatException ex) {
+                // Unknown cost
+            }
+        }
+        return DEFAULT_COST;
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[(hash >>> 16) & segmentMask];
+    }
+
+    private static int spread(int h) {
+        h ^= (h >>> 20) ^ (h >>> 12);
+        return h ^ (h >>> 7) ^ (h >>> 4);
+    }
+
+    // Cache node; all mutable fields are guarded by the segment lock
+    private static final class Node {
+
+        private final String key;
+        private final HttpCacheEntry entry;
+        private final int weight;
+        private final double cost;
+
+        private int hits = 1;
+        private double priority;
+        private int index = -1;
+
+        private Node(String key, HttpCacheEntry entry, int weight, double cost) {
+            this.key = key;
+            this.entry = entry;
+            this.weight = weight;
+            this.cost = cost;
+        }
+    }
+
+    // Lock protected binary min-heap by entry priority
+    private static final class Segment extends ReentrantLock {
+
+        private static final long serialVersionUID = 6297813538725180498L;
+
+        private final long maxWeight;
+
+        private Node[] heap;
+        private int size;
+
+        private long weight;
+        private double inflation;
+
+        private Segment(long maxWeight) {
+            this.maxWeight = maxWeight;
+            this.heap = new Node[16];
+        }
+
+        private double priorityOf(Node n) {
+            return inflation + (double) n.hits * n.cost / Math.max(1, n.weight);
+        }
+
+        private void add(Node n) {
+            if (size == heap.length) {
+                heap = Arrays.copyOf(heap, size << 1);
+            }
+            n.priority = priorityOf(n);
+            n.index = size;
+            heap[size++] = n;
+            siftUp(n.index);
+            weight += n.weight;
+        }
+
+        private Node poll() {
+            Node n = heap[0];
+            remove(n);
+            return n;
+        }
+
+        private void remove(Node n) {
+            int i = n.index;
+            if (i < 0) {
+                return;
+            }
+
+            Node last = heap[--size];
+            heap[size] = null;
+            if (last != n) {
+                heap[i] = last;
+                last.index = i;
+                siftDown(i);
+                siftUp(last.index);
+            }
+            n.index = -1;
+            weight -= n.weight;
+        }
+
+        // The priority only increases, e.g. after a hit
+        private void update(Node n) {
+            n.priority = priorityOf(n);
+            siftDown(n.index);
+        }
+
+        private void siftUp(int i) {
+            Node n = heap[i];
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                Node p = heap[parent];
+                if (p.priority <= n.priority) {
+                    break;
+                }
+                heap[i] = p;
+                p.index = i;
+                i = parent;
+            }
+            heap[i] = n;
+            n.index = i;
+        }
+
+        private void siftDown(int i) {
+            Node n = heap[i];
+            int half = size >>> 1;
+            while (i < half) {
+                int child = (i << 1) + 1;
+                int right = child + 1;
+                if (right < size && heap[right].priority < heap[child].priority) {
+                    child = right;
+                }
+                Node c = heap[child];
+                if (n.priority <= c.priority) {
+                    break;
+                }
+                heap[i] = c;
+                c.index = i;
+                i = child;
+            }
+            heap[i] = n;
+            n.index = i;
+        }
+    }
+
+}
@@ -17,6 +17,8 @@ package io.pictura.servlet;
 
 import static io.pictura.servlet.RequestProcessor.HEADER_CACHECONTROL;
 import static io.pictura.servlet.RequestProcessor.HEADER_EXPIRES;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -27,6 +29,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Locale;
+import java.util.Map;
 import java.util.TimeZone;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -105,6 +108,48 @@ public class HttpCacheEntry implements Serializable {
 	this.expires = expiresDate == null ? -1 : expiresDate.getTime();
 	this.userProperties = new HashMap<>();
     }
+
+    // Copy constructor to create a new entry with the same meta data (headers,
+    // expiration, ...) but a different content
+    HttpCacheEntry(HttpCacheEntry entry, byte[] content) {
+	this.timestamp = entry.timestamp;
+	this.key = entry.key;
+	this.content = content != null ? content : new byte[0];
+	this.status = entry.status;
+	this.expires = entry.expires;
+	this.headers = new HashMap<>(entry.headers);
+	this.userProperties = new HashMap<>(entry.userProperties);
+	this.hitCount = entry.hitCount;
+    }
+
+    // Copy constructor to create a new representation of the given entry with
+    // a different key and content encoding; a null encoding means identity
+    HttpCacheEntry(HttpCacheEntry entry, String key, byte[] content, String contentEncoding) {
+	this.timestamp = entry.timestamp;
+	this.key = key;
+	this.content = content != null ? content : new byte[0];
+	this.status = entry.status;
+	this.expires = entry.expires;
+	this.headers = new HashMap<>(entry.headers);
+	this.userProperties = new HashMap<>(entry.userProperties);
+	if (contentEncoding != null) {
+	    this.headers.put(RequestProcessor.HEADER_CONTENC, contentEncoding);
+	} else {
+	    this.headers.remove(RequestProcessor.HEADER_CONTENC);
+	}
+    }
+    
+    // Creates an entry from persisted values, e.g. a cache snapshot
+    HttpCacheEntry(long timestamp, String key, byte[] content, int status,
+	    long expires, Map<String, String> headers, Map<String, String> userProperties) {
+	this.timestamp = timestamp;
+	this.key = key;
+	this.content = content != null ? content : new byte[0];
+	this.status = status;
+	this.expires = expires;
+	this.headers = new HashMap<>(headers);
+	this.userProperties = new HashMap<>(userProperties);
+    }
     
     void setUserProperty(String name, String value) {
 	userProperties.put(name, value);
@@ -113,6 +158,70 @@ public class HttpCacheEntry implements Serializable {
     String getUserProperty(String name) {
 	return userProperties.get(name);
     }
+    
+    Collection<String> getUserPropertyNames() {
+	return userProperties.keySet();
+    }
+
+    /**
+     * @return <code>true</code> if the content of this entry is not stored in
+     * an on-heap byte array, e.g. off-heap or in a file; otherwise
+     * <code>false</code>. If <code>true</code>, {@link #getContent()} will
+     * always return a new copy of the content.
+     */
+    boolean isContentDirect() {
+	return false;
+    }
+
+    /**
+     * Pins the content of this entry, so the content can not be released by
+     * the cache while it is read. Each successful call must be followed by a
+     * call of {@link #release()}.
+     *
+     * @return <code>true</code> if the content was pinned; <code>false</code>
+     * if the content is no longer available, e.g. because the entry was
+     * evicted from an off-heap cache.
+     *
+     * @since 1.2
+     */
+    boolean retain() {
+	return true;
+    }
+
+    /**
+     * Releases the content which was pinned by {@link #retain()}.
+     *
+     * @since 1.2
+     */
+    void release() {
+    }
+
+    /**
+     * Writes the raw content of this entry to the given output stream.
+     *
+     * @param os The stream to write the content to.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    void writeContentTo(OutputStream os) throws IOException {
+	writeContentTo(os, 0, getContentLength());
+    }
+
+    /**
+     * Writes a part of the raw content of this entry to the given output
+     * stream.
+     *
+     * @param os The stream to write the content to.
+     * @param off The offset of the first byte to write.
+     * @param len The number of bytes to write.
+     *
+     * @throws IOException if an I/O error occurs.
+     *
+     * @since 1.2
+     */
+    void writeContentTo(OutputStream os, int off, int len) throws IOException {
+	os.write(content, off, len);
+    }
         
     /**
      * Returnst the timestamp in millis when this entry was created.
@@ -165,7 +274,8 @@ public class HttpCacheEntry implements Serializable {
     
     /**
      * Gets the raw content of the associated HTTP response.
-     * @return Content of the response.
+     * @return Content of the response or <code>null</code> if the content of
+     * an entry which is not stored on-heap is no longer available.
      */
     public byte[] getContent() {
 	return content;
@@ -273,7 +383,7 @@ public class HttpCacheEntry implements Serializable {
      * @throws IllegalArgumentException if the value could not be parsed using
      * any of the supported date formats
      */
-    private static Date parseDate(String dateValue) throws IllegalArgumentException {
+    static Date parseDate(String dateValue) throws IllegalArgumentException {
 	return parseDate(dateValue, null, null);
     }
 
@@ -0,0 +1,271 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache for error responses (e.g. <code>404 Not Found</code>) to
+ * answer repeated requests for broken resources without to resolve, fetch or
+ * decode the resource again. Each cacheable status code has its own (short)
+ * time to live.
+ * <p>
+ * The entries are kept in insertion order. If the cache is full, the oldest
+ * entry is evicted.
+ *
+ * @author Steffen Kremp
+ *
+ * @since 1.2
+ */
+final class HttpCacheNegativeCache {
+
+    /**
+     * The default max. number of negative cache entries.
+     */
+    static final int DEFAULT_CAPACITY = 10000;
+
+    private final int capacity;
+    private final Map<Integer, Long> ttls;
+
+    // Guarded by this
+    private final LinkedHashMap<String, Entry> entries;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /**
+     * Creates a new negative cache.
+     *
+     * @param capacity The max. number of entries.
+     * @param ttls The time to live in millis by status code.
+     *
+     * @throws IllegalArgumentException if the capacity is less than 1.
+     */
+    HttpCacheNegativeCache(final int capacity, Map<Integer, Long> ttls) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be greater than 0");
+        }
+        this.capacity = capacity;
+        this.ttls = Collections.unmodifiableMap(new HashMap<>(ttls));
+        this.entries = new LinkedHashMap<String, Entry>(Math.min(capacity, 1024) * 4 / 3 + 1) {
+
+            private static final long serialVersionUID = -1786245316472532470L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > HttpCacheNegativeCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Parses the time to live values from a comma separated list of
+     * <code>status=seconds</code> pairs, e.g. <code>404=10,415=60</code>.
+     *
+     * @param s The string to parse.
+     *
+     * @return The time to live in millis by status code; never
+     * <code>null</code>.
+     *
+     * @throws IllegalArgumentException if the string is not valid.
+     */
+    static Map<Integer, Long> parseTtls(String s) {
+        HashMap<Integer, Long> ttls = new HashMap<>();
+        if (s == null || s.trim().isEmpty()) {
+            return ttls;
+        }
+
+        for (String pair : s.split(",")) {
+            if (pair.trim().isEmpty()) {
+                continue;
+            }
+            int i = pair.indexOf('=');
+            if (i < 0) {
+                throw new IllegalArgumentException("Invalid negative cache TTL \"" + pair.trim() + "\"");
+            }
+            try {
+                int sc = Integer.parseInt(pair.substring(0, i).trim());
+                long ttl = Long.parseLong(pair.substring(i + 1).trim());
+                if (sc < 400 || sc > 599) {
+                    throw new IllegalArgumentException("Invalid negative cache status code " + sc);
+                }
+                if (ttl > 0) {
+                    ttls.put(sc, ttl * 1000L);
+                }
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid negative cache TTL \"" + pair.trim() + "\"", ex);
+            }
+        }
+        return ttls;
+    }
+
+    /**
+     * @param sc The HTTP status code.
+     *
+     * @return <code>true</code> if responses with the given status code are
+     * cached.
+     */
+    boolean isCacheable(int sc) {
+        return ttls.containsKey(sc);
+    }
+
+    /**
+     * Gets the not yet expired negative entry for the specified key.
+     *
+     * @param key The cache key.
+     *
+     * @return The entry or <code>null</code>.
+     */
+    Entry get(String key) {
+        if (key == null) {
+            return null;
+        }
+        synchronized (this) {
+            Entry e = entries.get(key);
+            if (e == null) {
+                return null;
+            }
+            if (e.isExpired(System.currentTimeMillis())) {
+                entries.remove(key);
+                return null;
+            }
+            hitCount.incrementAndGet();
+            return e;
+        }
+    }
+
+    /**
+     * Caches the error response for the specified key if the status code is
+     * cacheable.
+     *
+     * @param key The cache key.
+     * @param tag The cache tag or <code>null</code>.
+     * @param sc The HTTP status code.
+     * @param msg The error message or <code>null</code>.
+     *
+     * @return <code>true</code> if the response was cached.
+     */
+    boolean put(String key, String tag, int sc, String msg) {
+        Long ttl = ttls.get(sc);
+        if (key == null || ttl == null) {
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        Entry e = new Entry(sc, msg, tag, now + ttl);
+        synchronized (this) {
+            // Drop expired entries from the head to not evict live entries
+            Iterator<Entry> it = entries.values().iterator();
+            while (it.hasNext() && it.next().isExpired(now)) {
+                it.remove();
+            }
+
+            // Re-insert to keep the insertion order
+            entries.remove(key);
+            entries.put(key, e);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the entry for the specified key.
+     *
+     * @param key The cache key.
+     *
+     * @return <code>true</code> if there was an entry.
+     */
+    synchronized boolean remove(String key) {
+        return entries.remove(key) != null;
+    }
+
+    /**
+     * Removes all entries with the specified cache tag.
+     *
+     * @param tag The cache tag.
+     *
+     * @return The number of removed entries.
+     */
+    synchronized int removeTag(String tag) {
+        if (tag == null) {
+            return 0;
+        }
+        int n = 0;
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (tag.equals(it.next().tag)) {
+                it.remove();
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return The number of entries (incl. expired, not yet removed entries).
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return The number of requests which were answered from this cache.
+     */
+    long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Removes all entries.
+     */
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * A cached error response.
+     */
+    static final class Entry {
+
+        private final int status;
+        private final String message;
+        private final String tag;
+        private final long expires;
+
+        private Entry(int status, String message, String tag, long expires) {
+            this.status = status;
+            this.message = message;
+            this.tag = tag;
+            this.expires = expires;
+        }
+
+        int getStatus() {
+            return status;
+        }
+
+        String getMessage() {
+            return message;
+        }
+
+        private boolean isExpired(long now) {
+            return now >= expires;
+        }
+    }
+
+}
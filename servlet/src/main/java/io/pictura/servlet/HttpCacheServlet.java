@@ -15,17 +15,24 @@
  */
 package io.pictura.servlet;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -33,9 +40,18 @@ import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import java.util.zip.InflaterInputStream;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
@@ -48,7 +64,9 @@ import javax.servlet.http.HttpServletResponseWrapper;
  * cache request responses.
  * <p>
  * Note: This servlet implementation will only cache HTTP responses with status
- * code <code>200</code>. Other status codes are ignored and not cached.
+ * code <code>200</code>. Other status codes are ignored and not cached, except
+ * for error responses which are kept for a short time if a negative cache is
+ * set.
  *
  * @author Steffen Kremp
  *
@@ -68,6 +86,36 @@ public abstract class HttpCacheServlet extends HttpServlet {
     // Cache statistics
     private volatile long cacheHitCount;
     private volatile long cacheMissCount;
+    private final AtomicLong cacheCoalescedCount = new AtomicLong();
+
+    // Cache misses which are currently in progress by the true cache key
+    private final ConcurrentHashMap<String, PendingEntry> pendingEntries = new ConcurrentHashMap<>();
+    private volatile long coalescingTimeout = DEFAULT_COALESCING_TIMEOUT;
+
+    // Background revalidation of stale or soon expiring entries
+    private volatile ExecutorService refreshExecutor;
+    private volatile long staleWhileRevalidate;
+    private volatile double earlyRefreshBeta;
+    private volatile long staleIfError;
+
+    // Optional background persistence of the cache
+    private volatile HttpCacheSnapshotter snapshotter;
+
+    // Cache tag (source) to derived cache keys
+    private final HttpCacheTagIndex tagIndex = new HttpCacheTagIndex();
+
+    // Optional cache for error responses (e.g. 404)
+    private volatile HttpCacheNegativeCache negativeCache;
+
+    /**
+     * The default time in milliseconds to wait for a pending cache entry.
+     *
+     * @see #setHttpCacheCoalescingTimeout(long)
+     */
+    static final long DEFAULT_COALESCING_TIMEOUT = 10000L;
+
+    // Max. number of keys per batch lookup while prefetching
+    private static final int PREFETCH_BATCH_SIZE = 500;
 
     /**
      * Sets the response cache for this servlet instance. Normally, the cache is
@@ -78,10 +126,12 @@ public abstract class HttpCacheServlet extends HttpServlet {
      * responses if the response is cacheable.
      *
      * @see #createDefaultHttpCache(int, int)
+     * @see #createConcurrentHttpCache(long, int)
      * @see HttpCache
      */
     public synchronized void setHttpCache(HttpCache cache) {
         this.cache = cache;
+        this.tagIndex.clear();
         if (cache instanceof DefaultHttpCache) {
             LOG.warn("Using PicturaIO built-in HttpCache (not for production use!)");
             DefaultHttpCache dhc = (DefaultHttpCache) cache;
@@ -96,6 +146,17 @@ public abstract class HttpCacheServlet extends HttpServlet {
                             + (maxHeap / 1024 / 1024) + "m)");
                 }
             }
+        } else if (cache instanceof ConcurrentHttpCache || cache instanceof GreedyDualHttpCache) {
+            long maxHeap = Runtime.getRuntime().maxMemory();
+            long maxSize = cache instanceof ConcurrentHttpCache
+                    ? ((ConcurrentHttpCache) cache).maxSize
+                    : ((GreedyDualHttpCache) cache).maxSize;
+
+            if (LOG.isWarnEnabled() && (maxSize > (maxHeap / 2))) {
+                LOG.warn("Maximum cache size (" + (maxSize / 1024 / 1024)
+                        + "m) is greater than the half heap size (Xmx"
+                        + (maxHeap / 1024 / 1024) + "m)");
+            }
         }
     }
 
@@ -122,6 +183,156 @@ public abstract class HttpCacheServlet extends HttpServlet {
         return sum > 0 ? ((100f / sum) * cacheHitCount) / 100f : 0f;
     }
 
+    /**
+     * Returns the number of requests which were served from a cache entry that
+     * was produced by a concurrent request for the same resource.
+     *
+     * @return Number of coalesced requests.
+     *
+     * @since 1.2
+     */
+    public long getHttpCacheCoalescedCount() {
+        return cacheCoalescedCount.get();
+    }
+
+    /**
+     * Sets the maximum time in milliseconds to wait for a concurrent request
+     * which is already producing the response for the same (not yet cached)
+     * resource. If the time elapsed or the concurrent request fails, the
+     * waiting request will produce the response by itself. A value less or
+     * equal than <code>0</code> disables request coalescing.
+     *
+     * @param timeout The timeout in milliseconds.
+     *
+     * @since 1.2
+     */
+    public void setHttpCacheCoalescingTimeout(long timeout) {
+        this.coalescingTimeout = timeout;
+    }
+
+    /**
+     * Sets the executor which is used to revalidate cache entries in the
+     * background. The executor should be bounded; if the executor rejects a
+     * revalidation, the affected entry is revalidated by the next request after
+     * the entry is expired.
+     *
+     * @param executor The executor to use or <code>null</code> to disable
+     * background revalidation.
+     *
+     * @see #setHttpCacheStaleWhileRevalidate(long)
+     * @see #setHttpCacheEarlyRefreshBeta(double)
+     *
+     * @since 1.2
+     */
+    public void setHttpCacheRefreshExecutor(ExecutorService executor) {
+        this.refreshExecutor = executor;
+    }
+
+    /**
+     * Sets the time in milliseconds an expired cache entry is still served to
+     * the client while the entry is revalidated in the background. A value
+     * less or equal than <code>0</code> disables this behaviour.
+     * <p>
+     * Note: background revalidation requires a refresh executor.
+     *
+     * @param staleWhileRevalidate The time in milliseconds.
+     *
+     * @see #setHttpCacheRefreshExecutor(java.util.concurrent.ExecutorService)
+     *
+     * @since 1.2
+     */
+    public void setHttpCacheStaleWhileRevalidate(long staleWhileRevalidate) {
+        this.staleWhileRevalidate = staleWhileRevalidate;
+    }
+
+    /**
+     * Sets the factor to control the probabilistic early revalidation of cache
+     * entries. The probability that a request triggers the revalidation of a
+     * not yet expired entry increases as the entry gets closer to its
+     * expiration time and with the time it took to produce the entry. Values
+     * greater than <code>1</code> favor earlier revalidations; a value less or
+     * equal than <code>0</code> disables early revalidation.
+     * <p>
+     * Note: background revalidation requires a refresh executor.
+     *
+     * @param beta The factor, e.g. <code>1.0</code>.
+     *
+     * @see #setHttpCacheRefreshExecutor(java.util.concurrent.ExecutorService)
+     *
+     * @since 1.2
+     */
+    public void setHttpCacheEarlyRefreshBeta(double beta) {
+        this.earlyRefreshBeta = beta;
+    }
+
+    /**
+     * Sets the time in milliseconds an expired cache entry is kept to serve it
+     * instead of an error response, e.g. if the origin server is not available
+     * or the request was rejected because the servlet is overloaded. A value
+     * less or equal than <code>0</code> disables this behaviour.
+     *
+     * @param staleIfError The time in milliseconds.
+     *
+     * @see #sendStaleHttpCacheEntry(io.pictura.servlet.RequestProcessor)
+     *
+     * @since 1.2
+     */
+    public void setHttpCacheStaleIfError(long staleIfError) {
+        this.staleIfError = staleIfError;
+    }
+
+    /**
+     * Sets the snapshotter which is notified about new cache entries to write
+     * snapshots of the cache in the background.
+     *
+     * @param snapshotter The snapshotter or <code>null</code>.
+     *
+     * @since 1.2
+     */
+    void setHttpCacheSnapshotter(HttpCacheSnapshotter snapshotter) {
+        this.snapshotter = snapshotter;
+    }
+
+    /**
+     * Sets the cache for error responses. Requests which are answered with a
+     * cacheable error status code (e.g. <code>404</code>) are answered from
+     * this cache until the entry is expired, without to execute the request
+     * processor again.
+     *
+     * @param negativeCache The negative cache or <code>null</code>.
+     *
+     * @since 1.2
+     */
+    void setHttpCacheNegativeCache(HttpCacheNegativeCache negativeCache) {
+        this.negativeCache = negativeCache;
+    }
+
+    /**
+     * Returns the number of cached error responses or <code>-1</code> if
+     * negative caching is not enabled.
+     *
+     * @return Number of negative cache entries.
+     *
+     * @since 1.2
+     */
+    public int getHttpCacheNegativeSize() {
+        HttpCacheNegativeCache nc = negativeCache;
+        return nc != null ? nc.size() : -1;
+    }
+
+    /**
+     * Returns the number of requests which were answered from a cached error
+     * response.
+     *
+     * @return Number of negative cache hits.
+     *
+     * @since 1.2
+     */
+    public long getHttpCacheNegativeHitCount() {
+        HttpCacheNegativeCache nc = negativeCache;
+        return nc != null ? nc.getHitCount() : 0L;
+    }
+
     /**
      * Returns the total number of cache entries or <code>-1</code> if there is
      * currently no cache active.
@@ -133,6 +344,95 @@ public abstract class HttpCacheServlet extends HttpServlet {
         return getHttpCache() != null ? getHttpCache().keySet().size() : -1;
     }
 
+    /**
+     * Removes all cache entries (including all representations) which are
+     * derived from the resource with the specified cache tag, e.g. all formats
+     * and sizes of the same source image. The entries are looked up by a
+     * secondary index, so the cache is not scanned.
+     *
+     * @param tag The cache tag, e.g. the path or URL of the source image.
+     *
+     * @return The keys of the removed cache entries.
+     *
+     * @see RequestProcessor#getCacheTag()
+     *
+     * @since 1.2
+     */
+    public Collection<String> purgeHttpCache(String tag) {
+        HttpCache hc = getHttpCache();
+        String t = normalizeHttpCacheTag(tag);
+        if (hc == null || t == null) {
+            return Collections.emptyList();
+        }
+
+        HttpCacheNegativeCache nc = negativeCache;
+        if (nc != null) {
+            nc.removeTag(t);
+        }
+
+        ArrayList<String> purged = new ArrayList<>();
+        for (String key : tagIndex.removeTag(t)) {
+            removeVariants(hc, key);
+            if (hc.remove(key)) {
+                purged.add(key);
+            }
+        }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Purged " + purged.size() + " cache entries of \"" + t + "\"");
+        }
+        return purged;
+    }
+
+    /**
+     * Adds all entries of the current cache to the cache tag index, e.g. after
+     * the cache was restored from a file.
+     */
+    void indexHttpCache() {
+        HttpCache hc = getHttpCache();
+        if (hc == null) {
+            return;
+        }
+        for (String key : hc.keySet()) {
+            HttpCacheEntry entry = hc.get(key);
+            if (entry != null) {
+                tagIndex.add(entry.getUserProperty("__tag"), key);
+            }
+        }
+    }
+
+    /**
+     * Loads the entries with the given keys into the local cache if the current
+     * cache is able to look up multiple entries at once (e.g. a memcached
+     * backed cache), so a following cache warm-up needs no remote lookup per
+     * request.
+     *
+     * @param keys The cache keys.
+     *
+     * @return The number of found entries or <code>-1</code> if the current
+     * cache does not support batch lookups.
+     *
+     * @see BatchHttpCache
+     */
+    int prefetchHttpCache(Collection<String> keys) {
+        HttpCache hc = getHttpCache();
+        if (!(hc instanceof BatchHttpCache) || keys == null) {
+            return -1;
+        }
+
+        ArrayList<String> list = new ArrayList<>(keys);
+        int count = 0;
+        for (int i = 0; i < list.size(); i += PREFETCH_BATCH_SIZE) {
+            count += ((BatchHttpCache) hc).getAll(list.subList(i,
+                    Math.min(list.size(), i + PREFETCH_BATCH_SIZE))).size();
+        }
+        return count;
+    }
+
+    HttpCacheTagIndex getHttpCacheTagIndex() {
+        return tagIndex;
+    }
+
     /**
      * Creates a new request processor based on the given who is able to handle
      * cacheable requests. This returns the same request processor as the given
@@ -159,6 +459,64 @@ public abstract class HttpCacheServlet extends HttpServlet {
         return new CacheRequestProcessor(rp);
     }
 
+    /**
+     * Creates a new request processor for the given request. Called to
+     * revalidate an expired (or nearly expired) cache entry in the background
+     * with a detached copy of the client request. The default implementation
+     * returns <code>null</code>, so cache entries are never revalidated in the
+     * background.
+     *
+     * @param req The request for which the new request processor should be
+     * created.
+     *
+     * @return A new request processor instance or <code>null</code>.
+     *
+     * @throws ServletException If it was not able to create a new instance of
+     * the request processor.
+     *
+     * @see #setHttpCacheRefreshExecutor(java.util.concurrent.ExecutorService)
+     *
+     * @since 1.2
+     */
+    protected RequestProcessor createRequestProcessor(HttpServletRequest req)
+            throws ServletException {
+        return null;
+    }
+
+    /**
+     * Sends the cached response for the given request processor instead of an
+     * error response, e.g. if the request processor could not be executed
+     * because the servlet is overloaded. Expired cache entries are only sent
+     * within the stale-if-error time.
+     *
+     * @param rp The request processor which was created by
+     * {@link #createCacheRequestProcessor(io.pictura.servlet.RequestProcessor)}.
+     *
+     * @return <code>true</code> if a cached response was sent; otherwise
+     * <code>false</code>.
+     *
+     * @throws ServletException if an input or output error is detected while
+     * sending the response.
+     * @throws IOException if the response could not be sent.
+     *
+     * @see #setHttpCacheStaleIfError(long)
+     *
+     * @since 1.2
+     */
+    protected boolean sendStaleHttpCacheEntry(RequestProcessor rp)
+            throws ServletException, IOException {
+
+        if (rp instanceof CacheRequestProcessor) {
+            CacheRequestProcessor crp = (CacheRequestProcessor) rp;
+            try {
+                return crp.doSendStale();
+            } finally {
+                crp.releaseEntries();
+            }
+        }
+        return false;
+    }
+
     // Request processor wrapper
     private final class CacheRequestProcessor extends RequestProcessor {
 
@@ -169,6 +527,9 @@ public abstract class HttpCacheServlet extends HttpServlet {
 
         private final long timestamp;
 
+        // Entries which are pinned while they are sent
+        private final ArrayList<HttpCacheEntry> retained = new ArrayList<>(2);
+
         private CacheRequestProcessor(RequestProcessor rp) {
             super(rp);
 
@@ -201,53 +562,391 @@ public abstract class HttpCacheServlet extends HttpServlet {
             return rp.getTrueCacheKey();
         }
 
+        @Override
+        public String getCacheTag() {
+            return rp.getCacheTag();
+        }
+
         @Override
         protected void doProcess(HttpServletRequest req, HttpServletResponse resp)
                 throws ServletException, IOException {
 
+            try {
+                doProcessCached(req, resp);
+            } finally {
+                releaseEntries();
+            }
+        }
+
+        // Returns the entry with the given key pinned until the request is
+        // completed or null if there is no entry or the content of the entry
+        // is no longer available
+        private HttpCacheEntry getEntry(HttpCache hc, String key) {
+            HttpCacheEntry entry = hc.get(key);
+            if (entry == null || !entry.retain()) {
+                return null;
+            }
+            retained.add(entry);
+            return entry;
+        }
+
+        private void releaseEntries() {
+            for (HttpCacheEntry entry : retained) {
+                entry.release();
+            }
+            retained.clear();
+        }
+
+        private void doProcessCached(HttpServletRequest req, HttpServletResponse resp)
+                throws ServletException, IOException {
+
             HttpCache hc = getHttpCache();
+            HttpCacheNegativeCache nc = negativeCache;
             String cacheKey = rp.getTrueCacheKey();
 
+            // Expired entry to send in cases of errors
+            HttpCacheEntry staleEntry = null;
+
             if (hc != null) {
-                HttpCacheEntry cacheEntry = hc.get(cacheKey);
+                HttpCacheEntry cacheEntry = getEntry(hc, cacheKey);
 
                 if ("DELETE".equalsIgnoreCase(req.getMethod())) {
+                    if (nc != null && nc.remove(cacheKey) && cacheEntry == null) {
+                        resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+                        return;
+                    }
                     doDelete(cacheEntry, resp);
                     return;
                 }
 
                 if (cacheEntry != null) {
-                    // TODO: Maybe reuse expired entry in cases of origin host errors?
                     if (!cacheEntry.isExpired()) {
+                        if (isEarlyRefresh(cacheEntry)) {
+                            doRefresh(cacheEntry, req);
+                        }
                         doSend(cacheEntry, req, cResp);
                         return;
+                    } else if (isStaleWhileRevalidate(cacheEntry)
+                            && doRefresh(cacheEntry, req)) {
+                        cResp.setHeader("Warning", "110 - \"Response is Stale\"");
+                        doSend(cacheEntry, req, cResp);
+                        return;
+                    } else if (isStaleIfError(cacheEntry)) {
+                        staleEntry = cacheEntry;
                     } else {
                         doRemove(cacheEntry);
                     }
                 }
             }
 
-            if (pp != null) {
-                pp.run();
+            // The same request failed recently
+            boolean negativeCacheable = nc != null && staleEntry == null
+                    && ("GET".equalsIgnoreCase(req.getMethod())
+                    || "HEAD".equalsIgnoreCase(req.getMethod()));
+            if (negativeCacheable && doSendNegative(nc.get(cacheKey))) {
+                return;
+            }
+
+            // Coalesce concurrent misses for the same resource; only the first
+            // request produces the response, all others wait for the entry
+            PendingEntry pending = null;
+            if (hc != null && coalescingTimeout > 0 && "GET".equalsIgnoreCase(req.getMethod())) {
+                PendingEntry p = new PendingEntry();
+                PendingEntry producer = pendingEntries.putIfAbsent(cacheKey, p);
+
+                if (producer == null) {
+                    pending = p;
+                } else {
+                    HttpCacheEntry cacheEntry = producer.await(coalescingTimeout);
+                    if (cacheEntry != null && !cacheEntry.isExpired()) {
+                        cacheCoalescedCount.incrementAndGet();
+                        doSend(cacheEntry, req, cResp);
+                        return;
+                    }
+                    // The producer may have failed with a cacheable error
+                    if (negativeCacheable && doSendNegative(nc.get(cacheKey))) {
+                        return;
+                    }
+                }
             }
 
-            cacheMissCount++;
-            cResp.setHeader("X-Pictura-Cache", "Miss");
+            try {
+                if (pp != null) {
+                    pp.run();
+                }
 
-            rp.doProcess(req, cResp);
-            if (cResp != null && cResp.getStatus() == HttpServletResponse.SC_OK) {
-                if ("GET".equalsIgnoreCase(req.getMethod())) {
-                    doCache(new HttpCacheEntry(cacheKey, cResp.getCopy(), req, cResp));
+                cacheMissCount++;
+                cResp.setHeader("X-Pictura-Cache", "Miss");
+
+                long start = System.currentTimeMillis();
+                if (staleEntry != null) {
+                    if (doProcessStaleIfError(staleEntry, req)) {
+                        return;
+                    }
+                } else {
+                    rp.doProcess(req, cResp);
+                }
+                if (cResp != null && cResp.getStatus() == HttpServletResponse.SC_OK) {
+                    if ("GET".equalsIgnoreCase(req.getMethod())) {
+                        HttpCacheEntry cacheEntry = new HttpCacheEntry(cacheKey, cResp.getCopy(), req, cResp);
+                        cacheEntry.setUserProperty("__delta", String.valueOf(System.currentTimeMillis() - start));
+                        doCache(cacheEntry, rp);
+                        if (pending != null) {
+                            pending.entry = cacheEntry;
+                        }
+                    }
+                } else if (negativeCacheable && cResp.errorStatus > 0
+                        && nc.isCacheable(cResp.errorStatus)) {
+                    nc.put(cacheKey, normalizeHttpCacheTag(rp.getCacheTag()),
+                            cResp.errorStatus, cResp.errorMessage);
                 }
+            } finally {
+                if (pending != null) {
+                    pendingEntries.remove(cacheKey, pending);
+                    pending.latch.countDown();
+                }
+            }
+        }
+
+        // Sends the cached error response; returns false if there is no entry
+        private boolean doSendNegative(HttpCacheNegativeCache.Entry entry)
+                throws IOException {
+
+            if (entry == null || cResp.isCommitted()) {
+                return false;
+            }
+            cResp.setHeader("X-Pictura-Cache", "Negative");
+            if (entry.getMessage() != null) {
+                cResp.sendError(entry.getStatus(), entry.getMessage());
+            } else {
+                cResp.sendError(entry.getStatus());
+            }
+            return true;
+        }
+
+        // Processes the request, but sends the given stale entry instead of
+        // a server error response. Returns true if the stale entry was sent.
+        private boolean doProcessStaleIfError(HttpCacheEntry staleEntry,
+                HttpServletRequest req) throws ServletException, IOException {
+
+            cResp.suppressServerErrors = true;
+            try {
+                rp.doProcess(req, cResp);
+            } catch (ServletException | IOException | RuntimeException e) {
+                if (cResp.isCommitted()) {
+                    throw e;
+                }
+                LOG.warn("Failed to process \"" + rp.getTrueCacheKey()
+                        + "\", sending stale cache entry", e);
+                cResp.suppressedServerError = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+            } finally {
+                cResp.suppressServerErrors = false;
+            }
+
+            if (cResp.suppressedServerError == 0) {
+                return false;
+            }
+
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Sending stale cache entry \"" + rp.getTrueCacheKey()
+                        + "\" instead of status " + cResp.suppressedServerError);
+            }
+
+            cResp.reset();
+            cResp.setHeader("Warning", "111 - \"Revalidation Failed\"");
+            doSend(staleEntry, req, cResp);
+            return true;
+        }
+
+        // Sends the cached entry (also if expired within the stale-if-error
+        // time) without to process the request
+        private boolean doSendStale() throws ServletException, IOException {
+            HttpCache hc = getHttpCache();
+            HttpServletRequest req = getRequest();
+
+            if (hc == null || req == null || cResp.isCommitted()
+                    || !("GET".equalsIgnoreCase(req.getMethod())
+                    || "HEAD".equalsIgnoreCase(req.getMethod()))) {
+                return false;
+            }
+
+            HttpCacheEntry cacheEntry = getEntry(hc, rp.getTrueCacheKey());
+            if (cacheEntry == null
+                    || (cacheEntry.isExpired() && !isStaleIfError(cacheEntry))) {
+                return false;
+            }
+
+            if (cacheEntry.isExpired()) {
+                cResp.setHeader("Warning", "111 - \"Revalidation Failed\"");
+            }
+            doSend(cacheEntry, req, cResp);
+
+            AsyncContext asyncCtx = getAsyncContext();
+            if (asyncCtx != null) {
+                asyncCtx.complete();
+            }
+            return true;
+        }
+
+        private boolean isStaleIfError(HttpCacheEntry entry) {
+            return staleIfError > 0
+                    && System.currentTimeMillis() <= entry.getExpires() + staleIfError;
+        }
+
+        // Tests whether the given (not expired) entry should be revalidated
+        // before it expires. The probability increases with the time it took to
+        // produce the entry and as the entry gets closer to its expiration
+        // time (XFetch).
+        private boolean isEarlyRefresh(HttpCacheEntry entry) {
+            final double beta = earlyRefreshBeta;
+            if (beta <= 0 || refreshExecutor == null) {
+                return false;
+            }
+            long delta = parseDelta(entry);
+            if (delta <= 0) {
+                return false;
+            }
+            double r = ThreadLocalRandom.current().nextDouble();
+            return System.currentTimeMillis() - (delta * beta * Math.log(r > 0 ? r : Double.MIN_VALUE))
+                    >= entry.getExpires();
+        }
+
+        private boolean isStaleWhileRevalidate(HttpCacheEntry entry) {
+            return staleWhileRevalidate > 0 && refreshExecutor != null
+                    && System.currentTimeMillis() <= entry.getExpires() + staleWhileRevalidate;
+        }
+
+        private long parseDelta(HttpCacheEntry entry) {
+            String delta = entry.getUserProperty("__delta");
+            if (delta != null) {
+                try {
+                    return Long.parseLong(delta);
+                } catch (NumberFormatException ex) {
+                    // Ignore
+                }
+            }
+            return -1L;
+        }
+
+        // Revalidates the given entry in the background. Returns false if the
+        // revalidation could not be scheduled, otherwise true (this is also
+        // true if there is already a revalidation in progress for the key).
+        private boolean doRefresh(HttpCacheEntry entry, HttpServletRequest req) {
+            final ExecutorService exec = refreshExecutor;
+            if (exec == null || exec.isShutdown() || !"GET".equalsIgnoreCase(req.getMethod())) {
+                return false;
+            }
+
+            final String cacheKey = rp.getTrueCacheKey();
+            final PendingEntry pending = new PendingEntry();
+            if (pendingEntries.putIfAbsent(cacheKey, pending) != null) {
+                return true;
+            }
+
+            // The origin request and response will be recycled by the
+            // container after this request is completed, so we need to
+            // process a copy
+            final DetachedHttpServletRequest dReq = new DetachedHttpServletRequest(req);
+            final DetachedHttpServletResponse dResp = new DetachedHttpServletResponse();
+
+            // Assume the same cache control as before, because the pre-processor
+            // is bound to the origin response
+            if (entry.getHeader(HEADER_CACHECONTROL) != null) {
+                dResp.setHeader(HEADER_CACHECONTROL, entry.getHeader(HEADER_CACHECONTROL));
+            }
+
+            // A new processor instance, because the processor of this request
+            // is still bound to the client request and response
+            final RequestProcessor refresh = createRefreshProcessor(cacheKey, dReq, dResp);
+            if (refresh == null) {
+                pendingEntries.remove(cacheKey, pending);
+                pending.latch.countDown();
+                return false;
+            }
+
+            try {
+                exec.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            long start = System.currentTimeMillis();
+                            refresh.doProcess(dReq, dResp);
+                            if (dResp.getStatus() == HttpServletResponse.SC_OK) {
+                                HttpCacheEntry cacheEntry = new HttpCacheEntry(cacheKey,
+                                        dResp.getContent(), dReq, dResp);
+                                cacheEntry.setUserProperty("__delta",
+                                        String.valueOf(System.currentTimeMillis() - start));
+                                doCache(cacheEntry, refresh);
+                                pending.entry = cacheEntry;
+                            } else if (LOG.isDebugEnabled()) {
+                                LOG.debug("Revalidation of cache entry \"" + cacheKey
+                                        + "\" failed with status " + dResp.getStatus());
+                            }
+                        } catch (Exception | Error e) {
+                            LOG.warn("Revalidation of cache entry \"" + cacheKey + "\" failed", e);
+                        } finally {
+                            pendingEntries.remove(cacheKey, pending);
+                            pending.latch.countDown();
+                        }
+                    }
+                });
+                return true;
+            } catch (RejectedExecutionException ex) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Revalidation of cache entry \"" + cacheKey + "\" rejected");
+                }
+                pendingEntries.remove(cacheKey, pending);
+                pending.latch.countDown();
+                return false;
             }
         }
 
+        // Creates the processor to revalidate the entry with the given key or
+        // returns null if the request could not be processed in the background
+        private RequestProcessor createRefreshProcessor(String cacheKey,
+                HttpServletRequest dReq, HttpServletResponse dResp) {
+
+            RequestProcessor refresh;
+            try {
+                refresh = createRequestProcessor(dReq);
+            } catch (ServletException | RuntimeException ex) {
+                LOG.warn("Unable to create the revalidation processor for cache entry \""
+                        + cacheKey + "\"", ex);
+                return null;
+            }
+            if (refresh == null || refresh == rp) {
+                return null;
+            }
+
+            refresh.setRequest(dReq);
+            refresh.setResponse(dResp);
+            refresh.setResourcePaths(rp.getResourcePaths());
+            if (refresh.getResourceLocators() == null) {
+                refresh.setResourceLocators(rp.getResourceLocators());
+            }
+
+            // Must produce the same resource
+            if (!refresh.isCacheable() || !cacheKey.equals(refresh.getTrueCacheKey())) {
+                return null;
+            }
+            return refresh;
+        }
+
         private void doSend(HttpCacheEntry entry, HttpServletRequest req,
                 HttpServletResponse resp) throws ServletException, IOException {
 
+            // The response is already cached, so it is not copied (e.g. the
+            // content of off-heap or disk entries into the heap)
+            cResp.setCopying(false);
+
             cacheHitCount++;
             entry.hitCount++;
-            resp.setHeader("X-Pictura-Cache", "Hit");
+            if (entry.isExpired()) {
+                resp.setHeader("X-Pictura-Cache", "Stale");
+            } else {
+                resp.setHeader("X-Pictura-Cache", "Hit");
+            }
 
             Collection<String> headerNames = entry.getHeaderNames();
             for (String name : headerNames) {
@@ -269,8 +968,8 @@ public abstract class HttpCacheServlet extends HttpServlet {
                             newCacheControl.append(sep);
                             if (s.toLowerCase(Locale.ENGLISH).trim().startsWith("max-age=")) {
                                 newCacheControl.append("max-age=")
-                                        .append((entry.getExpires()
-                                                - System.currentTimeMillis()) / 1000);
+                                        .append(Math.max(0, (entry.getExpires()
+                                                - System.currentTimeMillis()) / 1000));
                             } else {
                                 newCacheControl.append(" ").append(s);
                             }
@@ -316,27 +1015,96 @@ public abstract class HttpCacheServlet extends HttpServlet {
             String acceptEncoding = req.getHeader(HEADER_ACCEPTENC);
             acceptEncoding = acceptEncoding != null ? acceptEncoding.toLowerCase(Locale.ENGLISH) : "";
 
+            // The client does not accept the stored encoding, so we need the
+            // identity representation of the entry
             if (("gzip".equalsIgnoreCase(entry.getContentEncoding())
                     && !acceptEncoding.contains("gzip"))
                     || ("deflate".equalsIgnoreCase(entry.getContentEncoding())
                     && !acceptEncoding.contains("deflate"))) {
 
-                byte[] tmp = getInflaterContent(entry.getContent(), entry.getContentEncoding());
+                HttpCacheEntry identity = getVariant(entry, null);
+                if (identity == null) {
+                    identity = new HttpCacheEntry(entry, getVariantKey(entry.getKey(), null),
+                            getInflaterContent(entry.getContent(), entry.getContentEncoding()), null);
+                    putVariant(identity);
+                }
 
                 resp.setHeader(HEADER_CONTENC, null);
-                resp.setContentLength(tmp.length);
-                doWrite(tmp, getRequest(), resp);
+                resp.setContentLength(identity.getContentLength());
+                doWrite(identity.getContent(), getRequest(), resp);
                 return;
             }
 
+            // The client accepts a compressed representation of the identity
+            // entry, so we send the (maybe already) compressed variant instead
+            // of compressing the content again
+            if (entry.getContentEncoding() == null && acceptEncoding.contains("gzip")
+                    && isGZipAllowed(entry.getContentType())
+                    && entry.getContentLength() > getDeflaterCompressionMinSize()) {
+
+                HttpCacheEntry gzip = getVariant(entry, "gzip");
+                if (gzip == null) {
+                    gzip = new HttpCacheEntry(entry, getVariantKey(entry.getKey(), "gzip"),
+                            getDeflaterContent(entry.getContent()), "gzip");
+                    putVariant(gzip);
+                }
+
+                resp.setHeader(HEADER_CONTENC, "gzip");
+                entry = gzip;
+            }
+
+            // Partial content is only served from the identity representation
+            if (entry.getStatus() == HttpServletResponse.SC_OK && entry.getContentEncoding() == null) {
+                ByteRange range = ByteRange.apply(req, resp, entry.getContentLength(),
+                        entry.getHeader(HEADER_ETAG), getLastModified(entry));
+                if (range != null) {
+                    if (range.isSatisfiable() && !isInterrupted() && !"HEAD".equalsIgnoreCase(req.getMethod())) {
+                        try (OutputStream os = new ContextOutputStream(getRequest(), resp.getOutputStream())) {
+                            entry.writeContentTo(os, (int) range.getStart(), (int) range.getLength());
+                        }
+                    }
+                    return;
+                }
+            }
+
             resp.setContentLength(entry.getContentLength());
+
+            // Write direct (e.g. off-heap) content without an intermediate
+            // copy if the response needs no further compression
+            if (entry.isContentDirect() && (entry.getContentEncoding() != null
+                    || !isGZipAllowed(entry.getContentType()))) {
+
+                if (!isInterrupted() && !"HEAD".equalsIgnoreCase(req.getMethod())) {
+                    try (OutputStream os = new ContextOutputStream(getRequest(), resp.getOutputStream())) {
+                        entry.writeContentTo(os);
+                    }
+                }
+                return;
+            }
+
             doWrite(entry.getContent(), getRequest(), resp);
         }
 
+        private long getLastModified(HttpCacheEntry entry) {
+            String lastModified = entry.getHeader(HEADER_LASTMOD);
+            if (lastModified != null) {
+                try {
+                    return HttpCacheEntry.parseDate(lastModified).getTime();
+                } catch (IllegalArgumentException ex) {
+                    // ignore invalid dates
+                }
+            }
+            return -1L;
+        }
+
         private void doDelete(HttpCacheEntry entry, HttpServletResponse resp)
                 throws ServletException, IOException {
 
             HttpCache hc = getHttpCache();
+            if (hc != null && entry != null) {
+                removeVariants(hc, entry.getKey());
+                tagIndex.remove(entry.getUserProperty("__tag"), entry.getKey());
+            }
             if (hc != null && entry != null && hc.remove(entry.getKey())) {
                 resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
                 return;
@@ -344,12 +1112,31 @@ public abstract class HttpCacheServlet extends HttpServlet {
             resp.sendError(HttpServletResponse.SC_NOT_FOUND);
         }
 
-        private void doCache(HttpCacheEntry entry) {
+        private void doCache(HttpCacheEntry entry, RequestProcessor producer) {
             if (entry != null) {
                 HttpCache hc = getHttpCache();
                 if (hc != null && !entry.isExpired()) {
-                    entry.setUserProperty("__producer", rp.getClass().getName());
-                    hc.put(rp.getTrueCacheKey(), entry);
+                    entry.setUserProperty("__producer", producer.getClass().getName());
+
+                    String tag = normalizeHttpCacheTag(producer.getCacheTag());
+                    if (tag != null) {
+                        entry.setUserProperty("__tag", tag);
+                    }
+
+                    removeVariants(hc, entry.getKey());
+                    hc.put(entry.getKey(), entry);
+
+                    if (tag != null) {
+                        tagIndex.add(tag, entry.getKey());
+                        if (tagIndex.isPruneRequired()) {
+                            tagIndex.prune(hc.keySet());
+                        }
+                    }
+
+                    HttpCacheSnapshotter s = snapshotter;
+                    if (s != null) {
+                        s.entryAdded();
+                    }
                 }
             }
         }
@@ -358,11 +1145,51 @@ public abstract class HttpCacheServlet extends HttpServlet {
             if (entry != null) {
                 HttpCache hc = getHttpCache();
                 if (hc != null) {
+                    removeVariants(hc, entry.getKey());
+                    tagIndex.remove(entry.getUserProperty("__tag"), entry.getKey());
                     hc.remove(entry.getKey());
                 }
             }
         }
 
+        // Returns the variant with the specified content encoding of the given
+        // entry if the variant was created from the same (current) entry
+        private HttpCacheEntry getVariant(HttpCacheEntry entry, String contentEncoding) {
+            HttpCache hc = getHttpCache();
+            if (hc == null) {
+                return null;
+            }
+            HttpCacheEntry variant = getEntry(hc, getVariantKey(entry.getKey(), contentEncoding));
+            return variant != null && variant.getTimestamp() == entry.getTimestamp() ? variant : null;
+        }
+
+        private void putVariant(HttpCacheEntry variant) {
+            HttpCache hc = getHttpCache();
+            if (hc != null && !variant.isExpired()) {
+                hc.put(variant.getKey(), variant);
+            }
+        }
+
+        private int getDeflaterCompressionMinSize() {
+            Object minSize = getRequest().getAttribute("io.pictura.servlet.DEFLATER_COMPRESSION_MIN_SIZE");
+            return minSize instanceof Integer ? (Integer) minSize : 1024;
+        }
+
+        private byte[] getDeflaterContent(byte[] content) throws IOException {
+            Object level = getRequest().getAttribute("io.pictura.servlet.DEFLATER_COMPRESSION_LEVEL");
+            final int compressionLevel = level instanceof Integer ? (Integer) level : -1;
+
+            FastByteArrayOutputStream bos = new FastByteArrayOutputStream(content.length / 2 + 64);
+            try (GZIPOutputStream gos = new GZIPOutputStream(bos) {
+                {
+                    def.setLevel(compressionLevel);
+                }
+            }) {
+                gos.write(content);
+            }
+            return bos.toByteArray();
+        }
+
         private byte[] getInflaterContent(byte[] content, String contentEncoding) throws IOException {
             if ("gzip".equalsIgnoreCase(contentEncoding)
                     || "deflate".equalsIgnoreCase(contentEncoding)) {
@@ -387,17 +1214,109 @@ public abstract class HttpCacheServlet extends HttpServlet {
 
     }
 
+    // Encodings of the additional representations of a cache entry
+    private static final String[] VARIANT_ENCODINGS = new String[]{null, "gzip"};
+
+    /**
+     * Returns the cache key of the representation of an entry with the given
+     * content encoding. The fragment separator is used, since it is never part
+     * of a request URI.
+     *
+     * @param key The cache key of the entry.
+     * @param contentEncoding The content encoding or <code>null</code> for the
+     * identity representation.
+     *
+     * @return The cache key of the representation.
+     */
+    static String getVariantKey(String key, String contentEncoding) {
+        return key + "#" + (contentEncoding != null ? contentEncoding : "identity");
+    }
+
+    /**
+     * Returns the normalized cache tag, so the tags <code>lenna.jpg</code> and
+     * <code>/lenna.jpg</code> are equal.
+     *
+     * @param tag The cache tag.
+     *
+     * @return The normalized cache tag or <code>null</code> if the given tag is
+     * <code>null</code> or empty.
+     */
+    static String normalizeHttpCacheTag(String tag) {
+        if (tag == null) {
+            return null;
+        }
+        int i = 0;
+        while (i < tag.length() && tag.charAt(i) == '/') {
+            i++;
+        }
+        return i < tag.length() ? tag.substring(i) : null;
+    }
+
+    private static void removeVariants(HttpCache hc, String key) {
+        for (String contentEncoding : VARIANT_ENCODINGS) {
+            hc.remove(getVariantKey(key, contentEncoding));
+        }
+    }
+
+    // Cache entry which is currently produced by a request processor
+    private static final class PendingEntry {
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile HttpCacheEntry entry;
+
+        private HttpCacheEntry await(long timeout) {
+            try {
+                if (latch.await(timeout, TimeUnit.MILLISECONDS)) {
+                    return entry;
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        }
+
+    }
+
     // Helper class to wrap the servlet response
     private static final class CacheServletResponse extends HttpServletResponseWrapper {
 
         private ServletOutputStream outputStream;
         private PrintWriter writer;
         private ServletOutputStreamCopier copier;
+        private boolean copying = true;
+
+        // If set, server errors are not sent, but remembered
+        private boolean suppressServerErrors;
+        private int suppressedServerError;
+
+        // The last error which was sent
+        private int errorStatus;
+        private String errorMessage;
 
         private CacheServletResponse(HttpServletResponse response) {
             super(response);
         }
 
+        @Override
+        public void sendError(int sc) throws IOException {
+            sendError(sc, null);
+        }
+
+        @Override
+        public void sendError(int sc, String msg) throws IOException {
+            if (suppressServerErrors && sc >= HttpServletResponse.SC_INTERNAL_SERVER_ERROR) {
+                suppressedServerError = sc;
+                return;
+            }
+            errorStatus = sc;
+            errorMessage = msg;
+            if (msg != null) {
+                super.sendError(sc, msg);
+            } else {
+                super.sendError(sc);
+            }
+        }
+
         @Override
         public ServletOutputStream getOutputStream() throws IOException {
             if (writer != null) {
@@ -407,6 +1326,7 @@ public abstract class HttpCacheServlet extends HttpServlet {
             if (outputStream == null) {
                 outputStream = getResponse().getOutputStream();
                 copier = new ServletOutputStreamCopier(outputStream);
+                copier.setCopying(copying);
             }
 
             return copier;
@@ -420,6 +1340,7 @@ public abstract class HttpCacheServlet extends HttpServlet {
 
             if (writer == null) {
                 copier = new ServletOutputStreamCopier(getResponse().getOutputStream());
+                copier.setCopying(copying);
                 writer = new PrintWriter(new OutputStreamWriter(copier, getResponse().getCharacterEncoding()), true);
             }
 
@@ -435,6 +1356,14 @@ public abstract class HttpCacheServlet extends HttpServlet {
             }
         }
 
+        // Disables the copy if the response must not be cached
+        void setCopying(boolean copying) {
+            this.copying = copying;
+            if (copier != null) {
+                copier.setCopying(copying);
+            }
+        }
+
         byte[] getCopy() {
             if (copier != null) {
                 return copier.getCopy();
@@ -446,20 +1375,82 @@ public abstract class HttpCacheServlet extends HttpServlet {
     }
 
     // Helper class to get a copy of the data written to the output stream 
-    private static final class ServletOutputStreamCopier extends ServletOutputStream {
+    static final class ServletOutputStreamCopier extends ServletOutputStream
+            implements WritableByteChannel {
+
+        // Max. block size to write direct buffers without a copy
+        private static final int TRANSFER_BUFFER_SIZE = 1024 * 8;
 
         private final OutputStream outputStream;
         private final FastByteArrayOutputStream copy;
 
-        private ServletOutputStreamCopier(OutputStream outputStream) {
+        private boolean copying = true;
+        private byte[] transferBuffer;
+
+        ServletOutputStreamCopier(OutputStream outputStream) {
             this.outputStream = outputStream;
             this.copy = new FastByteArrayOutputStream();
         }
 
+        // If not copying, the data is only passed through
+        void setCopying(boolean copying) {
+            this.copying = copying;
+        }
+
         @Override
         public void write(int b) throws IOException {
             outputStream.write(b);
-            copy.write(b);
+            if (copying) {
+                copy.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            outputStream.write(b, off, len);
+            if (copying) {
+                copy.write(b, off, len);
+            }
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            final int len = src.remaining();
+            if (src.hasArray()) {
+                write(src.array(), src.arrayOffset() + src.position(), len);
+                src.position(src.limit());
+            } else if (!copying) {
+                if (outputStream instanceof WritableByteChannel) {
+                    while (src.hasRemaining()) {
+                        ((WritableByteChannel) outputStream).write(src);
+                    }
+                    return len;
+                }
+                if (transferBuffer == null || transferBuffer.length < Math.min(TRANSFER_BUFFER_SIZE, len)) {
+                    transferBuffer = new byte[Math.min(TRANSFER_BUFFER_SIZE, len)];
+                }
+                while (src.hasRemaining()) {
+                    int n = Math.min(transferBuffer.length, src.remaining());
+                    src.get(transferBuffer, 0, n);
+                    outputStream.write(transferBuffer, 0, n);
+                }
+            } else {
+                // Copy into the cache buffer first and write from there
+                int off = copy.count;
+                copy.write(src);
+                outputStream.write(copy.buf, off, len);
+            }
+            return len;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            outputStream.flush();
         }
 
         byte[] getCopy() {
@@ -483,9 +1474,206 @@ public abstract class HttpCacheServlet extends HttpServlet {
         return new DefaultHttpCache(capacity, 1f, maxEntrySize);
     }
 
+    /**
+     * Creates a new {@link HttpCache} instance which uses a built-in
+     * implementation that is bounded by the total content size of all cached
+     * entries.
+     * <p>
+     * Unlike the cache created by {@link #createDefaultHttpCache(int, int)},
+     * this cache is segmented to reduce lock contention and uses a frequency
+     * based admission policy to decide whether a new entry is worth to evict
+     * existing entries.
+     *
+     * @param maxSize Maximum total content size in bytes of all cache entries.
+     * @param maxEntrySize The number of the maximum content size per entry.
+     *
+     * @return A new cache instance with the specified cache settings.
+     *
+     * @throws IllegalArgumentException if the maximum cache size is less than
+     * 1.
+     *
+     * @since 1.2
+     */
+    public static HttpCache createConcurrentHttpCache(long maxSize, int maxEntrySize)
+            throws IllegalArgumentException {
+
+        return new ConcurrentHttpCache(maxSize, maxEntrySize);
+    }
+
+    /**
+     * Creates a new {@link HttpCache} instance which uses a built-in
+     * implementation that is bounded by the total content size of all cached
+     * entries and evicts entries by their production costs.
+     * <p>
+     * Unlike the cache created by
+     * {@link #createConcurrentHttpCache(long, int)}, this cache weighs each
+     * entry by the time it took to produce the entry, its content size and
+     * its number of hits (GreedyDual-Size-Frequency). So, the results of
+     * expensive image operations are kept longer than cheap ones.
+     *
+     * @param maxSize Maximum total content size in bytes of all cache entries.
+     * @param maxEntrySize The number of the maximum content size per entry.
+     *
+     * @return A new cache instance with the specified cache settings.
+     *
+     * @throws IllegalArgumentException if the maximum cache size is less than
+     * 1.
+     *
+     * @since 1.2
+     */
+    public static HttpCache createCostAwareHttpCache(long maxSize, int maxEntrySize)
+            throws IllegalArgumentException {
+
+        return new GreedyDualHttpCache(maxSize, maxEntrySize);
+    }
+
+    /**
+     * Creates a new {@link HttpCache} instance which uses a built-in
+     * implementation that stores the content of the cache entries outside of
+     * the Java heap (direct memory).
+     * <p>
+     * Note: the maximum cache size must not exceed the maximum direct memory
+     * of the JVM (<code>-XX:MaxDirectMemorySize</code>).
+     *
+     * @param maxSize Maximum size in bytes of the off-heap memory to use.
+     * @param maxEntrySize The number of the maximum content size per entry.
+     *
+     * @return A new cache instance with the specified cache settings.
+     *
+     * @throws IllegalArgumentException if the maximum cache size is less than
+     * the maximum entry size.
+     *
+     * @since 1.2
+     */
+    public static HttpCache createOffHeapHttpCache(long maxSize, int maxEntrySize)
+            throws IllegalArgumentException {
+
+        return new OffHeapHttpCache(maxSize, maxEntrySize);
+    }
+
+    /**
+     * Creates a new {@link HttpCache} instance which uses a built-in
+     * implementation that persists the cache entries to memory mapped segment
+     * files in the specified directory. Existing entries in the directory will
+     * be restored.
+     * <p>
+     * Note: the returned cache is {@link java.io.Closeable} and should be
+     * closed if it is no longer in use.
+     *
+     * @param dir The cache directory.
+     * @param maxSize Maximum size in bytes of all segment files.
+     * @param maxEntrySize The number of the maximum content size per entry.
+     *
+     * @return A new cache instance with the specified cache settings.
+     *
+     * @throws IllegalArgumentException if the directory is <code>null</code>
+     * or the maximum cache size is too small.
+     * @throws IOException if the directory is not writable or an I/O error
+     * occurs while restoring existing entries.
+     *
+     * @since 1.2
+     */
+    public static HttpCache createDiskHttpCache(File dir, long maxSize, int maxEntrySize)
+            throws IllegalArgumentException, IOException {
+
+        return new DiskHttpCache(dir, maxSize, maxEntrySize);
+    }
+
+    /**
+     * Creates a new two level {@link HttpCache}. New entries are stored in both
+     * levels. Entries which are only found in the second level cache are
+     * promoted to the first level cache if they are requested more than once.
+     *
+     * @param l1 The first level cache, e.g. an in-memory cache.
+     * @param l2 The second level cache, e.g. a disk cache.
+     *
+     * @return A new cache instance which combines the given caches.
+     *
+     * @throws IllegalArgumentException if one of the given caches is
+     * <code>null</code>.
+     *
+     * @see #createDiskHttpCache(java.io.File, long, int)
+     *
+     * @since 1.2
+     */
+    public static HttpCache createTieredHttpCache(HttpCache l1, HttpCache l2)
+            throws IllegalArgumentException {
+
+        return new TieredHttpCache(l1, l2, TieredHttpCache.DEFAULT_PROMOTION_THRESHOLD);
+    }
+
+    /**
+     * Creates a new {@link HttpCache} which is shared by a cluster of servlet
+     * instances (peers). Each key is owned by exactly one peer (selected by
+     * rendezvous hashing) which stores the entry in its local cache. On a local
+     * cache miss the entry is fetched from the owner. If the owner is not
+     * reachable within the given timeout, the request falls back to local
+     * processing.
+     * <p>
+     * The returned cache listens on the address of this peer for requests from
+     * the other peers; it must be closed to release the socket. Only
+     * connections from the addresses of the given peers which are
+     * authenticated with the shared secret are accepted.
+     *
+     * @param local The local cache to store the owned entries.
+     * @param self The address of this peer in the format <code>host:port</code>.
+     * @param peers The addresses of all peers in the format
+     * <code>host:port</code>.
+     * @param secret The secret which is shared by all peers to authenticate
+     * the connections between the peers.
+     * @param timeout The timeout in milliseconds to connect to and read from a
+     * peer.
+     * @param maxEntrySize The max. content length in bytes of an entry which
+     * is received from a peer or <code>0</code> if unlimited.
+     *
+     * @return A new cache instance which is shared with the given peers.
+     *
+     * @throws IllegalArgumentException if the local cache is <code>null</code>,
+     * one of the addresses is not valid or the secret is empty.
+     * @throws IOException if the address of this peer could not be bound.
+     *
+     * @since 1.2
+     */
+    public static HttpCache createPeerHttpCache(HttpCache local, String self,
+            Collection<String> peers, String secret, int timeout, int maxEntrySize)
+            throws IllegalArgumentException, IOException {
+
+        return new PeerHttpCache(local, self, peers, secret, timeout, maxEntrySize);
+    }
+
+    /**
+     * Creates a new {@link HttpCache} which stores the entries in a memcached
+     * server and keeps recently used entries in the given local cache. If the
+     * memcached server fails or does not answer within the given timeout for a
+     * number of consecutive operations, the cache degrades to the local cache
+     * only until the server has recovered.
+     *
+     * @param local The local cache to keep recently used entries.
+     * @param address The address of the memcached server in the format
+     * <code>host:port</code>.
+     * @param poolSize The max. number of connections to the memcached server.
+     * @param timeout The timeout in milliseconds for an operation.
+     *
+     * @return A new cache instance which is backed by the memcached server.
+     *
+     * @throws IllegalArgumentException if the local cache is <code>null</code>,
+     * the address is not valid or the pool size is less than 1.
+     *
+     * @since 1.2
+     */
+    public static HttpCache createMemcachedHttpCache(HttpCache local, String address,
+            int poolSize, int timeout) throws IllegalArgumentException {
+
+        return new MemcachedHttpCache(local, address, poolSize, timeout);
+    }
+
     /**
      * Saves the current state of the given cache (entries) to the specified
      * target file on the filesystem.
+     * <p>
+     * The entries are written to a temporary file in the same directory which
+     * replaces the target file (atomically, if supported by the filesystem)
+     * after all entries were written.
      *
      * @param file File to store the cache entries to.
      * @param cache Cache instance to store.
@@ -508,22 +1696,35 @@ public abstract class HttpCacheServlet extends HttpServlet {
         }
 
 
-        if (!file.exists()) {
-            File dir = file.getParentFile();
-            if (!dir.exists()) {
-                dir.mkdirs();
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+
+        // Write to a temporary file first, so the previous file is still
+        // valid if anything goes wrong
+        File tmp = File.createTempFile("." + file.getName() + "-", ".tmp", dir);
+        try {
+            saveHttpCacheToStream(new FileOutputStream(tmp), cache);
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
             }
-            if (!file.createNewFile()) {
-                throw new IOException("Can't create file at \"" + file.getAbsolutePath() + "\"");
+        } finally {
+            if (tmp.exists() && !tmp.delete()) {
+                tmp.deleteOnExit();
             }
         }
-
-        saveHttpCacheToStream(new FileOutputStream(file), cache);
     }
 
     /**
      * Saves the current state of the given cache (entries) to the specified
      * output stream.
+     * <p>
+     * The entries are written one after another in a binary, checksummed
+     * snapshot format, the most frequently requested entries first.
      *
      * @param os The data output stream.
      * @param cache Cache instance to store.
@@ -545,26 +1746,12 @@ public abstract class HttpCacheServlet extends HttpServlet {
             throw new IllegalArgumentException("Cache must be not null");
         }
 
-        ArrayList<HttpCacheEntry> entryList = new ArrayList<>();
-
-        Collection<String> cacheKeys = cache.keySet();
-        for (String key : cacheKeys) {
-            HttpCacheEntry entry = cache.get(key);
-            if (entry != null) {
-                if (entry.isExpired()) {
-                    LOG.info("Cached entry \"" + entry.getKey() + "\" is obsolete and will be removed");
-                    continue;
-                }
-                entryList.add(entry);
-                if (LOG.isTraceEnabled()) {
-                    LOG.trace("Submitted cache entry with key[" + entry.getKey() + "]");
-                }
+        try (OutputStream bos = new BufferedOutputStream(os, 1024 * 64)) {
+            int count = HttpCacheSnapshot.write(bos, cache);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Saved " + count + " cache entries");
             }
         }
-
-        try (ObjectOutputStream oos = new ObjectOutputStream(os)) {
-            oos.writeObject(entryList);
-        }
     }
 
     /**
@@ -599,6 +1786,12 @@ public abstract class HttpCacheServlet extends HttpServlet {
 
     /**
      * Loads a previousely saved cache instance from the specified stream.
+     * <p>
+     * Each entry is put into the given cache as soon as it was read, so the
+     * cache could already be used by other threads while the restore is in
+     * progress. Entries with an invalid checksum are skipped. Beside the
+     * snapshot format, this method is also able to read serialized caches
+     * written by previous versions.
      *
      * @param is The data input stream.
      * @param cache Cache instance to put the loaded entries to.
@@ -612,7 +1805,6 @@ public abstract class HttpCacheServlet extends HttpServlet {
      *
      * @since 1.2
      */
-    @SuppressWarnings("unchecked")
     public static void loadHttpCacheFromStream(InputStream is, HttpCache cache)
             throws IllegalArgumentException, IOException {
 
@@ -623,6 +1815,27 @@ public abstract class HttpCacheServlet extends HttpServlet {
             throw new IllegalArgumentException("Destination cache to restore persisted entries must be not null");
         }
 
+        try (InputStream bis = new BufferedInputStream(is, 1024 * 64)) {
+            bis.mark(4);
+            int magic = new DataInputStream(bis).readInt();
+            bis.reset();
+
+            if (magic == HttpCacheSnapshot.MAGIC) {
+                int count = HttpCacheSnapshot.read(bis, cache);
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Restored " + count + " cache entries");
+                }
+            } else {
+                loadLegacyHttpCache(bis, cache);
+            }
+        }
+    }
+
+    // Serialized entry list written by previous versions
+    @SuppressWarnings("unchecked")
+    private static void loadLegacyHttpCache(InputStream is, HttpCache cache)
+            throws IOException {
+
         try (ObjectInputStream ois = new ObjectInputStream(is)) {
             Object o = ois.readObject();
             if (!(o instanceof ArrayList)) {
@@ -651,7 +1864,7 @@ public abstract class HttpCacheServlet extends HttpServlet {
     }
 
     // Default (built-in) LRU in-memory cache implementation
-    private static final class DefaultHttpCache implements HttpCache {
+    private static final class DefaultHttpCache implements IterableHttpCache {
 
         private final int maxEntrySize;
         private final int capacity;
@@ -705,6 +1918,21 @@ public abstract class HttpCacheServlet extends HttpServlet {
         public Set<String> keySet() {
             return Collections.unmodifiableSet(new ConcurrentSkipListSet<>(cache.keySet()));
         }
+
+        @Override
+        public Collection<HttpCacheEntry> entries() {
+            // Iterating the values does not change the access order
+            synchronized (cache) {
+                ArrayList<HttpCacheEntry> entries = new ArrayList<>(cache.size());
+                for (SoftReference<HttpCacheEntry> ref : cache.values()) {
+                    HttpCacheEntry entry = ref.get();
+                    if (entry != null) {
+                        entries.add(entry);
+                    }
+                }
+                return entries;
+            }
+        }
     }
 
 }
@@ -0,0 +1,497 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshot format to persist the entries of a {@link HttpCache}.
+ * <p>
+ * A snapshot starts with a magic number and a format version followed by one
+ * record per cache entry and an end marker. Each record is framed by the length
+ * of its meta data and content and is followed by a CRC32 checksum, so entries
+ * are written and read one after another without to hold the whole cache
+ * twice in memory. Records with an invalid checksum are skipped.
+ * <p>
+ * The entries are written in descending hit count order, so the hottest
+ * entries are restored first.
+ *
+ * @author Steffen Kremp
+ *
+ * @see HttpCacheServlet#saveHttpCacheToStream(java.io.OutputStream,
+ * io.pictura.servlet.HttpCache)
+ * @see HttpCacheServlet#loadHttpCacheFromStream(java.io.InputStream,
+ * io.pictura.servlet.HttpCache)
+ *
+ * @since 1.2
+ */
+final class HttpCacheSnapshot {
+
+    private static final Log LOG = Log.getLog(HttpCacheSnapshot.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final int MAGIC = 0x5043534E; // PCSN
+    static final int VERSION = 1;
+
+    private static final int END_OF_SNAPSHOT = -1;
+
+    private static final int MAX_META_SIZE = 1024 * 1024;
+    private static final int MAX_CONTENT_SIZE = Integer.MAX_VALUE - 8;
+
+    private HttpCacheSnapshot() {
+    }
+
+    /**
+     * Writes all non-expired entries of the given cache to the specified
+     * stream. The stream is not closed.
+     *
+     * @param os The output stream.
+     * @param cache The cache to write.
+     *
+     * @return Number of written entries.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    static int write(OutputStream os, HttpCache cache) throws IOException {
+        DataOutputStream dos = new DataOutputStream(os);
+        dos.writeInt(MAGIC);
+        dos.writeInt(VERSION);
+
+        int count = 0;
+        for (HttpCacheEntry entry : sortByHitCount(entries(cache))) {
+            if (entry.isExpired()) {
+                LOG.info("Cached entry \"" + entry.getKey() + "\" is obsolete and will be removed");
+                continue;
+            }
+
+            // The entry may be evicted in the meantime
+            if (!entry.retain()) {
+                continue;
+            }
+            try {
+                writeRecord(dos, entry);
+            } finally {
+                entry.release();
+            }
+            count++;
+
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("Submitted cache entry with key[" + entry.getKey() + "]");
+            }
+        }
+
+        dos.writeInt(END_OF_SNAPSHOT);
+        dos.flush();
+        return count;
+    }
+
+    /**
+     * Reads the entries from the given snapshot stream and puts the non-expired
+     * entries into the specified cache. Every entry is put as soon as it was
+     * read, so the cache is usable while the restore is in progress. The
+     * stream is not closed.
+     *
+     * @param is The input stream.
+     * @param cache The cache to restore the entries to.
+     *
+     * @return Number of restored entries.
+     *
+     * @throws IOException if an I/O error occurs or the snapshot is corrupt.
+     */
+    static int read(InputStream is, HttpCache cache) throws IOException {
+        DataInputStream dis = new DataInputStream(is);
+
+        if (dis.readInt() != MAGIC) {
+            throw new IOException("Invalid cache snapshot");
+        }
+        int version = dis.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported cache snapshot version " + version);
+        }
+
+        int count = 0;
+        try {
+            while (true) {
+                int metaLength = dis.readInt();
+                if (metaLength == END_OF_SNAPSHOT) {
+                    break;
+                }
+                HttpCacheEntry entry = readRecord(dis, metaLength);
+                if (entry == null) {
+                    LOG.warn("Skipped corrupted cache snapshot record (checksum mismatch)");
+                    continue;
+                }
+                if (entry.isExpired()) {
+                    LOG.info("Cached entry \"" + entry.getKey() + "\" is obsolete and will be removed");
+                    continue;
+                }
+
+                cache.put(entry.getKey(), entry);
+                count++;
+
+                if (LOG.isTraceEnabled()) {
+                    LOG.trace("Restored cache entry with key[" + entry.getKey() + "]");
+                }
+            }
+        } catch (EOFException ex) {
+            throw new IOException("Corrupted cache snapshot (unexpected end of stream)", ex);
+        }
+        return count;
+    }
+
+    /**
+     * Writes a single entry as checksummed record (meta data and content) to
+     * the given stream.
+     *
+     * @param dos The output stream.
+     * @param entry The entry to write.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    static void writeRecord(DataOutputStream dos, HttpCacheEntry entry) throws IOException {
+        byte[] meta = writeMeta(entry);
+        int contentLength = entry.getContentLength();
+
+        dos.writeInt(meta.length);
+        dos.writeInt(contentLength);
+
+        RecordOutputStream ros = new RecordOutputStream(dos);
+        ros.write(meta, 0, meta.length);
+        entry.writeContentTo(ros);
+
+        if (ros.count != meta.length + (long) contentLength) {
+            throw new IOException("Content length of cache entry \""
+                    + entry.getKey() + "\" has changed while writing");
+        }
+
+        dos.writeInt((int) ros.crc.getValue());
+    }
+
+    /**
+     * Reads a single record which was written by
+     * {@link #writeRecord(java.io.DataOutputStream, io.pictura.servlet.HttpCacheEntry)}
+     * after its meta data length was read.
+     *
+     * @param dis The input stream.
+     * @param metaLength The already read length of the meta data.
+     *
+     * @return The entry or <code>null</code> if the checksum does not match.
+     *
+     * @throws IOException if an I/O error occurs or the record is corrupt.
+     */
+    static HttpCacheEntry readRecord(DataInputStream dis, int metaLength) throws IOException {
+        return readRecord(dis, metaLength, MAX_CONTENT_SIZE);
+    }
+
+    /**
+     * Reads a single record like
+     * {@link #readRecord(java.io.DataInputStream, int)}, but rejects records
+     * with a content length greater than the specified maximum before the
+     * content is read.
+     *
+     * @param dis The input stream.
+     * @param metaLength The already read length of the meta data.
+     * @param maxContentLength The max. allowed content length in bytes.
+     *
+     * @return The entry or <code>null</code> if the checksum does not match.
+     *
+     * @throws IOException if an I/O error occurs or the record is corrupt or
+     * too large.
+     */
+    static HttpCacheEntry readRecord(DataInputStream dis, int metaLength,
+            int maxContentLength) throws IOException {
+
+        int contentLength = dis.readInt();
+
+        if (metaLength < 0 || metaLength > MAX_META_SIZE || contentLength < 0
+                || contentLength > Math.min(maxContentLength, MAX_CONTENT_SIZE)) {
+            throw new IOException("Corrupted cache snapshot (invalid record length)");
+        }
+
+        byte[] meta = new byte[metaLength];
+        byte[] content = new byte[contentLength];
+        dis.readFully(meta);
+        dis.readFully(content);
+
+        CRC32 crc = new CRC32();
+        crc.update(meta);
+        crc.update(content);
+
+        if (dis.readInt() != (int) crc.getValue()) {
+            return null;
+        }
+        return readMeta(meta, content);
+    }
+
+    /**
+     * Reads the keys of the entries (incl. expired entries) from the given
+     * snapshot stream without to read the content. Since snapshots are written
+     * hottest entries first, the keys are returned in the same order. The
+     * stream is not closed.
+     *
+     * @param is The input stream.
+     * @param max The max. number of keys to read.
+     *
+     * @return The keys.
+     *
+     * @throws IOException if an I/O error occurs or the snapshot is corrupt.
+     */
+    static List<String> readKeys(InputStream is, int max) throws IOException {
+        DataInputStream dis = new DataInputStream(is);
+
+        if (dis.readInt() != MAGIC) {
+            throw new IOException("Invalid cache snapshot");
+        }
+        int version = dis.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported cache snapshot version " + version);
+        }
+
+        ArrayList<String> keys = new ArrayList<>();
+        try {
+            while (keys.size() < max) {
+                int metaLength = dis.readInt();
+                if (metaLength == END_OF_SNAPSHOT) {
+                    break;
+                }
+                int contentLength = dis.readInt();
+
+                if (metaLength < 0 || metaLength > MAX_META_SIZE
+                        || contentLength < 0 || contentLength > MAX_CONTENT_SIZE) {
+                    throw new IOException("Corrupted cache snapshot (invalid record length)");
+                }
+
+                byte[] meta = new byte[metaLength];
+                dis.readFully(meta);
+                skipFully(dis, contentLength + 4L); // incl. checksum
+
+                try (DataInputStream mis = new DataInputStream(new FastByteArrayInputStream(meta))) {
+                    String key = readString(mis);
+                    if (key != null) {
+                        keys.add(key);
+                    }
+                }
+            }
+        } catch (EOFException ex) {
+            throw new IOException("Corrupted cache snapshot (unexpected end of stream)", ex);
+        }
+        return keys;
+    }
+
+    private static void skipFully(InputStream is, long n) throws IOException {
+        while (n > 0) {
+            long skipped = is.skip(n);
+            if (skipped <= 0) {
+                if (is.read() < 0) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    /**
+     * Returns the entries of the given cache. If the cache is an
+     * {@link IterableHttpCache}, the entries are returned without to record an
+     * access, otherwise each entry is read once with {@link HttpCache#get}.
+     *
+     * @param cache The cache.
+     *
+     * @return The cached entries.
+     */
+    static Collection<HttpCacheEntry> entries(HttpCache cache) {
+        if (cache instanceof IterableHttpCache) {
+            return ((IterableHttpCache) cache).entries();
+        }
+
+        ArrayList<HttpCacheEntry> entries = new ArrayList<>();
+        for (String key : cache.keySet()) {
+            HttpCacheEntry entry = cache.get(key);
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    // Hottest entries first
+    private static List<HttpCacheEntry> sortByHitCount(Collection<HttpCacheEntry> entries) {
+        // The hit counts may change while sorting, so use a stable copy
+        final IdentityHashMap<HttpCacheEntry, Long> hits = new IdentityHashMap<>(entries.size());
+        for (HttpCacheEntry entry : entries) {
+            hits.put(entry, entry.getHitCount());
+        }
+
+        List<HttpCacheEntry> sorted = new ArrayList<>(hits.keySet());
+        Collections.sort(sorted, new Comparator<HttpCacheEntry>() {
+
+            @Override
+            public int compare(HttpCacheEntry e1, HttpCacheEntry e2) {
+                long h1 = hits.get(e1);
+                long h2 = hits.get(e2);
+                return h1 < h2 ? 1 : (h1 == h2 ? 0 : -1);
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * Writes the meta data (headers, user properties, ...) of the given entry
+     * without the content.
+     *
+     * @param entry The entry.
+     *
+     * @return The serialized meta data.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    static byte[] writeMeta(HttpCacheEntry entry) throws IOException {
+        FastByteArrayOutputStream bos = new FastByteArrayOutputStream(512);
+        try (DataOutputStream dos = new DataOutputStream(bos)) {
+            writeString(dos, entry.getKey());
+            dos.writeLong(entry.getTimestamp());
+            dos.writeLong(entry.getExpires());
+            dos.writeInt(entry.getStatus());
+            dos.writeLong(entry.getHitCount());
+
+            Collection<String> headerNames = entry.getHeaderNames();
+            dos.writeInt(headerNames.size());
+            for (String name : headerNames) {
+                writeString(dos, name);
+                writeString(dos, entry.getHeader(name));
+            }
+
+            Collection<String> propertyNames = entry.getUserPropertyNames();
+            dos.writeInt(propertyNames.size());
+            for (String name : propertyNames) {
+                writeString(dos, name);
+                writeString(dos, entry.getUserProperty(name));
+            }
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Reads the meta data which was written by
+     * {@link #writeMeta(io.pictura.servlet.HttpCacheEntry)} and creates a new
+     * entry with the given content.
+     *
+     * @param meta The serialized meta data.
+     * @param content The content or <code>null</code>.
+     *
+     * @return The entry.
+     *
+     * @throws IOException if the meta data is corrupt.
+     */
+    static HttpCacheEntry readMeta(byte[] meta, byte[] content) throws IOException {
+        try (DataInputStream dis = new DataInputStream(new FastByteArrayInputStream(meta))) {
+            String key = readString(dis);
+            long timestamp = dis.readLong();
+            long expires = dis.readLong();
+            int status = dis.readInt();
+            long hitCount = dis.readLong();
+
+            int n = dis.readInt();
+            HashMap<String, String> headers = new HashMap<>(Math.max(16, n * 2));
+            for (int i = 0; i < n; i++) {
+                headers.put(readString(dis), readString(dis));
+            }
+
+            n = dis.readInt();
+            HashMap<String, String> userProperties = new HashMap<>(Math.max(16, n * 2));
+            for (int i = 0; i < n; i++) {
+                userProperties.put(readString(dis), readString(dis));
+            }
+
+            HttpCacheEntry entry = new HttpCacheEntry(timestamp, key, content,
+                    status, expires, headers, userProperties);
+            entry.hitCount = hitCount;
+            return entry;
+        }
+    }
+
+    static void writeString(DataOutputStream dos, String s) throws IOException {
+        if (s == null) {
+            dos.writeInt(-1);
+            return;
+        }
+        byte[] b = s.getBytes(UTF8);
+        dos.writeInt(b.length);
+        dos.write(b);
+    }
+
+    static String readString(DataInputStream dis) throws IOException {
+        int len = dis.readInt();
+        if (len < 0) {
+            return null;
+        }
+        if (len > MAX_META_SIZE) {
+            throw new IOException("Corrupted cache snapshot (invalid string length)");
+        }
+        byte[] b = new byte[len];
+        dis.readFully(b);
+        return new String(b, UTF8);
+    }
+
+    // Counts the written bytes and calculates the checksum of a record
+    private static final class RecordOutputStream extends FilterOutputStream {
+
+        private final CRC32 crc = new CRC32();
+        private long count;
+
+        private RecordOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            crc.update(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            crc.update(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // The underlying stream is still in use
+            flush();
+        }
+    }
+
+}
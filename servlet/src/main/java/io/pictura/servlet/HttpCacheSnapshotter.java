@@ -0,0 +1,218 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes snapshots of a {@link HttpCache} to a file in the background, either
+ * periodically or after a specified number of new cache entries.
+ * <p>
+ * Snapshots are written by a single background thread, so request threads are
+ * never blocked. Each snapshot is written to a temporary file first which is
+ * renamed to the target file afterwards.
+ *
+ * @author Steffen Kremp
+ *
+ * @see HttpCacheServlet#saveHttpCacheToFile(java.io.File,
+ * io.pictura.servlet.HttpCache)
+ *
+ * @since 1.2
+ */
+final class HttpCacheSnapshotter implements Closeable {
+
+    private static final Log LOG = Log.getLog(HttpCacheSnapshotter.class);
+
+    private final HttpCache cache;
+    private final File file;
+
+    private final long interval;
+    private final int threshold;
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    private final AtomicLong newEntryCount;
+    private final AtomicBoolean pending;
+
+    private volatile boolean started;
+
+    private volatile long snapshotCount;
+    private volatile long lastSnapshotTimestamp;
+    private volatile long lastSnapshotDuration;
+    private volatile long lastSnapshotSize;
+
+    /**
+     * Creates a new snapshotter.
+     *
+     * @param cache The cache to persist.
+     * @param file The target file.
+     * @param interval Interval in milliseconds between two snapshots or
+     * <code>0</code> to disable periodic snapshots.
+     * @param threshold Number of new cache entries after that a snapshot is
+     * written or <code>0</code> to disable.
+     *
+     * @throws IllegalArgumentException if the cache or file is
+     * <code>null</code>.
+     */
+    HttpCacheSnapshotter(HttpCache cache, File file, long interval, int threshold) {
+        if (cache == null) {
+            throw new IllegalArgumentException("Cache must be not null");
+        }
+        if (file == null) {
+            throw new IllegalArgumentException("Cache file must be not null");
+        }
+
+        this.cache = cache;
+        this.file = file;
+        this.interval = Math.max(0, interval);
+        this.threshold = Math.max(0, threshold);
+
+        this.executor = new ScheduledThreadPoolExecutor(1, new ServerThreadFactory());
+
+        this.newEntryCount = new AtomicLong();
+        this.pending = new AtomicBoolean();
+    }
+
+    /**
+     * Starts the snapshotter. No snapshots are written before this method was
+     * called, e.g. while the cache is restored from the same file.
+     */
+    void start() {
+        started = true;
+        if (threshold > 0 && newEntryCount.get() >= threshold) {
+            trigger();
+        }
+        if (interval > 0) {
+            try {
+                executor.scheduleWithFixedDelay(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        if (newEntryCount.get() > 0) {
+                            snapshot();
+                        }
+                    }
+                }, interval, interval, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ex) {
+                // Already closed
+            }
+        }
+    }
+
+    /**
+     * Notifies this snapshotter about a new (or updated) cache entry. If the
+     * threshold is reached, a new snapshot will be triggered.
+     */
+    void entryAdded() {
+        if (newEntryCount.incrementAndGet() >= threshold && threshold > 0) {
+            trigger();
+        }
+    }
+
+    /**
+     * Triggers a new snapshot in the background unless there is already one
+     * pending or the snapshotter was not started yet.
+     */
+    void trigger() {
+        if (started && pending.compareAndSet(false, true)) {
+            try {
+                executor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        snapshot();
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                pending.set(false);
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if there are new cache entries since the last
+     * snapshot; otherwise <code>false</code>.
+     */
+    boolean isDirty() {
+        return newEntryCount.get() > 0;
+    }
+
+    long getSnapshotCount() {
+        return snapshotCount;
+    }
+
+    long getLastSnapshotTimestamp() {
+        return lastSnapshotTimestamp;
+    }
+
+    long getLastSnapshotDuration() {
+        return lastSnapshotDuration;
+    }
+
+    long getLastSnapshotSize() {
+        return lastSnapshotSize;
+    }
+
+    // Runs in the background thread only
+    private void snapshot() {
+        pending.set(false);
+        long count = newEntryCount.getAndSet(0);
+
+        long start = System.currentTimeMillis();
+        try {
+            HttpCacheServlet.saveHttpCacheToFile(file, cache);
+
+            lastSnapshotDuration = System.currentTimeMillis() - start;
+            lastSnapshotTimestamp = start;
+            lastSnapshotSize = file.length();
+            snapshotCount++;
+
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Saved cache snapshot to \"" + file.getAbsolutePath()
+                        + "\" in " + lastSnapshotDuration + "ms (" + lastSnapshotSize + " bytes)");
+            }
+        } catch (IOException | RuntimeException ex) {
+            // Try again next time
+            newEntryCount.addAndGet(count);
+            LOG.error("Unable to save a cache snapshot. "
+                    + "See nested exception for more details", ex);
+        }
+    }
+
+    /**
+     * Stops the snapshotter and waits for a running snapshot to finish.
+     *
+     * @throws IOException if the current thread was interrupted while waiting.
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        }
+    }
+
+}
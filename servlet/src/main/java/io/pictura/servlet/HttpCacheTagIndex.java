@@ -0,0 +1,231 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Secondary index from a cache tag (e.g. the path or URL of a source image) to
+ * the keys of all cache entries which are derived from it. The index allows to
+ * invalidate a whole family of cache entries without to scan the cache.
+ * <p>
+ * The index is not notified about evictions of the underlying cache, so it may
+ * contain keys which are no longer cached. These keys are removed by
+ * {@link #prune(java.util.Collection)} which is executed automatically if the
+ * index has grown to twice the size after the last pruning.
+ *
+ * @author Steffen Kremp
+ *
+ * @since 1.2
+ */
+final class HttpCacheTagIndex {
+
+    // Min. number of keys before the index is pruned
+    private static final int MIN_PRUNE_THRESHOLD = 1024;
+
+    private final ConcurrentHashMap<String, Family> families = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final ReentrantLock pruneLock = new ReentrantLock();
+
+    private volatile int pruneThreshold = MIN_PRUNE_THRESHOLD;
+
+    /**
+     * Adds the given cache key to the family of the specified tag.
+     *
+     * @param tag The cache tag.
+     * @param key The cache key.
+     */
+    void add(String tag, String key) {
+        if (tag == null || tag.isEmpty() || key == null) {
+            return;
+        }
+
+        for (;;) {
+            Family f = families.get(tag);
+            if (f == null) {
+                Family nf = new Family();
+                f = families.putIfAbsent(tag, nf);
+                if (f == null) {
+                    f = nf;
+                }
+            }
+            synchronized (f) {
+                // The family was purged in the meantime
+                if (f.removed) {
+                    continue;
+                }
+                if (f.keys.add(key)) {
+                    size.incrementAndGet();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes the given cache key from the family of the specified tag.
+     *
+     * @param tag The cache tag.
+     * @param key The cache key.
+     */
+    void remove(String tag, String key) {
+        if (tag == null || key == null) {
+            return;
+        }
+
+        Family f = families.get(tag);
+        if (f != null) {
+            synchronized (f) {
+                if (!f.removed && f.keys.remove(key)) {
+                    size.decrementAndGet();
+                    if (f.keys.isEmpty()) {
+                        f.removed = true;
+                        families.remove(tag, f);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the family of the specified tag from the index.
+     *
+     * @param tag The cache tag.
+     *
+     * @return The keys of the removed family or an empty set if there was no
+     * family for the given tag.
+     */
+    Set<String> removeTag(String tag) {
+        if (tag == null) {
+            return Collections.emptySet();
+        }
+
+        Family f = families.remove(tag);
+        if (f == null) {
+            return Collections.emptySet();
+        }
+
+        synchronized (f) {
+            f.removed = true;
+            size.addAndGet(-f.keys.size());
+            return f.keys;
+        }
+    }
+
+    /**
+     * @param tag The cache tag.
+     *
+     * @return A copy of the keys of the family of the specified tag.
+     */
+    Set<String> getKeys(String tag) {
+        Family f = tag != null ? families.get(tag) : null;
+        if (f == null) {
+            return Collections.emptySet();
+        }
+        synchronized (f) {
+            return new HashSet<>(f.keys);
+        }
+    }
+
+    /**
+     * @return The number of indexed cache keys.
+     */
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * @return The number of indexed tags.
+     */
+    int tagCount() {
+        return families.size();
+    }
+
+    /**
+     * Returns <code>true</code> if the index has grown to twice the size after
+     * the last pruning.
+     *
+     * @return <code>true</code> if the index should be pruned.
+     */
+    boolean isPruneRequired() {
+        return size.get() > pruneThreshold;
+    }
+
+    /**
+     * Removes all keys from the index which are not contained in the given
+     * collection of (cached) keys. The method returns immediately if another
+     * thread is already pruning the index.
+     *
+     * @param cachedKeys The keys of the underlying cache.
+     */
+    void prune(Collection<String> cachedKeys) {
+        if (!pruneLock.tryLock()) {
+            return;
+        }
+        try {
+            List<Map.Entry<String, Family>> entries = new ArrayList<>(families.entrySet());
+            for (Map.Entry<String, Family> e : entries) {
+                Family f = e.getValue();
+                synchronized (f) {
+                    if (f.removed) {
+                        continue;
+                    }
+                    Iterator<String> it = f.keys.iterator();
+                    while (it.hasNext()) {
+                        if (!cachedKeys.contains(it.next())) {
+                            it.remove();
+                            size.decrementAndGet();
+                        }
+                    }
+                    if (f.keys.isEmpty()) {
+                        f.removed = true;
+                        families.remove(e.getKey(), f);
+                    }
+                }
+            }
+            pruneThreshold = Math.max(MIN_PRUNE_THRESHOLD, size.get() * 2);
+        } finally {
+            pruneLock.unlock();
+        }
+    }
+
+    /**
+     * Removes all tags and keys from the index.
+     */
+    void clear() {
+        for (String tag : new ArrayList<>(families.keySet())) {
+            removeTag(tag);
+        }
+    }
+
+    // All cache keys of one tag; guarded by its own monitor
+    private static final class Family {
+
+        private final HashSet<String> keys = new HashSet<>(8);
+        private boolean removed;
+    }
+
+}
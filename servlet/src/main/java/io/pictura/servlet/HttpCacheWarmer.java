@@ -0,0 +1,296 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pre-generates the responses for a list of request paths in the background to
+ * warm up the HTTP cache, e.g. after a deployment.
+ * <p>
+ * The warm-up runs on its own low priority threads and pauses as long as the
+ * servlet is busy with live requests (see {@link #isBusy()}), so it never
+ * competes with client requests for the request executor.
+ *
+ * @author Steffen Kremp
+ *
+ * @since 1.2
+ */
+abstract class HttpCacheWarmer implements Closeable {
+
+    private static final Log LOG = Log.getLog(HttpCacheWarmer.class);
+
+    // Time in millis to pause if the servlet is busy
+    static final long THROTTLE_DELAY = 100L;
+
+    private final List<String> paths;
+    private final int poolSize;
+    private final float readyRatio;
+
+    private final ExecutorService executor;
+
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger processedCount = new AtomicInteger();
+    private final AtomicInteger warmedCount = new AtomicInteger();
+
+    private volatile long startTimestamp;
+
+    /**
+     * Creates a new cache warmer.
+     *
+     * @param paths The request paths to warm up; in the order of priority.
+     * @param poolSize The number of threads.
+     * @param readyRatio The ratio of processed paths from <code>0</code> to
+     * <code>1</code> after that the warm-up is considered as ready.
+     *
+     * @throws IllegalArgumentException if the paths are <code>null</code> or
+     * the pool size is less than 1.
+     */
+    HttpCacheWarmer(Collection<String> paths, int poolSize, float readyRatio) {
+        if (paths == null) {
+            throw new IllegalArgumentException("Paths must be not null");
+        }
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Pool size must be greater than 0");
+        }
+
+        this.paths = new ArrayList<>(new LinkedHashSet<>(paths));
+        this.poolSize = poolSize;
+        this.readyRatio = Math.max(0f, Math.min(1f, readyRatio));
+
+        this.executor = Executors.newFixedThreadPool(poolSize,
+                new ServerThreadFactory(Thread.MIN_PRIORITY));
+    }
+
+    /**
+     * Tests whether the servlet is currently busy with live requests. The
+     * warm-up is paused as long as this method returns <code>true</code>.
+     *
+     * @return <code>true</code> if the warm-up should pause.
+     */
+    abstract boolean isBusy();
+
+    /**
+     * Produces (and caches) the response for the specified request path.
+     *
+     * @param path The request path.
+     *
+     * @return <code>true</code> if the response was produced successfully.
+     *
+     * @throws Exception if the response could not be produced.
+     */
+    abstract boolean warm(String path) throws Exception;
+
+    /**
+     * Starts the warm-up.
+     *
+     * @param predecessor An optional thread to wait for before the warm-up is
+     * started, e.g. the thread which restores the cache from a file, or
+     * <code>null</code>.
+     */
+    void start(final Thread predecessor) {
+        startTimestamp = System.currentTimeMillis();
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Warming up the cache with " + paths.size() + " requests");
+        }
+
+        for (int i = 0; i < poolSize; i++) {
+            try {
+                executor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            if (predecessor != null) {
+                                predecessor.join();
+                            }
+                            doWarmUp();
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                // Already closed
+                return;
+            }
+        }
+        executor.shutdown();
+    }
+
+    private void doWarmUp() throws InterruptedException {
+        int i;
+        while ((i = next.getAndIncrement()) < paths.size()) {
+            while (isBusy()) {
+                Thread.sleep(THROTTLE_DELAY);
+            }
+
+            String path = paths.get(i);
+            try {
+                if (warm(path)) {
+                    warmedCount.incrementAndGet();
+                } else if (LOG.isDebugEnabled()) {
+                    LOG.debug("Unable to warm up \"" + path + "\"");
+                }
+            } catch (InterruptedException ex) {
+                throw ex;
+            } catch (Exception | Error e) {
+                LOG.warn("Unable to warm up \"" + path + "\"", e);
+            }
+
+            if (processedCount.incrementAndGet() == paths.size() && LOG.isInfoEnabled()) {
+                LOG.info("Cache warm-up finished (" + warmedCount.get() + " of "
+                        + paths.size() + " requests warmed up in "
+                        + (System.currentTimeMillis() - startTimestamp) + "ms)");
+            }
+        }
+    }
+
+    /**
+     * @return The total number of request paths to warm up.
+     */
+    int getTotalCount() {
+        return paths.size();
+    }
+
+    /**
+     * @return The number of already processed request paths.
+     */
+    int getProcessedCount() {
+        return processedCount.get();
+    }
+
+    /**
+     * @return The number of successfully warmed up request paths.
+     */
+    int getWarmedCount() {
+        return warmedCount.get();
+    }
+
+    /**
+     * Returns <code>true</code> if the configured ratio of all request paths
+     * was processed (successfully or not).
+     *
+     * @return <code>true</code> if the warm-up is ready.
+     */
+    boolean isReady() {
+        return paths.isEmpty() || processedCount.get() >= readyRatio * paths.size();
+    }
+
+    /**
+     * @return <code>true</code> if all request paths were processed.
+     */
+    boolean isDone() {
+        return processedCount.get() >= paths.size();
+    }
+
+    /**
+     * Stops the warm-up. Requests which are currently processed are
+     * interrupted.
+     *
+     * @throws IOException never.
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads the request paths from a manifest file with one request path per
+     * line. Empty lines and lines starting with <code>#</code> are ignored. If
+     * a line contains more than one token (e.g. a line of an access log), the
+     * first token which starts with a <code>/</code> is used.
+     *
+     * @param f The manifest file.
+     * @param max The max. number of paths to read or <code>0</code> for no
+     * limit.
+     *
+     * @return The request paths.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    static List<String> readManifest(File f, int max) throws IOException {
+        LinkedHashSet<String> paths = new LinkedHashSet<>();
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(
+                new FileInputStream(f), StandardCharsets.UTF_8))) {
+
+            String line;
+            while ((line = r.readLine()) != null && (max <= 0 || paths.size() < max)) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                for (String token : line.split("\\s+")) {
+                    if (token.startsWith("/")) {
+                        paths.add(token);
+                        break;
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(paths);
+    }
+
+    /**
+     * Returns the servlet path of the given request path for the specified
+     * servlet URL mappings, e.g. <code>/images</code> for the path
+     * <code>/images/lenna.jpg</code> and the mapping <code>/images/*</code>.
+     *
+     * @param path The request path without the context path.
+     * @param mappings The servlet URL mappings.
+     *
+     * @return The servlet path or an empty string if the servlet is mapped as
+     * default servlet.
+     */
+    static String getServletPath(String path, Collection<String> mappings) {
+        String servletPath = "";
+        if (path == null || mappings == null) {
+            return servletPath;
+        }
+        for (String mapping : mappings) {
+            if (mapping == null || !mapping.endsWith("/*")) {
+                continue;
+            }
+            String prefix = mapping.substring(0, mapping.length() - 2);
+            if ((path.equals(prefix) || path.startsWith(prefix + "/"))
+                    && prefix.length() > servletPath.length()) {
+                servletPath = prefix;
+            }
+        }
+        return servletPath;
+    }
+
+}
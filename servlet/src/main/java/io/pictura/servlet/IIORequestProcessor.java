@@ -38,6 +38,7 @@ import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
 import javax.imageio.spi.ImageReaderSpi;
 import javax.imageio.spi.ImageWriterSpi;
 import javax.imageio.spi.ServiceRegistry.Filter;
+import javax.imageio.stream.FileImageInputStream;
 import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.ImageOutputStream;
 import javax.servlet.ServletException;
@@ -255,6 +256,12 @@ public abstract class IIORequestProcessor extends RequestProcessor {
         final File cacheDirectory = getRequest().getAttribute("io.pictura.servlet.IMAGEIO_CACHE_DIR") != null
                 ? (File) getRequest().getAttribute("io.pictura.servlet.IMAGEIO_CACHE_DIR") : ImageIO.getCacheDirectory();
 
+        // A source which was spilled to a temporary file is read directly from
+        // the file instead of caching the stream again
+        if (is instanceof SpillOutputStream.FileInput) {
+            return new FileImageInputStream(((SpillOutputStream.FileInput) is).getFile());
+        }
+
         return PicturaImageIO.createImageInputStream(is, getIIOFilter(getRequest()), useCache, cacheDirectory);
     }
 
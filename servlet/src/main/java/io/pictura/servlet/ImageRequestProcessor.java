@@ -20,13 +20,12 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.image.BufferedImage;
 import java.awt.image.BufferedImageOp;
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
 import java.net.HttpURLConnection;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
@@ -40,12 +39,15 @@ import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Properties;
+import java.util.TreeMap;
 import java.util.regex.Pattern;
+import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
 import javax.imageio.stream.ImageInputStream;
 import javax.servlet.ServletContext;
@@ -550,6 +552,9 @@ public class ImageRequestProcessor extends IIORequestProcessor {
     // The requested quality step
     private Quality quality;
 
+    // The permit to send a request to the origin of a remote source
+    private OriginGuard.Permit originPermit;
+
     /**
      * Creates a new image request processor instance.
      */
@@ -587,6 +592,259 @@ public class ImageRequestProcessor extends IIORequestProcessor {
         return trueCacheKey;
     }
 
+    /**
+     * Returns the canonical request URI which is built from the parsed request
+     * parameters instead of the origin request URI. The parameters are sorted
+     * by name, combined parameters are replaced by their single values, values
+     * are normalized and parameters with default values are omitted. So, for
+     * example <code>/S=W100/F=webp/lenna.jpg</code>,
+     * <code>/f=webp/s=w100/o=85/lenna.jpg</code> and
+     * <code>/fn=webp/sw=100/lenna.jpg</code> have the same canonical request
+     * URI.
+     *
+     * @return The canonical request URI or the origin request URI if the
+     * request parameters are invalid.
+     *
+     * @see #getCanonicalRequestParameters(javax.servlet.http.HttpServletRequest)
+     * @see #getDefaultRequestParameters()
+     */
+    @Override
+    protected String getCanonicalRequestURI() {
+        HttpServletRequest req = getRequest();
+        if (req == null) {
+            return super.getCanonicalRequestURI();
+        }
+
+        Map<String, String> params;
+        String image;
+        try {
+            params = getCanonicalRequestParameters(req);
+            image = getRequestParameter(req, QPARAM_NAME_IMAGE);
+        } catch (IllegalArgumentException ex) {
+            // The request will be rejected while processing
+            return super.getCanonicalRequestURI();
+        }
+        if (image == null || image.isEmpty()) {
+            return super.getCanonicalRequestURI();
+        }
+
+        StringBuilder uri = new StringBuilder();
+        String ctxPath = req.getContextPath();
+        if (ctxPath != null && !"/".equals(ctxPath)) {
+            uri.append(ctxPath);
+        }
+        if (req.getServletPath() != null) {
+            uri.append(req.getServletPath());
+        }
+        for (Entry<String, String> p : params.entrySet()) {
+            uri.append("/").append(p.getKey()).append("=").append(p.getValue());
+        }
+        uri.append("/").append(image);
+
+        // The query is only a part of the request parameters if query
+        // parameters are enabled
+        String query = req.getQueryString();
+        if (query != null && !query.isEmpty()
+                && !Boolean.TRUE.equals(req.getAttribute("io.pictura.servlet.ENABLE_QUERY_PARAMS"))) {
+            uri.append("?").append(query);
+        }
+        return uri.toString();
+    }
+
+    // Combined parameters which are replaced by their single values
+    private static final List<String> COMBINED_PARAMS = Arrays.asList(
+            QPARAM_NAME_FORMAT, QPARAM_NAME_SCALE, QPARAM_NAME_CROP,
+            QPARAM_NAME_PAD, QPARAM_NAME_BORDER);
+
+    // Parameters with integer values
+    private static final List<String> INT_PARAMS = Arrays.asList(
+            QPARAM_NAME_PAGE, QPARAM_NAME_COMPRESSION_QUALITY,
+            QPARAM_NAME_SCALE_WIDTH, QPARAM_NAME_SCALE_HEIGHT,
+            QPARAM_NAME_SCALE_WIDTH_PERCENTAGE, QPARAM_NAME_SCALE_HEIGHT_PERCENTAGE,
+            QPARAM_NAME_SCALE_METHOD, QPARAM_NAME_SCALE_MODE,
+            QPARAM_NAME_CROP_X, QPARAM_NAME_CROP_Y, QPARAM_NAME_CROP_WIDTH,
+            QPARAM_NAME_CROP_HEIGHT, QPARAM_NAME_CROP_TOP, QPARAM_NAME_CROP_LEFT,
+            QPARAM_NAME_CROP_BOTTOM, QPARAM_NAME_CROP_RIGHT,
+            QPARAM_NAME_CROP_ASPECT_RATIO_X, QPARAM_NAME_CROP_ASPECT_RATIO_Y,
+            QPARAM_NAME_PAD_SIZE, QPARAM_NAME_BORDER_SIZE);
+
+    // Parameters with decimal values
+    private static final List<String> DECIMAL_PARAMS = Arrays.asList(
+            QPARAM_NAME_SCALE_PIXEL_RATIO, QPARAM_NAME_TRIM);
+
+    // Parameters with color values
+    private static final List<String> COLOR_PARAMS = Arrays.asList(
+            QPARAM_NAME_BGCOLOR, QPARAM_NAME_PAD_COLOR, QPARAM_NAME_BORDER_COLOR);
+
+    /**
+     * Returns the canonical (sorted and normalized) request parameters without
+     * the requested image and without parameters with default values.
+     *
+     * @param req The related request object.
+     *
+     * @return The canonical request parameters.
+     *
+     * @throws IllegalArgumentException if the request parameters are invalid.
+     *
+     * @see #getCanonicalRequestURI()
+     *
+     * @since 1.2
+     */
+    protected Map<String, String> getCanonicalRequestParameters(HttpServletRequest req) {
+        TreeMap<String, String> canonical = new TreeMap<>();
+
+        for (Entry<String, String> p : getRequestParameters(req).entrySet()) {
+            if (p.getKey() == null || QPARAM_NAME_IMAGE.equals(p.getKey())
+                    || COMBINED_PARAMS.contains(p.getKey())) {
+                continue;
+            }
+
+            String name = p.getKey().toLowerCase(Locale.ENGLISH);
+            String value = normalizeParameterValue(name, p.getValue());
+            if (value != null) {
+                canonical.put(name, value);
+            }
+        }
+
+        for (Entry<String, String> d : getDefaultRequestParameters().entrySet()) {
+            if (d.getValue().equals(canonical.get(d.getKey()))) {
+                // The compression quality depends on the image quality
+                if (QPARAM_NAME_COMPRESSION_QUALITY.equals(d.getKey())
+                        && canonical.containsKey(QPARAM_NAME_QUALITY)) {
+                    continue;
+                }
+                canonical.remove(d.getKey());
+            }
+        }
+        return canonical;
+    }
+
+    /**
+     * Returns the request parameters (name and normalized value) which have the
+     * same effect as if the parameter is not present at all. These parameters
+     * are omitted in the canonical request URI.
+     * <p>
+     * Subclasses which are handling the absence of a parameter in another way
+     * (e.g. a different default compression quality) must override this
+     * method.
+     *
+     * @return The default request parameters.
+     *
+     * @see #getCanonicalRequestParameters(javax.servlet.http.HttpServletRequest)
+     *
+     * @since 1.2
+     */
+    protected Map<String, String> getDefaultRequestParameters() {
+        HashMap<String, String> defaults = new HashMap<>(4);
+        defaults.put(QPARAM_NAME_COMPRESSION_QUALITY,
+                String.valueOf(Math.round(DEFAULT_COMPRESSION_QUALITY * 100)));
+        defaults.put(QPARAM_NAME_SCALE_PIXEL_RATIO, "1");
+        return defaults;
+    }
+
+    // Returns the normalized value of the given parameter or null if the
+    // parameter has no effect; values of enumerated parameters are matched
+    // the same way as while processing, so an invalid value is never mapped
+    // to the key of a valid request
+    private static String normalizeParameterValue(String name, String value) {
+        if (value == null) {
+            return "";
+        }
+        final String raw = value;
+        value = value.trim().toLowerCase(Locale.ENGLISH);
+
+        if (INT_PARAMS.contains(name)) {
+            Integer i = tryParseInt(value, null);
+            return i != null ? String.valueOf(i) : value;
+        } else if (DECIMAL_PARAMS.contains(name)) {
+            try {
+                return new BigDecimal(value).stripTrailingZeros().toPlainString();
+            } catch (NumberFormatException ex) {
+                return value;
+            }
+        } else if (COLOR_PARAMS.contains(name)) {
+            return value.startsWith("#") ? value.substring(1) : value;
+        }
+
+        switch (name) {
+            case QPARAM_NAME_QUALITY:
+                switch (raw) {
+                    case "u":
+                    case "uh":
+                    case "ultrahigh":
+                        return "u";
+                    case "h":
+                    case "high":
+                        return "h";
+                    case "m":
+                    case "medium":
+                        return "m";
+                    case "l":
+                    case "low":
+                        return "l";
+                    case "":
+                    case "a":
+                    case "auto":
+                        return null;
+                    default:
+                        throw new IllegalArgumentException(
+                                "Invalid quality: \"" + raw + "\"");
+                }
+
+            case QPARAM_NAME_ROTATION:
+                switch (raw.toLowerCase(Locale.ENGLISH)) {
+                    case "l":
+                    case "cw90":
+                        return "90";
+                    case "lr":
+                    case "rl":
+                    case "cw180":
+                        return "180";
+                    case "r":
+                    case "cw270":
+                        return "270";
+                    case "90":
+                    case "180":
+                    case "270":
+                    case "h":
+                    case "v":
+                    case "a":
+                        return value;
+                    case "":
+                        return null;
+                    default:
+                        throw new IllegalArgumentException(
+                                "Invalid rotation: \"" + raw + "\"");
+                }
+
+            case QPARAM_NAME_SCALE_FORCE_UPSCALE:
+                if ("u".equalsIgnoreCase(raw)) {
+                    return "u";
+                } else if (raw.isEmpty()) {
+                    return null;
+                }
+                throw new IllegalArgumentException(
+                        "Invalid scale: unknown argument \"" + raw + "\"");
+
+            default:
+                return value;
+        }
+    }
+
+    /**
+     * Returns the requested image source location, so all cached variants of
+     * the same source image (e.g. different formats or sizes) share the same
+     * tag.
+     *
+     * @return The requested image source location.
+     *
+     * @see #getRequestedImage(javax.servlet.http.HttpServletRequest)
+     */
+    @Override
+    public String getCacheTag() {
+        return getRequestedImage(getRequest());
+    }
+
     /**
      * Tests whether the related HTTP request is equals to an proxy request or
      * not. Normally a proxy request does not contains any image transformation
@@ -1442,40 +1700,48 @@ public class ImageRequestProcessor extends IIORequestProcessor {
     private Pictura.Rotation getRequestedAutoRotation(HttpServletRequest req,
             ImageReader ir) throws IOException {
 
+        if (isAutoRotationRequested(req)) {
+            return getAutoRotation(PicturaExif.getOrientation(ir, 0));
+        }
+        return null;
+    }
+
+    private boolean isAutoRotationRequested(HttpServletRequest req) {
         String str = req != null ? getRequestParameter(req,
                 QPARAM_NAME_ROTATION) : null;
-        
-        if (str != null && "a".equalsIgnoreCase(str)) {
-            int orientation = PicturaExif.getOrientation(ir, 0);
-            switch (orientation) {
-                case 1:
-                    break;
-                case 2: 
-                    // Flip X
-                    return Pictura.Rotation.FLIP_HORZ;
-                case 3: 
-                    // PI rotation
-                    return Pictura.Rotation.CW_180;
-                case 4: 
-                    // Flip Y
-                    return Pictura.Rotation.FLIP_VERT;
-                case 5: 
-                    // -PI/2 and Flip X
-                    // not supported
-                    break;
-                case 6: 
-                    // -PI/2 and -width
-                    return Pictura.Rotation.CW_90;
-                case 7: 
-                    // PI/2 and Flip
-                    // not supported
-                    break;
-                case 8: 
-                    // PI/2
-                    return Pictura.Rotation.CW_270;
-                default:
-                    break;
-            }
+        return str != null && "a".equalsIgnoreCase(str);
+    }
+
+    // Maps the Exif orientation to the required image rotation
+    private static Pictura.Rotation getAutoRotation(int orientation) {
+        switch (orientation) {
+            case 1:
+                break;
+            case 2: 
+                // Flip X
+                return Pictura.Rotation.FLIP_HORZ;
+            case 3: 
+                // PI rotation
+                return Pictura.Rotation.CW_180;
+            case 4: 
+                // Flip Y
+                return Pictura.Rotation.FLIP_VERT;
+            case 5: 
+                // -PI/2 and Flip X
+                // not supported
+                break;
+            case 6: 
+                // -PI/2 and -width
+                return Pictura.Rotation.CW_90;
+            case 7: 
+                // PI/2 and Flip
+                // not supported
+                break;
+            case 8: 
+                // PI/2
+                return Pictura.Rotation.CW_270;
+            default:
+                break;
         }
         return null;
     }
@@ -2092,6 +2358,17 @@ public class ImageRequestProcessor extends IIORequestProcessor {
                 if (np.length() > 0) {
                     resp.setHeader("X-Pictura-NormalizedParams", np.toString());
                 }
+
+                StringBuilder cp = new StringBuilder();
+                for (Entry<String, String> p : getCanonicalRequestParameters(req).entrySet()) {
+                    if (cp.length() > 0) {
+                        cp.append("/");
+                    }
+                    cp.append(p.getKey()).append("=").append(p.getValue());
+                }
+                if (cp.length() > 0) {
+                    resp.setHeader("X-Pictura-CanonicalParams", cp.toString());
+                }
             }
             
             if (srcUrl.getHost() != null && "".equals(srcUrl.getHost())) {
@@ -2170,12 +2447,14 @@ public class ImageRequestProcessor extends IIORequestProcessor {
         if (isProxyRequest(req)) {
             doProcessFileProxy(f, req, resp);
         } else {
-            // Use NIO byte buffer
-            try (FileChannel ch = new FileInputStream(f).getChannel()) {
-                long length = f.length();
-                req.setAttribute("io.pictura.servlet.SRC_IMAGE_SIZE", length);
-                doProcessImage(new ByteBufferInputStream(ch.map(
-                        FileChannel.MapMode.READ_ONLY, 0, length)), req, resp);
+            long length = f.length();
+            req.setAttribute("io.pictura.servlet.SRC_IMAGE_SIZE", length);
+            req.setAttribute("io.pictura.servlet.SRC_IMAGE_ID", f.getAbsolutePath()
+                    + "@" + f.lastModified() + "@" + length);
+
+            // Pooled read or (cached) memory mapping, released on close
+            try (InputStream is = getSourceFileReader(req).open(f)) {
+                doProcessImage(is, req, resp);
             }
         }
     }
@@ -2198,22 +2477,21 @@ public class ImageRequestProcessor extends IIORequestProcessor {
             // TODO: Check if this works correct!
             resp.setContentType(mimeType);
         }
-        resp.setContentLength((int) f.length());
 
-        OutputStream os = new ContextOutputStream(req, resp.getOutputStream());
-
-        // Use NIO byte buffer
         try (FileChannel ch = new FileInputStream(f).getChannel()) {
+            final long length = ch.size();
 
-            InputStream is = new ByteBufferInputStream(ch.map(
-                    FileChannel.MapMode.READ_ONLY, 0, f.length()));
-
-            int len;
-            byte[] buf = new byte[1024 * 16];
-
-            while ((len = is.read(buf)) > -1) {
-                os.write(buf, 0, len);
+            // Optional partial content
+            ByteRange range = ByteRange.apply(req, resp, length, getETagByFile(f), f.lastModified());
+            if (range == null) {
+                resp.setContentLength((int) length);
+            } else if (!range.isSatisfiable()) {
+                return;
             }
+
+            // Transfer the file without copying it into the heap, if possible
+            new ContextOutputStream(req, resp.getOutputStream()).transferFrom(ch,
+                    range != null ? range.getStart() : 0L, range != null ? range.getLength() : length);
         }
     }
 
@@ -2246,20 +2524,42 @@ public class ImageRequestProcessor extends IIORequestProcessor {
             resp.setHeader(HEADER_CONTLOC, url.toExternalForm());
         }
 
+        // Optional cache of the original source bodies. Requests with a
+        // conditional header are passed through to the origin.
+        OriginCache originCache = null;
+        if (req.getAttribute("io.pictura.servlet.ORIGIN_CACHE") instanceof OriginCache
+                && req.getHeader(HEADER_IFMODSINCE) == null
+                && ("http".equalsIgnoreCase(url.getProtocol())
+                || "https".equalsIgnoreCase(url.getProtocol()))) {
+            originCache = (OriginCache) req.getAttribute("io.pictura.servlet.ORIGIN_CACHE");
+        }
+
         URLConnection con = null;
         try {
-            con = getURLConnection(url, req);
-            if (isDebugEnabled()) {
-                con.setRequestProperty("X-Pictura-RequestId", getRequestId().toString());
+            if (originCache != null) {
+                doProcessURLCached(originCache, url, req, resp);
+                return;
             }
+            OriginFetchCoalescer coalescer = getOriginFetchCoalescer(url, req);
+            con = coalescer != null ? doFetchCoalesced(coalescer, url, req)
+                    : newURLConnection(url, req);
             doProcessURLConnection(con, req, resp);
         } catch (RuntimeException e) {
             doInterrupt(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
                     e.getMessage());
+        } catch (OriginGuard.RejectedException ex) {
+            doInterrupt(ex.getStatus(), ex.getMessage());
         } catch (IOException ex) {
+            if (originPermit != null) {
+                originPermit.setException(ex);
+            }
             doInterrupt(HttpServletResponse.SC_BAD_GATEWAY,
                     "Gateway error: " + ex.getMessage());
         } finally {
+            if (originPermit != null) {
+                originPermit.release();
+                originPermit = null;
+            }
             if (con instanceof HttpURLConnection) {
                 ((HttpURLConnection) con).disconnect();
                 if (LOG.isDebugEnabled()) {
@@ -2270,6 +2570,275 @@ public class ImageRequestProcessor extends IIORequestProcessor {
         }
     }
 
+    private void doProcessURLCached(OriginCache cache, URL url, HttpServletRequest req,
+            HttpServletResponse resp) throws ServletException, IOException {
+
+        final String key = url.toExternalForm();
+
+        OriginCache.Entry entry = cache.get(key);
+        String state = "HIT";
+
+        // Wait for a concurrent request which already fetches the same source
+        // into the origin cache
+        OriginFetchCoalescer coalescer = getOriginFetchCoalescer(url, req);
+        OriginFetchCoalescer.Fetch fetch = null;
+        if ((entry == null || !entry.isFresh()) && coalescer != null) {
+            fetch = coalescer.join(key);
+            if (!fetch.isLeader()) {
+                OriginCache.Entry e = coalescer.await(fetch) ? cache.get(key) : null;
+                if (e != null && e.isFresh()) {
+                    coalescer.incrementCoalescedCount();
+                    entry = e;
+                    state = "COALESCED";
+                }
+                fetch = null;
+            }
+        }
+
+        if (entry == null || !entry.isFresh()) {
+            URLConnection con = null;
+            try {
+                try {
+                    con = newURLConnection(url, req);
+                } catch (OriginGuard.RejectedException ex) {
+                    if (entry == null) {
+                        throw ex;
+                    }
+                }
+
+                if (con == null) {
+                    // Serve the stale body while the origin is unavailable
+                    state = "STALE";
+                } else {
+                    // Revalidate the cached body with the origin
+                    if (entry != null) {
+                        if (entry.getETag() != null) {
+                            con.setRequestProperty(HEADER_IFNONMATCH, entry.getETag());
+                        }
+                        if (entry.getLastModified() > 0L) {
+                            con.setIfModifiedSince(entry.getLastModified());
+                        }
+                    }
+
+                    con.connect();
+
+                    final int sc = con instanceof HttpURLConnection
+                            ? ((HttpURLConnection) con).getResponseCode() : HttpURLConnection.HTTP_OK;
+                    if (originPermit != null) {
+                        originPermit.setStatus(sc);
+                    }
+
+                    if (sc == HttpServletResponse.SC_NOT_MODIFIED && entry != null) {
+                        entry = cache.revalidate(entry, OriginCache.getHeaders(con));
+                        state = "REVALIDATED";
+                    } else if (sc == HttpURLConnection.HTTP_OK && isOriginCacheable(cache, con)) {
+                        entry = doFetchURLConnection(cache, key, con, req);
+                        if (entry == null) {
+                            return;
+                        }
+                        state = "MISS";
+                    } else {
+                        // Not cacheable, redirects and errors. Waiting requests
+                        // fetch the source by their own.
+                        if (fetch != null) {
+                            coalescer.complete(key, fetch, null);
+                            fetch = null;
+                        }
+                        doProcessURLConnection(con, req, resp);
+                        return;
+                    }
+                }
+            } finally {
+                if (fetch != null) {
+                    coalescer.complete(key, fetch, null);
+                }
+                if (con instanceof HttpURLConnection) {
+                    ((HttpURLConnection) con).disconnect();
+                }
+            }
+        }
+
+        // Same response headers as for an uncached source
+        long lastModified = entry.getLastModified();
+        if (lastModified > 0L) {
+            resp.setDateHeader(HEADER_LASTMOD, lastModified);
+        }
+        resp.setHeader(HEADER_ETAG, getETagByDate(lastModified));
+
+        for (String name : new String[]{HEADER_CACHECONTROL, HEADER_EXPIRES, HEADER_PRAGMA}) {
+            if (entry.getHeader(name) != null) {
+                resp.setHeader(name, entry.getHeader(name));
+            }
+        }
+        resp.setDateHeader(HEADER_DATE, System.currentTimeMillis());
+
+        if (isDebugEnabled()) {
+            resp.setHeader("X-Pictura-Lookup", System.currentTimeMillis() - getTimestamp() + "ms");
+            resp.setHeader("X-Pictura-OriginCache", state);
+        }
+
+        String ct = entry.getHeader(HEADER_CONTTYPE);
+        if (!ignoreSourceContentType()
+                && (ct == null || !ct.toLowerCase(Locale.ENGLISH).startsWith("image/"))) {
+            doInterrupt(HttpServletResponse.SC_BAD_GATEWAY,
+                    ct == null ? "There was no mime type given by the origin resource."
+                            : "The origin resource content type was \"" + ct
+                            + "\" but \"image/*\" was expected.");
+            return;
+        }
+
+        req.setAttribute("io.pictura.servlet.SRC_IMAGE_SIZE", (long) entry.getLength());
+        if (entry.getLength() > maxImageFileSize) {
+            doInterrupt(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+
+        if (entry.getHeader(HEADER_CONTLANG) != null) {
+            resp.setHeader(HEADER_CONTLANG, entry.getHeader(HEADER_CONTLANG));
+        }
+
+        if (isProxyRequest(req)) {
+            doProcessURLProxy(entry.openStream(), entry.getLength(), ct, lastModified, req, resp);
+        } else {
+            req.setAttribute("io.pictura.servlet.SRC_IMAGE_ID",
+                    getSourceIdentity(key, entry.getETag(), lastModified));
+            try (InputStream is = entry.openStream()) {
+                doProcessImage(is, req, resp);
+            }
+        }
+    }
+
+    // Returns the coalescer for concurrent fetches of the given source or null
+    // if the fetch must not be shared with other requests
+    private OriginFetchCoalescer getOriginFetchCoalescer(URL url, HttpServletRequest req) {
+        Object o = req.getAttribute("io.pictura.servlet.ORIGIN_FETCH_COALESCER");
+        if (o instanceof OriginFetchCoalescer && req.getHeader(HEADER_IFMODSINCE) == null
+                && ("http".equalsIgnoreCase(url.getProtocol())
+                || "https".equalsIgnoreCase(url.getProtocol()))) {
+            return (OriginFetchCoalescer) o;
+        }
+        return null;
+    }
+
+    // Fetches the source once for all concurrent requests of the same URL. The
+    // leader reads a successful response into a shared buffer; all others get
+    // a connection on the shared response or, if the response could not be
+    // shared, fetch the source by their own.
+    private URLConnection doFetchCoalesced(OriginFetchCoalescer coalescer, URL url,
+            HttpServletRequest req) throws IOException {
+
+        final String key = url.toExternalForm();
+        final OriginFetchCoalescer.Fetch fetch = coalescer.join(key);
+
+        if (!fetch.isLeader()) {
+            URLConnection shared = coalescer.await(fetch) ? coalescer.getResponse(fetch) : null;
+            if (shared != null) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Coalesced fetch of url[" + key + "]");
+                }
+                return shared;
+            }
+            return newURLConnection(url, req);
+        }
+
+        BufferedURLConnection response = null;
+        URLConnection con = null;
+        try {
+            con = newURLConnection(url, req);
+            if (!(con instanceof HttpURLConnection)) {
+                return con;
+            }
+
+            HttpURLConnection hc = (HttpURLConnection) con;
+            final long length = hc.getContentLengthLong();
+            if (hc.getResponseCode() != HttpURLConnection.HTTP_OK || length > maxImageFileSize) {
+                return con;
+            }
+
+            FastByteArrayOutputStream bos = new FastByteArrayOutputStream(
+                    length > 0 ? (int) length : 1024 * 16);
+            boolean complete = true;
+
+            try (InputStream is = hc.getInputStream()) {
+                long bytesRead = 0L;
+                int len;
+                byte[] buf = new byte[1024 * 16];
+
+                while ((len = is.read(buf)) > -1) {
+                    bos.write(buf, 0, len);
+                    bytesRead += len;
+
+                    // Too large; the processing of the truncated body will
+                    // interrupt the request as usual
+                    if (bytesRead > maxImageFileSize) {
+                        complete = false;
+                        break;
+                    }
+                }
+            }
+
+            BufferedURLConnection buffered = new BufferedURLConnection(hc, bos.buf, bos.size(), complete);
+            hc.disconnect();
+            if (complete) {
+                response = buffered;
+            }
+            return buffered;
+        } catch (IOException | RuntimeException ex) {
+            if (con instanceof HttpURLConnection) {
+                ((HttpURLConnection) con).disconnect();
+            }
+            throw ex;
+        } finally {
+            coalescer.complete(key, fetch, response);
+        }
+    }
+
+    // Tests whether the body of the given (successful) origin response could be
+    // kept in the origin cache. Otherwise the response is processed as usual.
+    private boolean isOriginCacheable(OriginCache cache, URLConnection con) {
+        long length = con.getContentLengthLong();
+        if (length > cache.getMaxEntrySize() || length > maxImageFileSize) {
+            return false;
+        }
+        String cc = con.getHeaderField(HEADER_CACHECONTROL);
+        if (cc != null && cc.toLowerCase(Locale.ENGLISH).contains("no-store")) {
+            return false;
+        }
+        if (!ignoreSourceContentType()) {
+            String ct = con.getContentType();
+            return ct != null && ct.toLowerCase(Locale.ENGLISH).startsWith("image/");
+        }
+        return true;
+    }
+
+    // Reads the body of the given origin response into the origin cache
+    private OriginCache.Entry doFetchURLConnection(OriginCache cache, String key,
+            URLConnection con, HttpServletRequest req) throws ServletException, IOException {
+
+        long length = con.getContentLengthLong();
+        FastByteArrayOutputStream bos = new FastByteArrayOutputStream(
+                length > 0 ? (int) length : 1024 * 16);
+
+        try (InputStream is = new ContextInputStream(req, con.getInputStream())) {
+            long bytesRead = 0L;
+            int len;
+            byte[] buf = new byte[1024 * 16];
+
+            while ((len = is.read(buf)) > -1) {
+                bos.write(buf, 0, len);
+                bytesRead += len;
+
+                if (bytesRead > maxImageFileSize) {
+                    req.setAttribute("io.pictura.servlet.BYTES_READ", bytesRead);
+                    doInterrupt(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                    return null;
+                }
+            }
+        }
+
+        return cache.put(key, OriginCache.getHeaders(con), Math.max(0L, con.getLastModified()), bos);
+    }
+
     private void doProcessURLConnection(URLConnection con, HttpServletRequest req,
             HttpServletResponse resp) throws ServletException, IOException {
 
@@ -2317,6 +2886,9 @@ public class ImageRequestProcessor extends IIORequestProcessor {
                 System.currentTimeMillis()));
 
         final int sc = isHttp ? ((HttpURLConnection) con).getResponseCode() : HttpURLConnection.HTTP_OK;
+        if (originPermit != null) {
+            originPermit.setStatus(sc);
+        }
         if (sc == HttpURLConnection.HTTP_OK) {
 
             if (isDebugEnabled()) {
@@ -2336,54 +2908,87 @@ public class ImageRequestProcessor extends IIORequestProcessor {
             }
 
             InputStream is = null; // Body data stream
+            LimitedInputStream limited = null;
+            SpillOutputStream spill = null;
 
             req.setAttribute("io.pictura.servlet.SRC_IMAGE_SIZE", con.getContentLengthLong());
 
-            if (con.getContentLengthLong() > maxImageFileSize) {
-                doInterrupt(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
-                return;
-            } else if (con.getContentLengthLong() < 0) {
-                // The server will not tell us how lare the resource
-                // is. We need to calculate this on our side.
-                long bytesRead = 0L;
-                int len;
-
-                byte[] buf = new byte[1024 * 16]; // read in 16kB blocks
-                is = new BufferedInputStream(con.getInputStream());
-
-                FastByteArrayOutputStream bos = new FastByteArrayOutputStream();
+            try {
+                if (con.getContentLengthLong() > maxImageFileSize) {
+                    doInterrupt(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                    return;
+                } else if (con.getContentLengthLong() < 0 && !isProxyRequest(req)
+                        && getRequestedPage(req) == null) {
+                    // The server will not tell us how large the resource is.
+                    // The image reader reads forward only, so we decode the
+                    // image directly from the network stream and check the
+                    // size while the image is read.
+                    is = limited = new LimitedInputStream(new ContextInputStream(
+                            req, con.getInputStream()), maxImageFileSize);
+                } else if (con.getContentLengthLong() < 0) {
+                    // The complete body is needed before it can be processed.
+                    // We need to calculate the size on our side and spill
+                    // large bodies to a temporary file.
+                    long bytesRead = 0L;
+                    int len;
+
+                    byte[] buf = new byte[1024 * 16]; // read in 16kB blocks
+                    spill = new SpillOutputStream(getSpillThreshold(req), getSpillDirectory(req));
+
+                    try (InputStream cis = new ContextInputStream(req, con.getInputStream())) {
+                        while ((len = cis.read(buf)) > -1) {
+                            spill.write(buf, 0, len);
+                            bytesRead += len;
+
+                            if (bytesRead > maxImageFileSize) {
+                                req.setAttribute("io.pictura.servlet.BYTES_READ", bytesRead);
+                                doInterrupt(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                                return;
+                            }
+                        }
+                    }
 
-                while ((len = is.read(buf)) > -1) {
-                    bos.write(buf, 0, len);
-                    bytesRead += len;
+                    spill.close();
+                    is = spill.newInputStream();
 
-                    if (bytesRead > maxImageFileSize) {
-                        req.setAttribute("io.pictura.servlet.BYTES_READ", bytesRead);
-                        doInterrupt(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
-                        is.close();
-                        return;
+                    if (LOG.isDebugEnabled() && spill.isSpilled()) {
+                        LOG.debug("Spilled " + bytesRead + " bytes of url[" + con.getURL().toExternalForm()
+                                + "] to " + spill.getFile().getAbsolutePath());
                     }
-                }
 
-                is.close();
-                is = new FastByteArrayInputStream(bos);
+                    req.setAttribute("io.pictura.servlet.SRC_IMAGE_SIZE", bytesRead);
+                }
 
-                req.setAttribute("io.pictura.servlet.SRC_IMAGE_SIZE", bytesRead);
-            }
+                // Check if content language is available
+                if (con.getHeaderField(HEADER_CONTLANG) != null) {
+                    resp.setHeader(HEADER_CONTLANG, con.getHeaderField(HEADER_CONTLANG));
+                }
 
-            // Check if content language is available
-            if (con.getHeaderField(HEADER_CONTLANG) != null) {
-                resp.setHeader(HEADER_CONTLANG, con.getHeaderField(HEADER_CONTLANG));
-            }
+                if (isProxyRequest(req)) {
+                    doProcessURLProxy(is != null ? is : new ContextInputStream(req, con.getInputStream()),
+                            spill != null ? spill.size() : con.getContentLengthLong(),
+                            con.getContentType(), lastModified, req, resp);
+                } else {
+                    // The input and output streams returned by an URLConnection 
+                    // are not buffered. Therefore we will wrap it to increase 
+                    // the performance.
+                    req.setAttribute("io.pictura.servlet.SRC_IMAGE_ID", getSourceIdentity(
+                            con.getURL().toExternalForm(), con.getHeaderField(HEADER_ETAG), lastModified));
+                    doProcessImage(is != null ? is : new ContextInputStream(
+                            req, con.getInputStream()), req, resp);
+                }
 
-            if (isProxyRequest(req)) {
-                doProcessURLProxy(is == null ? con : is, req, resp);
-            } else {
-                // The input and output streams returned by an URLConnection 
-                // are not buffered. Therefore we will wrap it to increase 
-                // the performance.
-                doProcessImage(is != null ? is : new ContextInputStream(
-                        req, con.getInputStream()), req, resp);
+                if (limited != null) {
+                    if (limited.isLimitExceeded()) {
+                        req.setAttribute("io.pictura.servlet.BYTES_READ", limited.getCount());
+                    } else {
+                        req.setAttribute("io.pictura.servlet.SRC_IMAGE_SIZE", limited.getCount());
+                    }
+                }
+            } finally {
+                if (spill != null) {
+                    spill.dispose();
+                }
             }
         } else if (sc == HttpServletResponse.SC_NOT_MODIFIED) {
             resp.setContentLength(0);
@@ -2410,44 +3015,85 @@ public class ImageRequestProcessor extends IIORequestProcessor {
         }
     }
 
-    private void doProcessURLProxy(Object source, HttpServletRequest req,
-            HttpServletResponse resp) throws ServletException, IOException {
+    // Passes the body of a remote source through to the client. If the body
+    // was spilled to a temporary file, it is transferred without copying it
+    // into the heap.
+    private void doProcessURLProxy(InputStream is, long length, String contentType,
+            long lastModified, HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
 
-        InputStream is = null;
         try {
-            if (source instanceof URLConnection) {
-                URLConnection con = (URLConnection) source;
-
-                resp.setContentLength(con.getContentLength());
-                resp.setContentType(con.getContentType());
-
-                // The input and output streams returned by an URLConnection are 
-                // not buffered. Therefore we will wrap it to increase the
-                // performance.
-                is = new ContextInputStream(req, con.getInputStream());
-            } else if (source instanceof InputStream) {
-                is = (InputStream) source;
-            } else {
-                doInterrupt(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            if (contentType != null) {
+                resp.setContentType(contentType);
+            }
+
+            // Optional partial content
+            ByteRange range = ByteRange.apply(req, resp, length, getETagByDate(lastModified), lastModified);
+            if (range == null) {
+                if (length > -1L) {
+                    resp.setContentLength((int) length);
+                }
+            } else if (!range.isSatisfiable()) {
                 return;
             }
 
-            OutputStream os = new ContextOutputStream(req, resp.getOutputStream());
+            ContextOutputStream os = new ContextOutputStream(req, resp.getOutputStream());
+
+            if (is instanceof FileInputStream) {
+                FileChannel ch = ((FileInputStream) is).getChannel();
+                os.transferFrom(ch, range != null ? range.getStart() : 0L,
+                        range != null ? range.getLength() : ch.size());
+                return;
+            }
+
+            long remaining = range != null ? range.getLength() : Long.MAX_VALUE;
+            if (range != null) {
+                skipFully(is, range.getStart());
+            }
 
             int len;
-            byte[] buf = new byte[1024 * 16];
+            byte[] buf = new byte[1024 * 64];
 
-            while ((len = is.read(buf)) > -1) {
+            while (remaining > 0 && (len = is.read(buf, 0, (int) Math.min(buf.length, remaining))) > -1) {
                 os.write(buf, 0, len);
+                remaining -= len;
             }
         } finally {
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (IOException ex) {
+            try {
+                is.close();
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+    private static void skipFully(InputStream is, long n) throws IOException {
+        while (n > 0) {
+            long skipped = is.skip(n);
+            if (skipped <= 0) {
+                if (is.read() < 0) {
+                    throw new IOException("Unexpected end of stream");
                 }
+                skipped = 1;
             }
+            n -= skipped;
+        }
+    }
+
+    private URLConnection newURLConnection(URL url, HttpServletRequest req)
+            throws IOException {
+
+        // Bulkhead and circuit breaker of the origin
+        if (originPermit == null && req.getAttribute("io.pictura.servlet.ORIGIN_GUARD") instanceof OriginGuard
+                && ("http".equalsIgnoreCase(url.getProtocol())
+                || "https".equalsIgnoreCase(url.getProtocol()))) {
+            originPermit = ((OriginGuard) req.getAttribute("io.pictura.servlet.ORIGIN_GUARD")).acquire(url);
+        }
+
+        URLConnection con = getURLConnection(url, req);
+        if (isDebugEnabled()) {
+            con.setRequestProperty("X-Pictura-RequestId", getRequestId().toString());
         }
+        return con;
     }
 
     private URLConnection getURLConnection(URL url, HttpServletRequest req)
@@ -2532,6 +3178,7 @@ public class ImageRequestProcessor extends IIORequestProcessor {
         BufferedImage out = null; // The converted output image (master frame)                              
 
         BufferedImage[] srcSequence = null;
+        boolean rasterShared = false; // Whether src is a cached image
 
         try {
             // Test the format parameter. In this case if the parameter is present
@@ -2688,15 +3335,60 @@ public class ImageRequestProcessor extends IIORequestProcessor {
             // The image reader instance is detected by the service provider
             // interface of the Java ImageIO API.
             int srcSequenceDelayTime = 0;
+
+            // The optional cache of decoded source images. A cached image is
+            // shared with concurrent requests and must not be modified.
+            RasterCache rasterCache = getRasterCache(req);
+            String rasterKey = null;
+            RasterCache.Entry rasterEntry = null;
+            boolean rasterLocked = false; // Whether this request decodes for others
+
+            if (rasterCache != null && req.getAttribute("io.pictura.servlet.SRC_IMAGE_ID") instanceof String) {
+                rasterKey = req.getAttribute("io.pictura.servlet.SRC_IMAGE_ID") + "#"
+                        + (index != null ? index : 0);
+                rasterEntry = rasterCache.get(rasterKey);
+
+                // Wait for a concurrent request which already decodes the
+                // same source image
+                if (rasterEntry == null && !(rasterLocked = rasterCache.lock(rasterKey))) {
+                    rasterEntry = rasterCache.get(rasterKey);
+                }
+
+                // GIF sequences and unknown orientations are decoded as usual
+                if (rasterEntry != null && ((index != null && "gif".equalsIgnoreCase(rasterEntry.getFormatName())
+                        && (formatName == null || "gif".equalsIgnoreCase(formatName)))
+                        || (rotation == null && isAutoRotationRequested(req)
+                        && rasterEntry.getOrientation() == RasterCache.ORIENTATION_UNKNOWN))) {
+                    rasterEntry = null;
+                }
+            }
+
+            String srcFormatName = null;
             try {
                 long startDecodeImage = -1L;
                 if (LOG.isTraceEnabled()) {
                     startDecodeImage = System.currentTimeMillis();
                 }
 
-                if ((ir = createImageReader(iis = createImageInputStream(is))) != null) {
+                boolean gif = false;
 
-                    boolean gif = false;
+                if (rasterEntry != null) {
+                    src = rasterEntry.getImage();
+                    srcFormatName = rasterEntry.getFormatName();
+                    rasterShared = true;
+
+                    if (rotation == null && isAutoRotationRequested(req)) {
+                        rotation = getAutoRotation(rasterEntry.getOrientation());
+                    }
+                    if (index == null) {
+                        index = 0;
+                    }
+
+                    srcW = src.getWidth();
+                    srcH = src.getHeight();
+                } else if ((ir = createImageReader(iis = createImageInputStream(is))) != null) {
+
+                    srcFormatName = ir.getFormatName();
 
                     if (index != null && "gif".equalsIgnoreCase(ir.getFormatName())
                             && (formatName == null || "gif".equalsIgnoreCase(formatName))) {
@@ -2724,7 +3416,9 @@ public class ImageRequestProcessor extends IIORequestProcessor {
                     // The source image dimension in px
                     srcW = ir.getWidth(index);
                     srcH = ir.getHeight(index);
-                    
+                }
+
+                if (src != null || ir != null) {
                     final long dim = srcW * srcH;
 
                     // Check whether we are able to process the image
@@ -2816,11 +3510,21 @@ public class ImageRequestProcessor extends IIORequestProcessor {
                             }
                         }
                         srcSequenceDelayTime = reader.getDelayTime();
-                    } else {
+                    } else if (rasterEntry == null) {
                         src = ir.read(index, ir.getDefaultReadParam());
+
+                        // Keep the decoded image for further variants
+                        if (rasterKey != null && src != null) {
+                            rasterShared = rasterCache.put(rasterKey, src,
+                                    srcFormatName, getOrientation(ir, srcFormatName));
+                        }
                     }
 
-                    if (LOG.isTraceEnabled()) {
+                    if (isDebugEnabled() && rasterCache != null) {
+                        resp.setHeader("X-Pictura-RasterCache", rasterEntry != null ? "HIT" : "MISS");
+                    }
+
+                    if (rasterEntry == null && LOG.isTraceEnabled()) {
                         LOG.trace("Source image decoded in " + (System.currentTimeMillis() - startDecodeImage) 
                                 + "ms [" + getRequestURI() + "]");
                     }
@@ -2829,8 +3533,14 @@ public class ImageRequestProcessor extends IIORequestProcessor {
                     // has configured this?!
                 }
             } catch (IOException | RuntimeException ex) {
-                if (ex instanceof SocketException
+                if (isLimitExceeded(is)) {
+                    doInterrupt(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                    return;
+                } else if (ex instanceof SocketException
                         || ex instanceof SocketTimeoutException) {
+                    if (originPermit != null) {
+                        originPermit.setException((IOException) ex);
+                    }
                     doInterrupt(HttpServletResponse.SC_GATEWAY_TIMEOUT);
                     return;
                 } else if (ex instanceof IndexOutOfBoundsException) {
@@ -2841,8 +3551,12 @@ public class ImageRequestProcessor extends IIORequestProcessor {
                     LOG.error("Unexpected exception while try to decode the source image from \""
                             + getRequestedImage(req) + "\"", ex);
                     ir = null; // unsupported media
+                    srcFormatName = null;
                 }
             } finally {
+                if (rasterLocked) {
+                    rasterCache.unlock(rasterKey);
+                }
                 if (ir != null) {
                     // Dispose reader to avoid memory leaks
                     ir.dispose();
@@ -2855,10 +3569,16 @@ public class ImageRequestProcessor extends IIORequestProcessor {
                 }
             }
 
+            // The image reader may have decoded a truncated image
+            if (isLimitExceeded(is)) {
+                doInterrupt(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+                return;
+            }
+
             // If we have no valid image instance from the source image or
             // we can't read the image because of missing decoders. In this
             // case it is not possible to process the image.
-            if (src == null || ir == null) {
+            if (src == null || srcFormatName == null) {
                 doInterrupt(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE,
                         "The server was not able to decode the source image "
                         + "or the image format is not supported by the server.");
@@ -2868,7 +3588,7 @@ public class ImageRequestProcessor extends IIORequestProcessor {
             // Set output format equals to the input format if not specified
             // by the user
             if (formatName == null) {
-                formatName = ir.getFormatName().toLowerCase(Locale.ENGLISH);
+                formatName = srcFormatName.toLowerCase(Locale.ENGLISH);
                 if (!canWriteFormat(formatName)
                         && (formatName = getFallbackFormatName(formatName)) == null) {
                     doInterrupt(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE,
@@ -2977,6 +3697,13 @@ public class ImageRequestProcessor extends IIORequestProcessor {
                 startProcessImageFrames = System.currentTimeMillis();
             }
 
+            // An image interceptor could modify the pixel data of the output
+            // image, which is maybe the (unmodified) cached source image
+            if (rasterShared && hasImageInterceptor()) {
+                src = copyImage(src);
+                rasterShared = false;
+            }
+
             BufferedImage[] tmp = doProcessImageFrames(new BufferedImage[]{src},
                     trimWhiteSpaces, cropX, cropY, cropWidth, cropHeight,
                     scaleTargetSize, scaleMethod, scaleMode, rotation, padSize, 
@@ -3044,10 +3771,10 @@ public class ImageRequestProcessor extends IIORequestProcessor {
             } catch (IOException ex) {
                 // nothing to do here!
             }
-            if (src != null) {
+            if (src != null && !rasterShared) {
                 src.flush();
             }
-            if (out != null) {
+            if (out != null && !(rasterShared && out == src)) {
                 out.flush();
             }
         }
@@ -3112,6 +3839,65 @@ public class ImageRequestProcessor extends IIORequestProcessor {
         return outS;
     }
 
+    // The maximum size of a remote source body of unknown length which is
+    // buffered in memory
+    private int getSpillThreshold(HttpServletRequest req) {
+        Object o = req.getAttribute("io.pictura.servlet.HTTP_SPILL_THRESHOLD");
+        return o instanceof Integer ? (Integer) o : PicturaServlet.DEFAULT_HTTP_SPILL_THRESHOLD;
+    }
+
+    private File getSpillDirectory(HttpServletRequest req) {
+        Object o = req.getAttribute("io.pictura.servlet.IMAGEIO_CACHE_DIR");
+        return o instanceof File ? (File) o : ImageIO.getCacheDirectory();
+    }
+
+    // Tests whether the source was read from a limited stream which has
+    // exceeded the maximum image file size
+    private static boolean isLimitExceeded(InputStream is) {
+        return is instanceof LimitedInputStream && ((LimitedInputStream) is).isLimitExceeded();
+    }
+
+    private SourceFileReader getSourceFileReader(HttpServletRequest req) {
+        Object o = req.getAttribute("io.pictura.servlet.SOURCE_FILE_READER");
+        return o instanceof SourceFileReader ? (SourceFileReader) o
+                : new SourceFileReader(SourceFileReader.DEFAULT_MMAP_THRESHOLD, 0);
+    }
+
+    private RasterCache getRasterCache(HttpServletRequest req) {
+        Object o = req.getAttribute("io.pictura.servlet.RASTER_CACHE");
+        return o instanceof RasterCache ? (RasterCache) o : null;
+    }
+
+    // Returns the identity of a remote source image to lookup the decoded
+    // image from the raster cache or null if the origin has not sent a strong
+    // validator. Weak entity tags could change the pixel data.
+    private static String getSourceIdentity(String url, String eTag, long lastModified) {
+        if (eTag != null && !eTag.isEmpty() && !eTag.startsWith("W/")) {
+            return url + "@" + eTag;
+        } else if (lastModified > 0L) {
+            return url + "@" + lastModified;
+        }
+        return null;
+    }
+
+    // Returns the Exif orientation which is stored with a cached image. This
+    // is only supported for JPEG images.
+    private static int getOrientation(ImageReader ir, String formatName) {
+        if ("jpeg".equalsIgnoreCase(formatName) || "jpg".equalsIgnoreCase(formatName)) {
+            try {
+                return PicturaExif.getOrientation(ir, 0);
+            } catch (IOException | RuntimeException ex) {
+                // unknown
+            }
+        }
+        return RasterCache.ORIENTATION_UNKNOWN;
+    }
+
+    private static BufferedImage copyImage(BufferedImage src) {
+        return new BufferedImage(src.getColorModel(), src.copyData(null),
+                src.isAlphaPremultiplied(), null);
+    }
+
     private BufferedImage cropImage(BufferedImage src, int x, int y,
             int width, int height) {
         if (x > -1 && y > -1 && width > -1 && height > -1) {
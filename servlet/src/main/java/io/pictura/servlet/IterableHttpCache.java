@@ -0,0 +1,40 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.util.Collection;
+
+/**
+ * A {@link HttpCache} which is able to return its entries without to record an
+ * access, e.g. to write a snapshot of the cache without to change the hit
+ * frequencies or the eviction order of the cached entries.
+ *
+ * @author Steffen Kremp
+ *
+ * @since 1.2
+ */
+interface IterableHttpCache extends HttpCache {
+
+    /**
+     * Returns the currently cached entries. Unlike {@link #get(String)}, this
+     * method has no side effects on the cache state. The returned collection
+     * is not backed by the cache.
+     *
+     * @return The cached entries.
+     */
+    Collection<HttpCacheEntry> entries();
+
+}
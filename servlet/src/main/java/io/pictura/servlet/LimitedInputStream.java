@@ -0,0 +1,122 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream which fails as soon as more than the given number of bytes
+ * were read from the underlying stream.
+ * <p>
+ * Used to decode a remote source image of unknown length directly from the
+ * network stream while the maximum image file size is still enforced. If the
+ * limit is exceeded, the stream throws an <code>IOException</code> on each
+ * further read and {@link #isLimitExceeded()} returns <code>true</code>, also
+ * if the image reader has swallowed the exception.
+ *
+ * @author Steffen Kremp
+ *
+ * @since 1.2
+ */
+final class LimitedInputStream extends FilterInputStream {
+
+    private final long limit;
+    private long count;
+    private boolean exceeded;
+
+    /**
+     * Creates a new limited input stream.
+     *
+     * @param in The underlying input stream.
+     * @param limit The maximum number of bytes to read.
+     */
+    LimitedInputStream(InputStream in, long limit) {
+        super(in);
+        this.limit = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkLimit();
+        int b = super.read();
+        if (b > -1) {
+            count++;
+            checkLimit();
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkLimit();
+        int n = super.read(b, off, len);
+        if (n > 0) {
+            count += n;
+            checkLimit();
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        checkLimit();
+        long skipped = super.skip(n);
+        if (skipped > 0) {
+            count += skipped;
+            checkLimit();
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    private void checkLimit() throws IOException {
+        if (count > limit) {
+            exceeded = true;
+            throw new IOException("The source exceeds the maximum size of " + limit + " bytes");
+        }
+    }
+
+    /**
+     * @return The number of bytes read so far.
+     */
+    long getCount() {
+        return count;
+    }
+
+    /**
+     * @return <code>true</code> if more than the allowed number of bytes were
+     * read.
+     */
+    boolean isLimitExceeded() {
+        return exceeded;
+    }
+
+}
@@ -0,0 +1,779 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link HttpCache} which stores the entries in a memcached server (text
+ * protocol) and keeps recently used entries in a local cache.
+ * <p>
+ * The connections to the memcached server are non-blocking NIO channels from a
+ * small pool, so every operation is bounded by the configured timeout. Entries
+ * are stored and removed on the memcached server in the background, in the
+ * order of the calls, so only a remote lookup blocks the calling thread.
+ * Multiple keys are fetched with pipelined multi-get commands (see
+ * {@link #getAll(java.util.Collection)}), e.g. to prefetch the entries of a
+ * cache warm-up.
+ * <p>
+ * If the memcached server fails or is too slow for a number of consecutive
+ * operations, a circuit breaker opens and the cache degrades to the local cache
+ * only. After a short delay the next operation is sent to the server again to
+ * test whether it has recovered.
+ *
+ * @author Steffen Kremp
+ *
+ * @see HttpCacheServlet#createMemcachedHttpCache(io.pictura.servlet.HttpCache,
+ * java.lang.String, int, int)
+ *
+ * @since 1.2
+ */
+final class MemcachedHttpCache implements IterableHttpCache, BatchHttpCache, Closeable {
+
+    private static final Log LOG = Log.getLog(MemcachedHttpCache.class);
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * The default number of connections.
+     */
+    static final int DEFAULT_POOL_SIZE = 4;
+
+    /**
+     * The default timeout in milliseconds for an operation.
+     */
+    static final int DEFAULT_TIMEOUT = 100;
+
+    // Number of consecutive failures to open the circuit breaker
+    static final int FAILURE_THRESHOLD = 3;
+
+    // Time in millis the circuit breaker stays open
+    static final long RETRY_DELAY = 5000L;
+
+    // Max. item size of a default memcached server
+    static final int MAX_VALUE_SIZE = 1024 * 1024;
+
+    // Max. number of keys per get command
+    static final int MAX_KEYS_PER_GET = 100;
+
+    // Max. number of pending background writes
+    private static final int QUEUE_SIZE = 1024;
+
+    // Max. relative expiration time (30 days) in seconds
+    private static final long MAX_RELATIVE_EXPTIME = 60L * 60L * 24L * 30L;
+
+    private static final String KEY_PREFIX = "pictura:";
+    private static final byte[] CRLF = new byte[]{'\r', '\n'};
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_LINE_LENGTH = 1024;
+
+    final HttpCache local;
+
+    private final InetSocketAddress address;
+    private final int timeout;
+
+    private final Semaphore permits;
+    private final ArrayBlockingQueue<Connection> idle;
+
+    // Background writes in the order they are submitted
+    private final ThreadPoolExecutor writer;
+    private final AtomicInteger pendingWrites = new AtomicInteger();
+
+    private final AtomicInteger failureCount = new AtomicInteger();
+    private volatile long openUntil;
+
+    private volatile boolean closed;
+
+    private final AtomicLong remoteHitCount = new AtomicLong();
+    private final AtomicLong remoteMissCount = new AtomicLong();
+    private final AtomicLong remoteErrorCount = new AtomicLong();
+
+    /**
+     * Creates a new memcached cache.
+     *
+     * @param local The local cache to keep recently used entries.
+     * @param address The address of the memcached server in the format
+     * <code>host:port</code>.
+     * @param poolSize The max. number of connections.
+     * @param timeout The timeout in milliseconds for an operation.
+     *
+     * @throws IllegalArgumentException if the local cache is <code>null</code>,
+     * the address is not valid or the pool size is less than 1.
+     */
+    MemcachedHttpCache(HttpCache local, String address, int poolSize, int timeout) {
+        if (local == null) {
+            throw new IllegalArgumentException("Local cache must be not null");
+        }
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Pool size must be greater than 0");
+        }
+
+        this.local = local;
+        this.address = parseAddress(address);
+        this.timeout = timeout > 0 ? timeout : DEFAULT_TIMEOUT;
+        this.permits = new Semaphore(poolSize);
+        this.idle = new ArrayBlockingQueue<>(poolSize);
+        this.writer = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ServerThreadFactory());
+        this.writer.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public HttpCacheEntry get(String key) {
+        HttpCacheEntry entry = local.get(key);
+        if (entry != null || key == null || !isAvailable()) {
+            return entry;
+        }
+
+        Map<String, HttpCacheEntry> entries = getRemote(Collections.singletonList(key));
+        return entries != null ? entries.get(key) : null;
+    }
+
+    /**
+     * Returns the entries for the specified keys. Keys which are not found in
+     * the local cache are fetched with pipelined multi-get commands (up to
+     * {@value #MAX_KEYS_PER_GET} keys per command) from the memcached server,
+     * so all of them are fetched with a single round trip.
+     *
+     * @param keys The cache keys.
+     *
+     * @return The found entries by key.
+     */
+    @Override
+    public Map<String, HttpCacheEntry> getAll(Collection<String> keys) {
+        LinkedHashMap<String, HttpCacheEntry> entries = new LinkedHashMap<>();
+        if (keys == null) {
+            return entries;
+        }
+
+        LinkedHashSet<String> missing = new LinkedHashSet<>();
+        for (String key : keys) {
+            if (key == null || entries.containsKey(key)) {
+                continue;
+            }
+            HttpCacheEntry entry = local.get(key);
+            if (entry != null) {
+                entries.put(key, entry);
+            } else {
+                missing.add(key);
+            }
+        }
+
+        if (!missing.isEmpty() && isAvailable()) {
+            Map<String, HttpCacheEntry> remote = getRemote(new ArrayList<>(missing));
+            if (remote != null) {
+                entries.putAll(remote);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Puts the entry into the local cache and stores it on the memcached server
+     * in the background. The entry is not stored on the server if the
+     * background queue is full.
+     *
+     * @param key The cache key.
+     * @param entry The cache entry.
+     */
+    @Override
+    public void put(final String key, final HttpCacheEntry entry) {
+        local.put(key, entry);
+        if (key == null || entry == null || !isAvailable()) {
+            return;
+        }
+
+        final long exptime = getExptime(entry);
+        if (exptime <= 0 || entry.getContentLength() > MAX_VALUE_SIZE) {
+            return;
+        }
+
+        // Skipped if closed or too many pending writes
+        submit(new Runnable() {
+
+            @Override
+            public void run() {
+                set(key, entry, exptime);
+            }
+        });
+    }
+
+    /**
+     * Removes the entry from the local cache and from the memcached server. The
+     * entry is removed from the server in the background after all pending
+     * writes, or on the calling thread if the background queue is full.
+     *
+     * @param key The cache key.
+     *
+     * @return <code>true</code> if the entry was removed from the local cache.
+     */
+    @Override
+    public boolean remove(final String key) {
+        boolean removed = local.remove(key);
+        if (key == null || !isAvailable()) {
+            return removed;
+        }
+
+        // A stale entry would be served by other instances until it expires
+        if (!submit(new Runnable() {
+
+            @Override
+            public void run() {
+                delete(key);
+            }
+        }) && !closed) {
+            delete(key);
+        }
+        return removed;
+    }
+
+    // Runs the given write in the background; returns false if rejected
+    private boolean submit(final Runnable write) {
+        pendingWrites.incrementAndGet();
+        try {
+            writer.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        if (isAvailable()) {
+                            write.run();
+                        }
+                    } finally {
+                        pendingWrites.decrementAndGet();
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException ex) {
+            pendingWrites.decrementAndGet();
+            return false;
+        }
+    }
+
+    private void set(String key, HttpCacheEntry entry, long exptime) {
+        byte[] value;
+        try {
+            value = encode(entry);
+        } catch (IOException ex) {
+            LOG.warn("Unable to serialize cache entry \"" + key + "\"", ex);
+            return;
+        }
+        if (value.length > MAX_VALUE_SIZE) {
+            return;
+        }
+
+        Connection c = borrow();
+        if (c == null) {
+            return;
+        }
+        boolean ok = false;
+        try {
+            ByteArrayOutputStream cmd = new ByteArrayOutputStream(value.length + 128);
+            cmd.write(("set " + hashKey(key) + " 0 " + exptime + " " + value.length + "\r\n").getBytes(US_ASCII));
+            cmd.write(value);
+            cmd.write(CRLF);
+
+            c.begin();
+            c.write(cmd.toByteArray());
+            String reply = c.readLine();
+            if (!"STORED".equals(reply) && !"NOT_STORED".equals(reply)) {
+                throw new IOException("Unexpected memcached reply \"" + reply + "\"");
+            }
+            ok = true;
+            onSuccess();
+        } catch (IOException ex) {
+            onFailure(ex);
+        } finally {
+            release(c, ok);
+        }
+    }
+
+    private void delete(String key) {
+        Connection c = borrow();
+        if (c == null) {
+            return;
+        }
+        boolean ok = false;
+        try {
+            c.begin();
+            c.write(("delete " + hashKey(key) + "\r\n").getBytes(US_ASCII));
+            String reply = c.readLine();
+            if (!"DELETED".equals(reply) && !"NOT_FOUND".equals(reply)) {
+                throw new IOException("Unexpected memcached reply \"" + reply + "\"");
+            }
+            ok = true;
+            onSuccess();
+        } catch (IOException ex) {
+            onFailure(ex);
+        } finally {
+            release(c, ok);
+        }
+    }
+
+    /**
+     * Returns the keys of the local cache.
+     *
+     * @return The local cache keys.
+     */
+    @Override
+    public Set<String> keySet() {
+        return local.keySet();
+    }
+
+    /**
+     * Returns the entries of the local cache without to record an access.
+     *
+     * @return The local cache entries.
+     */
+    @Override
+    public Collection<HttpCacheEntry> entries() {
+        return HttpCacheSnapshot.entries(local);
+    }
+
+    // Fetches the given keys with pipelined get commands; returns null on error
+    private Map<String, HttpCacheEntry> getRemote(List<String> keys) {
+        HashMap<String, String> hashed = new HashMap<>();
+        ByteArrayOutputStream cmd = new ByteArrayOutputStream();
+        int commands = 0;
+        for (int i = 0; i < keys.size(); i += MAX_KEYS_PER_GET) {
+            StringBuilder sb = new StringBuilder("get");
+            for (String key : keys.subList(i, Math.min(keys.size(), i + MAX_KEYS_PER_GET))) {
+                String h = hashKey(key);
+                hashed.put(h, key);
+                sb.append(' ').append(h);
+            }
+            sb.append("\r\n");
+            byte[] b = sb.toString().getBytes(US_ASCII);
+            cmd.write(b, 0, b.length);
+            commands++;
+        }
+
+        Connection c = borrow();
+        if (c == null) {
+            return null;
+        }
+        boolean ok = false;
+        try {
+            // Each command of the pipeline has its own timeout
+            c.begin(commands);
+            c.write(cmd.toByteArray());
+
+            HashMap<String, HttpCacheEntry> entries = new HashMap<>();
+            while (commands > 0) {
+                String line = c.readLine();
+                if ("END".equals(line)) {
+                    commands--;
+                    continue;
+                }
+
+                String[] tokens = line.split(" ");
+                if (tokens.length < 4 || !"VALUE".equals(tokens[0])) {
+                    throw new IOException("Unexpected memcached reply \"" + line + "\"");
+                }
+                int length;
+                try {
+                    length = Integer.parseInt(tokens[3]);
+                } catch (NumberFormatException ex) {
+                    throw new IOException("Unexpected memcached reply \"" + line + "\"", ex);
+                }
+                if (length < 0 || length > MAX_VALUE_SIZE) {
+                    throw new IOException("Invalid memcached value length " + length);
+                }
+
+                byte[] value = new byte[length];
+                c.readFully(value);
+                if (!c.readLine().isEmpty()) {
+                    throw new IOException("Missing end of memcached value");
+                }
+
+                String key = hashed.get(tokens[1]);
+                HttpCacheEntry entry = key != null ? decode(key, value) : null;
+                if (entry != null) {
+                    entries.put(key, entry);
+                }
+            }
+            ok = true;
+            onSuccess();
+
+            for (Map.Entry<String, HttpCacheEntry> e : entries.entrySet()) {
+                local.put(e.getKey(), e.getValue());
+            }
+            remoteHitCount.addAndGet(entries.size());
+            remoteMissCount.addAndGet(keys.size() - entries.size());
+            return entries;
+        } catch (IOException ex) {
+            onFailure(ex);
+            return null;
+        } finally {
+            release(c, ok);
+        }
+    }
+
+    /**
+     * Waits until all pending background writes are done.
+     *
+     * @param timeout The max. time to wait in milliseconds.
+     *
+     * @return <code>true</code> if there are no more pending writes.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    boolean awaitWrites(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (pendingWrites.get() > 0) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    private boolean isAvailable() {
+        return !closed && System.currentTimeMillis() >= openUntil;
+    }
+
+    /**
+     * @return <code>true</code> if the circuit breaker is open and only the
+     * local cache is used.
+     */
+    boolean isDegraded() {
+        return System.currentTimeMillis() < openUntil;
+    }
+
+    private void onSuccess() {
+        failureCount.set(0);
+    }
+
+    private void onFailure(IOException ex) {
+        remoteErrorCount.incrementAndGet();
+        // Keeps counting while open, so the first failure after the retry
+        // delay opens the circuit breaker again
+        if (failureCount.incrementAndGet() >= FAILURE_THRESHOLD) {
+            if (!isDegraded()) {
+                LOG.warn("Memcached server " + address + " is not available; using local cache only", ex);
+            }
+            openUntil = System.currentTimeMillis() + RETRY_DELAY;
+        } else if (LOG.isDebugEnabled()) {
+            LOG.debug("Memcached operation failed", ex);
+        }
+    }
+
+    private Connection borrow() {
+        try {
+            if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                return null;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        Connection c = idle.poll();
+        if (c != null) {
+            return c;
+        }
+        try {
+            return new Connection();
+        } catch (IOException ex) {
+            permits.release();
+            onFailure(ex);
+            return null;
+        }
+    }
+
+    private void release(Connection c, boolean reuse) {
+        try {
+            if (!reuse || closed || !idle.offer(c)) {
+                c.close();
+            } else if (closed && idle.remove(c)) {
+                // Closed while in use
+                c.close();
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    long getRemoteHitCount() {
+        return remoteHitCount.get();
+    }
+
+    long getRemoteMissCount() {
+        return remoteMissCount.get();
+    }
+
+    long getRemoteErrorCount() {
+        return remoteErrorCount.get();
+    }
+
+    /**
+     * Closes all connections to the memcached server and closes the local cache
+     * if it is {@link Closeable}.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        writer.shutdownNow();
+        try {
+            Connection c;
+            while ((c = idle.poll()) != null) {
+                c.close();
+            }
+        } finally {
+            if (local instanceof Closeable) {
+                ((Closeable) local).close();
+            }
+        }
+    }
+
+    // Memcached keys are limited to 250 chars without whitespace or control
+    // characters, so the cache key is hashed
+    static String hashKey(String key) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] digest = md.digest(key.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(KEY_PREFIX.length() + digest.length * 2);
+            sb.append(KEY_PREFIX);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    // Returns the memcached expiration time or 0 if the entry is already expired
+    static long getExptime(HttpCacheEntry entry) {
+        long now = System.currentTimeMillis();
+        long seconds = (entry.getExpires() - now + 999L) / 1000L;
+        if (seconds <= 0) {
+            return 0;
+        }
+        // Larger values are interpreted as absolute unix time
+        return seconds <= MAX_RELATIVE_EXPTIME ? seconds : entry.getExpires() / 1000L;
+    }
+
+    static byte[] encode(HttpCacheEntry entry) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(entry.getContentLength() + 512);
+        DataOutputStream dos = new DataOutputStream(bos);
+        HttpCacheSnapshot.writeRecord(dos, entry);
+        dos.flush();
+        return bos.toByteArray();
+    }
+
+    // Returns null if the value is corrupted, expired or belongs to another key
+    static HttpCacheEntry decode(String key, byte[] value) {
+        try {
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(value));
+            HttpCacheEntry entry = HttpCacheSnapshot.readRecord(dis, dis.readInt());
+            if (entry == null || !key.equals(entry.getKey()) || entry.isExpired()) {
+                return null;
+            }
+            return entry;
+        } catch (IOException ex) {
+            LOG.warn("Skipped corrupted memcached value of \"" + key + "\"", ex);
+            return null;
+        }
+    }
+
+    private static InetSocketAddress parseAddress(String address) {
+        if (address == null) {
+            throw new IllegalArgumentException("Address must be not null");
+        }
+        int i = address.lastIndexOf(':');
+        if (i < 1 || i == address.length() - 1) {
+            throw new IllegalArgumentException("Invalid memcached address \"" + address + "\"");
+        }
+        try {
+            return InetSocketAddress.createUnresolved(address.substring(0, i).trim(),
+                    Integer.parseInt(address.substring(i + 1).trim()));
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Invalid memcached address \"" + address + "\"", ex);
+        }
+    }
+
+    // A non-blocking connection; every operation must complete before its
+    // deadline
+    private final class Connection implements Closeable {
+
+        private final SocketChannel channel;
+        private final Selector selector;
+        private final ByteBuffer buf;
+
+        private long deadline;
+
+        private Connection() throws IOException {
+            channel = SocketChannel.open();
+            Selector sel = null;
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                sel = Selector.open();
+                selector = sel;
+
+                begin();
+                InetSocketAddress resolved = new InetSocketAddress(address.getHostString(), address.getPort());
+                if (!channel.connect(resolved)) {
+                    while (!channel.finishConnect()) {
+                        await(SelectionKey.OP_CONNECT);
+                    }
+                }
+            } catch (IOException | RuntimeException ex) {
+                channel.close();
+                if (sel != null) {
+                    sel.close();
+                }
+                throw ex;
+            }
+
+            buf = ByteBuffer.allocate(BUFFER_SIZE);
+            buf.flip();
+        }
+
+        private void begin() {
+            begin(1);
+        }
+
+        private void begin(int operations) {
+            deadline = System.currentTimeMillis() + (long) timeout * operations;
+        }
+
+        private void await(int op) throws IOException {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new SocketTimeoutException("Memcached operation timed out");
+            }
+            SelectionKey key = channel.keyFor(selector);
+            if (key == null) {
+                channel.register(selector, op);
+            } else {
+                key.interestOps(op);
+            }
+            if (selector.select(remaining) == 0) {
+                throw new SocketTimeoutException("Memcached operation timed out");
+            }
+            selector.selectedKeys().clear();
+        }
+
+        private void write(byte[] b) throws IOException {
+            ByteBuffer bb = ByteBuffer.wrap(b);
+            while (bb.hasRemaining()) {
+                if (channel.write(bb) == 0) {
+                    await(SelectionKey.OP_WRITE);
+                }
+            }
+        }
+
+        private void fill() throws IOException {
+            buf.compact();
+            try {
+                int n;
+                while ((n = channel.read(buf)) == 0) {
+                    await(SelectionKey.OP_READ);
+                }
+                if (n < 0) {
+                    throw new EOFException("Connection closed by memcached server");
+                }
+            } finally {
+                buf.flip();
+            }
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                while (buf.hasRemaining()) {
+                    char c = (char) (buf.get() & 0xff);
+                    if (c == '\n') {
+                        int len = sb.length();
+                        if (len > 0 && sb.charAt(len - 1) == '\r') {
+                            sb.setLength(len - 1);
+                        }
+                        return sb.toString();
+                    }
+                    if (sb.length() >= MAX_LINE_LENGTH) {
+                        throw new IOException("Memcached reply line too long");
+                    }
+                    sb.append(c);
+                }
+                fill();
+            }
+        }
+
+        private void readFully(byte[] b) throws IOException {
+            int off = 0;
+            while (off < b.length) {
+                if (!buf.hasRemaining()) {
+                    fill();
+                }
+                int n = Math.min(buf.remaining(), b.length - off);
+                buf.get(b, off, n);
+                off += n;
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                selector.close();
+            } catch (IOException ignore) {
+            }
+            try {
+                channel.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+}
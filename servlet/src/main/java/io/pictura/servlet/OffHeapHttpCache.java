@@ -0,0 +1,614 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A built-in {@link HttpCache} implementation which stores the content of the
+ * cached entries outside of the Java heap in direct byte buffers. Only the
+ * meta data (key, headers, ...) of an entry is kept on the heap.
+ * <p>
+ * The off-heap memory is managed by a slab allocator. The memory is allocated
+ * in slabs (by default 1MB) on demand, until the maximum cache size is
+ * reached. Each slab belongs to a size class and is split into chunks of the
+ * same size. An entry is stored in a single chunk of the smallest size class
+ * which is large enough for the content. If there is no free chunk left in a
+ * size class, the least recently used entry of the same size class will be
+ * evicted. If a size class has no entries to evict, a slab of the size class
+ * with the most slabs will be reassigned.
+ * <p>
+ * Cache hits are written from the direct buffer to the output stream by using
+ * a small transfer buffer, without creating a heap copy of the whole content.
+ *
+ * @author Steffen Kremp
+ *
+ * @see HttpCache
+ * @see HttpCacheServlet#createOffHeapHttpCache(long, int)
+ *
+ * @since 1.2
+ */
+final class OffHeapHttpCache implements IterableHttpCache {
+
+    private static final Log LOG = Log.getLog(OffHeapHttpCache.class);
+
+    private static final int MIN_CHUNK_SIZE = 1024;
+    private static final int DEFAULT_MAX_CHUNK_SIZE = 1024 * 1024;
+    private static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+    private static final float GROWTH_FACTOR = 1.25f;
+
+    private static final int TRANSFER_BUFFER_SIZE = 1024 * 16;
+
+    final long maxSize;
+    final int maxEntrySize;
+
+    private final int slabSize;
+    private final SizeClass[] sizeClasses;
+
+    private final ConcurrentHashMap<String, DirectEntry> index;
+    private final Set<String> keys;
+
+    // Total allocated direct memory
+    private final AtomicLong allocated;
+
+    OffHeapHttpCache(long maxSize, int maxEntrySize) {
+        final int maxChunkSize = maxEntrySize > 0 ? maxEntrySize : DEFAULT_MAX_CHUNK_SIZE;
+        if (maxSize < maxChunkSize) {
+            throw new IllegalArgumentException("Maximum cache size must be "
+                    + "greater than or equal to the maximum entry size");
+        }
+
+        this.maxSize = maxSize;
+        this.maxEntrySize = maxEntrySize;
+        this.slabSize = Math.max(DEFAULT_SLAB_SIZE, maxChunkSize);
+
+        List<SizeClass> classes = new ArrayList<>();
+        int size = MIN_CHUNK_SIZE;
+        while (size < maxChunkSize) {
+            classes.add(new SizeClass(size));
+            // Align to 8 bytes
+            size = (((int) (size * GROWTH_FACTOR)) + 7) & ~7;
+        }
+        classes.add(new SizeClass(maxChunkSize));
+        this.sizeClasses = classes.toArray(new SizeClass[classes.size()]);
+
+        this.index = new ConcurrentHashMap<>();
+        this.keys = Collections.unmodifiableSet(index.keySet());
+        this.allocated = new AtomicLong();
+    }
+
+    @Override
+    public HttpCacheEntry get(String key) {
+        if (key == null) {
+            return null;
+        }
+
+        DirectEntry e = index.get(key);
+        if (e == null) {
+            return null;
+        }
+
+        SizeClass sc = e.sizeClass;
+        if (sc.tryLock()) {
+            try {
+                if (e.linked()) {
+                    sc.moveToTail(e);
+                }
+            } finally {
+                sc.unlock();
+            }
+        }
+        return e;
+    }
+
+    @Override
+    public void put(String key, HttpCacheEntry entry) {
+        if (key == null) {
+            return;
+        }
+
+        // Remove if the value is null
+        if (entry == null) {
+            remove(key);
+            return;
+        }
+
+        // Do not cache if the entry content size is larger than the maximum
+        // allowed content length per entry
+        final int length = entry.getContentLength();
+        if (maxEntrySize > 0 && length > maxEntrySize) {
+            return;
+        }
+
+        SizeClass sc = sizeClassFor(length);
+        if (sc == null) {
+            return;
+        }
+
+        final byte[] content = entry.getContent();
+        if (content == null) {
+            return;
+        }
+
+        DirectEntry old;
+        sc.lock();
+        try {
+            Chunk chunk = sc.allocate();
+            if (chunk == null) {
+                if (LOG.isTraceEnabled()) {
+                    LOG.trace("No off-heap memory available to store \"" + key + "\"");
+                }
+                old = index.remove(key);
+            } else {
+                ByteBuffer dst = chunk.buf.duplicate();
+                dst.clear();
+                dst.put(content, 0, length);
+
+                DirectEntry e = new DirectEntry(entry, sc, chunk, length);
+                sc.link(e);
+
+                old = index.put(key, e);
+            }
+        } finally {
+            sc.unlock();
+        }
+
+        // The old entry may belong to another size class, so release it
+        // after the current lock was released
+        if (old != null) {
+            release(old);
+        }
+    }
+
+    @Override
+    public boolean remove(String key) {
+        if (key == null) {
+            return false;
+        }
+
+        DirectEntry e = index.remove(key);
+        if (e != null) {
+            release(e);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns an unmodifiable, weakly consistent view of the cache keys. The
+     * keys are not copied.
+     *
+     * @return All cache keys.
+     */
+    @Override
+    public Set<String> keySet() {
+        return keys;
+    }
+
+    /**
+     * Returns the cached entries without to record an access.
+     *
+     * @return The cached entries.
+     */
+    @Override
+    public Collection<HttpCacheEntry> entries() {
+        return new ArrayList<HttpCacheEntry>(index.values());
+    }
+
+    /**
+     * @return The currently allocated direct memory in bytes.
+     */
+    long allocatedSize() {
+        return allocated.get();
+    }
+
+    /**
+     * @return The total content size in bytes of all cached entries.
+     */
+    long weightedSize() {
+        long size = 0;
+        for (DirectEntry e : index.values()) {
+            size += e.length;
+        }
+        return size;
+    }
+
+    private SizeClass sizeClassFor(int length) {
+        for (SizeClass sc : sizeClasses) {
+            if (sc.chunkSize >= length) {
+                return sc;
+            }
+        }
+        return null;
+    }
+
+    private void release(DirectEntry e) {
+        SizeClass sc = e.sizeClass;
+        sc.lock();
+        try {
+            sc.evict(e);
+        } finally {
+            sc.unlock();
+        }
+    }
+
+    // Size class with the own slabs, free list and LRU order; eldest entry at
+    // head.next
+    private final class SizeClass extends ReentrantLock {
+
+        private static final long serialVersionUID = -4207216405112233521L;
+
+        private final int chunkSize;
+
+        private final ArrayList<Slab> slabs;
+        private final ArrayDeque<Chunk> freeChunks;
+
+        private final DirectEntry head;
+
+        private SizeClass(int chunkSize) {
+            this.chunkSize = chunkSize;
+            this.slabs = new ArrayList<>();
+            this.freeChunks = new ArrayDeque<>();
+            this.head = new DirectEntry();
+            this.head.prev = head;
+            this.head.next = head;
+        }
+
+        // Must be called with lock held
+        private Chunk allocate() {
+            if (freeChunks.isEmpty() && !allocateSlab()) {
+                // Evict the least recently used entries of this size class
+                // until a chunk is free; entries which are currently in use
+                // are only unlinked and released by the last reader
+                DirectEntry e = head.next;
+                while (e != head && freeChunks.isEmpty()) {
+                    DirectEntry next = e.next;
+                    evict(e);
+                    e = next;
+                }
+
+                // Nothing to evict in this size class, so we will try to take
+                // over a slab from another size class
+                if (freeChunks.isEmpty()) {
+                    reassignSlab();
+                }
+            }
+
+            Chunk chunk = freeChunks.poll();
+            if (chunk != null) {
+                chunk.slab.used++;
+            }
+            return chunk;
+        }
+
+        private boolean allocateSlab() {
+            long current;
+            do {
+                current = allocated.get();
+                if (current + slabSize > maxSize) {
+                    return false;
+                }
+            } while (!allocated.compareAndSet(current, current + slabSize));
+
+            ByteBuffer buf;
+            try {
+                buf = ByteBuffer.allocateDirect(slabSize);
+            } catch (OutOfMemoryError ex) {
+                allocated.addAndGet(-slabSize);
+                LOG.warn("Unable to allocate off-heap cache memory (see -XX:MaxDirectMemorySize)");
+                return false;
+            }
+
+            carve(new Slab(buf));
+            return true;
+        }
+
+        private void carve(Slab slab) {
+            slab.used = 0;
+            slabs.add(slab);
+            for (int pos = 0; pos + chunkSize <= slabSize; pos += chunkSize) {
+                ByteBuffer b = slab.buf.duplicate();
+                b.limit(pos + chunkSize);
+                b.position(pos);
+                freeChunks.add(new Chunk(slab, b.slice()));
+            }
+        }
+
+        private void reassignSlab() {
+            SizeClass victim = null;
+            for (SizeClass sc : sizeClasses) {
+                if (sc != this && (victim == null || sc.slabs.size() > victim.slabs.size())) {
+                    victim = sc;
+                }
+            }
+
+            // Do not wait for the lock to prevent deadlocks
+            if (victim == null || victim.slabs.isEmpty() || !victim.tryLock()) {
+                return;
+            }
+
+            Slab slab = null;
+            try {
+                for (Slab candidate : victim.slabs) {
+                    DirectEntry e = victim.head.next;
+                    while (e != victim.head) {
+                        DirectEntry next = e.next;
+                        if (e.chunk != null && e.chunk.slab == candidate && e.readers == 0) {
+                            victim.evict(e);
+                        }
+                        e = next;
+                    }
+                    if (candidate.used == 0) {
+                        slab = candidate;
+                        break;
+                    }
+                }
+
+                if (slab != null) {
+                    victim.slabs.remove(slab);
+                    Iterator<Chunk> it = victim.freeChunks.iterator();
+                    while (it.hasNext()) {
+                        if (it.next().slab == slab) {
+                            it.remove();
+                        }
+                    }
+                }
+            } finally {
+                victim.unlock();
+            }
+
+            if (slab != null) {
+                carve(slab);
+            }
+        }
+
+        // Must be called with lock held
+        private void evict(DirectEntry e) {
+            unlink(e);
+            index.remove(e.getKey(), e);
+            e.removed = true;
+            if (e.readers == 0) {
+                free(e);
+            }
+        }
+
+        // Must be called with lock held
+        private void free(DirectEntry e) {
+            if (e.chunk != null) {
+                e.chunk.slab.used--;
+                freeChunks.add(e.chunk);
+                e.chunk = null;
+            }
+        }
+
+        private void link(DirectEntry e) {
+            e.prev = head.prev;
+            e.next = head;
+            head.prev.next = e;
+            head.prev = e;
+        }
+
+        private void unlink(DirectEntry e) {
+            if (e.linked()) {
+                e.prev.next = e.next;
+                e.next.prev = e.prev;
+                e.prev = null;
+                e.next = null;
+            }
+        }
+
+        private void moveToTail(DirectEntry e) {
+            if (head.prev != e) {
+                unlink(e);
+                link(e);
+            }
+        }
+
+        // Marks the entry as in use; returns a read-only view of the content
+        // or null if the entry was already released
+        private ByteBuffer acquire(DirectEntry e) {
+            lock();
+            try {
+                // Removed entries are readable until the last reader released
+                // the chunk
+                if (e.chunk == null) {
+                    return null;
+                }
+                e.readers++;
+                ByteBuffer buf = e.chunk.buf.asReadOnlyBuffer();
+                buf.clear();
+                buf.limit(e.length);
+                return buf;
+            } finally {
+                unlock();
+            }
+        }
+
+        private boolean retain(DirectEntry e) {
+            lock();
+            try {
+                if (e.removed || e.chunk == null) {
+                    return false;
+                }
+                e.readers++;
+                return true;
+            } finally {
+                unlock();
+            }
+        }
+
+        private void releaseReader(DirectEntry e) {
+            lock();
+            try {
+                e.readers--;
+                if (e.removed && e.readers == 0) {
+                    free(e);
+                }
+            } finally {
+                unlock();
+            }
+        }
+    }
+
+    // Direct memory block which is owned by a size class
+    private static final class Slab {
+
+        private final ByteBuffer buf;
+
+        // Number of chunks in use; guarded by the lock of the owning size class
+        private int used;
+
+        private Slab(ByteBuffer buf) {
+            this.buf = buf;
+        }
+    }
+
+    private static final class Chunk {
+
+        private final Slab slab;
+        private final ByteBuffer buf;
+
+        private Chunk(Slab slab, ByteBuffer buf) {
+            this.slab = slab;
+            this.buf = buf;
+        }
+    }
+
+    /**
+     * Cache entry where the content is stored off-heap.
+     */
+    private final class DirectEntry extends HttpCacheEntry {
+
+        private static final long serialVersionUID = 3405208372290812217L;
+
+        private final transient SizeClass sizeClass;
+        private final int length;
+
+        // Guarded by the size class lock
+        private transient Chunk chunk;
+        private transient int readers;
+        private transient boolean removed;
+
+        private transient DirectEntry prev;
+        private transient DirectEntry next;
+
+        // List head
+        private DirectEntry() {
+            super((String) null, null, null, null);
+            this.sizeClass = null;
+            this.length = 0;
+        }
+
+        private DirectEntry(HttpCacheEntry entry, SizeClass sizeClass,
+                Chunk chunk, int length) {
+
+            super(entry, null);
+            this.sizeClass = sizeClass;
+            this.chunk = chunk;
+            this.length = length;
+        }
+
+        private boolean linked() {
+            return next != null;
+        }
+
+        @Override
+        boolean isContentDirect() {
+            return true;
+        }
+
+        @Override
+        public int getContentLength() {
+            return length;
+        }
+
+        @Override
+        boolean retain() {
+            return sizeClass.retain(this);
+        }
+
+        @Override
+        void release() {
+            sizeClass.releaseReader(this);
+        }
+
+        @Override
+        public byte[] getContent() {
+            ByteBuffer buf = sizeClass.acquire(this);
+            if (buf == null) {
+                // Evicted, the content length would not match
+                return null;
+            }
+            try {
+                byte[] b = new byte[length];
+                buf.get(b);
+                return b;
+            } finally {
+                sizeClass.releaseReader(this);
+            }
+        }
+
+        @Override
+        void writeContentTo(OutputStream os, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || off > length - len) {
+                throw new IndexOutOfBoundsException();
+            }
+            ByteBuffer buf = sizeClass.acquire(this);
+            if (buf == null) {
+                throw new IOException("Cache entry \"" + getKey() + "\" was evicted");
+            }
+            try {
+                buf.limit(off + len);
+                buf.position(off);
+                if (os instanceof WritableByteChannel) {
+                    while (buf.hasRemaining()) {
+                        ((WritableByteChannel) os).write(buf);
+                    }
+                    return;
+                }
+                byte[] b = new byte[Math.max(1, Math.min(TRANSFER_BUFFER_SIZE, len))];
+                while (buf.hasRemaining()) {
+                    int n = Math.min(b.length, buf.remaining());
+                    buf.get(b, 0, n);
+                    os.write(b, 0, n);
+                }
+            } finally {
+                sizeClass.releaseReader(this);
+            }
+        }
+
+        // Serialize as normal heap entry
+        private Object writeReplace() throws ObjectStreamException {
+            return new HttpCacheEntry(this, getContent());
+        }
+    }
+
+}
@@ -0,0 +1,403 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLConnection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size bounded cache for the original (unprocessed) bodies of remote image
+ * sources, keyed by the resolved source URL.
+ * <p>
+ * Different variants of the same source image (e.g. the widths of a
+ * <code>srcset</code>) are produced from the cached body instead of fetching
+ * the source image again for each variant. After the time to live has expired,
+ * an entry is revalidated with the origin by a conditional request
+ * (<code>If-None-Match</code> and <code>If-Modified-Since</code>), so the body
+ * is only transfered again if it was modified.
+ * <p>
+ * The bodies are either kept in memory or, if a directory is given, in files on
+ * the local filesystem. In both cases the least recently used entries are
+ * evicted if the maximum size is exceeded.
+ *
+ * @author Steffen Kremp
+ *
+ * @since 1.2
+ */
+final class OriginCache implements Closeable {
+
+    private static final Log LOG = Log.getLog(OriginCache.class);
+
+    /**
+     * The default time to live in milliseconds before an entry is revalidated.
+     */
+    static final long DEFAULT_TTL = 60000L;
+
+    private static final String FILE_SUFFIX = ".origin";
+
+    // Origin response headers which are kept with the body
+    private static final String[] HEADERS = new String[]{
+        RequestProcessor.HEADER_CONTTYPE,
+        RequestProcessor.HEADER_CONTLANG,
+        RequestProcessor.HEADER_CACHECONTROL,
+        RequestProcessor.HEADER_EXPIRES,
+        RequestProcessor.HEADER_PRAGMA,
+        RequestProcessor.HEADER_ETAG
+    };
+
+    private final long maxSize;
+    private final int maxEntrySize;
+    private final long ttl;
+    private final File dir;
+
+    // Access ordered, guarded by this
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long size;
+
+    private final AtomicLong fileSequence = new AtomicLong();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong revalidationCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Creates a new origin cache.
+     *
+     * @param maxSize The maximum size of all bodies in bytes.
+     * @param maxEntrySize The maximum size of a single body in bytes.
+     * @param ttl The time to live in milliseconds before an entry is
+     * revalidated.
+     * @param dir The directory to store the bodies or <code>null</code> to keep
+     * the bodies in memory.
+     *
+     * @throws IllegalArgumentException if the maximum size or maximum entry
+     * size is less than 1 or the maximum entry size is greater than the maximum
+     * size.
+     * @throws IOException if the directory could not be created or is not
+     * writable.
+     */
+    OriginCache(long maxSize, int maxEntrySize, long ttl, File dir) throws IOException {
+        if (maxSize < 1 || maxEntrySize < 1 || maxEntrySize > maxSize) {
+            throw new IllegalArgumentException("Invalid origin cache size");
+        }
+
+        this.maxSize = maxSize;
+        this.maxEntrySize = maxEntrySize;
+        this.ttl = ttl >= 0 ? ttl : DEFAULT_TTL;
+        this.dir = dir;
+
+        if (dir != null) {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Unable to create origin cache directory \""
+                        + dir.getAbsolutePath() + "\"");
+            }
+            if (!dir.canWrite()) {
+                throw new IOException("Origin cache directory \""
+                        + dir.getAbsolutePath() + "\" is not writable");
+            }
+            // The index is not persisted, so files of a previous instance are
+            // orphans
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    if (f.getName().endsWith(FILE_SUFFIX) && !f.delete()) {
+                        LOG.warn("Unable to delete orphaned origin cache file \""
+                                + f.getAbsolutePath() + "\"");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the cached entry for the specified source URL, which is maybe
+     * not fresh and needs to be revalidated before it is used.
+     *
+     * @param url The source URL.
+     *
+     * @return The entry or <code>null</code>.
+     *
+     * @see Entry#isFresh()
+     */
+    Entry get(String url) {
+        Entry e;
+        synchronized (this) {
+            e = entries.get(url);
+            if (e != null && e.file != null && !e.file.exists()) {
+                remove(url, e);
+                e = null;
+            }
+        }
+        if (e == null) {
+            missCount.incrementAndGet();
+        } else if (e.isFresh()) {
+            hitCount.incrementAndGet();
+        }
+        return e;
+    }
+
+    /**
+     * Creates a new entry from the given origin response and body and adds it
+     * to the cache, if the body does not exceed the maximum entry size.
+     *
+     * @param url The source URL.
+     * @param headers The origin response headers.
+     * @param lastModified The last modified date of the source or
+     * <code>0</code>.
+     * @param body The body.
+     *
+     * @return The new entry (also if the entry was not added to the cache).
+     *
+     * @throws IOException if the body could not be stored.
+     */
+    Entry put(String url, Map<String, String> headers, long lastModified,
+            FastByteArrayOutputStream body) throws IOException {
+
+        int length = body.size();
+        if (length > maxEntrySize) {
+            return new Entry(url, headers, lastModified, body.toByteArray(), null, length, 0L);
+        }
+
+        Entry e;
+        if (dir != null) {
+            File f = new File(dir, Long.toHexString(System.nanoTime()) + "-"
+                    + fileSequence.incrementAndGet() + FILE_SUFFIX);
+            try (OutputStream os = new FileOutputStream(f)) {
+                body.writeTo(os);
+            }
+            e = new Entry(url, headers, lastModified, null, f, length,
+                    System.currentTimeMillis() + ttl);
+        } else {
+            e = new Entry(url, headers, lastModified, body.toByteArray(), null, length,
+                    System.currentTimeMillis() + ttl);
+        }
+
+        synchronized (this) {
+            Entry old = entries.put(url, e);
+            if (old != null) {
+                size -= old.length;
+                old.delete();
+            }
+            size += length;
+
+            Iterator<Entry> it = entries.values().iterator();
+            while (size > maxSize && it.hasNext()) {
+                Entry eldest = it.next();
+                it.remove();
+                size -= eldest.length;
+                eldest.delete();
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Marks the given entry as fresh after the origin has confirmed that the
+     * source was not modified.
+     *
+     * @param e The entry.
+     * @param headers The headers of the origin response (<code>304</code>),
+     * which replace the stored headers.
+     *
+     * @return The entry.
+     */
+    Entry revalidate(Entry e, Map<String, String> headers) {
+        if (headers != null && !headers.isEmpty()) {
+            HashMap<String, String> merged = new HashMap<>(e.headers);
+            merged.putAll(headers);
+            e.headers = Collections.unmodifiableMap(merged);
+        }
+        e.validUntil = System.currentTimeMillis() + ttl;
+        revalidationCount.incrementAndGet();
+        return e;
+    }
+
+    /**
+     * Removes the entry for the specified source URL.
+     *
+     * @param url The source URL.
+     *
+     * @return <code>true</code> if an entry was removed.
+     */
+    synchronized boolean remove(String url) {
+        Entry e = entries.get(url);
+        return e != null && remove(url, e);
+    }
+
+    private boolean remove(String url, Entry e) {
+        if (entries.remove(url) != null) {
+            size -= e.length;
+            e.delete();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The maximum size of a single body in bytes.
+     */
+    int getMaxEntrySize() {
+        return maxEntrySize;
+    }
+
+    /**
+     * @return The number of cached entries.
+     */
+    synchronized int getCount() {
+        return entries.size();
+    }
+
+    /**
+     * @return The size of all cached bodies in bytes.
+     */
+    synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * @return The number of requests which were answered by a fresh entry.
+     */
+    long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return The number of entries which were confirmed by the origin.
+     */
+    long getRevalidationCount() {
+        return revalidationCount.get();
+    }
+
+    /**
+     * @return The number of requests without a cached entry.
+     */
+    long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Removes all entries (and deletes the files).
+     *
+     * @throws IOException never.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        for (Entry e : entries.values()) {
+            e.delete();
+        }
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Returns the response headers of the given connection which are stored
+     * with a cached body.
+     *
+     * @param con The origin connection.
+     *
+     * @return The headers.
+     */
+    static Map<String, String> getHeaders(URLConnection con) {
+        HashMap<String, String> headers = new HashMap<>();
+        for (String name : HEADERS) {
+            String value = con.getHeaderField(name);
+            if (value != null) {
+                headers.put(name, value);
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * A cached source body.
+     */
+    static final class Entry {
+
+        private final String url;
+        private final long lastModified;
+        private final byte[] data;
+        private final File file;
+        private final int length;
+
+        private volatile Map<String, String> headers;
+        private volatile long validUntil;
+
+        private Entry(String url, Map<String, String> headers, long lastModified,
+                byte[] data, File file, int length, long validUntil) {
+
+            this.url = url;
+            this.headers = Collections.unmodifiableMap(new HashMap<>(headers));
+            this.lastModified = lastModified;
+            this.data = data;
+            this.file = file;
+            this.length = length;
+            this.validUntil = validUntil;
+        }
+
+        String getURL() {
+            return url;
+        }
+
+        String getHeader(String name) {
+            return headers.get(name);
+        }
+
+        String getETag() {
+            return headers.get(RequestProcessor.HEADER_ETAG);
+        }
+
+        long getLastModified() {
+            return lastModified;
+        }
+
+        int getLength() {
+            return length;
+        }
+
+        /**
+         * @return <code>true</code> if the entry could be used without to
+         * revalidate it with the origin.
+         */
+        boolean isFresh() {
+            return System.currentTimeMillis() < validUntil;
+        }
+
+        InputStream openStream() throws IOException {
+            return data != null ? new FastByteArrayInputStream(data)
+                    : new BufferedInputStream(new FileInputStream(file));
+        }
+
+        private void delete() {
+            if (file != null && !file.delete() && file.exists()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deduplicates concurrent fetches of the same remote source image.
+ * <p>
+ * The first request for a source URL becomes the leader of the fetch and
+ * downloads the source once. Concurrent requests for the same URL, e.g. for
+ * other variants of the same image, join the fetch of the leader and wait
+ * until the response is available. The buffered response is then shared with
+ * all waiting requests instead of opening a new origin connection per request.
+ * If the leader fails or the response could not be shared (e.g. an error or a
+ * redirect), the waiting requests fall back to fetch the source by their own.
+ *
+ * @see PicturaServlet#IPARAM_HTTP_COALESCING_TIMEOUT
+ *
+ * @author Steffen Kremp
+ *
+ * @since 1.2
+ */
+final class OriginFetchCoalescer {
+
+    private final long timeout;
+
+    // Fetches in progress by the resolved source URL
+    private final ConcurrentHashMap<String, Fetch> fetches = new ConcurrentHashMap<>();
+
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /**
+     * Creates a new coalescer.
+     *
+     * @param timeout The maximum time in milliseconds a request waits for the
+     * fetch of the leader.
+     *
+     * @throws IllegalArgumentException if the timeout is less than 1.
+     */
+    OriginFetchCoalescer(long timeout) {
+        if (timeout < 1) {
+            throw new IllegalArgumentException("Coalescing timeout must be greater than 0");
+        }
+        this.timeout = timeout;
+    }
+
+    /**
+     * Joins the fetch of the specified source. If there is no fetch of the
+     * source in progress, the caller becomes the leader of a new fetch and
+     * must {@link #complete(String, Fetch, BufferedURLConnection)} it.
+     *
+     * @param key The resolved source URL.
+     *
+     * @return The fetch.
+     */
+    Fetch join(String key) {
+        Fetch f = new Fetch();
+        Fetch leader = fetches.putIfAbsent(key, f);
+        return leader == null ? f : new Fetch(leader);
+    }
+
+    /**
+     * Waits until the leader has completed the given fetch.
+     *
+     * @param fetch The fetch of an other request.
+     *
+     * @return <code>true</code> if the fetch was completed or
+     * <code>false</code> if the timeout was reached.
+     */
+    boolean await(Fetch fetch) {
+        if (fetch.isLeader()) {
+            throw new IllegalArgumentException("Leader can not wait for its own fetch");
+        }
+        try {
+            return fetch.latch.await(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Returns a new connection on the shared response of the given (completed)
+     * fetch.
+     *
+     * @param fetch The fetch of an other request.
+     *
+     * @return The connection or <code>null</code> if the fetch is not
+     * completed or the response could not be shared.
+     */
+    BufferedURLConnection getResponse(Fetch fetch) {
+        BufferedURLConnection response = fetch.source.response;
+        if (response != null && !fetch.isLeader()) {
+            coalescedCount.incrementAndGet();
+            return response.copy();
+        }
+        return null;
+    }
+
+    /**
+     * Counts a request which was answered by the result of an other fetch,
+     * e.g. from a cache which was filled by the leader.
+     */
+    void incrementCoalescedCount() {
+        coalescedCount.incrementAndGet();
+    }
+
+    /**
+     * Completes the given fetch and releases all waiting requests.
+     *
+     * @param key The resolved source URL.
+     * @param fetch The fetch of the leader.
+     * @param response The shared response or <code>null</code> if the
+     * response could not be shared.
+     */
+    void complete(String key, Fetch fetch, BufferedURLConnection response) {
+        if (!fetch.isLeader()) {
+            throw new IllegalArgumentException("Only the leader can complete a fetch");
+        }
+        fetch.response = response;
+        fetches.remove(key, fetch);
+        fetch.latch.countDown();
+    }
+
+    /**
+     * @return The maximum time in milliseconds a request waits for the fetch
+     * of the leader.
+     */
+    long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @return The number of requests which were answered by the fetch of an
+     * other request.
+     */
+    long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * @return The number of fetches which are currently in progress.
+     */
+    int getPendingCount() {
+        return fetches.size();
+    }
+
+    /**
+     * A fetch in progress.
+     */
+    static final class Fetch {
+
+        // The fetch of the leader; this instance for the leader itself
+        private final Fetch source;
+        private final CountDownLatch latch;
+        private volatile BufferedURLConnection response;
+
+        private Fetch() {
+            this.source = this;
+            this.latch = new CountDownLatch(1);
+        }
+
+        private Fetch(Fetch source) {
+            this.source = source;
+            this.latch = source.latch;
+        }
+
+        /**
+         * @return <code>true</code> if the caller has to fetch the source.
+         */
+        boolean isLeader() {
+            return source == this;
+        }
+    }
+
+}
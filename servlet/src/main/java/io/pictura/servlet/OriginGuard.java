@@ -0,0 +1,488 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Isolates the requests to the origin hosts of remote image sources from each
+ * other.
+ * <p>
+ * For each origin (protocol, host and port) the guard limits the number of
+ * concurrent requests (bulkhead) and tracks the number of failed and timed out
+ * requests and the latency in a rolling time window. If the failure rate of an
+ * origin exceeds the threshold, the circuit of the origin is opened and
+ * further requests fail fast instead of blocking a worker thread up to the
+ * read timeout. After the open duration a single probe request is let through
+ * to test whether the origin has recovered.
+ *
+ * @see PicturaServlet#IPARAM_HTTP_ORIGIN_MAX_CONCURRENT_REQUESTS
+ * @see PicturaServlet#IPARAM_HTTP_ORIGIN_FAILURE_THRESHOLD
+ *
+ * @author Steffen Kremp
+ *
+ * @since 1.2
+ */
+final class OriginGuard {
+
+    /**
+     * The circuit state of an origin.
+     */
+    enum State {
+
+        /**
+         * Requests are passed through to the origin.
+         */
+        CLOSED,
+        /**
+         * Requests fail fast.
+         */
+        OPEN,
+        /**
+         * A single probe request is passed through to the origin.
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * The number of buckets of the rolling window.
+     */
+    static final int WINDOW_BUCKETS = 10;
+
+    /**
+     * The time in milliseconds covered by a single bucket of the rolling
+     * window.
+     */
+    static final long WINDOW_BUCKET_SIZE = 1000L;
+
+    /**
+     * The minimum number of requests in the rolling window before the failure
+     * rate is evaluated.
+     */
+    static final int DEFAULT_MIN_REQUESTS = 10;
+
+    private final int maxConcurrentRequests;
+    private final int failureThreshold;
+    private final long openDuration;
+    private final int minRequests;
+
+    private final ConcurrentHashMap<String, Origin> origins = new ConcurrentHashMap<>();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * Creates a new origin guard.
+     *
+     * @param maxConcurrentRequests The maximum number of concurrent requests
+     * per origin or a value less than 1 for no limit.
+     * @param failureThreshold The failure rate in percent (1..100) to open the
+     * circuit of an origin or a value less than 1 to disable the circuit
+     * breaker.
+     * @param openDuration The time in milliseconds the circuit stays open
+     * before a probe request is let through.
+     * @param minRequests The minimum number of requests in the rolling window
+     * before the failure rate is evaluated.
+     *
+     * @throws IllegalArgumentException if the failure threshold is greater
+     * than 100 or the open duration is negative.
+     */
+    OriginGuard(int maxConcurrentRequests, int failureThreshold, long openDuration,
+            int minRequests) {
+
+        if (failureThreshold > 100) {
+            throw new IllegalArgumentException("Failure threshold must be less or equal than 100");
+        }
+        if (openDuration < 0) {
+            throw new IllegalArgumentException("Open duration must be not negative");
+        }
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+        this.minRequests = Math.max(1, minRequests);
+    }
+
+    /**
+     * Acquires the permit to send a request to the origin of the given URL.
+     *
+     * @param url The URL of the remote image source.
+     *
+     * @return The permit which must be released after the request.
+     *
+     * @throws RejectedException if the circuit of the origin is open or the
+     * maximum number of concurrent requests is reached.
+     */
+    Permit acquire(URL url) throws RejectedException {
+        final String key = getOriginKey(url);
+        Origin origin = origins.get(key);
+        if (origin == null) {
+            Origin newOrigin = new Origin(maxConcurrentRequests);
+            origin = origins.putIfAbsent(key, newOrigin);
+            if (origin == null) {
+                origin = newOrigin;
+            }
+        }
+
+        final long now = System.currentTimeMillis();
+        boolean probe = false;
+
+        if (failureThreshold > 0) {
+            synchronized (origin) {
+                if (origin.state == State.OPEN && now - origin.openedAt >= openDuration) {
+                    origin.state = State.HALF_OPEN;
+                    origin.probing = false;
+                }
+                if (origin.state == State.OPEN
+                        || (origin.state == State.HALF_OPEN && origin.probing)) {
+                    throw reject(origin, HttpServletResponse.SC_BAD_GATEWAY,
+                            "Origin \"" + key + "\" is unavailable");
+                }
+                if (origin.state == State.HALF_OPEN) {
+                    origin.probing = probe = true;
+                }
+            }
+        }
+
+        if (origin.permits != null && !origin.permits.tryAcquire()) {
+            if (probe) {
+                synchronized (origin) {
+                    origin.probing = false;
+                }
+            }
+            throw reject(origin, HttpServletResponse.SC_GATEWAY_TIMEOUT,
+                    "Too many concurrent requests to origin \"" + key + "\"");
+        }
+
+        origin.active.incrementAndGet();
+        return new Permit(origin, probe, now);
+    }
+
+    private RejectedException reject(Origin origin, int status, String msg) {
+        origin.rejected.incrementAndGet();
+        rejectedCount.incrementAndGet();
+        return new RejectedException(status, msg);
+    }
+
+    /**
+     * Returns the circuit state of the origin of the given URL.
+     *
+     * @param url The URL of a remote image source.
+     *
+     * @return The state.
+     */
+    State getState(URL url) {
+        Origin origin = origins.get(getOriginKey(url));
+        return origin != null ? origin.getState() : State.CLOSED;
+    }
+
+    /**
+     * @return All known origins ordered by their key.
+     */
+    Map<String, Origin> getOrigins() {
+        return new TreeMap<>(origins);
+    }
+
+    /**
+     * @return The number of requests which were rejected since the guard was
+     * created.
+     */
+    long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Removes the state of all origins.
+     */
+    void clear() {
+        origins.clear();
+    }
+
+    /**
+     * Returns the key of the origin (protocol, host and port) of the given URL.
+     *
+     * @param url The URL.
+     *
+     * @return The origin key, e.g. <code>http://localhost:80</code>.
+     */
+    static String getOriginKey(URL url) {
+        return url.getProtocol().toLowerCase(Locale.ENGLISH) + "://" + url.getHost().toLowerCase(Locale.ENGLISH)
+                + ":" + (url.getPort() != -1 ? url.getPort() : url.getDefaultPort());
+    }
+
+    /**
+     * The state of a single origin.
+     */
+    static final class Origin {
+
+        private final Semaphore permits;
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicLong rejected = new AtomicLong();
+
+        // Guarded by this
+        private State state = State.CLOSED;
+        private long openedAt;
+        private boolean probing;
+
+        // Rolling window, guarded by this
+        private final long[] bucketIds = new long[WINDOW_BUCKETS];
+        private final int[] requests = new int[WINDOW_BUCKETS];
+        private final int[] failures = new int[WINDOW_BUCKETS];
+        private final int[] timeouts = new int[WINDOW_BUCKETS];
+        private final long[] latencies = new long[WINDOW_BUCKETS];
+
+        private Origin(int maxConcurrentRequests) {
+            this.permits = maxConcurrentRequests > 0 ? new Semaphore(maxConcurrentRequests) : null;
+        }
+
+        /**
+         * @return The circuit state.
+         */
+        synchronized State getState() {
+            return state;
+        }
+
+        /**
+         * @return The number of requests which are currently in progress.
+         */
+        int getActiveCount() {
+            return active.get();
+        }
+
+        /**
+         * @return The number of rejected requests.
+         */
+        long getRejectedCount() {
+            return rejected.get();
+        }
+
+        /**
+         * @return The number of completed requests in the rolling window.
+         */
+        synchronized int getRequestCount() {
+            return sum(requests);
+        }
+
+        /**
+         * @return The number of failed requests (including timeouts) in the
+         * rolling window.
+         */
+        synchronized int getFailureCount() {
+            return sum(failures);
+        }
+
+        /**
+         * @return The number of timed out requests in the rolling window.
+         */
+        synchronized int getTimeoutCount() {
+            return sum(timeouts);
+        }
+
+        /**
+         * @return The average latency in milliseconds of the requests in the
+         * rolling window or <code>-1</code> if there was no request.
+         */
+        synchronized long getAverageLatency() {
+            long n = 0L;
+            long sum = 0L;
+            final long now = bucketId(System.currentTimeMillis());
+            for (int i = 0; i < WINDOW_BUCKETS; i++) {
+                if (now - bucketIds[i] < WINDOW_BUCKETS) {
+                    n += requests[i];
+                    sum += latencies[i];
+                }
+            }
+            return n > 0 ? sum / n : -1L;
+        }
+
+        private int sum(int[] values) {
+            int n = 0;
+            final long now = bucketId(System.currentTimeMillis());
+            for (int i = 0; i < WINDOW_BUCKETS; i++) {
+                if (now - bucketIds[i] < WINDOW_BUCKETS) {
+                    n += values[i];
+                }
+            }
+            return n;
+        }
+
+        private static long bucketId(long time) {
+            return time / WINDOW_BUCKET_SIZE;
+        }
+
+        // Adds the result of a completed request to the current bucket
+        private void add(long now, boolean failure, boolean timeout, long latency) {
+            final long id = bucketId(now);
+            final int i = (int) (id % WINDOW_BUCKETS);
+            if (bucketIds[i] != id) {
+                bucketIds[i] = id;
+                requests[i] = 0;
+                failures[i] = 0;
+                timeouts[i] = 0;
+                latencies[i] = 0L;
+            }
+            requests[i]++;
+            latencies[i] += latency;
+            if (failure) {
+                failures[i]++;
+            }
+            if (timeout) {
+                timeouts[i]++;
+            }
+        }
+
+        private void reset() {
+            for (int i = 0; i < WINDOW_BUCKETS; i++) {
+                bucketIds[i] = 0L;
+                requests[i] = 0;
+                failures[i] = 0;
+                timeouts[i] = 0;
+                latencies[i] = 0L;
+            }
+        }
+    }
+
+    /**
+     * The permit to send a request to an origin. The caller reports the
+     * response status or the exception of the request and must release the
+     * permit afterwards.
+     */
+    final class Permit {
+
+        private final Origin origin;
+        private final boolean probe;
+        private final long timestamp;
+
+        private int status;
+        private long latency = -1L;
+        private IOException exception;
+        private boolean released;
+
+        private Permit(Origin origin, boolean probe, long timestamp) {
+            this.origin = origin;
+            this.probe = probe;
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * Sets the response status of the origin. The latency of the request
+         * is measured on the first call.
+         *
+         * @param sc The HTTP status code.
+         */
+        void setStatus(int sc) {
+            if (latency < 0L) {
+                latency = System.currentTimeMillis() - timestamp;
+            }
+            this.status = sc;
+        }
+
+        /**
+         * Sets the I/O error of the request, e.g. a connect or read timeout.
+         *
+         * @param ex The exception.
+         */
+        void setException(IOException ex) {
+            if (latency < 0L) {
+                latency = System.currentTimeMillis() - timestamp;
+            }
+            this.exception = ex;
+        }
+
+        /**
+         * Releases the permit and records the result of the request. A server
+         * error response (5xx) or an I/O error is counted as failure. If the
+         * origin was not contacted at all, nothing is recorded.
+         */
+        void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+
+            if (origin.permits != null) {
+                origin.permits.release();
+            }
+            origin.active.decrementAndGet();
+
+            final boolean failure = exception != null || status >= 500;
+            final boolean completed = failure || status > 0;
+            final long now = System.currentTimeMillis();
+
+            synchronized (origin) {
+                if (probe) {
+                    origin.probing = false;
+                }
+                if (!completed) {
+                    return;
+                }
+
+                origin.add(now, failure, exception instanceof SocketTimeoutException, latency);
+
+                if (failureThreshold < 1) {
+                    return;
+                }
+                if (probe || origin.state == State.HALF_OPEN) {
+                    if (failure) {
+                        origin.state = State.OPEN;
+                        origin.openedAt = now;
+                    } else if (probe) {
+                        origin.state = State.CLOSED;
+                        origin.reset();
+                    }
+                } else if (origin.state == State.CLOSED && failure) {
+                    final int n = origin.getRequestCount();
+                    if (n >= minRequests && origin.getFailureCount() * 100 >= failureThreshold * n) {
+                        origin.state = State.OPEN;
+                        origin.openedAt = now;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Thrown if a request to an origin is rejected by the guard.
+     */
+    static final class RejectedException extends IOException {
+
+        private static final long serialVersionUID = -2473104452853816707L;
+
+        private final int status;
+
+        RejectedException(int status, String msg) {
+            super(msg);
+            this.status = status;
+        }
+
+        /**
+         * @return The HTTP status code to respond with, e.g.
+         * <code>502</code> if the circuit of the origin is open or
+         * <code>504</code> if there are too many concurrent requests.
+         */
+        int getStatus() {
+            return status;
+        }
+    }
+
+}
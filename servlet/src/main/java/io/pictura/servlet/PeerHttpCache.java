@@ -0,0 +1,642 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A {@link HttpCache} which is shared by a cluster of servlet instances (peers)
+ * so the cluster acts as one logical cache. Each key is owned by exactly one
+ * peer which is selected by rendezvous (highest random weight) hashing, so only
+ * the keys of a leaving or joining peer are moved.
+ * <p>
+ * Entries are only stored by their owner. If a key is not found in the local
+ * cache, the entry is fetched from its owner over a lightweight TCP protocol
+ * with a short timeout. New entries and removals of keys which are owned by
+ * another peer are sent to the owner in the background. If the owner is not
+ * reachable, it is skipped for a short time and its keys are handled by the
+ * local cache, so a request falls back to local processing at worst.
+ * <p>
+ * Every peer listens on its own address for requests from the other peers and
+ * only answers from its local cache (requests are never forwarded). Only
+ * connections from the addresses of the configured peers are accepted. Each
+ * connection must be authenticated with a challenge-response handshake, e.g.
+ * the connecting peer answers a random challenge with its HMAC-SHA256 by the
+ * shared secret of the cluster. Received entries which are larger than the
+ * maximum entry size are rejected before the content is read.
+ *
+ * @author Steffen Kremp
+ *
+ * @see HttpCacheServlet#createPeerHttpCache(io.pictura.servlet.HttpCache,
+ * java.lang.String, java.util.Collection, java.lang.String, int, int)
+ *
+ * @since 1.2
+ */
+final class PeerHttpCache implements IterableHttpCache, Closeable {
+
+    private static final Log LOG = Log.getLog(PeerHttpCache.class);
+
+    /**
+     * The default timeout in milliseconds to connect to and read from a peer.
+     */
+    static final int DEFAULT_TIMEOUT = 250;
+
+    // Time in millis a peer is skipped after a failed request
+    static final long RETRY_DELAY = 5000L;
+
+    // Protocol
+    private static final int MAGIC = 0x50435052; // PCPR
+    private static final byte OP_GET = 1;
+    private static final byte OP_PUT = 2;
+    private static final byte OP_REMOVE = 3;
+    private static final byte STATUS_MISS = 0;
+    private static final byte STATUS_OK = 1;
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int CHALLENGE_SIZE = 16;
+    private static final int MAC_SIZE = 32;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final int SERVER_POOL_SIZE = 8;
+    private static final int QUEUE_SIZE = 1024;
+
+    final HttpCache local;
+
+    private final Peer self;
+    private final List<Peer> peers;
+    private final SecretKeySpec secret;
+    private final int timeout;
+    private final int maxEntrySize;
+
+    private final ServerSocket serverSocket;
+    private final ThreadPoolExecutor serverExecutor;
+    private final Thread acceptThread;
+
+    private volatile boolean closed;
+
+    private final AtomicLong remoteHitCount = new AtomicLong();
+    private final AtomicLong remoteMissCount = new AtomicLong();
+    private final AtomicLong remoteErrorCount = new AtomicLong();
+
+    /**
+     * Creates a new peer cache and starts to listen for requests from the
+     * other peers on the address of this peer.
+     *
+     * @param local The local cache to store the owned entries.
+     * @param self The address of this peer in the format <code>host:port</code>.
+     * @param peers The addresses of all peers (incl. this peer).
+     * @param secret The secret which is shared by all peers.
+     * @param timeout The timeout in milliseconds to connect to and read from a
+     * peer.
+     * @param maxEntrySize The max. content length in bytes of an entry which
+     * is received from a peer or <code>0</code> if unlimited.
+     *
+     * @throws IllegalArgumentException if the local cache is <code>null</code>,
+     * one of the addresses is not valid or the secret is empty.
+     * @throws IOException if the server socket could not be bound.
+     */
+    PeerHttpCache(HttpCache local, String self, Collection<String> peers, String secret,
+            int timeout, int maxEntrySize) throws IOException {
+
+        if (local == null) {
+            throw new IllegalArgumentException("Local cache must be not null");
+        }
+        if (peers == null) {
+            throw new IllegalArgumentException("Peers must be not null");
+        }
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException("Peer secret must be not empty");
+        }
+
+        this.local = local;
+        this.self = new Peer(self);
+        this.secret = new SecretKeySpec(secret.getBytes(Charset.forName("UTF-8")), MAC_ALGORITHM);
+        this.timeout = timeout > 0 ? timeout : DEFAULT_TIMEOUT;
+        this.maxEntrySize = maxEntrySize > 0 ? maxEntrySize : Integer.MAX_VALUE;
+
+        LinkedHashSet<String> addresses = new LinkedHashSet<>();
+        for (String p : peers) {
+            if (p != null && !p.trim().isEmpty()) {
+                addresses.add(p.trim());
+            }
+        }
+        addresses.remove(this.self.address);
+
+        ArrayList<Peer> list = new ArrayList<>(addresses.size() + 1);
+        list.add(this.self);
+        for (String address : addresses) {
+            list.add(new Peer(address));
+        }
+        this.peers = Collections.unmodifiableList(list);
+
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.setReuseAddress(true);
+        this.serverSocket.bind(new InetSocketAddress(this.self.host, this.self.port));
+
+        this.serverExecutor = new ThreadPoolExecutor(1, SERVER_POOL_SIZE, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ServerThreadFactory());
+
+        this.acceptThread = new ServerThreadFactory().newThread(new Runnable() {
+
+            @Override
+            public void run() {
+                doAccept();
+            }
+        });
+        this.acceptThread.start();
+
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Listening for peer cache requests on " + this.self.address
+                    + " (" + (this.peers.size() - 1) + " remote peers)");
+        }
+    }
+
+    @Override
+    public HttpCacheEntry get(String key) {
+        HttpCacheEntry entry = local.get(key);
+        if (entry != null || key == null) {
+            return entry;
+        }
+
+        Peer owner = getOwner(key);
+        if (owner == self || !owner.isAvailable()) {
+            return null;
+        }
+
+        try {
+            entry = owner.get(key);
+            if (entry != null) {
+                remoteHitCount.incrementAndGet();
+            } else {
+                remoteMissCount.incrementAndGet();
+            }
+            return entry;
+        } catch (IOException ex) {
+            onError(owner, ex);
+            return null;
+        }
+    }
+
+    @Override
+    public void put(final String key, final HttpCacheEntry entry) {
+        if (key == null) {
+            return;
+        }
+
+        // The owner would reject an entry which is too large
+        final Peer owner = getOwner(key);
+        if (owner == self || !owner.isAvailable() || entry == null
+                || entry.getContentLength() > maxEntrySize) {
+            local.put(key, entry);
+            return;
+        }
+
+        owner.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    owner.put(key, entry);
+                } catch (IOException ex) {
+                    onError(owner, ex);
+                    local.put(key, entry);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean remove(final String key) {
+        boolean removed = local.remove(key);
+        if (key == null) {
+            return removed;
+        }
+
+        final Peer owner = getOwner(key);
+        if (owner != self && owner.isAvailable()) {
+            owner.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        owner.remove(key);
+                    } catch (IOException ex) {
+                        onError(owner, ex);
+                    }
+                }
+            });
+        }
+        return removed;
+    }
+
+    /**
+     * Returns the keys of the local cache.
+     *
+     * @return The local cache keys.
+     */
+    @Override
+    public Set<String> keySet() {
+        return local.keySet();
+    }
+
+    /**
+     * Returns the entries of the local cache without to record an access.
+     *
+     * @return The local cache entries.
+     */
+    @Override
+    public Collection<HttpCacheEntry> entries() {
+        return HttpCacheSnapshot.entries(local);
+    }
+
+    /**
+     * Returns the peer which owns the specified key.
+     *
+     * @param key The cache key.
+     *
+     * @return The address of the owner in the format <code>host:port</code>.
+     */
+    String getOwnerAddress(String key) {
+        return getOwner(key).address;
+    }
+
+    private Peer getOwner(String key) {
+        long h = hash(key);
+        Peer owner = self;
+        long max = weight(self.hash, h);
+        for (Peer p : peers) {
+            long w = weight(p.hash, h);
+            if (w > max || (w == max && p.address.compareTo(owner.address) < 0)) {
+                max = w;
+                owner = p;
+            }
+        }
+        return owner;
+    }
+
+    // Whether the given address is the address of a remote peer
+    private boolean isPeerAddress(InetAddress address) {
+        for (Peer p : peers) {
+            if (p == self) {
+                continue;
+            }
+            try {
+                for (InetAddress a : InetAddress.getAllByName(p.host)) {
+                    if (a.equals(address)) {
+                        return true;
+                    }
+                }
+            } catch (UnknownHostException ex) {
+                // Not resolvable at the moment
+            }
+        }
+        return false;
+    }
+
+    // HMAC of the given challenge by the shared secret
+    private byte[] mac(byte[] challenge) throws IOException {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(secret);
+            return mac.doFinal(challenge);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("Unable to authenticate peer cache request", ex);
+        }
+    }
+
+    private void onError(Peer peer, IOException ex) {
+        remoteErrorCount.incrementAndGet();
+        peer.downUntil = System.currentTimeMillis() + RETRY_DELAY;
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Peer " + peer.address + " is not available", ex);
+        }
+    }
+
+    long getRemoteHitCount() {
+        return remoteHitCount.get();
+    }
+
+    long getRemoteMissCount() {
+        return remoteMissCount.get();
+    }
+
+    long getRemoteErrorCount() {
+        return remoteErrorCount.get();
+    }
+
+    /**
+     * Stops to listen for peer requests and closes the local cache if it is
+     * {@link Closeable}.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            serverSocket.close();
+            serverExecutor.shutdownNow();
+            for (Peer p : peers) {
+                if (p.executor != null) {
+                    p.executor.shutdownNow();
+                }
+            }
+        } finally {
+            if (local instanceof Closeable) {
+                ((Closeable) local).close();
+            }
+        }
+    }
+
+    private void doAccept() {
+        while (!closed) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException ex) {
+                if (!closed) {
+                    LOG.warn("Unable to accept peer cache connection", ex);
+                }
+                continue;
+            }
+
+            try {
+                serverExecutor.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        doServe(socket);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    // Answers the requests of a peer from the local cache until the peer
+    // closes the connection
+    private void doServe(Socket socket) {
+        try {
+            if (!isPeerAddress(socket.getInetAddress())) {
+                LOG.warn("Rejected peer cache connection from unknown address "
+                        + socket.getInetAddress().getHostAddress());
+                return;
+            }
+
+            socket.setSoTimeout(timeout * 4);
+            socket.setTcpNoDelay(true);
+
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            // Challenge-response authentication with the shared secret
+            byte[] challenge = new byte[CHALLENGE_SIZE];
+            RANDOM.nextBytes(challenge);
+            dos.write(challenge);
+            dos.flush();
+
+            byte[] response = new byte[MAC_SIZE];
+            dis.readFully(response);
+            if (!MessageDigest.isEqual(mac(challenge), response)) {
+                LOG.warn("Rejected unauthenticated peer cache connection from "
+                        + socket.getInetAddress().getHostAddress());
+                return;
+            }
+
+            while (!closed) {
+                int magic;
+                try {
+                    magic = dis.readInt();
+                } catch (EOFException ex) {
+                    break;
+                }
+                if (magic != MAGIC) {
+                    throw new IOException("Invalid peer cache request");
+                }
+
+                byte op = dis.readByte();
+                String key = HttpCacheSnapshot.readString(dis);
+                switch (op) {
+                    case OP_GET:
+                        HttpCacheEntry entry = local.get(key);
+                        if (entry != null && !entry.isExpired()) {
+                            dos.writeByte(STATUS_OK);
+                            HttpCacheSnapshot.writeRecord(dos, entry);
+                        } else {
+                            dos.writeByte(STATUS_MISS);
+                        }
+                        break;
+
+                    case OP_PUT:
+                        HttpCacheEntry e = HttpCacheSnapshot.readRecord(dis, dis.readInt(), maxEntrySize);
+                        if (e == null) {
+                            throw new IOException("Corrupted peer cache entry (checksum mismatch)");
+                        }
+                        local.put(key, e);
+                        dos.writeByte(STATUS_OK);
+                        break;
+
+                    case OP_REMOVE:
+                        dos.writeByte(local.remove(key) ? STATUS_OK : STATUS_MISS);
+                        break;
+
+                    default:
+                        throw new IOException("Unsupported peer cache operation " + op);
+                }
+                dos.flush();
+            }
+        } catch (SocketException ex) {
+            // Closed by the peer
+        } catch (IOException | RuntimeException ex) {
+            if (!closed) {
+                LOG.warn("Failed to serve peer cache request", ex);
+            }
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    // 64 bit FNV-1a hash
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    // Mixes the peer and key hash (SplitMix64 finalizer)
+    static long weight(long peerHash, long keyHash) {
+        long z = peerHash ^ keyHash;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    // A member of the cluster
+    private final class Peer {
+
+        private final String address;
+        private final String host;
+        private final int port;
+        private final long hash;
+
+        // Background requests in the order they are submitted
+        private final ThreadPoolExecutor executor;
+
+        private volatile long downUntil;
+
+        private Peer(String address) {
+            if (address == null) {
+                throw new IllegalArgumentException("Peer address must be not null");
+            }
+            int i = address.lastIndexOf(':');
+            if (i < 1 || i == address.length() - 1) {
+                throw new IllegalArgumentException("Invalid peer address \"" + address + "\"");
+            }
+            this.address = address.trim();
+            this.host = address.substring(0, i).trim();
+            try {
+                this.port = Integer.parseInt(address.substring(i + 1).trim());
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid peer address \"" + address + "\"", ex);
+            }
+            this.hash = hash(this.address);
+
+            if (self == null) {
+                this.executor = null;
+            } else {
+                this.executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ServerThreadFactory(),
+                        new ThreadPoolExecutor.DiscardPolicy());
+                this.executor.allowCoreThreadTimeOut(true);
+            }
+        }
+
+        private boolean isAvailable() {
+            return System.currentTimeMillis() >= downUntil;
+        }
+
+        private void execute(Runnable r) {
+            try {
+                executor.execute(r);
+            } catch (RejectedExecutionException ex) {
+                // Closed
+            }
+        }
+
+        private HttpCacheEntry get(String key) throws IOException {
+            try (Socket socket = connect()) {
+                DataOutputStream dos = writeRequest(socket, OP_GET, key);
+                dos.flush();
+
+                DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                if (dis.readByte() != STATUS_OK) {
+                    return null;
+                }
+                HttpCacheEntry entry = HttpCacheSnapshot.readRecord(dis, dis.readInt(), maxEntrySize);
+                if (entry == null) {
+                    throw new IOException("Corrupted peer cache entry (checksum mismatch)");
+                }
+                return entry.isExpired() ? null : entry;
+            }
+        }
+
+        private void put(String key, HttpCacheEntry entry) throws IOException {
+            try (Socket socket = connect()) {
+                DataOutputStream dos = writeRequest(socket, OP_PUT, key);
+                HttpCacheSnapshot.writeRecord(dos, entry);
+                dos.flush();
+                socket.getInputStream().read();
+            }
+        }
+
+        private boolean remove(String key) throws IOException {
+            try (Socket socket = connect()) {
+                DataOutputStream dos = writeRequest(socket, OP_REMOVE, key);
+                dos.flush();
+                return socket.getInputStream().read() == STATUS_OK;
+            }
+        }
+
+        private Socket connect() throws IOException {
+            Socket socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(timeout);
+                socket.connect(new InetSocketAddress(host, port), timeout);
+                return socket;
+            } catch (IOException ex) {
+                closeQuietly(socket);
+                throw ex;
+            }
+        }
+
+        private DataOutputStream writeRequest(Socket socket, byte op, String key) throws IOException {
+            // Answer the challenge of the peer, not buffered to read nothing
+            // more than the challenge
+            byte[] challenge = new byte[CHALLENGE_SIZE];
+            new DataInputStream(socket.getInputStream()).readFully(challenge);
+
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            dos.write(mac(challenge));
+            dos.writeInt(MAGIC);
+            dos.writeByte(op);
+            HttpCacheSnapshot.writeString(dos, key);
+            return dos;
+        }
+    }
+
+}
@@ -24,8 +24,12 @@ import static io.pictura.servlet.RequestProcessor.HEADER_EXPIRES;
 import static io.pictura.servlet.RequestProcessor.HEADER_PRAGMA;
 import io.pictura.servlet.jmx.HttpCacheMXBean;
 import io.pictura.servlet.jmx.PicturaServletMXBean;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.annotation.Documented;
 import static java.lang.annotation.ElementType.FIELD;
 import java.lang.annotation.Retention;
@@ -38,10 +42,13 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Queue;
@@ -74,6 +81,7 @@ import javax.servlet.Servlet;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
+import javax.servlet.ServletRegistration;
 import javax.servlet.UnavailableException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -87,6 +95,7 @@ import io.pictura.servlet.annotation.PicturaThreadFactory;
 import java.util.HashSet;
 import java.util.Locale;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
@@ -360,6 +369,145 @@ public class PicturaServlet extends HttpCacheServlet {
     @ConfigParam(xpath = "/pictura/http/max-forwards")
     public static final String IPARAM_HTTP_MAX_FORWARDS = "httpMaxForwards";
 
+    /**
+     * Servlet parameter to keep persistent (keep-alive) connections to the
+     * origin hosts of remote image sources in a pool and to specify the maximum
+     * number of concurrent connections per host. As default the pool is
+     * disabled and a new connection is opened for each request. The parameter
+     * is ignored if a custom {@link URLConnectionFactory} is configured.
+     *
+     * @see PooledURLConnectionFactory
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/http/max-connections-per-host")
+    public static final String IPARAM_HTTP_MAX_CONNECTIONS_PER_HOST = "httpMaxConnectionsPerHost";
+
+    /**
+     * Servlet parameter to specify the time in seconds an idle pooled
+     * connection is kept open. The default value is <code>15</code>.
+     *
+     * @see #IPARAM_HTTP_MAX_CONNECTIONS_PER_HOST
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/http/keep-alive-timeout")
+    public static final String IPARAM_HTTP_KEEP_ALIVE_TIMEOUT = "httpKeepAliveTimeout";
+
+    /**
+     * Servlet parameter to deduplicate concurrent fetches of the same remote
+     * image source and to specify the maximum time in milliseconds a request
+     * waits for the fetch of a concurrent request. The source is downloaded
+     * once and the buffered response is shared with all waiting requests, e.g.
+     * for other variants of the same image. A value less or equal than
+     * <code>0</code> disables fetch coalescing. As default fetch coalescing is
+     * disabled.
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/http/coalescing-timeout")
+    public static final String IPARAM_HTTP_COALESCING_TIMEOUT = "httpCoalescingTimeout";
+
+    /**
+     * Servlet parameter to limit the number of concurrent requests to a single
+     * origin (protocol, host and port) of remote image sources. Further
+     * requests to the same origin fail fast with <code>504</code> instead of
+     * blocking a worker thread. As default the number of concurrent requests
+     * per origin is not limited.
+     *
+     * @see OriginGuard
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/http/origin-guard/max-concurrent-requests")
+    public static final String IPARAM_HTTP_ORIGIN_MAX_CONCURRENT_REQUESTS = "httpOriginMaxConcurrentRequests";
+
+    /**
+     * Servlet parameter to enable a circuit breaker per origin of remote image
+     * sources and to specify the failure rate in percent (1..100) within the
+     * last 10 seconds to open the circuit of an origin. Server errors, I/O
+     * errors and timeouts are counted as failure. While the circuit is open,
+     * requests to the origin fail fast with <code>502</code>. As default the
+     * circuit breaker is disabled.
+     *
+     * @see OriginGuard
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/http/origin-guard/failure-threshold")
+    public static final String IPARAM_HTTP_ORIGIN_FAILURE_THRESHOLD = "httpOriginFailureThreshold";
+
+    /**
+     * Servlet parameter to specify the time in seconds the circuit of an
+     * unhealthy origin stays open before a single probe request is sent to the
+     * origin. The default value is <code>30</code>.
+     *
+     * @see #IPARAM_HTTP_ORIGIN_FAILURE_THRESHOLD
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/http/origin-guard/open-duration")
+    public static final String IPARAM_HTTP_ORIGIN_OPEN_DURATION = "httpOriginOpenDuration";
+
+    /**
+     * Servlet parameter to specify the maximum size of a remote source body of
+     * unknown length (no <code>Content-Length</code>) which is buffered in
+     * memory. The value could be specified in bytes or with the suffix
+     * <code>k</code>, <code>m</code> or <code>g</code>. Larger bodies are
+     * spilled to a temporary file. Bodies which are decoded forward only are
+     * not buffered at all. The default value is <code>1m</code>.
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/http/spill-threshold")
+    public static final String IPARAM_HTTP_SPILL_THRESHOLD = "httpSpillThreshold";
+
+    /**
+     * Servlet parameter to enable a cache for the original bodies of remote
+     * image sources and to specify its maximum size. The value could be
+     * specified in bytes or with the suffix <code>k</code>, <code>m</code> or
+     * <code>g</code>. Variants of the same source image are produced from the
+     * cached body instead of fetching the source again for each variant. As
+     * default the origin cache is disabled.
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/http/origin-cache/max-size")
+    public static final String IPARAM_HTTP_ORIGIN_CACHE_MAX_SIZE = "httpOriginCacheMaxSize";
+
+    /**
+     * Servlet parameter to specify the time in seconds a cached source body is
+     * used before it is revalidated with the origin by a conditional request.
+     * The default value is <code>60</code>.
+     *
+     * @see #IPARAM_HTTP_ORIGIN_CACHE_MAX_SIZE
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/http/origin-cache/ttl")
+    public static final String IPARAM_HTTP_ORIGIN_CACHE_TTL = "httpOriginCacheTtl";
+
+    /**
+     * Servlet parameter to specify a local directory to store the cached source
+     * bodies. As default the bodies are kept in memory.
+     *
+     * @see #IPARAM_HTTP_ORIGIN_CACHE_MAX_SIZE
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/http/origin-cache/dir")
+    public static final String IPARAM_HTTP_ORIGIN_CACHE_DIR = "httpOriginCacheDir";
+
     /**
      * Servlet parameter to disable the HTTP client certificate validation. This
      * could be helpful in development environments. As default this is set to
@@ -511,6 +659,45 @@ public class PicturaServlet extends HttpCacheServlet {
     @ConfigParam(xpath = "/pictura/imageio/cache-dir")
     public static final String IPARAM_IMAGEIO_CACHE_DIR = "imageioCacheDir";
 
+    /**
+     * Servlet parameter to enable a cache for decoded source images and to
+     * specify its maximum size of the pixel data. The value could be specified
+     * in bytes or with the suffix <code>k</code>, <code>m</code> or
+     * <code>g</code>. Variants of a hot source image are produced from the
+     * decoded image without to decode the source image again. As default the
+     * raster cache is disabled.
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/imageio/raster-cache/max-size")
+    public static final String IPARAM_IMAGEIO_RASTER_CACHE_MAX_SIZE = "imageioRasterCacheMaxSize";
+
+    /**
+     * Servlet parameter to specify the minimum size of a local source image
+     * file to read the file through a memory mapping. The value could be
+     * specified in bytes or with the suffix <code>k</code> or <code>m</code>.
+     * Smaller files are read into pooled buffers of this size. The default
+     * value is <code>256k</code>.
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/imageio/mmap/threshold")
+    public static final String IPARAM_IMAGEIO_MMAP_THRESHOLD = "imageioMmapThreshold";
+
+    /**
+     * Servlet parameter to specify the maximum number of memory mappings of
+     * hot local source image files which are kept open. Other mappings are
+     * unmapped as soon as the file was read. The default value is
+     * <code>16</code>.
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/imageio/mmap/max-mappings")
+    public static final String IPARAM_IMAGEIO_MAX_MAPPINGS = "imageioMaxMappings";
+
     /**
      * Servlet parameter to append the origin content location in cases if the
      * origin image is a remote hosted image. As default this is set to
@@ -636,6 +823,365 @@ public class PicturaServlet extends HttpCacheServlet {
     @ConfigParam(xpath = "/pictura/cache/file")
     public static final String IPARAM_CACHE_FILE = "cacheFile";
 
+    /**
+     * Servlet parameter to specify the maximum total content size of all
+     * cache entries in cases if the default {@link HttpCache} is used. The
+     * value could be specified in bytes or with the suffix <code>k</code> or
+     * <code>m</code>; e.g. <code>256m</code>. As default there is no maximum
+     * size set.
+     * <p>
+     * If set, the servlet will use a size bounded built-in cache
+     * implementation instead of the default entry count bounded cache and
+     * {@link #IPARAM_CACHE_CAPACITY} will be ignored.
+     * </p>
+     *
+     * @see HttpCacheServlet#createConcurrentHttpCache(long, int)
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/cache/max-size")
+    public static final String IPARAM_CACHE_MAX_SIZE = "cacheMaxSize";
+
+    /**
+     * Servlet parameter to specify the eviction policy of the size bounded
+     * built-in cache. Possible values are <code>lru</code> (least recently
+     * used with a frequency based admission policy) and <code>gdsf</code>
+     * (GreedyDual-Size-Frequency; weighs the entries by their production
+     * costs, content sizes and hits). The default value is <code>lru</code>.
+     * <p>
+     * Is only respected if {@link #IPARAM_CACHE_MAX_SIZE} is set and the cache
+     * is not stored off-heap.
+     * </p>
+     *
+     * @see HttpCacheServlet#createConcurrentHttpCache(long, int)
+     * @see HttpCacheServlet#createCostAwareHttpCache(long, int)
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/cache/eviction-policy")
+    public static final String IPARAM_CACHE_EVICTION_POLICY = "cacheEvictionPolicy";
+
+    /**
+     * Servlet parameter to store the content of the cache entries outside of
+     * the Java heap in cases if the default {@link HttpCache} is used. The
+     * default value is <code>false</code>.
+     * <p>
+     * The size of the off-heap memory is specified by
+     * {@link #IPARAM_CACHE_MAX_SIZE}. If not set, the size is calculated by
+     * {@link #IPARAM_CACHE_CAPACITY} and {@link #IPARAM_CACHE_MAX_ENTRY_SIZE}.
+     * </p>
+     *
+     * @see HttpCacheServlet#createOffHeapHttpCache(long, int)
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/cache/off-heap")
+    public static final String IPARAM_CACHE_OFF_HEAP = "cacheOffHeap";
+
+    /**
+     * Servlet parameter to specify a local directory for a second level disk
+     * cache. If set, cache entries are also written to memory mapped segment
+     * files in this directory and restored on initialization of the servlet
+     * instance. As default there is no disk cache directory set.
+     *
+     * @see HttpCacheServlet#createDiskHttpCache(java.io.File, long, int)
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/cache/disk-dir")
+    public static final String IPARAM_CACHE_DISK_DIR = "cacheDiskDir";
+
+    /**
+     * Servlet parameter to specify the maximum size of the second level disk
+     * cache. The value could be specified in bytes or with the suffix
+     * <code>k</code>, <code>m</code> or <code>g</code>. The default value is
+     * <code>1g</code>.
+     *
+     * @see #IPARAM_CACHE_DISK_DIR
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/cache/disk-max-size")
+    public static final String IPARAM_CACHE_DISK_MAX_SIZE = "cacheDiskMaxSize";
+
+    /**
+     * Servlet parameter to specify the address (<code>host:port</code>) of a
+     * memcached server to store the cache entries. If set, the configured cache
+     * only keeps the recently used entries locally. As default there is no
+     * memcached server set.
+     *
+     * @see HttpCacheServlet#createMemcachedHttpCache(io.pictura.servlet.HttpCache,
+     * java.lang.String, int, int)
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/cache/memcached")
+    public static final String IPARAM_CACHE_MEMCACHED = "cacheMemcached";
+
+    /**
+     * Servlet parameter to specify the max. number of connections to the
+     * memcached server. The default value is <code>4</code>.
+     *
+     * @see #IPARAM_CACHE_MEMCACHED
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/cache/memcached-pool-size")
+    public static final String IPARAM_CACHE_MEMCACHED_POOL_SIZE = "cacheMemcachedPoolSize";
+
+    /**
+     * Servlet parameter to specify the timeout in milliseconds for an operation
+     * on the memcached server. The default value is <code>100</code>.
+     *
+     * @see #IPARAM_CACHE_MEMCACHED
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/cache/memcached-timeout")
+    public static final String IPARAM_CACHE_MEMCACHED_TIMEOUT = "cacheMemcachedTimeout";
+
+    /**
+     * Servlet parameter to specify a comma separated list of all peers
+     * (<code>host:port</code>) of a cluster which share one logical cache. Each
+     * cache entry is owned by exactly one peer. On a local cache miss, the
+     * entry is fetched from its owner. As default there are no peers set.
+     *
+     * @see #IPARAM_CACHE_PEER_SELF
+     * @see #IPARAM_CACHE_PEER_SECRET
+     * @see HttpCacheServlet#createPeerHttpCache(io.pictura.servlet.HttpCache,
+     * java.lang.String, java.util.Collection, java.lang.String, int, int)
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/cache/peers")
+    public static final String IPARAM_CACHE_PEERS = "cachePeers";
+
+    /**
+     * Servlet parameter to specify the address (<code>host:port</code>) of this
+     * servlet instance to listen for requests from the other peers. Required if
+     * peers are set.
+     *
+     * @see #IPARAM_CACHE_PEERS
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/cache/peer-self")
+    public static final String IPARAM_CACHE_PEER_SELF = "cachePeerSelf";
+
+    /**
+     * Servlet parameter to specify the secret which is shared by all peers to
+     * authenticate the connections between the peers. Required if peers are
+     * set.
+     *
+     * @see #IPARAM_CACHE_PEERS
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/cache/peer-secret")
+    public static final String IPARAM_CACHE_PEER_SECRET = "cachePeerSecret";
+
+    /**
+     * Servlet parameter to specify the timeout in milliseconds to connect to
+     * and read from a peer. The default value is <code>250</code>.
+     *
+     * @see #IPARAM_CACHE_PEERS
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/cache/peer-timeout")
+    public static final String IPARAM_CACHE_PEER_TIMEOUT = "cachePeerTimeout";
+
+    /**
+     * Servlet parameter to specify the maximum time in milliseconds a request
+     * waits for a concurrent request which already produces the response for
+     * the same (not yet cached) resource. A value less or equal than
+     * <code>0</code> disables request coalescing. The default value is
+     * <code>10000</code>.
+     *
+     * @see HttpCacheServlet#setHttpCacheCoalescingTimeout(long)
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/cache/coalescing-timeout")
+    public static final String IPARAM_CACHE_COALESCING_TIMEOUT = "cacheCoalescingTimeout";
+
+    /**
+     * Servlet parameter to specify the time in seconds an expired cache entry
+     * is still served while the entry is revalidated in the background. A
+     * value less or equal than <code>0</code> disables this behaviour. The
+     * default value is <code>0</code>.
+     *
+     * @see HttpCacheServlet#setHttpCacheStaleWhileRevalidate(long)
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/cache/stale-while-revalidate")
+    public static final String IPARAM_CACHE_STALE_WHILE_REVALIDATE = "cacheStaleWhileRevalidate";
+
+    /**
+     * Servlet parameter to enable the probabilistic early revalidation of
+     * cache entries. The value is a factor (e.g. <code>1.0</code>) where values
+     * greater than <code>1</code> favor earlier revalidations. A value less or
+     * equal than <code>0</code> disables early revalidation. The default value
+     * is <code>0</code>.
+     *
+     * @see HttpCacheServlet#setHttpCacheEarlyRefreshBeta(double)
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/cache/early-refresh")
+    public static final String IPARAM_CACHE_EARLY_REFRESH = "cacheEarlyRefresh";
+
+    /**
+     * Servlet parameter to specify the number of threads used to revalidate
+     * cache entries in the background. The default value is <code>2</code>.
+     *
+     * @see #IPARAM_CACHE_STALE_WHILE_REVALIDATE
+     * @see #IPARAM_CACHE_EARLY_REFRESH
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/cache/refresh-pool-size")
+    public static final String IPARAM_CACHE_REFRESH_POOL_SIZE = "cacheRefreshPoolSize";
+
+    /**
+     * Servlet parameter to specify the time in seconds an expired cache entry
+     * is kept to serve it instead of an error response, e.g. if the origin
+     * server is not available or the request was rejected because the servlet
+     * is overloaded. A value less or equal than <code>0</code> disables this
+     * behaviour. The default value is <code>0</code>.
+     *
+     * @see HttpCacheServlet#setHttpCacheStaleIfError(long)
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/cache/stale-if-error")
+    public static final String IPARAM_CACHE_STALE_IF_ERROR = "cacheStaleIfError";
+
+    /**
+     * Servlet parameter to specify the interval in seconds to write snapshots
+     * of the cache to the cache file in the background. A snapshot is only
+     * written if there are new cache entries since the last snapshot. A value
+     * less or equal than <code>0</code> disables periodic snapshots. The
+     * default value is <code>0</code>.
+     *
+     * @see #IPARAM_CACHE_FILE
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/cache/snapshot-interval")
+    public static final String IPARAM_CACHE_SNAPSHOT_INTERVAL = "cacheSnapshotInterval";
+
+    /**
+     * Servlet parameter to specify the number of new cache entries after that a
+     * snapshot of the cache is written to the cache file in the background. A
+     * value less or equal than <code>0</code> disables this behaviour. The
+     * default value is <code>0</code>.
+     *
+     * @see #IPARAM_CACHE_FILE
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/cache/snapshot-threshold")
+    public static final String IPARAM_CACHE_SNAPSHOT_THRESHOLD = "cacheSnapshotThreshold";
+
+    /**
+     * Servlet parameter to enable the caching of error responses. The value is
+     * a comma separated list of <code>status=seconds</code> pairs, e.g.
+     * <code>404=10,413=60,415=60</code>, to specify the time to live of the
+     * cached error response per status code. By default, error responses are
+     * not cached.
+     *
+     * @see #IPARAM_CACHE_NEGATIVE_CAPACITY
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/cache/negative-ttl")
+    public static final String IPARAM_CACHE_NEGATIVE_TTL = "cacheNegativeTtl";
+
+    /**
+     * Servlet parameter to specify the maximum number of cached error
+     * responses. The default value is <code>10000</code>.
+     *
+     * @see #IPARAM_CACHE_NEGATIVE_TTL
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/cache/negative-capacity")
+    public static final String IPARAM_CACHE_NEGATIVE_CAPACITY = "cacheNegativeCapacity";
+
+    /**
+     * Servlet parameter to specify a manifest file with request paths (one per
+     * line) to warm up the cache in the background after the servlet was
+     * initialized. By default, this value is not set.
+     *
+     * @see #IPARAM_CACHE_WARMUP_SIZE
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/cache/warmup-file")
+    public static final String IPARAM_CACHE_WARMUP_FILE = "cacheWarmupFile";
+
+    /**
+     * Servlet parameter to specify the number of the most frequently requested
+     * entries of the last persisted cache file (see {@link #IPARAM_CACHE_FILE})
+     * to warm up in the background after the servlet was initialized. A value
+     * less or equal than <code>0</code> disables this behaviour. The default
+     * value is <code>0</code>.
+     *
+     * @see #IPARAM_CACHE_WARMUP_FILE
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/cache/warmup-size")
+    public static final String IPARAM_CACHE_WARMUP_SIZE = "cacheWarmupSize";
+
+    /**
+     * Servlet parameter to specify the number of low priority threads to warm
+     * up the cache. The default value is <code>1</code>.
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/cache/warmup-pool-size")
+    public static final String IPARAM_CACHE_WARMUP_POOL_SIZE = "cacheWarmupPoolSize";
+
+    /**
+     * Servlet parameter to specify the ratio (<code>0..1</code>) of the warm-up
+     * requests which must be processed before the servlet reports to be alive.
+     * The default value is <code>0</code> (do not wait).
+     *
+     * @see #isAlive()
+     *
+     * @since 1.2
+     */
+    @InitParam
+    @ConfigParam(xpath = "/pictura/cache/warmup-ready-ratio")
+    public static final String IPARAM_CACHE_WARMUP_READY_RATIO = "cacheWarmupReadyRatio";
+
     /**
      * Servlet parameter to set a custom error handler.
      */
@@ -732,11 +1278,66 @@ public class PicturaServlet extends HttpCacheServlet {
      * The default cache capacity.
      */
     protected static final int DEFAULT_CACHE_CAPACITY = 250;
+
+    /**
+     * The default maximum disk cache size in bytes.
+     */
+    protected static final long DEFAULT_CACHE_DISK_MAX_SIZE = 1024L * 1024L * 1024L;
+
+    /**
+     * The default number of threads to revalidate cache entries in the
+     * background.
+     */
+    protected static final int DEFAULT_CACHE_REFRESH_POOL_SIZE = 2;
+
+    /**
+     * The default number of threads to warm up the cache.
+     */
+    protected static final int DEFAULT_CACHE_WARMUP_POOL_SIZE = 1;
+
+    /**
+     * The default timeout in milliseconds to connect to and read from a cache
+     * peer.
+     */
+    protected static final int DEFAULT_CACHE_PEER_TIMEOUT = 250;
+
+    /**
+     * The default max. number of connections to the memcached server.
+     */
+    protected static final int DEFAULT_CACHE_MEMCACHED_POOL_SIZE = 4;
+
+    /**
+     * The default timeout in milliseconds for an operation on the memcached
+     * server.
+     */
+    protected static final int DEFAULT_CACHE_MEMCACHED_TIMEOUT = 100;
     
     /**
      * The default HTTP client maximum number of forwards.
      */
     protected static final int DEFAULT_HTTP_MAX_FORWARDS = -1;
+
+    /**
+     * The default time in seconds an idle pooled connection is kept open.
+     */
+    protected static final int DEFAULT_HTTP_KEEP_ALIVE_TIMEOUT = 15;
+
+    /**
+     * The default time in seconds before a cached source body is revalidated.
+     */
+    protected static final int DEFAULT_HTTP_ORIGIN_CACHE_TTL = 60;
+
+    /**
+     * The default time in seconds the circuit of an unhealthy origin stays
+     * open.
+     */
+    protected static final int DEFAULT_HTTP_ORIGIN_OPEN_DURATION = 30;
+
+    /**
+     * The default maximum size in bytes of a remote source body of unknown
+     * length which is buffered in memory.
+     */
+    protected static final int DEFAULT_HTTP_SPILL_THRESHOLD = 1024 * 1024;
     
     /**
      * The default HTTP client read timeout in millis.
@@ -799,8 +1400,21 @@ public class PicturaServlet extends HttpCacheServlet {
     
     private ThreadPoolExecutor coreExecutor;
     private ThreadPoolExecutor statsExecutor;
+    private ThreadPoolExecutor refreshExecutor;
     private ExecutorService singleThreadExecutor;
 
+    // Restores a persisted cache in the background
+    private Thread cacheRestoreThread;
+
+    // Writes snapshots of the cache in the background
+    private HttpCacheSnapshotter cacheSnapshotter;
+
+    // Optional cache warm-up after the initialization
+    private HttpCacheWarmer cacheWarmer;
+
+    // Keys of the cache file to prefetch before the warm-up
+    private List<String> cacheWarmerKeys;
+
     private volatile long completedTaskCount;
     
     // The number of all rejected tasks since servlet start
@@ -812,6 +1426,19 @@ public class PicturaServlet extends HttpCacheServlet {
 	@Override
 	public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
 	    rejectedTaskCount++;
+
+            // Send the cached (maybe stale) response instead, if possible
+            if (r instanceof RequestProcessor) {
+                try {
+                    if (sendStaleHttpCacheEntry((RequestProcessor) r)) {
+                        return;
+                    }
+                } catch (ServletException | IOException | RuntimeException ex) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Unable to send cached response for rejected request", ex);
+                    }
+                }
+            }
             
             // Write a warning message with the current executor core values,
             // where A = active count, P = pool size and Q = queue size.
@@ -899,6 +1526,24 @@ public class PicturaServlet extends HttpCacheServlet {
 
     // URL connection factory to fetch external resources
     private URLConnectionFactory urlConnectionFactory;
+
+    // Optional cache of the original remote source bodies
+    private OriginCache originCache;
+
+    // Optional cache of decoded source images
+    private RasterCache rasterCache;
+
+    // Optional deduplication of concurrent origin fetches
+    private OriginFetchCoalescer originFetchCoalescer;
+
+    // Optional bulkheads and circuit breakers per origin
+    private OriginGuard originGuard;
+
+    // Pooled reads and memory mappings of local source files
+    private SourceFileReader sourceFileReader;
+
+    // Max in-memory size of source bodies of unknown length
+    private int httpSpillThreshold;
     
     // MXBean registration
     private ObjectName mxBeanServletObjName;
@@ -1183,6 +1828,54 @@ public class PicturaServlet extends HttpCacheServlet {
 	// Max proxy/gateway forwards
 	httpMaxForwards = tryParseInt(config.getInitParameter(IPARAM_HTTP_MAX_FORWARDS), DEFAULT_HTTP_MAX_FORWARDS);
 
+	// Optional origin cache
+	long originCacheMaxSize = tryParseSize(config.getInitParameter(IPARAM_HTTP_ORIGIN_CACHE_MAX_SIZE), 0L);
+	if (originCacheMaxSize > 0L) {
+	    String originCacheDir = config.getInitParameter(IPARAM_HTTP_ORIGIN_CACHE_DIR);
+	    try {
+		originCache = new OriginCache(originCacheMaxSize,
+			(int) Math.max(1L, Math.min(Integer.MAX_VALUE, originCacheMaxSize / 4L)),
+			tryParseInt(config.getInitParameter(IPARAM_HTTP_ORIGIN_CACHE_TTL), DEFAULT_HTTP_ORIGIN_CACHE_TTL) * 1000L,
+			originCacheDir != null && !originCacheDir.isEmpty() ? new File(originCacheDir) : null);
+	    } catch (IOException | IllegalArgumentException ex) {
+		throw new ServletException(ex);
+	    }
+	}
+
+	// Optional pool of persistent origin connections
+	int httpMaxConnectionsPerHost = tryParseInt(config.getInitParameter(IPARAM_HTTP_MAX_CONNECTIONS_PER_HOST), 0);
+	if (httpMaxConnectionsPerHost > 0 && urlConnectionFactory == null) {
+	    try {
+		urlConnectionFactory = new PooledURLConnectionFactory(httpMaxConnectionsPerHost,
+			tryParseInt(config.getInitParameter(IPARAM_HTTP_KEEP_ALIVE_TIMEOUT), DEFAULT_HTTP_KEEP_ALIVE_TIMEOUT) * 1000L);
+	    } catch (IllegalArgumentException ex) {
+		throw new ServletException(ex);
+	    }
+	}
+
+	// Optional deduplication of concurrent origin fetches
+	int httpCoalescingTimeout = tryParseInt(config.getInitParameter(IPARAM_HTTP_COALESCING_TIMEOUT), 0);
+	if (httpCoalescingTimeout > 0) {
+	    originFetchCoalescer = new OriginFetchCoalescer(httpCoalescingTimeout);
+	}
+
+	// Spill large source bodies of unknown length to disk
+	httpSpillThreshold = (int) Math.min(Integer.MAX_VALUE,
+		tryParseSize(config.getInitParameter(IPARAM_HTTP_SPILL_THRESHOLD), DEFAULT_HTTP_SPILL_THRESHOLD));
+
+	// Optional bulkheads and circuit breakers per origin
+	int httpOriginMaxConcurrentRequests = tryParseInt(config.getInitParameter(IPARAM_HTTP_ORIGIN_MAX_CONCURRENT_REQUESTS), 0);
+	int httpOriginFailureThreshold = tryParseInt(config.getInitParameter(IPARAM_HTTP_ORIGIN_FAILURE_THRESHOLD), 0);
+	if (httpOriginMaxConcurrentRequests > 0 || httpOriginFailureThreshold > 0) {
+	    try {
+		originGuard = new OriginGuard(httpOriginMaxConcurrentRequests, httpOriginFailureThreshold,
+			tryParseInt(config.getInitParameter(IPARAM_HTTP_ORIGIN_OPEN_DURATION), DEFAULT_HTTP_ORIGIN_OPEN_DURATION) * 1000L,
+			OriginGuard.DEFAULT_MIN_REQUESTS);
+	    } catch (IllegalArgumentException ex) {
+		throw new ServletException(ex);
+	    }
+	}
+
 	// HTTP client follow redirects
 	httpFollowRedirects = Boolean.parseBoolean(config.getInitParameter(IPARAM_HTTP_FOLLOW_REDIRECTS));
 
@@ -1218,6 +1911,22 @@ public class PicturaServlet extends HttpCacheServlet {
 	    }
 	}
 
+	// Local source files
+	try {
+	    sourceFileReader = new SourceFileReader(
+		    (int) Math.min(Integer.MAX_VALUE, tryParseSize(config.getInitParameter(IPARAM_IMAGEIO_MMAP_THRESHOLD),
+			    SourceFileReader.DEFAULT_MMAP_THRESHOLD)),
+		    tryParseInt(config.getInitParameter(IPARAM_IMAGEIO_MAX_MAPPINGS), SourceFileReader.DEFAULT_MAX_MAPPINGS));
+	} catch (IllegalArgumentException ex) {
+	    throw new ServletException(ex);
+	}
+
+	// Optional cache of decoded source images
+	long rasterCacheMaxSize = tryParseSize(config.getInitParameter(IPARAM_IMAGEIO_RASTER_CACHE_MAX_SIZE), 0L);
+	if (rasterCacheMaxSize > 0L) {
+	    rasterCache = new RasterCache(rasterCacheMaxSize);
+	}
+
 	// Additional response headers behaviour
 	headerAddContentLocation = Boolean.parseBoolean(config.getInitParameter(IPARAM_HEADER_ADD_CONTENT_LOCATION));
 	headerAddTrueCacheKey = Boolean.parseBoolean(config.getInitParameter(IPARAM_HEADER_ADD_TRUE_CACHE_KEY));
@@ -1240,10 +1949,7 @@ public class PicturaServlet extends HttpCacheServlet {
 
 	// Enable and initialize the HTTP cache if specified
 	if (Boolean.parseBoolean(config.getInitParameter(IPARAM_CACHE_ENABLED))) {
-	    initHttpCache(config.getInitParameter(IPARAM_CACHE_CLASS),
-		    tryParseInt(config.getInitParameter(IPARAM_CACHE_CAPACITY), DEFAULT_CACHE_CAPACITY),
-		    tryParseInt(config.getInitParameter(IPARAM_CACHE_MAX_ENTRY_SIZE), DEFAULT_CACHE_MAX_ENTRY_SIZE),
-		    config.getInitParameter(IPARAM_CACHE_FILE));
+	    initHttpCache(config);
 	}
 
         useContainerPool = Boolean.parseBoolean(config.getInitParameter(IPARAM_USE_CONTAINER_POOL));
@@ -1316,6 +2022,11 @@ public class PicturaServlet extends HttpCacheServlet {
 
 	startTime = System.currentTimeMillis();
 	alive = true;
+
+	// Warm up the cache after a (running) restore from the cache file
+	if (cacheWarmer != null) {
+	    cacheWarmer.start(startHttpCachePrefetch(cacheRestoreThread));
+	}
 	
 	// Do some validation checks
 	if (getHttpCache() != null && cacheControlHandler == null) {
@@ -1405,8 +2116,14 @@ public class PicturaServlet extends HttpCacheServlet {
 	}
     }
 
-    private void initHttpCache(String className, int capacity, int maxEntrySize,
-	    String filename) throws ServletException {
+    private void initHttpCache(ServletConfig config) throws ServletException {
+	String className = config.getInitParameter(IPARAM_CACHE_CLASS);
+	int capacity = tryParseInt(config.getInitParameter(IPARAM_CACHE_CAPACITY), DEFAULT_CACHE_CAPACITY);
+	long maxSize = tryParseSize(config.getInitParameter(IPARAM_CACHE_MAX_SIZE), -1L);
+	int maxEntrySize = tryParseInt(config.getInitParameter(IPARAM_CACHE_MAX_ENTRY_SIZE), DEFAULT_CACHE_MAX_ENTRY_SIZE);
+	boolean offHeap = tryParseBoolean(config.getInitParameter(IPARAM_CACHE_OFF_HEAP), false);
+	String diskDir = config.getInitParameter(IPARAM_CACHE_DISK_DIR);
+	String filename = config.getInitParameter(IPARAM_CACHE_FILE);
 
 	HttpCache cache;
 	if (className != null) {
@@ -1416,25 +2133,270 @@ public class PicturaServlet extends HttpCacheServlet {
 			+ "\" is not a instance of " + HttpCache.class.getName());
 	    }
 	    cache = (HttpCache) objHttpCache;            
+	} else if (offHeap) {
+	    try {
+		cache = createOffHeapHttpCache(maxSize > 0 ? maxSize
+			: (long) capacity * maxEntrySize, maxEntrySize);
+	    } catch (IllegalArgumentException ex) {
+		throw new ServletException(ex);
+	    }
+	} else if (maxSize > 0) {
+	    String evictionPolicy = config.getInitParameter(IPARAM_CACHE_EVICTION_POLICY);
+	    if (evictionPolicy == null || evictionPolicy.isEmpty()
+		    || "lru".equalsIgnoreCase(evictionPolicy)) {
+		cache = createConcurrentHttpCache(maxSize, maxEntrySize);
+	    } else if ("gdsf".equalsIgnoreCase(evictionPolicy)) {
+		cache = createCostAwareHttpCache(maxSize, maxEntrySize);
+	    } else {
+		throw new ServletException("Unsupported cache eviction policy \"" + evictionPolicy + "\"");
+	    }
 	} else {
 	    cache = createDefaultHttpCache(capacity, maxEntrySize);
 	}
 
-	setHttpCache(cache);	
+	// Optional second level disk cache
+	if (diskDir != null && !diskDir.isEmpty()) {
+	    try {
+		File dir = new File(diskDir);
+		if (LOG.isInfoEnabled()) {
+		    LOG.info("Using disk cache at \"" + dir.getAbsolutePath() + "\"");
+		}
+		cache = createTieredHttpCache(cache, createDiskHttpCache(dir,
+			tryParseSize(config.getInitParameter(IPARAM_CACHE_DISK_MAX_SIZE),
+				DEFAULT_CACHE_DISK_MAX_SIZE), maxEntrySize));
+	    } catch (IOException | IllegalArgumentException ex) {
+		throw new ServletException(ex);
+	    }
+	}
+
+	// Optional memcached server
+	String memcached = config.getInitParameter(IPARAM_CACHE_MEMCACHED);
+	if (memcached != null && !memcached.trim().isEmpty()) {
+	    try {
+		if (LOG.isInfoEnabled()) {
+		    LOG.info("Using memcached server at " + memcached.trim());
+		}
+		cache = createMemcachedHttpCache(cache, memcached.trim(),
+			tryParseInt(config.getInitParameter(IPARAM_CACHE_MEMCACHED_POOL_SIZE), DEFAULT_CACHE_MEMCACHED_POOL_SIZE),
+			tryParseInt(config.getInitParameter(IPARAM_CACHE_MEMCACHED_TIMEOUT), DEFAULT_CACHE_MEMCACHED_TIMEOUT));
+	    } catch (IllegalArgumentException ex) {
+		throw new ServletException(ex);
+	    }
+	}
+
+	// Optional cache which is shared with other peers
+	String peers = config.getInitParameter(IPARAM_CACHE_PEERS);
+	if (peers != null && !peers.trim().isEmpty()) {
+	    String self = config.getInitParameter(IPARAM_CACHE_PEER_SELF);
+	    if (self == null || self.trim().isEmpty()) {
+		throw new ServletException("Missing servlet parameter \"" + IPARAM_CACHE_PEER_SELF + "\"");
+	    }
+	    String secret = config.getInitParameter(IPARAM_CACHE_PEER_SECRET);
+	    if (secret == null || secret.isEmpty()) {
+		throw new ServletException("Missing servlet parameter \"" + IPARAM_CACHE_PEER_SECRET + "\"");
+	    }
+	    try {
+		if (LOG.isInfoEnabled()) {
+		    LOG.info("Sharing cache with peers " + peers);
+		}
+		cache = createPeerHttpCache(cache, self.trim(), Arrays.asList(peers.split(",")), secret,
+			tryParseInt(config.getInitParameter(IPARAM_CACHE_PEER_TIMEOUT), DEFAULT_CACHE_PEER_TIMEOUT),
+			maxEntrySize);
+	    } catch (IOException | IllegalArgumentException ex) {
+		throw new ServletException(ex);
+	    }
+	}
+
+	setHttpCache(cache);
+	setHttpCacheCoalescingTimeout(tryParseInt(config.getInitParameter(IPARAM_CACHE_COALESCING_TIMEOUT),
+		(int) DEFAULT_COALESCING_TIMEOUT));
+
+	setHttpCacheStaleIfError(tryParseInt(config.getInitParameter(IPARAM_CACHE_STALE_IF_ERROR), 0) * 1000L);
+
+	// Optional negative cache for error responses
+	try {
+	    Map<Integer, Long> negativeTtls = HttpCacheNegativeCache.parseTtls(
+		    config.getInitParameter(IPARAM_CACHE_NEGATIVE_TTL));
+	    if (!negativeTtls.isEmpty()) {
+		setHttpCacheNegativeCache(new HttpCacheNegativeCache(
+			tryParseInt(config.getInitParameter(IPARAM_CACHE_NEGATIVE_CAPACITY),
+				HttpCacheNegativeCache.DEFAULT_CAPACITY), negativeTtls));
+	    }
+	} catch (IllegalArgumentException ex) {
+	    throw new ServletException(ex);
+	}
+
+	// Optional background revalidation
+	int staleWhileRevalidate = tryParseInt(config.getInitParameter(IPARAM_CACHE_STALE_WHILE_REVALIDATE), 0);
+	float earlyRefresh = tryParseFloat(config.getInitParameter(IPARAM_CACHE_EARLY_REFRESH), 0f);
+	if (staleWhileRevalidate > 0 || earlyRefresh > 0) {
+	    int poolSize = tryParseInt(config.getInitParameter(IPARAM_CACHE_REFRESH_POOL_SIZE),
+		    DEFAULT_CACHE_REFRESH_POOL_SIZE);
+	    try {
+		refreshExecutor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(poolSize * 16),
+			new ServerThreadFactory(Thread.MIN_PRIORITY + 1));
+		refreshExecutor.allowCoreThreadTimeOut(true);
+	    } catch (IllegalArgumentException ex) {
+		throw new ServletException(ex);
+	    }
+	    setHttpCacheRefreshExecutor(refreshExecutor);
+	    setHttpCacheStaleWhileRevalidate(staleWhileRevalidate * 1000L);
+	    setHttpCacheEarlyRefreshBeta(earlyRefresh);
+	}
+
+	// Read the warm-up requests before the cache file could be overwritten
+	initHttpCacheWarmer(config);
 
 	if (filename != null) {
 	    final File f = new File(filename);
+
+	    int snapshotInterval = tryParseInt(config.getInitParameter(IPARAM_CACHE_SNAPSHOT_INTERVAL), 0);
+	    int snapshotThreshold = tryParseInt(config.getInitParameter(IPARAM_CACHE_SNAPSHOT_THRESHOLD), 0);
+	    if (snapshotInterval > 0 || snapshotThreshold > 0) {
+		cacheSnapshotter = new HttpCacheSnapshotter(cache, f, snapshotInterval * 1000L, snapshotThreshold);
+		setHttpCacheSnapshotter(cacheSnapshotter);
+	    }
+
 	    if (f.exists()) {
-		try {
-                    if (LOG.isInfoEnabled()) {
-                        LOG.info("Loading serialized cache from file \"" + f.getAbsolutePath() + "\"");
-                    }
-		    loadHttpCacheFromFile(f, cache);
-		} catch (IOException ex) {
-		    throw new ServletException(ex);
+		// Restore in the background; the cache is already usable while
+		// the entries are loaded
+		cacheRestoreThread = new ServerThreadFactory(Thread.NORM_PRIORITY).newThread(new Runnable() {
+
+		    @Override
+		    public void run() {
+			try {
+			    if (LOG.isInfoEnabled()) {
+				LOG.info("Loading persisted cache from file \"" + f.getAbsolutePath() + "\"");
+			    }
+			    loadHttpCacheFromFile(f, getHttpCache());
+			    indexHttpCache();
+			} catch (IOException ex) {
+			    LOG.error("Unable to restore the persisted cache. "
+				    + "See nested exception for more details", ex);
+			} finally {
+			    // Do not overwrite the cache file before the restore
+			    // has finished
+			    if (cacheSnapshotter != null) {
+				cacheSnapshotter.start();
+			    }
+			}
+		    }
+		});
+		cacheRestoreThread.start();
+	    } else if (cacheSnapshotter != null) {
+		cacheSnapshotter.start();
+	    }
+	}
+    }
+
+    private void initHttpCacheWarmer(ServletConfig config) throws ServletException {
+	String manifest = config.getInitParameter(IPARAM_CACHE_WARMUP_FILE);
+	String filename = config.getInitParameter(IPARAM_CACHE_FILE);
+	int size = tryParseInt(config.getInitParameter(IPARAM_CACHE_WARMUP_SIZE), 0);
+
+	ArrayList<String> paths = new ArrayList<>();
+	try {
+	    if (manifest != null && !manifest.isEmpty()) {
+		paths.addAll(HttpCacheWarmer.readManifest(new File(manifest), 0));
+	    }
+	    if (size > 0 && filename != null && new File(filename).exists()) {
+		try (InputStream is = new BufferedInputStream(new FileInputStream(filename))) {
+		    cacheWarmerKeys = HttpCacheSnapshot.readKeys(is, size);
+		    for (String key : cacheWarmerKeys) {
+			// Skip the representations of an entry
+			if (key.indexOf('#') < 0) {
+			    paths.add(key);
+			}
+		    }
 		}
 	    }
+	} catch (IOException ex) {
+	    throw new ServletException("Unable to read the cache warm-up requests", ex);
+	}
+	if (paths.isEmpty()) {
+	    return;
+	}
+
+	String ctx = getServletContext().getContextPath();
+	final String ctxPath = ctx == null || "/".equals(ctx) ? "" : ctx;
+
+	Collection<String> mappings = null;
+	try {
+	    ServletRegistration reg = getServletContext().getServletRegistration(getServletName());
+	    mappings = reg != null ? reg.getMappings() : null;
+	} catch (UnsupportedOperationException ignore) {
+	}
+	final Collection<String> servletMappings = mappings;
+
+	try {
+	    cacheWarmer = new HttpCacheWarmer(paths,
+		    tryParseInt(config.getInitParameter(IPARAM_CACHE_WARMUP_POOL_SIZE), DEFAULT_CACHE_WARMUP_POOL_SIZE),
+		    tryParseFloat(config.getInitParameter(IPARAM_CACHE_WARMUP_READY_RATIO), 0f)) {
+
+		@Override
+		boolean isBusy() {
+		    return coreExecutor != null && !coreExecutor.getQueue().isEmpty();
+		}
+
+		@Override
+		boolean warm(String path) throws Exception {
+		    // Entries which are already cached, e.g. restored from the cache
+		    // file, are found by the cache request processor by their true
+		    // cache key
+		    String uri = ctxPath.isEmpty() || path.startsWith(ctxPath + "/") ? path : ctxPath + path;
+		    String relPath = uri.substring(ctxPath.length());
+		    int q = relPath.indexOf('?');
+		    if (q > -1) {
+			relPath = relPath.substring(0, q);
+		    }
+
+		    DetachedHttpServletRequest dReq = new DetachedHttpServletRequest(getServletContext(),
+			    HttpCacheWarmer.getServletPath(relPath, servletMappings), uri);
+		    dReq.setAttribute("io.pictura.servlet.WARMUP", Boolean.TRUE);
+		    DetachedHttpServletResponse dResp = new DetachedHttpServletResponse();
+
+		    doProcess("GET", dReq, dResp);
+		    return dResp.getStatus() == HttpServletResponse.SC_OK;
+		}
+	    };
+	} catch (IllegalArgumentException ex) {
+	    throw new ServletException(ex);
+	}
+    }
+
+    // Fetches the entries (incl. their representations) of the cache file
+    // warm-up from a remote cache with a few batch lookups after the given
+    // thread has finished, so the warm-up does not produce the found entries
+    // again. Returns the thread to wait for before the warm-up is started.
+    private Thread startHttpCachePrefetch(final Thread predecessor) {
+	final List<String> keys = cacheWarmerKeys;
+	cacheWarmerKeys = null;
+	if (keys == null || keys.isEmpty() || !(getHttpCache() instanceof BatchHttpCache)) {
+	    return predecessor;
 	}
+
+	Thread t = new ServerThreadFactory(Thread.NORM_PRIORITY).newThread(new Runnable() {
+
+	    @Override
+	    public void run() {
+		try {
+		    if (predecessor != null) {
+			predecessor.join();
+		    }
+		    int count = prefetchHttpCache(keys);
+		    if (LOG.isInfoEnabled()) {
+			LOG.info("Prefetched " + count + " of " + keys.size() + " cache entries");
+		    }
+		} catch (InterruptedException ex) {
+		    Thread.currentThread().interrupt();
+		} catch (RuntimeException ex) {
+		    LOG.warn("Unable to prefetch the cache entries", ex);
+		}
+	    }
+	});
+	t.start();
+	return t;
     }
 
     private void initMXBeans() throws ServletException {
@@ -1543,6 +2505,46 @@ public class PicturaServlet extends HttpCacheServlet {
 		    return (float) sumErrors / (float) PicturaServlet.this.getCompletedTaskCount();
 		}
 
+		@Override
+		public long getRasterCacheSize() {
+		    return PicturaServlet.this.getRasterCacheSize();
+		}
+
+		@Override
+		public int getRasterCacheCount() {
+		    return PicturaServlet.this.getRasterCacheCount();
+		}
+
+		@Override
+		public float getRasterCacheHitRate() {
+		    return PicturaServlet.this.getRasterCacheHitRate();
+		}
+
+		@Override
+		public long getOriginFetchCoalescedCount() {
+		    return PicturaServlet.this.getOriginFetchCoalescedCount();
+		}
+
+		@Override
+		public Map<String, String> getOriginStates() {
+		    return PicturaServlet.this.getOriginStates();
+		}
+
+		@Override
+		public long getOriginRejectedCount() {
+		    return PicturaServlet.this.getOriginRejectedCount();
+		}
+
+		@Override
+		public int getFileMappingCount() {
+		    return PicturaServlet.this.getFileMappingCount();
+		}
+
+		@Override
+		public long getFileMappedBytes() {
+		    return PicturaServlet.this.getFileMappedBytes();
+		}
+
 	    }, mxBeanServletObjName = new ObjectName(
 		    "io.pictura.servlet.servlet:type=" + this.getClass().getSimpleName() + ",name="
 		    + getServletName()));
@@ -1563,6 +2565,46 @@ public class PicturaServlet extends HttpCacheServlet {
 		    return getHttpCacheHitRate();
 		}
 
+		@Override
+		public long getCoalescedCount() {
+		    return getHttpCacheCoalescedCount();
+		}
+
+		@Override
+		public long getSnapshotCount() {
+		    return cacheSnapshotter != null ? cacheSnapshotter.getSnapshotCount() : 0;
+		}
+
+		@Override
+		public long getLastSnapshotTimestamp() {
+		    return cacheSnapshotter != null ? cacheSnapshotter.getLastSnapshotTimestamp() : 0;
+		}
+
+		@Override
+		public long getLastSnapshotDuration() {
+		    return cacheSnapshotter != null ? cacheSnapshotter.getLastSnapshotDuration() : -1;
+		}
+
+		@Override
+		public long getLastSnapshotSize() {
+		    return cacheSnapshotter != null ? cacheSnapshotter.getLastSnapshotSize() : -1;
+		}
+
+		@Override
+		public int getNegativeSize() {
+		    return getHttpCacheNegativeSize();
+		}
+
+		@Override
+		public long getNegativeHitCount() {
+		    return getHttpCacheNegativeHitCount();
+		}
+
+		@Override
+		public int purge(String source) {
+		    return purgeHttpCache(source).size();
+		}
+
 	    }, mxBeanCacheObjName = new ObjectName(
 		    "io.pictura.servlet.servlet:type=" + HttpCache.class.getSimpleName() + ",name="
 		    + getServletName()));
@@ -1599,12 +2641,56 @@ public class PicturaServlet extends HttpCacheServlet {
 
 	setAlive(false);
 
+	// Stop a running cache warm-up
+	if (cacheWarmer != null) {
+	    try {
+		cacheWarmer.close();
+	    } catch (IOException ignore) {
+	    }
+	}
+
+	// Release the cached source bodies
+	if (originCache != null) {
+	    try {
+		originCache.close();
+	    } catch (IOException ignore) {
+	    }
+	}
+
+	// Close the pooled origin connections
+	if (urlConnectionFactory instanceof Closeable) {
+	    try {
+		((Closeable) urlConnectionFactory).close();
+	    } catch (IOException ignore) {
+	    }
+	}
+
+	// Release the decoded source images
+	if (rasterCache != null) {
+	    rasterCache.clear();
+	}
+
+	// Reset the origin states
+	if (originGuard != null) {
+	    originGuard.clear();
+	}
+
+	// Unmap the cached source file mappings
+	if (sourceFileReader != null) {
+	    sourceFileReader.clear();
+	}
+
 	// Shutdown the statistics executor
 	if (statsExecutor != null && !statsExecutor.isShutdown()
 		&& !statsExecutor.isTerminated() && !statsExecutor.isTerminating()) {
 	    statsExecutor.shutdownNow();
 	}
 
+	// Shutdown the cache revalidation executor
+	if (refreshExecutor != null && !refreshExecutor.isShutdown()) {
+	    refreshExecutor.shutdownNow();
+	}
+
 	// Shutdown the core image processor request executor from this
 	// pictura servlet instance.
 	if (coreExecutor != null && !coreExecutor.isShutdown()
@@ -1626,8 +2712,29 @@ public class PicturaServlet extends HttpCacheServlet {
 
 	// If a cache is in use, persist
 	if (getHttpCache() != null) {
+	    // Do not overwrite the persisted cache with a partially restored one
+	    if (cacheRestoreThread != null) {
+		try {
+		    cacheRestoreThread.join();
+		} catch (InterruptedException ex) {
+		    Thread.currentThread().interrupt();
+		}
+	    }
+	    // Stop the background snapshots; the final snapshot is only
+	    // necessary if there are new entries since the last one
+	    boolean dirty = true;
+	    if (cacheSnapshotter != null) {
+		setHttpCacheSnapshotter(null);
+		try {
+		    cacheSnapshotter.close();
+		    dirty = cacheSnapshotter.isDirty() || cacheSnapshotter.getSnapshotCount() == 0;
+		} catch (IOException ex) {
+		    LOG.error("Unable to stop the cache snapshotter. "
+			    + "See nested exception for more details", ex);
+		}
+	    }
 	    String cacheFilename = getServletConfig().getInitParameter(IPARAM_CACHE_FILE);
-	    if (cacheFilename != null) {
+	    if (cacheFilename != null && dirty) {
 		try {
 		    saveHttpCacheToFile(new File(cacheFilename), getHttpCache());
 		} catch (IOException ex) {
@@ -1635,6 +2742,14 @@ public class PicturaServlet extends HttpCacheServlet {
 			    + "See nested exception for more details", ex);
 		}
 	    }
+	    if (getHttpCache() instanceof Closeable) {
+		try {
+		    ((Closeable) getHttpCache()).close();
+		} catch (IOException ex) {
+		    LOG.error("Unable to close the current cache instance. "
+			    + "See nested exception for more details", ex);
+		}
+	    }
 	}
 
 	// Clean-up resource lookup
@@ -1678,7 +2793,8 @@ public class PicturaServlet extends HttpCacheServlet {
     /**
      * Tests if this servlet instance is alive. The servlet instance is alive if
      * it has been successfully initialized and started and has not yet
-     * destroyed.
+     * destroyed. If a cache warm-up ready ratio is set, the servlet instance is
+     * not alive before the ratio of warm-up requests was processed.
      *
      * @return <code>true</code> if this servlet instance is alive; otherwise
      * <tt>false</tt>.
@@ -1686,7 +2802,7 @@ public class PicturaServlet extends HttpCacheServlet {
      * @see #setAlive(boolean)
      */
     public final boolean isAlive() {
-	return alive;
+	return alive && (cacheWarmer == null || cacheWarmer.isReady());
     }
 
     /**
@@ -1881,6 +2997,131 @@ public class PicturaServlet extends HttpCacheServlet {
 	return incomingBandwidth;
     }
 
+    /**
+     * Returns the size of the pixel data of all decoded source images in the
+     * raster cache or <code>-1</code> if the raster cache is not enabled.
+     *
+     * @return The raster cache size in bytes.
+     *
+     * @see #IPARAM_IMAGEIO_RASTER_CACHE_MAX_SIZE
+     *
+     * @since 1.2
+     */
+    public long getRasterCacheSize() {
+	return rasterCache != null ? rasterCache.getSize() : -1L;
+    }
+
+    /**
+     * Returns the approximate hit rate of the raster cache or <code>-1f</code>
+     * if the raster cache is not enabled.
+     *
+     * @return Raster cache hit rate or <code>-1</code> if the raster cache is
+     * not enabled.
+     *
+     * @see #IPARAM_IMAGEIO_RASTER_CACHE_MAX_SIZE
+     *
+     * @since 1.2
+     */
+    public float getRasterCacheHitRate() {
+	return rasterCache != null ? rasterCache.getHitRate() : -1f;
+    }
+
+    /**
+     * Returns the number of decoded source images in the raster cache or
+     * <code>-1</code> if the raster cache is not enabled.
+     *
+     * @return The number of cached images.
+     *
+     * @since 1.2
+     */
+    public int getRasterCacheCount() {
+	return rasterCache != null ? rasterCache.getCount() : -1;
+    }
+
+    /**
+     * Returns the number of requests which were answered by the fetch of a
+     * concurrent request for the same remote image source or <code>-1</code>
+     * if fetch coalescing is not enabled.
+     *
+     * @return The number of coalesced origin fetches.
+     *
+     * @see #IPARAM_HTTP_COALESCING_TIMEOUT
+     *
+     * @since 1.2
+     */
+    public long getOriginFetchCoalescedCount() {
+	return originFetchCoalescer != null ? originFetchCoalescer.getCoalescedCount() : -1L;
+    }
+
+    /**
+     * Returns the circuit state (<code>CLOSED</code>, <code>OPEN</code> or
+     * <code>HALF_OPEN</code>) of each known origin of remote image sources. If
+     * neither bulkheads nor circuit breakers are enabled, the method returns an
+     * empty map.
+     *
+     * @return The circuit states by origin, e.g.
+     * <code>http://localhost:80</code>.
+     *
+     * @see #IPARAM_HTTP_ORIGIN_FAILURE_THRESHOLD
+     *
+     * @since 1.2
+     */
+    public Map<String, String> getOriginStates() {
+	TreeMap<String, String> states = new TreeMap<>();
+	if (originGuard != null) {
+	    for (Map.Entry<String, OriginGuard.Origin> e : originGuard.getOrigins().entrySet()) {
+		states.put(e.getKey(), e.getValue().getState().name());
+	    }
+	}
+	return states;
+    }
+
+    /**
+     * Returns the number of requests to origins of remote image sources which
+     * were rejected by a bulkhead or an open circuit or <code>-1</code> if
+     * neither bulkheads nor circuit breakers are enabled.
+     *
+     * @return The number of rejected origin requests.
+     *
+     * @since 1.2
+     */
+    public long getOriginRejectedCount() {
+	return originGuard != null ? originGuard.getRejectedCount() : -1L;
+    }
+
+    // The origin guard for the stats request processor
+    OriginGuard getOriginGuard() {
+	return originGuard;
+    }
+
+    /**
+     * Returns the number of memory mapped local source image files (cached or
+     * currently read) or <code>-1</code> if the servlet is not initialized.
+     *
+     * @return The number of file mappings.
+     *
+     * @see #IPARAM_IMAGEIO_MAX_MAPPINGS
+     *
+     * @since 1.2
+     */
+    public int getFileMappingCount() {
+	return sourceFileReader != null ? sourceFileReader.getMappingCount() : -1;
+    }
+
+    /**
+     * Returns the size of all memory mapped local source image files (cached
+     * or currently read) or <code>-1</code> if the servlet is not initialized.
+     *
+     * @return The mapped size in bytes.
+     *
+     * @see #IPARAM_IMAGEIO_MMAP_THRESHOLD
+     *
+     * @since 1.2
+     */
+    public long getFileMappedBytes() {
+	return sourceFileReader != null ? sourceFileReader.getMappedBytes() : -1L;
+    }
+
     /**
      * Returns the cumulative number of client and server errors grouped by the
      * error code (HTTP response status code) during the servlet was started.
@@ -1917,6 +3158,7 @@ public class PicturaServlet extends HttpCacheServlet {
      * @see RequestProcessor
      * @see HttpServletResponse
      */
+    @Override
     protected RequestProcessor createRequestProcessor(HttpServletRequest req)
 	    throws ServletException {
 
@@ -2043,8 +3285,9 @@ public class PicturaServlet extends HttpCacheServlet {
 	final PicturaServletRequest pReq = new PicturaServletRequest(req);
 	final PicturaServletResponse pResp = new PicturaServletResponse(req, resp);
 
-	// If the servlet is not yet alive send an error
-	if (!isAlive()) {
+	// If the servlet is not yet alive send an error (a servlet which is
+	// warming up its cache is able to process requests)
+	if (!alive) {
 	    throw new UnavailableException("Service temporarily not available", 60);
 	}
 
@@ -2183,6 +3426,12 @@ public class PicturaServlet extends HttpCacheServlet {
 	    pReq.setAttributeIfAbsent("io.pictura.servlet.HEADER_ADD_REQUEST_ID", headerAddRequestId);
             pReq.setAttributeIfAbsent("io.pictura.servlet.HEADER_ADD_NORMALIZED_PARAMS", headerAddNormalizedParams);
 	    pReq.setAttributeIfAbsent("io.pictura.servlet.URL_CONNECTION_FACTORY", urlConnectionFactory);
+	    pReq.setAttributeIfAbsent("io.pictura.servlet.ORIGIN_CACHE", originCache);
+	    pReq.setAttributeIfAbsent("io.pictura.servlet.RASTER_CACHE", rasterCache);
+	    pReq.setAttributeIfAbsent("io.pictura.servlet.ORIGIN_FETCH_COALESCER", originFetchCoalescer);
+	    pReq.setAttributeIfAbsent("io.pictura.servlet.ORIGIN_GUARD", originGuard);
+	    pReq.setAttributeIfAbsent("io.pictura.servlet.HTTP_SPILL_THRESHOLD", httpSpillThreshold);
+	    pReq.setAttributeIfAbsent("io.pictura.servlet.SOURCE_FILE_READER", sourceFileReader);
             pReq.setAttributeIfAbsent("io.pictura.servlet.SERVICE_NANO_TIMESTAMP", serviceNanoTimestamp);
 	    
             pResp.setHeader(HEADER_ALLOW, "GET");
@@ -2240,6 +3489,13 @@ public class PicturaServlet extends HttpCacheServlet {
 		throw new IllegalStateException();
 	    }
 
+	    // Cache warm-up requests are executed by the (low priority) calling
+	    // thread and not counted by the statistics
+	    if (crp.getRequest().getAttribute("io.pictura.servlet.WARMUP") != null) {
+		crp.run();
+		return;
+	    }
+
 	    ExecutorService exec = null;
             if (!useContainerPool) {
                 exec = getExecutor(crp);
@@ -2529,6 +3785,38 @@ public class PicturaServlet extends HttpCacheServlet {
 	return defaultValue;
     }
 
+    /**
+     * Parses a size value in bytes. The value could have the (case
+     * insensitive) suffix <code>k</code>, <code>m</code> or <code>g</code>.
+     *
+     * @param s The size value to parse.
+     * @param defaultValue The value to return if the given string is not a
+     * valid size value.
+     *
+     * @return The size in bytes.
+     *
+     * @since 1.2
+     */
+    protected static long tryParseSize(String s, long defaultValue) {
+	if (s != null && !s.isEmpty()) {
+	    s = s.toLowerCase(Locale.ENGLISH).trim();
+	    long unit = 1L;
+	    if (s.endsWith("k")) {
+		unit = 1024L;
+	    } else if (s.endsWith("m")) {
+		unit = 1024L * 1024L;
+	    } else if (s.endsWith("g")) {
+		unit = 1024L * 1024L * 1024L;
+	    }
+	    if (unit > 1L) {
+		s = s.substring(0, s.length() - 1).trim();
+	    }
+	    long value = tryParseLong(s, Long.MIN_VALUE);
+	    return value != Long.MIN_VALUE ? value * unit : defaultValue;
+	}
+	return defaultValue;
+    }
+
     protected static float tryParseFloat(String s, float defaultValue) {
 	if (s != null && !s.isEmpty()) {
 	    try {
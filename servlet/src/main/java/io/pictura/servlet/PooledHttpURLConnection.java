@@ -0,0 +1,528 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * A HTTP/1.1 client connection which is sent over a persistent connection of
+ * the {@link PooledURLConnectionFactory}.
+ * <p>
+ * The underlying connection is returned to the pool after the response body
+ * was completely read or if the connection is disconnected. In the latter case
+ * a small rest of the body is skipped to keep the connection alive; otherwise
+ * the connection is closed.
+ * <p>
+ * The request is sent and the response is read with blocking I/O on the
+ * calling thread. Each read waits at most the read timeout of this connection
+ * (see {@link #setReadTimeout(int)}); the connection is closed and not
+ * returned to the pool if a read times out. See
+ * {@link PooledURLConnectionFactory} why no non-blocking I/O is used.
+ *
+ * @author Steffen Kremp
+ *
+ * @since 1.2
+ */
+final class PooledHttpURLConnection extends HttpURLConnection {
+
+    // Same as the JDK implementation
+    private static final int MAX_REDIRECTS = 20;
+
+    // Maximum number of bytes which are skipped to reuse a connection
+    private static final int MAX_DRAIN_SIZE = 64 * 1024;
+
+    // Maximum size of the response head
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+
+    private final PooledURLConnectionFactory factory;
+    private final boolean disableCertificateValidation;
+
+    // Response head; the first entry is the status line (without a key)
+    private final ArrayList<String> headerKeys = new ArrayList<>();
+    private final ArrayList<String> headerValues = new ArrayList<>();
+
+    private BodyInputStream body;
+
+    PooledHttpURLConnection(URL url, PooledURLConnectionFactory factory,
+            boolean disableCertificateValidation) {
+        super(url);
+        this.factory = factory;
+        this.disableCertificateValidation = disableCertificateValidation;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (connected) {
+            return;
+        }
+
+        // Not accessible after we are connected
+        final Map<String, List<String>> requestHeaders = getRequestProperties();
+
+        int redirects = 0;
+        while (true) {
+            exchange(requestHeaders);
+            connected = true;
+
+            final String location = getHeaderField0(RequestProcessor.HEADER_LOCATION);
+            if (!getInstanceFollowRedirects() || location == null || !isRedirect(responseCode)
+                    || redirects >= MAX_REDIRECTS) {
+                break;
+            }
+
+            // Redirects to other protocols are not followed
+            final URL target = new URL(url, location);
+            if (!url.getProtocol().equalsIgnoreCase(target.getProtocol())) {
+                break;
+            }
+
+            body.close();
+            url = target;
+            redirects++;
+        }
+    }
+
+    private static boolean isRedirect(int sc) {
+        return sc == HTTP_MOVED_PERM || sc == HTTP_MOVED_TEMP || sc == HTTP_SEE_OTHER
+                || sc == 307 || sc == 308;
+    }
+
+    // Sends the request and reads the response head. A reused connection was
+    // maybe closed by the origin in the meantime; in this case the request is
+    // retried once with a new connection.
+    private void exchange(Map<String, List<String>> requestHeaders) throws IOException {
+        for (int attempt = 0;; attempt++) {
+            PooledURLConnectionFactory.Connection c = factory.acquire(url,
+                    disableCertificateValidation, getConnectTimeout());
+            try {
+                c.setReadTimeout(getReadTimeout());
+                writeRequest(c, requestHeaders);
+                readResponse(c);
+                return;
+            } catch (IOException | RuntimeException ex) {
+                factory.release(c, false);
+                if (!c.isReused() || attempt > 0 || ex instanceof SocketTimeoutException) {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    private void writeRequest(PooledURLConnectionFactory.Connection c,
+            Map<String, List<String>> requestHeaders) throws IOException {
+
+        String file = url.getFile();
+        if (file == null || file.isEmpty()) {
+            file = "/";
+        }
+
+        StringBuilder sb = new StringBuilder(512);
+        sb.append(getRequestMethod()).append(' ').append(file).append(" HTTP/1.1\r\n");
+
+        sb.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+            sb.append(':').append(url.getPort());
+        }
+        sb.append("\r\n");
+
+        boolean ifModifiedSinceSet = false;
+        for (Map.Entry<String, List<String>> e : requestHeaders.entrySet()) {
+            final String name = e.getKey();
+            if (name == null || "Host".equalsIgnoreCase(name)
+                    || "Connection".equalsIgnoreCase(name)) {
+                continue;
+            }
+            if (RequestProcessor.HEADER_IFMODSINCE.equalsIgnoreCase(name)) {
+                ifModifiedSinceSet = true;
+            }
+            for (String value : e.getValue()) {
+                if (value != null) {
+                    sb.append(name).append(": ").append(value).append("\r\n");
+                }
+            }
+        }
+
+        if (!ifModifiedSinceSet && getIfModifiedSince() > 0L) {
+            SimpleDateFormat df = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+            df.setTimeZone(TimeZone.getTimeZone("GMT"));
+            sb.append(RequestProcessor.HEADER_IFMODSINCE).append(": ")
+                    .append(df.format(new Date(getIfModifiedSince()))).append("\r\n");
+        }
+
+        sb.append("Connection: keep-alive\r\n\r\n");
+
+        c.out.write(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+        c.out.flush();
+    }
+
+    private void readResponse(PooledURLConnectionFactory.Connection c) throws IOException {
+        String statusLine;
+        int[] headerSize = new int[1];
+
+        // Skip interim responses
+        do {
+            headerKeys.clear();
+            headerValues.clear();
+
+            statusLine = readLine(c.in, headerSize);
+            if (statusLine == null) {
+                throw new EOFException("Unexpected end of stream from \"" + url + "\"");
+            }
+            if (!statusLine.startsWith("HTTP/")) {
+                throw new ProtocolException("Invalid status line \"" + statusLine + "\"");
+            }
+
+            int sp1 = statusLine.indexOf(' ');
+            int sp2 = statusLine.indexOf(' ', sp1 + 1);
+            try {
+                responseCode = Integer.parseInt(sp2 > -1 ? statusLine.substring(sp1 + 1, sp2)
+                        : statusLine.substring(sp1 + 1).trim());
+            } catch (NumberFormatException | IndexOutOfBoundsException ex) {
+                throw new ProtocolException("Invalid status line \"" + statusLine + "\"");
+            }
+            responseMessage = sp2 > -1 ? statusLine.substring(sp2 + 1) : "";
+
+            headerKeys.add(null);
+            headerValues.add(statusLine);
+
+            String line;
+            while ((line = readLine(c.in, headerSize)) != null && !line.isEmpty()) {
+                int i = line.indexOf(':');
+                if (i > 0) {
+                    headerKeys.add(line.substring(0, i).trim());
+                    headerValues.add(line.substring(i + 1).trim());
+                }
+            }
+            if (line == null) {
+                throw new EOFException("Unexpected end of stream from \"" + url + "\"");
+            }
+        } while (responseCode >= 100 && responseCode < 200);
+
+        // Keep-alive is the default for HTTP/1.1
+        final String con = getHeaderField0("Connection");
+        boolean keepAlive = statusLine.startsWith("HTTP/1.1")
+                ? !"close".equalsIgnoreCase(con) : "keep-alive".equalsIgnoreCase(con);
+
+        final String te = getHeaderField0("Transfer-Encoding");
+        final String cl = getHeaderField0("Content-Length");
+
+        long length;
+        boolean chunked = false;
+        if (responseCode == HTTP_NO_CONTENT || responseCode == HTTP_NOT_MODIFIED
+                || "HEAD".equals(getRequestMethod())) {
+            length = 0L;
+        } else if (te != null && te.toLowerCase(Locale.ENGLISH).contains("chunked")) {
+            length = -1L;
+            chunked = true;
+        } else if (cl != null) {
+            try {
+                length = Long.parseLong(cl.trim());
+            } catch (NumberFormatException ex) {
+                throw new ProtocolException("Invalid content length \"" + cl + "\"");
+            }
+        } else {
+            // Delimited by the end of the connection
+            length = -1L;
+            keepAlive = false;
+        }
+
+        body = new BodyInputStream(c, length, chunked, keepAlive);
+    }
+
+    // Reads a header line (ISO-8859-1) without the line terminator
+    private static String readLine(InputStream in, int[] headerSize) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (++headerSize[0] > MAX_HEADER_SIZE) {
+                throw new ProtocolException("Response header too large");
+            }
+            if (b == '\n') {
+                break;
+            }
+            if (b != '\r') {
+                bos.write(b);
+            }
+        }
+        if (b == -1 && bos.size() == 0) {
+            return null;
+        }
+        return new String(bos.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    private String getHeaderField0(String name) {
+        for (int i = headerKeys.size() - 1; i > 0; i--) {
+            if (name.equalsIgnoreCase(headerKeys.get(i))) {
+                return headerValues.get(i);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void disconnect() {
+        if (body != null) {
+            try {
+                body.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    @Override
+    public boolean usingProxy() {
+        return false;
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        connect();
+        return responseCode;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        connect();
+        if (responseCode >= 400) {
+            if (responseCode == HTTP_NOT_FOUND || responseCode == HTTP_GONE) {
+                throw new FileNotFoundException(url.toString());
+            }
+            throw new IOException("Server returned HTTP response code: "
+                    + responseCode + " for URL: " + url.toString());
+        }
+        return body;
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        return connected && responseCode >= 400 ? body : null;
+    }
+
+    @Override
+    public String getHeaderField(String name) {
+        try {
+            connect();
+        } catch (IOException ex) {
+            return null;
+        }
+        return name != null ? getHeaderField0(name) : getHeaderField(0);
+    }
+
+    @Override
+    public String getHeaderField(int n) {
+        try {
+            connect();
+        } catch (IOException ex) {
+            return null;
+        }
+        return n >= 0 && n < headerValues.size() ? headerValues.get(n) : null;
+    }
+
+    @Override
+    public String getHeaderFieldKey(int n) {
+        try {
+            connect();
+        } catch (IOException ex) {
+            return null;
+        }
+        return n > 0 && n < headerKeys.size() ? headerKeys.get(n) : null;
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+        try {
+            connect();
+        } catch (IOException ex) {
+            return Collections.emptyMap();
+        }
+        LinkedHashMap<String, List<String>> fields = new LinkedHashMap<>();
+        for (int i = 0; i < headerKeys.size(); i++) {
+            List<String> values = fields.get(headerKeys.get(i));
+            if (values == null) {
+                fields.put(headerKeys.get(i), values = new ArrayList<>(1));
+            }
+            values.add(headerValues.get(i));
+        }
+        for (Map.Entry<String, List<String>> e : fields.entrySet()) {
+            e.setValue(Collections.unmodifiableList(e.getValue()));
+        }
+        return Collections.unmodifiableMap(fields);
+    }
+
+    /**
+     * The response body. The underlying connection is released if the end of
+     * the body was reached or the stream is closed.
+     */
+    private final class BodyInputStream extends InputStream {
+
+        private final PooledURLConnectionFactory.Connection c;
+        private final boolean chunked;
+        private final boolean keepAlive;
+
+        // Remaining bytes of the body or the current chunk
+        private long remaining;
+        private boolean done;
+
+        BodyInputStream(PooledURLConnectionFactory.Connection c, long length,
+                boolean chunked, boolean keepAlive) {
+            this.c = c;
+            this.chunked = chunked;
+            this.keepAlive = keepAlive;
+            this.remaining = chunked ? 0L : length;
+
+            if (length == 0L) {
+                release(true);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int len;
+            while ((len = read(b, 0, 1)) == 0) {
+            }
+            return len == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (done) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+
+            try {
+                if (chunked && remaining == 0L && !nextChunk()) {
+                    return -1;
+                }
+
+                int n = c.in.read(b, off, remaining > 0L ? (int) Math.min(len, remaining) : len);
+                if (n == -1) {
+                    if (remaining < 0L) {
+                        // Delimited by the end of the connection
+                        release(false);
+                        return -1;
+                    }
+                    throw new EOFException("Unexpected end of response body from \"" + url + "\"");
+                }
+
+                if (remaining > 0L) {
+                    remaining -= n;
+                    if (remaining == 0L && !chunked) {
+                        release(true);
+                    } else if (remaining == 0L) {
+                        readCRLF();
+                    }
+                }
+                return n;
+            } catch (IOException | RuntimeException ex) {
+                release(false);
+                throw ex;
+            }
+        }
+
+        // Reads the next chunk size; returns false on the last chunk
+        private boolean nextChunk() throws IOException {
+            int[] size = new int[1];
+            String line = readLine(c.in, size);
+            if (line == null) {
+                throw new EOFException("Unexpected end of chunked body from \"" + url + "\"");
+            }
+            int i = line.indexOf(';');
+            try {
+                remaining = Long.parseLong((i > -1 ? line.substring(0, i) : line).trim(), 16);
+            } catch (NumberFormatException ex) {
+                throw new ProtocolException("Invalid chunk size \"" + line + "\"");
+            }
+            if (remaining == 0L) {
+                // Skip the trailer
+                String trailer;
+                while ((trailer = readLine(c.in, size)) != null && !trailer.isEmpty()) {
+                }
+                release(true);
+                return false;
+            }
+            return true;
+        }
+
+        private void readCRLF() throws IOException {
+            int[] size = new int[1];
+            String line = readLine(c.in, size);
+            if (line == null || !line.isEmpty()) {
+                throw new ProtocolException("Invalid chunk delimiter");
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (done) {
+                return 0;
+            }
+            int n = c.in.available();
+            return remaining > 0L ? (int) Math.min(n, remaining) : (chunked ? 0 : n);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (done) {
+                return;
+            }
+            if (!keepAlive || (!chunked && remaining > MAX_DRAIN_SIZE)) {
+                release(false);
+                return;
+            }
+
+            // Skip the rest of the body to reuse the connection
+            byte[] buf = new byte[1024 * 8];
+            long skipped = 0L;
+            int len;
+            while (!done && skipped <= MAX_DRAIN_SIZE && (len = read(buf, 0, buf.length)) != -1) {
+                skipped += len;
+            }
+            if (!done) {
+                release(false);
+            }
+        }
+
+        private void release(boolean reusable) {
+            if (!done) {
+                done = true;
+                factory.release(c, reusable && keepAlive);
+            }
+        }
+    }
+
+}
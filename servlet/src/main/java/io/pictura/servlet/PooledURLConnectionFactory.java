@@ -0,0 +1,382 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import io.pictura.servlet.URLConnectionFactory.DefaultURLConnectionFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * An {@link URLConnectionFactory} which keeps persistent (keep-alive) HTTP and
+ * HTTPS connections to the origin hosts in a pool.
+ * <p>
+ * Unlike the {@link DefaultURLConnectionFactory}, a connection is not closed
+ * if it is disconnected after the response body was read, but returned to the
+ * pool of the host and reused for the next request to the same host. This
+ * saves the TCP and TLS handshake for each fetched image. The number of
+ * concurrent connections per host is limited; a request waits up to the
+ * connect timeout for a free connection. Idle connections are closed after the
+ * keep-alive timeout.
+ * <p>
+ * Requests via a proxy and other protocols than HTTP and HTTPS are delegated to
+ * the {@link DefaultURLConnectionFactory}.
+ * <p>
+ * The connections use blocking sockets, not non-blocking channels. The
+ * response body is consumed through a blocking {@link InputStream} by the
+ * image decoder ({@link javax.imageio.ImageIO}) on the request thread, so a
+ * selector would not release that thread while it waits for the origin.
+ * Also, HTTPS over channels would need an own <code>SSLEngine</code> based TLS
+ * layer instead of the {@link SSLSocket}. Each read is bounded by the read
+ * timeout of the connection; hence a request thread may still wait up to the
+ * read timeout per read on a slow origin. Set a short
+ * {@link PicturaServlet#IPARAM_HTTP_READ_TIMEOUT} to limit this.
+ *
+ * @see PicturaServlet#IPARAM_HTTP_MAX_CONNECTIONS_PER_HOST
+ * @see PicturaServlet#IPARAM_URL_CONNECTION_FACTORY
+ *
+ * @author Steffen Kremp
+ *
+ * @since 1.2
+ */
+public final class PooledURLConnectionFactory implements URLConnectionFactory, Closeable {
+
+    /**
+     * The default maximum number of concurrent connections per host.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 8;
+
+    /**
+     * The default time in millis an idle connection is kept open.
+     */
+    public static final long DEFAULT_KEEP_ALIVE_TIMEOUT = 15000L;
+
+    private final int maxConnectionsPerHost;
+    private final long keepAliveTimeout;
+
+    private final ConcurrentHashMap<String, HostPool> pools = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    private final AtomicLong connectCount = new AtomicLong();
+    private final AtomicLong reuseCount = new AtomicLong();
+
+    /**
+     * Creates a new factory with the default settings.
+     */
+    public PooledURLConnectionFactory() {
+        this(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_KEEP_ALIVE_TIMEOUT);
+    }
+
+    /**
+     * Creates a new factory.
+     *
+     * @param maxConnectionsPerHost The maximum number of concurrent connections
+     * per host.
+     * @param keepAliveTimeout The time in millis an idle connection is kept
+     * open.
+     *
+     * @throws IllegalArgumentException if the maximum number of connections is
+     * less than 1 or the keep-alive timeout is negative.
+     */
+    public PooledURLConnectionFactory(int maxConnectionsPerHost, long keepAliveTimeout) {
+        if (maxConnectionsPerHost < 1) {
+            throw new IllegalArgumentException("Max connections per host must be greater than 0");
+        }
+        if (keepAliveTimeout < 0) {
+            throw new IllegalArgumentException("Keep-alive timeout must be not negative");
+        }
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+
+    @Override
+    public URLConnection newConnection(URL url, Properties props) throws IOException {
+        if (props == null) {
+            throw new IllegalArgumentException("URL connection properties must be not null");
+        }
+
+        final DefaultURLConnectionFactory defaultFactory
+                = (DefaultURLConnectionFactory) DefaultURLConnectionFactory.getDefault();
+
+        if (closed || !("http".equalsIgnoreCase(url.getProtocol())
+                || "https".equalsIgnoreCase(url.getProtocol()))
+                || defaultFactory.getProxy(url, props) != null) {
+            return defaultFactory.newConnection(url, props);
+        }
+
+        PooledHttpURLConnection con = new PooledHttpURLConnection(url, this,
+                Boolean.TRUE.equals(props.get("io.pictura.servlet.HTTPS_DISABLE_CERTIFICATE_VALIDATION")));
+
+        if (props.get("io.pictura.servlet.HTTP_FOLLOW_REDIRECTS") instanceof Boolean) {
+            con.setInstanceFollowRedirects((Boolean) props.get("io.pictura.servlet.HTTP_FOLLOW_REDIRECTS"));
+        }
+        DefaultURLConnectionFactory.setRequestProperties(con, props);
+        return con;
+    }
+
+    /**
+     * @return The maximum number of concurrent connections per host.
+     */
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    /**
+     * @return The time in millis an idle connection is kept open.
+     */
+    public long getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    /**
+     * @return The number of new opened connections.
+     */
+    public long getConnectCount() {
+        return connectCount.get();
+    }
+
+    /**
+     * @return The number of requests which were sent over a reused
+     * connection.
+     */
+    public long getReuseCount() {
+        return reuseCount.get();
+    }
+
+    /**
+     * @return The current number of idle connections over all hosts.
+     */
+    public int getIdleCount() {
+        int n = 0;
+        for (HostPool pool : pools.values()) {
+            n += pool.idle.size();
+        }
+        return n;
+    }
+
+    /**
+     * Closes all idle connections. Connections which are currently in use are
+     * closed after they are released. New connections are created by the
+     * {@link DefaultURLConnectionFactory}.
+     *
+     * @throws IOException never.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        for (HostPool pool : pools.values()) {
+            Connection c;
+            while ((c = pool.idle.pollFirst()) != null) {
+                c.close();
+            }
+        }
+    }
+
+    /**
+     * Returns an idle connection to the host of the given URL or opens a new
+     * one, if the maximum number of connections to the host is not exceeded.
+     * Otherwise, the call blocks up to the connect timeout.
+     */
+    Connection acquire(URL url, boolean disableCertificateValidation,
+            int connectTimeout) throws IOException {
+
+        final boolean secure = "https".equalsIgnoreCase(url.getProtocol());
+        final String host = url.getHost();
+        final int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+
+        final String key = (secure ? "https://" : "http://") + host + ":" + port
+                + (secure && disableCertificateValidation ? "#novalidation" : "");
+
+        HostPool pool = pools.get(key);
+        if (pool == null) {
+            HostPool newPool = new HostPool(maxConnectionsPerHost);
+            pool = pools.putIfAbsent(key, newPool);
+            if (pool == null) {
+                pool = newPool;
+            }
+        }
+
+        try {
+            if (connectTimeout > 0) {
+                if (!pool.permits.tryAcquire(connectTimeout, TimeUnit.MILLISECONDS)) {
+                    throw new SocketTimeoutException("No free connection to \"" + host
+                            + ":" + port + "\" [max: " + maxConnectionsPerHost + "]");
+                }
+            } else {
+                pool.permits.acquire();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+
+        try {
+            // Most recently used first
+            Connection c;
+            final long now = System.currentTimeMillis();
+            while ((c = pool.idle.pollFirst()) != null) {
+                if (now - c.idleSince < keepAliveTimeout && !c.socket.isClosed()) {
+                    c.reused = true;
+                    reuseCount.incrementAndGet();
+                    return c;
+                }
+                c.close();
+            }
+
+            Socket socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.connect(new InetSocketAddress(host, port), Math.max(0, connectTimeout));
+
+                if (secure) {
+                    SSLSocketFactory sslFactory = disableCertificateValidation
+                            ? DefaultURLConnectionFactory.getNoValidationSocketFactory()
+                            : HttpsURLConnection.getDefaultSSLSocketFactory();
+
+                    SSLSocket sslSocket = (SSLSocket) sslFactory.createSocket(socket, host, port, true);
+                    if (!disableCertificateValidation) {
+                        SSLParameters params = sslSocket.getSSLParameters();
+                        params.setEndpointIdentificationAlgorithm("HTTPS");
+                        sslSocket.setSSLParameters(params);
+                    }
+                    sslSocket.startHandshake();
+                    socket = sslSocket;
+                }
+            } catch (IOException | RuntimeException ex) {
+                try {
+                    socket.close();
+                } catch (IOException ignore) {
+                }
+                throw ex;
+            }
+
+            connectCount.incrementAndGet();
+            return new Connection(pool, socket);
+        } catch (IOException | RuntimeException ex) {
+            pool.permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns the given connection to the pool or closes it, if it is not
+     * reusable.
+     */
+    void release(Connection c, boolean reusable) {
+        final HostPool pool = c.pool;
+        try {
+            if (reusable && !closed && keepAliveTimeout > 0) {
+                c.idleSince = System.currentTimeMillis();
+                pool.idle.offerFirst(c);
+
+                // Concurrently closed
+                if (closed && pool.idle.remove(c)) {
+                    c.close();
+                }
+            } else {
+                c.close();
+            }
+
+            // Close expired idle connections
+            final long now = System.currentTimeMillis();
+            Iterator<Connection> it = pool.idle.descendingIterator();
+            while (it.hasNext()) {
+                Connection idle = it.next();
+                if (now - idle.idleSince < keepAliveTimeout) {
+                    break;
+                }
+                if (pool.idle.remove(idle)) {
+                    idle.close();
+                }
+            }
+        } finally {
+            pool.permits.release();
+        }
+    }
+
+    // The connections to a single host
+    private static final class HostPool {
+
+        private final Semaphore permits;
+        private final LinkedBlockingDeque<Connection> idle = new LinkedBlockingDeque<>();
+
+        private HostPool(int maxConnections) {
+            this.permits = new Semaphore(maxConnections, true);
+        }
+    }
+
+    /**
+     * A persistent connection to an origin host.
+     */
+    static final class Connection {
+
+        private final HostPool pool;
+        private final Socket socket;
+
+        final InputStream in;
+        final OutputStream out;
+
+        private volatile long idleSince;
+        private boolean reused;
+
+        private Connection(HostPool pool, Socket socket) throws IOException {
+            this.pool = pool;
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream(), 1024 * 16);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 1024 * 2);
+        }
+
+        /**
+         * @return <code>true</code> if the connection was used by a previous
+         * request.
+         */
+        boolean isReused() {
+            return reused;
+        }
+
+        void setReadTimeout(int timeout) throws IOException {
+            socket.setSoTimeout(Math.max(0, timeout));
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+}
@@ -0,0 +1,305 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache for decoded source images, bounded by the total size of the pixel
+ * data instead of the number of entries.
+ * <p>
+ * The cache is keyed by the identity of the source image (e.g. the path and
+ * last modified date of a file or the URL and entity tag of a remote
+ * resource) and the frame index. Different variants of a hot source image are
+ * produced from the cached raster without to decode the source image again.
+ * <p>
+ * A cached image is shared between concurrent requests and must be treated as
+ * read-only. Image operations which would modify the pixel data must be
+ * applied on a copy.
+ * <p>
+ * Concurrent requests which miss the same image could wait for the request
+ * which already decodes the image (see {@link #lock(String)}), instead of to
+ * decode the same source image several times.
+ *
+ * @author Steffen Kremp
+ *
+ * @since 1.2
+ */
+final class RasterCache {
+
+    /**
+     * Orientation value for entries without a known Exif orientation.
+     */
+    static final int ORIENTATION_UNKNOWN = -1;
+
+    /**
+     * The maximum time in milliseconds to wait for a concurrent decode of the
+     * same image.
+     */
+    static final long DEFAULT_DECODE_TIMEOUT = 10000L;
+
+    private final long maxSize;
+    private final long maxEntrySize;
+
+    // Access ordered, guarded by this
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long size;
+
+    // Images which are currently decoded
+    private final ConcurrentHashMap<String, CountDownLatch> decodes = new ConcurrentHashMap<>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Creates a new raster cache. A single image is only cached if the size of
+     * its pixel data does not exceed a quarter of the maximum size.
+     *
+     * @param maxSize The maximum size of the pixel data of all images in
+     * bytes.
+     *
+     * @throws IllegalArgumentException if the maximum size is less than 1.
+     */
+    RasterCache(long maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Invalid raster cache size");
+        }
+        this.maxSize = maxSize;
+        this.maxEntrySize = Math.max(1L, maxSize / 4L);
+    }
+
+    /**
+     * Returns the cached image for the specified key.
+     *
+     * @param key The source identity and frame index.
+     *
+     * @return The entry or <code>null</code>.
+     */
+    Entry get(String key) {
+        Entry e;
+        synchronized (this) {
+            e = entries.get(key);
+        }
+        if (e != null) {
+            hitCount.incrementAndGet();
+        } else {
+            missCount.incrementAndGet();
+        }
+        return e;
+    }
+
+    /**
+     * Adds the given decoded image to the cache, if the size of its pixel data
+     * does not exceed the maximum entry size.
+     *
+     * @param key The source identity and frame index.
+     * @param image The decoded image.
+     * @param formatName The format name of the source image.
+     * @param orientation The Exif orientation of the source image or
+     * {@link #ORIENTATION_UNKNOWN}.
+     *
+     * @return <code>true</code> if the image was added to the cache.
+     */
+    boolean put(String key, BufferedImage image, String formatName, int orientation) {
+        long length = getSize(image);
+        if (length > maxEntrySize) {
+            return false;
+        }
+
+        Entry e = new Entry(image, formatName, orientation, length);
+
+        synchronized (this) {
+            Entry old = entries.put(key, e);
+            if (old != null) {
+                size -= old.length;
+            }
+            size += length;
+
+            Iterator<Entry> it = entries.values().iterator();
+            while (size > maxSize && it.hasNext()) {
+                Entry eldest = it.next();
+                it.remove();
+                size -= eldest.length;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Acquires the exclusive right to decode the image with the specified key.
+     * If the image is already decoded by an other request, the call blocks
+     * until the other request has unlocked the key, but not longer than
+     * {@link #DEFAULT_DECODE_TIMEOUT}. In this case the caller should lookup
+     * the cache again.
+     *
+     * @param key The source identity and frame index.
+     *
+     * @return <code>true</code> if the caller has to decode the image and
+     * must call {@link #unlock(String)} afterwards; <code>false</code> if an
+     * other request has decoded the image.
+     */
+    boolean lock(String key) {
+        CountDownLatch latch = decodes.putIfAbsent(key, new CountDownLatch(1));
+        if (latch == null) {
+            return true;
+        }
+        try {
+            latch.await(DEFAULT_DECODE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Releases the lock for the specified key and wakes up all requests which
+     * wait for the decoded image.
+     *
+     * @param key The source identity and frame index.
+     */
+    void unlock(String key) {
+        CountDownLatch latch = decodes.remove(key);
+        if (latch != null) {
+            latch.countDown();
+        }
+    }
+
+    /**
+     * Removes the entry for the specified key.
+     *
+     * @param key The source identity and frame index.
+     *
+     * @return <code>true</code> if an entry was removed.
+     */
+    synchronized boolean remove(String key) {
+        Entry e = entries.remove(key);
+        if (e != null) {
+            size -= e.length;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * @return The maximum size of the pixel data of all images in bytes.
+     */
+    long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return The number of cached images.
+     */
+    synchronized int getCount() {
+        return entries.size();
+    }
+
+    /**
+     * @return The size of the pixel data of all cached images in bytes.
+     */
+    synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * @return The number of lookups which were answered by a cached image.
+     */
+    long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return The number of lookups without a cached image.
+     */
+    long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return The approximate hit rate from 0 till 1.0f (0..100%).
+     */
+    float getHitRate() {
+        final long hits = hitCount.get();
+        final long sum = hits + missCount.get();
+        return sum > 0 ? ((100f / sum) * hits) / 100f : 0f;
+    }
+
+    /**
+     * Returns the size of the pixel data of the given image in bytes.
+     *
+     * @param image The image.
+     *
+     * @return The size in bytes.
+     */
+    static long getSize(BufferedImage image) {
+        DataBuffer db = image.getRaster().getDataBuffer();
+        return (long) db.getSize() * db.getNumBanks()
+                * DataBuffer.getDataTypeSize(db.getDataType()) / 8L;
+    }
+
+    /**
+     * A cached decoded image.
+     */
+    static final class Entry {
+
+        private final BufferedImage image;
+        private final String formatName;
+        private final int orientation;
+        private final long length;
+
+        private Entry(BufferedImage image, String formatName, int orientation, long length) {
+            this.image = image;
+            this.formatName = formatName;
+            this.orientation = orientation;
+            this.length = length;
+        }
+
+        /**
+         * @return The shared (read-only) image.
+         */
+        BufferedImage getImage() {
+            return image;
+        }
+
+        String getFormatName() {
+            return formatName;
+        }
+
+        int getOrientation() {
+            return orientation;
+        }
+
+        long getLength() {
+            return length;
+        }
+    }
+
+}
@@ -672,10 +672,47 @@ public abstract class RequestProcessor implements Runnable, Cacheable {
      */
     public String getTrueCacheKey() {
 	if (trueCacheKey == null) {
-	    trueCacheKey = getRequestURI();
+	    trueCacheKey = getCanonicalRequestURI();
 	}
 	return trueCacheKey;
     }
+
+    /**
+     * Returns the canonical form of the request URI which is used to calculate
+     * the true cache key. Requests which are producing the same response should
+     * have the same canonical request URI, also if the origin request URIs are
+     * different (e.g. a different order of the request parameters).
+     * <p>
+     * The default implementation returns the origin request URI.
+     *
+     * @return The canonical request URI.
+     *
+     * @see #getRequestURI()
+     * @see #getTrueCacheKey()
+     *
+     * @since 1.2
+     */
+    protected String getCanonicalRequestURI() {
+	return getRequestURI();
+    }
+
+    /**
+     * Returns a tag which is shared by all cacheable responses which are
+     * derived from the same resource, e.g. the path or URL of the source image
+     * of an image request. The tag is used to invalidate all cached variants of
+     * a resource at once.
+     *
+     * @return The cache tag or <code>null</code> (default) if the response is
+     * not related to a specific resource.
+     *
+     * @see #getTrueCacheKey()
+     * @see HttpCacheServlet#purgeHttpCache(java.lang.String)
+     *
+     * @since 1.2
+     */
+    public String getCacheTag() {
+	return null;
+    }
     
     /**
      * Returns <code>true</code> if the response which is produced by this
@@ -1047,7 +1084,7 @@ public abstract class RequestProcessor implements Runnable, Cacheable {
 	"image/vnd.microsoft.icon"
     };
     
-    private boolean isGZipAllowed(String contentType) {
+    boolean isGZipAllowed(String contentType) {
 	if (contentType == null || contentType.isEmpty()) {
 	    return false;
 	}
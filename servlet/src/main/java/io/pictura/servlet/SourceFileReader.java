@@ -0,0 +1,459 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads local source image files.
+ * <p>
+ * Small files are read with positional reads into pooled heap buffers. The
+ * buffers are pooled by size class (the file size rounded up to the next power
+ * of two), so small files do not hold buffers of the max. size. Larger files are
+ * memory mapped. The mappings of the most recently used files are
+ * kept open and shared between concurrent requests, all other mappings are
+ * unmapped explicitly as soon as the last stream on it was closed instead of
+ * waiting for the garbage collector to release the mapped memory.
+ * <p>
+ * The returned streams must be closed. A stream must not be used after it was
+ * closed, because the underlying mapping may be already unmapped.
+ *
+ * @author Steffen Kremp
+ *
+ * @since 1.2
+ */
+final class SourceFileReader {
+
+    private static final Log LOG = Log.getLog(SourceFileReader.class);
+
+    /**
+     * The default minimum file size in bytes to memory map a file.
+     */
+    static final int DEFAULT_MMAP_THRESHOLD = 256 * 1024;
+
+    /**
+     * The default maximum number of cached mappings.
+     */
+    static final int DEFAULT_MAX_MAPPINGS = 16;
+
+    // The maximum number of pooled read buffers per size class
+    private static final int MAX_POOLED_BUFFERS = 16;
+
+    // The smallest buffer size class (4kB)
+    private static final int MIN_BUFFER_SHIFT = 12;
+
+    // Used to unmap a mapped byte buffer, if supported by the runtime
+    private static final Object UNMAPPER;
+    private static final Method UNMAP_METHOD;
+    private static final Method CLEANER_METHOD;
+
+    static {
+        Object unmapper = null;
+        Method unmapMethod = null;
+        Method cleanerMethod = null;
+        try {
+            // Java 9+
+            Class<?> c = Class.forName("sun.misc.Unsafe");
+            unmapMethod = c.getMethod("invokeCleaner", ByteBuffer.class);
+            Field f = c.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unmapper = f.get(null);
+        } catch (Exception | LinkageError ex) {
+            unmapMethod = null;
+            try {
+                // Java 7 and 8
+                cleanerMethod = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                unmapMethod = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            } catch (Exception | LinkageError ex2) {
+                cleanerMethod = null;
+                unmapMethod = null;
+                LOG.warn("Unable to unmap memory mapped source files explicitly");
+            }
+        }
+        UNMAPPER = unmapper;
+        UNMAP_METHOD = unmapMethod;
+        CLEANER_METHOD = cleanerMethod;
+    }
+
+    private final int mmapThreshold;
+    private final int maxMappings;
+
+    // Pooled read buffers by size class
+    private final BufferPool[] pools;
+
+    // Access ordered, guarded by this
+    private final LinkedHashMap<String, Mapping> mappings = new LinkedHashMap<>(16, 0.75f, true);
+
+    // Cached and in use mappings, guarded by this
+    private int mappingCount;
+    private long mappedBytes;
+
+    /**
+     * Creates a new source file reader.
+     *
+     * @param mmapThreshold The minimum file size in bytes to memory map a
+     * file. Smaller files are read into pooled buffers.
+     * @param maxMappings The maximum number of mappings which are kept open
+     * for hot files. If <code>0</code>, each mapping is unmapped as soon as
+     * the stream on it was closed.
+     *
+     * @throws IllegalArgumentException if a value is less than 0.
+     */
+    SourceFileReader(int mmapThreshold, int maxMappings) {
+        if (mmapThreshold < 0) {
+            throw new IllegalArgumentException("Invalid mmap threshold");
+        }
+        if (maxMappings < 0) {
+            throw new IllegalArgumentException("Invalid max mappings");
+        }
+        this.mmapThreshold = mmapThreshold;
+        this.maxMappings = maxMappings;
+
+        this.pools = new BufferPool[mmapThreshold > 0 ? sizeClass(mmapThreshold - 1) + 1 : 0];
+        for (int i = 0; i < pools.length; i++) {
+            // The largest class is limited to the threshold
+            pools[i] = new BufferPool(Math.min(1 << (i + MIN_BUFFER_SHIFT), mmapThreshold));
+        }
+    }
+
+    // Returns the index of the smallest size class to hold the given length
+    private static int sizeClass(int length) {
+        if (length <= 1 << MIN_BUFFER_SHIFT) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_BUFFER_SHIFT;
+    }
+
+    /**
+     * Opens an input stream on the content of the given file.
+     *
+     * @param f The file to read.
+     *
+     * @return The input stream.
+     *
+     * @throws IOException if the file could not be read.
+     */
+    InputStream open(File f) throws IOException {
+        try (FileInputStream fis = new FileInputStream(f)) {
+            FileChannel ch = fis.getChannel();
+            long length = ch.size();
+
+            if (length < mmapThreshold) {
+                return read(ch, (int) length);
+            }
+            return map(f, ch, length);
+        }
+    }
+
+    // Positional reads into a pooled buffer
+    private InputStream read(FileChannel ch, int length) throws IOException {
+        BufferPool pool = pools[sizeClass(length)];
+        byte[] b = pool.take();
+
+        ByteBuffer buf = ByteBuffer.wrap(b, 0, length);
+        try {
+            while (buf.hasRemaining()) {
+                if (ch.read(buf, buf.position()) < 0) {
+                    break;
+                }
+            }
+        } catch (IOException ex) {
+            pool.recycle(b);
+            throw ex;
+        }
+        buf.flip();
+        return new SourceInput(buf, b, pool, null);
+    }
+
+    private InputStream map(File f, FileChannel ch, long length) throws IOException {
+        final String key = f.getAbsolutePath();
+        final long lastModified = f.lastModified();
+
+        synchronized (this) {
+            Mapping m = mappings.get(key);
+            if (m != null) {
+                if (m.length == length && m.lastModified == lastModified) {
+                    m.refs++;
+                    return new SourceInput(m.buf.duplicate(), null, null, m);
+                }
+                // The file was modified
+                mappings.remove(key);
+                evict(m);
+            }
+        }
+
+        Mapping m = new Mapping(ch.map(FileChannel.MapMode.READ_ONLY, 0, length),
+                length, lastModified);
+
+        synchronized (this) {
+            mappingCount++;
+            mappedBytes += length;
+
+            if (maxMappings > 0) {
+                Mapping old = mappings.put(key, m);
+                if (old != null) {
+                    evict(old);
+                }
+                Iterator<Mapping> it = mappings.values().iterator();
+                while (mappings.size() > maxMappings && it.hasNext()) {
+                    Mapping eldest = it.next();
+                    it.remove();
+                    evict(eldest);
+                }
+            } else {
+                m.evicted = true;
+            }
+            return new SourceInput(m.buf.duplicate(), null, null, m);
+        }
+    }
+
+    // Must be called with lock held
+    private void evict(Mapping m) {
+        m.evicted = true;
+        if (m.refs == 0) {
+            unmap(m);
+        }
+    }
+
+    private synchronized void release(Mapping m) {
+        if (--m.refs == 0 && m.evicted) {
+            unmap(m);
+        }
+    }
+
+    // Must be called with lock held
+    private void unmap(Mapping m) {
+        mappingCount--;
+        mappedBytes -= m.length;
+        unmap(m.buf);
+    }
+
+    private static void unmap(MappedByteBuffer buf) {
+        if (UNMAP_METHOD == null) {
+            return;
+        }
+        try {
+            if (CLEANER_METHOD != null) {
+                Object cleaner = CLEANER_METHOD.invoke(buf);
+                if (cleaner != null) {
+                    UNMAP_METHOD.invoke(cleaner);
+                }
+            } else {
+                UNMAP_METHOD.invoke(UNMAPPER, buf);
+            }
+        } catch (Exception ex) {
+            // The mapping is released by the garbage collector
+            LOG.debug("Unable to unmap source file", ex);
+        }
+    }
+
+    /**
+     * Unmaps all cached mappings which are not in use. Mappings in use are
+     * unmapped as soon as the last stream on it was closed.
+     */
+    synchronized void clear() {
+        for (Mapping m : mappings.values()) {
+            evict(m);
+        }
+        mappings.clear();
+        for (BufferPool pool : pools) {
+            pool.clear();
+        }
+    }
+
+    /**
+     * @return The number of mapped files (cached or in use).
+     */
+    synchronized int getMappingCount() {
+        return mappingCount;
+    }
+
+    /**
+     * @return The size in bytes of all mapped files (cached or in use).
+     */
+    synchronized long getMappedBytes() {
+        return mappedBytes;
+    }
+
+    /**
+     * @return The number of pooled read buffers.
+     */
+    int getPooledBufferCount() {
+        int count = 0;
+        for (BufferPool pool : pools) {
+            count += pool.count.get();
+        }
+        return count;
+    }
+
+    /**
+     * @return The size in bytes of all pooled read buffers.
+     */
+    long getPooledBytes() {
+        long bytes = 0L;
+        for (BufferPool pool : pools) {
+            bytes += (long) pool.count.get() * pool.size;
+        }
+        return bytes;
+    }
+
+    /**
+     * The pooled read buffers of one size class.
+     */
+    private static final class BufferPool {
+
+        private final int size;
+
+        private final ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger count = new AtomicInteger();
+
+        private BufferPool(int size) {
+            this.size = size;
+        }
+
+        private byte[] take() {
+            byte[] b = buffers.poll();
+            if (b == null) {
+                return new byte[size];
+            }
+            count.decrementAndGet();
+            return b;
+        }
+
+        private void recycle(byte[] b) {
+            if (count.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+                buffers.offer(b);
+            } else {
+                count.decrementAndGet();
+            }
+        }
+
+        private void clear() {
+            while (buffers.poll() != null) {
+                count.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * A memory mapped file.
+     */
+    private static final class Mapping {
+
+        private final MappedByteBuffer buf;
+        private final long length;
+        private final long lastModified;
+
+        // Guarded by the reader
+        private int refs = 1;
+        private boolean evicted;
+
+        private Mapping(MappedByteBuffer buf, long length, long lastModified) {
+            this.buf = buf;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * An input stream on a pooled buffer or a mapping which releases the
+     * buffer or mapping on close.
+     */
+    private final class SourceInput extends InputStream {
+
+        private ByteBuffer buf;
+        private final byte[] pooled;
+        private final BufferPool pool;
+        private final Mapping mapping;
+
+        private SourceInput(ByteBuffer buf, byte[] pooled, BufferPool pool, Mapping mapping) {
+            this.buf = buf;
+            this.pooled = pooled;
+            this.pool = pool;
+            this.mapping = mapping;
+        }
+
+        @Override
+        public int read() throws IOException {
+            ensureOpen();
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            return buf.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            ensureOpen();
+            if (len == 0) {
+                return 0;
+            }
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buf.remaining());
+            buf.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            ensureOpen();
+            int k = (int) Math.max(0L, Math.min(n, buf.remaining()));
+            buf.position(buf.position() + k);
+            return k;
+        }
+
+        @Override
+        public int available() throws IOException {
+            ensureOpen();
+            return buf.remaining();
+        }
+
+        private void ensureOpen() throws IOException {
+            if (buf == null) {
+                throw new IOException("Stream closed");
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (buf == null) {
+                return;
+            }
+            buf = null;
+            if (pooled != null) {
+                pool.recycle(pooled);
+            }
+            if (mapping != null) {
+                release(mapping);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,184 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An output stream which keeps the written data in memory up to a threshold
+ * and spills all data to a temporary file as soon as the threshold is
+ * exceeded.
+ * <p>
+ * Used to buffer remote source bodies of unknown length without holding
+ * large sources on the heap. The temporary file must be removed by
+ * {@link #dispose()} after the buffered data was processed.
+ *
+ * @author Steffen Kremp
+ *
+ * @since 1.2
+ */
+final class SpillOutputStream extends OutputStream {
+
+    private final int threshold;
+    private final File directory;
+
+    private FastByteArrayOutputStream mem;
+    private File file;
+    private OutputStream fos;
+    private long size;
+
+    /**
+     * Creates a new spill output stream.
+     *
+     * @param threshold The maximum number of bytes kept in memory.
+     * @param directory The directory for the temporary file or
+     * <code>null</code> to use the default temporary-file directory.
+     */
+    SpillOutputStream(int threshold, File directory) {
+        this.threshold = Math.max(0, threshold);
+        this.directory = directory;
+        this.mem = new FastByteArrayOutputStream(Math.min(this.threshold, 1024 * 16));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (fos == null && size + 1 > threshold) {
+            spill();
+        }
+        if (fos != null) {
+            fos.write(b);
+        } else {
+            mem.write(b);
+        }
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (fos == null && size + len > threshold) {
+            spill();
+        }
+        if (fos != null) {
+            fos.write(b, off, len);
+        } else {
+            mem.write(b, off, len);
+        }
+        size += len;
+    }
+
+    // Moves the data written so far into a new temporary file
+    private void spill() throws IOException {
+        file = File.createTempFile("pictura-", ".tmp", directory);
+        fos = new BufferedOutputStream(new FileOutputStream(file), 1024 * 16);
+        mem.writeTo(fos);
+        mem = null;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (fos != null) {
+            fos.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (fos != null) {
+            fos.close();
+        }
+    }
+
+    /**
+     * Returns a new input stream on the written data. If the data was spilled
+     * to a temporary file, the returned stream is a {@link FileInput}.
+     *
+     * @return The input stream.
+     *
+     * @throws IOException if the temporary file could not be read.
+     */
+    InputStream newInputStream() throws IOException {
+        if (file != null) {
+            flush();
+            return new FileInput(file);
+        }
+        return new FastByteArrayInputStream(mem);
+    }
+
+    /**
+     * @return The number of bytes written.
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * @return <code>true</code> if the data was spilled to a temporary file.
+     */
+    boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * @return The temporary file or <code>null</code> if the data is kept in
+     * memory.
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Closes this stream and removes the temporary file, if any.
+     */
+    void dispose() {
+        try {
+            close();
+        } catch (IOException ignore) {
+        }
+        if (file != null && !file.delete()) {
+            file.deleteOnExit();
+        }
+        mem = null;
+    }
+
+    /**
+     * An input stream on a spilled temporary file. The image reader reads the
+     * file directly with random access instead of caching the stream again.
+     */
+    static final class FileInput extends FileInputStream {
+
+        private final File file;
+
+        FileInput(File file) throws FileNotFoundException {
+            super(file);
+            this.file = file;
+        }
+
+        /**
+         * @return The temporary file.
+         */
+        File getFile() {
+            return file;
+        }
+    }
+
+}
@@ -183,6 +183,10 @@ final class StatsRequestProcessor extends RequestProcessor {
                 json = buildImageIORegistryJsonResponse();
                 break;
 
+            case "origins":
+                json = buildOriginStatsJsonResponse();
+                break;
+
             case "cache":
                 String filter = req.getParameter("f") != null ? req.getParameter("f") : null;
                 String action = req.getParameter("a") != null ? req.getParameter("a") : null;
@@ -193,6 +197,17 @@ final class StatsRequestProcessor extends RequestProcessor {
                     return;
                 }
 
+                if ("purge".equals(action)) {
+                    String source = req.getParameter("s");
+                    if (source == null || source.isEmpty()) {
+                        resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                                "Cache purge request without source");
+                        return;
+                    }
+                    json = buildHttpCachePurgeResponse(source);
+                    break;
+                }
+
                 json = buildHttpCacheStatsResponse(filter, action);
                 break;
 
@@ -245,7 +260,37 @@ final class StatsRequestProcessor extends RequestProcessor {
         if (servlet.getHttpCache() != null) {
             json.append("\t").append("\"cache\": ").append("{").append("\n");
             json.append("\t\t").append("\"size\": ").append(servlet.getHttpCacheSize()).append(",\n");
-            json.append("\t\t").append("\"hitRate\": ").append(servlet.getHttpCacheHitRate()).append("\n");
+            json.append("\t\t").append("\"hitRate\": ").append(servlet.getHttpCacheHitRate()).append(",\n");
+            json.append("\t\t").append("\"negativeSize\": ").append(servlet.getHttpCacheNegativeSize()).append(",\n");
+            json.append("\t\t").append("\"negativeHitCount\": ").append(servlet.getHttpCacheNegativeHitCount()).append("\n");
+            json.append("\t}").append(",\n");
+        }
+
+        if (servlet.getRasterCacheSize() > -1L) {
+            json.append("\t").append("\"rasterCache\": ").append("{").append("\n");
+            json.append("\t\t").append("\"size\": ").append(servlet.getRasterCacheSize()).append(",\n");
+            json.append("\t\t").append("\"count\": ").append(servlet.getRasterCacheCount()).append(",\n");
+            json.append("\t\t").append("\"hitRate\": ").append(servlet.getRasterCacheHitRate()).append("\n");
+            json.append("\t}").append(",\n");
+        }
+
+        if (servlet.getFileMappingCount() > -1) {
+            json.append("\t").append("\"fileMappings\": ").append("{").append("\n");
+            json.append("\t\t").append("\"count\": ").append(servlet.getFileMappingCount()).append(",\n");
+            json.append("\t\t").append("\"bytes\": ").append(servlet.getFileMappedBytes()).append("\n");
+            json.append("\t}").append(",\n");
+        }
+
+        if (servlet.getOriginRejectedCount() > -1L) {
+            json.append("\t").append("\"originGuard\": ").append("{").append("\n");
+            json.append("\t\t").append("\"origins\": ").append(servlet.getOriginStates().size()).append(",\n");
+            json.append("\t\t").append("\"rejectedCount\": ").append(servlet.getOriginRejectedCount()).append("\n");
+            json.append("\t}").append(",\n");
+        }
+
+        if (servlet.getOriginFetchCoalescedCount() > -1L) {
+            json.append("\t").append("\"originFetch\": ").append("{").append("\n");
+            json.append("\t\t").append("\"coalescedCount\": ").append(servlet.getOriginFetchCoalescedCount()).append("\n");
             json.append("\t}").append(",\n");
         }
 
@@ -400,6 +445,28 @@ final class StatsRequestProcessor extends RequestProcessor {
         return json.toString();
     }
 
+    private String buildHttpCachePurgeResponse(String source) {
+        StringBuilder json = new StringBuilder();
+        json.append("{").append("\n");
+
+        if (servlet.getHttpCache() != null) {
+            json.append("\t").append("\"purgedEntries\": [\n");
+
+            String sep = "";
+            for (String key : servlet.purgeHttpCache(source)) {
+                json.append(sep);
+                json.append("\t\t\"").append(escapeString(key)).append("\"");
+                sep = ",\n";
+            }
+            json.append("\n\t]\n");
+        } else {
+            json.append("\t\"message\": \"").append(escapeString("No cache active")).append("\"");
+        }
+
+        json.append("}");
+        return json.toString();
+    }
+
     private String buildImageIORegistryJsonResponse() {
         StringBuilder json = new StringBuilder();
         json.append("{").append("\n");
@@ -454,6 +521,40 @@ final class StatsRequestProcessor extends RequestProcessor {
         return json.toString();
     }
 
+    private String buildOriginStatsJsonResponse() {
+        StringBuilder json = new StringBuilder();
+        json.append("{").append("\n");
+        json.append("\t\"origins\": [\n");
+
+        OriginGuard guard = servlet.getOriginGuard();
+        if (guard != null) {
+            String sep = "";
+            for (Map.Entry<String, OriginGuard.Origin> e : guard.getOrigins().entrySet()) {
+                OriginGuard.Origin o = e.getValue();
+
+                json.append(sep);
+                json.append("\t\t{\n");
+                json.append("\t\t\t\"origin\": \"").append(escapeString(e.getKey())).append("\",\n");
+                json.append("\t\t\t\"state\": \"").append(o.getState().name()).append("\",\n");
+                json.append("\t\t\t\"activeCount\": ").append(o.getActiveCount()).append(",\n");
+                json.append("\t\t\t\"requestCount\": ").append(o.getRequestCount()).append(",\n");
+                json.append("\t\t\t\"failureCount\": ").append(o.getFailureCount()).append(",\n");
+                json.append("\t\t\t\"timeoutCount\": ").append(o.getTimeoutCount()).append(",\n");
+                json.append("\t\t\t\"averageLatency\": ").append(o.getAverageLatency()).append(",\n");
+                json.append("\t\t\t\"rejectedCount\": ").append(o.getRejectedCount()).append("\n");
+                json.append("\t\t}");
+                sep = ",\n";
+            }
+            if (!sep.isEmpty()) {
+                json.append("\n");
+            }
+        }
+
+        json.append("\t]\n");
+        json.append("}");
+        return json.toString();
+    }
+
     private void appendImageSpi(StringBuilder json, ImageReaderWriterSpi spi) {
         json.append("\t\t{\n");
         json.append("\t\t\t\"pluginClassName\": \"").append(escapeString(spi.getClass().getName())).append("\",\n");
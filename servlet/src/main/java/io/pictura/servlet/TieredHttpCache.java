@@ -0,0 +1,215 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A two level {@link HttpCache} implementation, e.g. an in-memory cache as
+ * first level and a disk cache as second level.
+ * <p>
+ * New entries are written to both levels. If an entry is only found in the
+ * second level cache, the entry will be promoted to the first level cache
+ * after it was requested for a specified number of times.
+ *
+ * @author Steffen Kremp
+ *
+ * @see HttpCache
+ * @see HttpCacheServlet#createTieredHttpCache(io.pictura.servlet.HttpCache,
+ * io.pictura.servlet.HttpCache)
+ *
+ * @since 1.2
+ */
+final class TieredHttpCache implements IterableHttpCache, Closeable {
+
+    static final int DEFAULT_PROMOTION_THRESHOLD = 2;
+
+    final HttpCache l1;
+    final HttpCache l2;
+
+    private final int promotionThreshold;
+
+    private final Set<String> keys;
+
+    TieredHttpCache(HttpCache l1, HttpCache l2, int promotionThreshold) {
+        if (l1 == null || l2 == null) {
+            throw new IllegalArgumentException("Cache must be not null");
+        }
+        this.l1 = l1;
+        this.l2 = l2;
+        this.promotionThreshold = promotionThreshold;
+        this.keys = new KeySet();
+    }
+
+    @Override
+    public HttpCacheEntry get(String key) {
+        HttpCacheEntry entry = l1.get(key);
+        if (entry != null) {
+            return entry;
+        }
+
+        entry = l2.get(key);
+        if (entry != null && !entry.isExpired()
+                && entry.getHitCount() + 1 >= promotionThreshold) {
+
+            // The first level cache may keep a reference, so we need a heap
+            // copy if the content is stored outside
+            if (!entry.isContentDirect()) {
+                l1.put(key, entry);
+            } else {
+                byte[] content = entry.getContent();
+                if (content != null) {
+                    l1.put(key, new HttpCacheEntry(entry, content));
+                }
+            }
+        }
+        return entry;
+    }
+
+    @Override
+    public void put(String key, HttpCacheEntry entry) {
+        l1.put(key, entry);
+        l2.put(key, entry);
+    }
+
+    @Override
+    public boolean remove(String key) {
+        boolean r1 = l1.remove(key);
+        boolean r2 = l2.remove(key);
+        return r1 || r2;
+    }
+
+    /**
+     * Returns an unmodifiable view of the keys of both cache levels.
+     *
+     * @return All cache keys.
+     */
+    @Override
+    public Set<String> keySet() {
+        return keys;
+    }
+
+    /**
+     * Returns the cached entries of both levels without to record an access.
+     * If an entry is cached in both levels, the first level entry is returned.
+     *
+     * @return The cached entries.
+     */
+    @Override
+    public Collection<HttpCacheEntry> entries() {
+        ArrayList<HttpCacheEntry> entries = new ArrayList<>(HttpCacheSnapshot.entries(l1));
+        HashSet<String> keys = new HashSet<>(entries.size());
+        for (HttpCacheEntry entry : entries) {
+            keys.add(entry.getKey());
+        }
+        for (HttpCacheEntry entry : HttpCacheSnapshot.entries(l2)) {
+            if (!keys.contains(entry.getKey())) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Closes the cache levels if they are {@link Closeable}.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (l1 instanceof Closeable) {
+                ((Closeable) l1).close();
+            }
+        } finally {
+            if (l2 instanceof Closeable) {
+                ((Closeable) l2).close();
+            }
+        }
+    }
+
+    // Union of the keys from both levels without copying
+    private final class KeySet extends AbstractSet<String> {
+
+        @Override
+        public boolean contains(Object o) {
+            return l1.keySet().contains(o) || l2.keySet().contains(o);
+        }
+
+        @Override
+        public int size() {
+            int size = l2.keySet().size();
+            for (String key : l1.keySet()) {
+                if (!l2.keySet().contains(key)) {
+                    size++;
+                }
+            }
+            return size;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            final Iterator<String> it2 = l2.keySet().iterator();
+            final Iterator<String> it1 = l1.keySet().iterator();
+
+            return new Iterator<String>() {
+
+                private String next;
+
+                @Override
+                public boolean hasNext() {
+                    while (next == null) {
+                        if (it2.hasNext()) {
+                            next = it2.next();
+                        } else if (it1.hasNext()) {
+                            String key = it1.next();
+                            if (!l2.keySet().contains(key)) {
+                                next = key;
+                            }
+                        } else {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+
+                @Override
+                public String next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    String key = next;
+                    next = null;
+                    return key;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+
+}
@@ -33,6 +33,7 @@ import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
@@ -108,21 +109,8 @@ public interface URLConnectionFactory {
 
 		    final HttpsURLConnection httpsCon = (HttpsURLConnection) httpCon;
 
-		    SSLContext sslCtx;
-		    try {
-			sslCtx = SSLContext.getInstance("SSL");
-			sslCtx.init(null, new TrustManager[]{new X509NoValidationTrustManager()}, new SecureRandom());
-		    } catch (NoSuchAlgorithmException | KeyManagementException e) {
-			throw new RuntimeException("Internal server error", e);
-		    }
-
-		    httpsCon.setSSLSocketFactory(sslCtx.getSocketFactory());
-		    httpsCon.setHostnameVerifier(new HostnameVerifier() {
-			@Override
-			public boolean verify(String string, SSLSession ssls) {
-			    return true; // all hosts valid
-			}
-		    });
+		    httpsCon.setSSLSocketFactory(getNoValidationSocketFactory());
+		    httpsCon.setHostnameVerifier(NO_VALIDATION_HOSTNAME_VERIFIER);
 		}
 		httpCon.setRequestMethod("GET");
 		if (props.get("io.pictura.servlet.HTTP_FOLLOW_REDIRECTS") instanceof Boolean) {
@@ -132,6 +120,21 @@ public interface URLConnectionFactory {
 		con = (proxy != null ? url.openConnection(proxy) : url.openConnection());
 	    }
 
+	    setRequestProperties(con, props);
+	    return con;
+	}
+
+	/**
+	 * Applies the generic connection properties (timeouts, user agent and
+	 * request headers) to the given connection.
+	 *
+	 * @param con The connection.
+	 * @param props The default connection properties.
+	 *
+	 * @since 1.2
+	 */
+	static void setRequestProperties(URLConnection con, Properties props) {
+
 	    // Generic properties
 	    if (props.get("io.pictura.servlet.HTTP_CONNECT_TIMEOUT") instanceof Integer) {
 		con.setConnectTimeout((Integer) props.get("io.pictura.servlet.HTTP_CONNECT_TIMEOUT"));
@@ -166,8 +169,19 @@ public interface URLConnectionFactory {
 	    if (ifModifiedSince != null && !ifModifiedSince.isEmpty()) {
 		con.setRequestProperty(HEADER_IFMODSINCE, ifModifiedSince);
 	    }
+	}
 
-	    return con;
+	/**
+	 * Returns the shared SSL socket factory which accepts all server
+	 * certificates. The SSL context is created once and reused for all
+	 * connections.
+	 *
+	 * @return The SSL socket factory.
+	 *
+	 * @since 1.2
+	 */
+	static SSLSocketFactory getNoValidationSocketFactory() {
+	    return NoValidationSocketFactoryHolder.FACTORY;
 	}
 
 	/**
@@ -223,9 +237,8 @@ public interface URLConnectionFactory {
 	}
 
 	private int getHttpProxyPort(Properties props) {
-	    Object o = getPropertyValue("io.pictura.servlet.HTTP_PROXY_PORT", 
-		    "http.proxyPort", props);
-	    return (o instanceof Integer) ? (int) o : -1;
+	    return toPort(getPropertyValue("io.pictura.servlet.HTTP_PROXY_PORT", 
+		    "http.proxyPort", props));
 	}
 
 	private String getHttpsProxyHost(Properties props) {
@@ -235,14 +248,28 @@ public interface URLConnectionFactory {
 	}
 
 	private int getHttpsProxyPort(Properties props) {
-	    Object o = getPropertyValue("io.pictura.servlet.HTTPS_PROXY_PORT", 
-		    "https.proxyPort", props);
-	    return (o instanceof Integer) ? (int) o : -1;
+	    return toPort(getPropertyValue("io.pictura.servlet.HTTPS_PROXY_PORT", 
+		    "https.proxyPort", props));
+	}
+
+	// The port is an Integer if set by the servlet or a String if set by a
+	// system property or environment variable
+	private static int toPort(Object o) {
+	    if (o instanceof Integer) {
+		return (int) o;
+	    } else if (o instanceof String) {
+		try {
+		    return Integer.parseInt(((String) o).trim());
+		} catch (NumberFormatException ex) {
+		    // invalid port
+		}
+	    }
+	    return -1;
 	}
 
 	private Object getPropertyValue(String key, String fallbackKey, Properties props) {
 	    if (props.get(key) != null) {
-		return props.getProperty(key);
+		return props.get(key);
 	    }
 	    // Fallback
 	    return System.getProperty(fallbackKey) != null
@@ -250,6 +277,30 @@ public interface URLConnectionFactory {
 		    : System.getenv(fallbackKey);
 	}
 
+	// Hostname verifier which accepts all hosts
+	static final HostnameVerifier NO_VALIDATION_HOSTNAME_VERIFIER = new HostnameVerifier() {
+	    @Override
+	    public boolean verify(String string, SSLSession ssls) {
+		return true; // all hosts valid
+	    }
+	};
+
+	// Lazy initialization holder of the shared no validation SSL context
+	private static final class NoValidationSocketFactoryHolder {
+
+	    private static final SSLSocketFactory FACTORY;
+
+	    static {
+		try {
+		    SSLContext sslCtx = SSLContext.getInstance("SSL");
+		    sslCtx.init(null, new TrustManager[]{new X509NoValidationTrustManager()}, new SecureRandom());
+		    FACTORY = sslCtx.getSocketFactory();
+		} catch (NoSuchAlgorithmException | KeyManagementException e) {
+		    throw new RuntimeException("Internal server error", e);
+		}
+	    }
+	}
+
 	private static final class X509NoValidationTrustManager implements X509TrustManager {
 
 	    @Override
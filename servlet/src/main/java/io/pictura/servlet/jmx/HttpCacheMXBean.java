@@ -42,4 +42,73 @@ public interface HttpCacheMXBean {
      */
     public float getHitRate();
     
+    /**
+     * @return The number of requests which were served from a cache entry that
+     * was produced by a concurrent request for the same resource.
+     * 
+     * @since 1.2
+     */
+    public long getCoalescedCount();
+    
+    /**
+     * @return The number of cache snapshots written in the background since
+     * the servlet was started.
+     * 
+     * @since 1.2
+     */
+    public long getSnapshotCount();
+    
+    /**
+     * @return The time in millis when the last background snapshot was
+     * started or <code>0</code> if there was no snapshot yet.
+     * 
+     * @since 1.2
+     */
+    public long getLastSnapshotTimestamp();
+    
+    /**
+     * @return The duration in millis of the last background snapshot or
+     * <code>-1</code> if background snapshots are disabled.
+     * 
+     * @since 1.2
+     */
+    public long getLastSnapshotDuration();
+    
+    /**
+     * @return The file size in bytes of the last background snapshot or
+     * <code>-1</code> if background snapshots are disabled.
+     * 
+     * @since 1.2
+     */
+    public long getLastSnapshotSize();
+    
+    /**
+     * Removes all cache entries which are derived from the specified source,
+     * e.g. all formats and sizes of the same source image.
+     * 
+     * @param source The path or URL of the source image as given in the
+     * request URL.
+     * 
+     * @return The number of removed cache entries.
+     * 
+     * @since 1.2
+     */
+    public int purge(String source);
+    
+    /**
+     * @return The current number of cached error responses or -1 if negative
+     * caching is not enabled.
+     * 
+     * @since 1.2
+     */
+    public int getNegativeSize();
+    
+    /**
+     * @return The number of requests which were answered from a cached error
+     * response.
+     * 
+     * @since 1.2
+     */
+    public long getNegativeHitCount();
+    
 }
@@ -16,6 +16,7 @@
 package io.pictura.servlet.jmx;
 
 import io.pictura.servlet.PicturaServlet;
+import java.util.Map;
 import javax.management.MXBean;
 
 /**
@@ -135,4 +136,70 @@ public interface PicturaServletMXBean {
      */
     public float getErrorRate();
 
+    /**
+     * @return The size in bytes of the pixel data of all decoded source images
+     * in the raster cache or -1 if the raster cache is not enabled.
+     *
+     * @since 1.2
+     */
+    public long getRasterCacheSize();
+
+    /**
+     * @return The number of decoded source images in the raster cache or -1
+     * if the raster cache is not enabled.
+     *
+     * @since 1.2
+     */
+    public int getRasterCacheCount();
+
+    /**
+     * @return The raster cache hit rate from 0 till 1.0f (0..100%) or -1f if
+     * the raster cache is not enabled.
+     *
+     * @since 1.2
+     */
+    public float getRasterCacheHitRate();
+
+    /**
+     * @return The number of requests which were answered by the fetch of a
+     * concurrent request for the same remote image source or -1 if fetch
+     * coalescing is not enabled.
+     *
+     * @since 1.2
+     */
+    public long getOriginFetchCoalescedCount();
+
+    /**
+     * @return The circuit state (CLOSED, OPEN or HALF_OPEN) of each known
+     * origin of remote image sources.
+     *
+     * @since 1.2
+     */
+    public Map<String, String> getOriginStates();
+
+    /**
+     * @return The number of requests to origins which were rejected by a
+     * bulkhead or an open circuit or -1 if neither bulkheads nor circuit
+     * breakers are enabled.
+     *
+     * @since 1.2
+     */
+    public long getOriginRejectedCount();
+
+    /**
+     * @return The number of memory mapped local source image files (cached or
+     * currently read).
+     *
+     * @since 1.2
+     */
+    public int getFileMappingCount();
+
+    /**
+     * @return The size in bytes of all memory mapped local source image files
+     * (cached or currently read).
+     *
+     * @since 1.2
+     */
+    public long getFileMappedBytes();
+
 }
@@ -0,0 +1,157 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Steffen Kremp
+ */
+public class ByteRangeTest {
+
+    @Test
+    public void testParse() throws Exception {
+        ByteRange r = ByteRange.parse("bytes=0-499", 1000);
+        assertEquals(0, r.getStart());
+        assertEquals(499, r.getEnd());
+        assertEquals(500, r.getLength());
+        assertEquals("bytes 0-499/1000", r.getContentRange());
+
+        r = ByteRange.parse("bytes=500-", 1000);
+        assertEquals(500, r.getStart());
+        assertEquals(999, r.getEnd());
+
+        r = ByteRange.parse("bytes=-100", 1000);
+        assertEquals(900, r.getStart());
+        assertEquals(999, r.getEnd());
+
+        // Larger than the body
+        r = ByteRange.parse("bytes=-2000", 1000);
+        assertEquals(0, r.getStart());
+        r = ByteRange.parse("Bytes=900-2000", 1000);
+        assertEquals(999, r.getEnd());
+        assertEquals(100, r.getLength());
+    }
+
+    @Test
+    public void testParseInvalid() throws Exception {
+        assertNull(ByteRange.parse(null, 1000));
+        assertNull(ByteRange.parse("", 1000));
+        assertNull(ByteRange.parse("items=0-1", 1000));
+        assertNull(ByteRange.parse("bytes=", 1000));
+        assertNull(ByteRange.parse("bytes=abc", 1000));
+        assertNull(ByteRange.parse("bytes=1-a", 1000));
+        assertNull(ByteRange.parse("bytes=500-100", 1000));
+        assertNull(ByteRange.parse("bytes=-", 1000));
+
+        // Multiple ranges
+        assertNull(ByteRange.parse("bytes=0-1,5-6", 1000));
+    }
+
+    @Test
+    public void testParseNotSatisfiable() throws Exception {
+        ByteRange r = ByteRange.parse("bytes=1000-", 1000);
+        assertNotNull(r);
+        assertFalse(r.isSatisfiable());
+        assertEquals(0, r.getLength());
+        assertEquals("bytes */1000", r.getContentRange());
+
+        assertFalse(ByteRange.parse("bytes=-0", 1000).isSatisfiable());
+        assertFalse(ByteRange.parse("bytes=0-", 0).isSatisfiable());
+    }
+
+    @Test
+    public void testGetRequestedRange() throws Exception {
+        HttpServletRequest req = createRequest("bytes=10-19");
+        assertEquals(10, ByteRange.getRequestedRange(req, 100, null, -1L).getLength());
+
+        when(req.getMethod()).thenReturn("POST");
+        assertNull(ByteRange.getRequestedRange(req, 100, null, -1L));
+    }
+
+    @Test
+    public void testIfRange() throws Exception {
+        long lastModified = 1468300000000L;
+
+        HttpServletRequest req = createRequest("bytes=10-19");
+        when(req.getHeader("If-Range")).thenReturn("Tue, 12 Jul 2016 05:06:40 GMT");
+        when(req.getDateHeader("If-Range")).thenReturn(lastModified);
+
+        assertNotNull(ByteRange.getRequestedRange(req, 100, null, lastModified + 500));
+        assertNull(ByteRange.getRequestedRange(req, 100, null, lastModified + 1000));
+        assertNull(ByteRange.getRequestedRange(req, 100, null, -1L));
+
+        // Strong and weak entity tags
+        req = createRequest("bytes=10-19");
+        when(req.getHeader("If-Range")).thenReturn("\"abc\"");
+        assertNotNull(ByteRange.getRequestedRange(req, 100, "\"abc\"", -1L));
+        assertNull(ByteRange.getRequestedRange(req, 100, "\"xyz\"", -1L));
+
+        when(req.getHeader("If-Range")).thenReturn("W/\"abc\"");
+        assertNull(ByteRange.getRequestedRange(req, 100, "W/\"abc\"", -1L));
+    }
+
+    @Test
+    public void testApply() throws Exception {
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        ByteRange r = ByteRange.apply(createRequest("bytes=10-19"), resp, 100, null, -1L);
+
+        assertTrue(r.isSatisfiable());
+        verify(resp).setHeader("Accept-Ranges", "bytes");
+        verify(resp).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        verify(resp).setHeader("Content-Range", "bytes 10-19/100");
+        verify(resp).setContentLength(10);
+    }
+
+    @Test
+    public void testApplyNotSatisfiable() throws Exception {
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        ByteRange r = ByteRange.apply(createRequest("bytes=100-"), resp, 100, null, -1L);
+
+        assertFalse(r.isSatisfiable());
+        verify(resp).setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        verify(resp).setHeader("Content-Range", "bytes */100");
+        verify(resp).setContentLength(0);
+    }
+
+    @Test
+    public void testApplyFullBody() throws Exception {
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        assertNull(ByteRange.apply(createRequest(null), resp, 100, null, -1L));
+
+        verify(resp).setHeader("Accept-Ranges", "bytes");
+        verify(resp, never()).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    }
+
+    private static HttpServletRequest createRequest(String range) {
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        when(req.getMethod()).thenReturn("GET");
+        when(req.getHeader("Range")).thenReturn(range);
+        return req;
+    }
+
+}
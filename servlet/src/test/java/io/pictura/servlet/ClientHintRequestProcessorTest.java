@@ -214,7 +214,7 @@ public class ClientHintRequestProcessorTest {
         rp.setRequest(req);
         
 	assertEquals((0.85f * 0.8f), (float)rp.getRequestedCompressionQuality(req), 0.05f);
-        assertEquals("/pictura-web/s=w222,dpr1.5/images/lenna.jpg#o=0.68;sw=222;dpr=1.5", rp.getTrueCacheKey());
+        assertEquals("/pictura-web/images/sr=1.5/sw=222/lenna.jpg#o=0.68;sw=222;dpr=1.5", rp.getTrueCacheKey());
     }
 
     @Test
@@ -235,7 +235,7 @@ public class ClientHintRequestProcessorTest {
         rp.setRequest(req);
         
 	assertEquals((0.85f * 0.7f), (float)rp.getRequestedCompressionQuality(req), 0.05f);
-        assertEquals("/pictura-web/o=70/s=w222,dpr1.5/images/lenna.jpg#o=0.595;sw=222;dpr=1.5", rp.getTrueCacheKey());
+        assertEquals("/pictura-web/images/o=70/sr=1.5/sw=222/lenna.jpg#o=0.595;sw=222;dpr=1.5", rp.getTrueCacheKey());
     }
     
     @Test
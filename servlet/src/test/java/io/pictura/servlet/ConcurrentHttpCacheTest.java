@@ -0,0 +1,232 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * @author Steffen Kremp
+ */
+public class ConcurrentHttpCacheTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateInvalidMaxSize() throws Exception {
+        new ConcurrentHttpCache(0, 1024);
+    }
+
+    @Test
+    public void testPutGetRemove() throws Exception {
+        ConcurrentHttpCache c = new ConcurrentHttpCache(1024 * 1024, 1024);
+
+        assertNull(c.get("foo"));
+        assertTrue(c.keySet().isEmpty());
+
+        HttpCacheEntry e = new HttpCacheEntry("foo", new byte[512], null, null);
+        c.put("foo", e);
+
+        assertSame(e, c.get("foo"));
+        assertEquals(1, c.keySet().size());
+        assertEquals(512, c.weightedSize());
+
+        HttpCacheEntry e2 = new HttpCacheEntry("foo", new byte[256], null, null);
+        c.put("foo", e2);
+
+        assertSame(e2, c.get("foo"));
+        assertEquals(256, c.weightedSize());
+
+        assertTrue(c.remove("foo"));
+        assertFalse(c.remove("foo"));
+        assertNull(c.get("foo"));
+        assertEquals(0, c.weightedSize());
+    }
+
+    @Test
+    public void testPutNull() throws Exception {
+        ConcurrentHttpCache c = new ConcurrentHttpCache(1024 * 1024, 1024);
+        c.put("foo", new HttpCacheEntry("foo", new byte[512], null, null));
+        c.put("foo", null);
+
+        assertNull(c.get("foo"));
+        assertTrue(c.keySet().isEmpty());
+    }
+
+    @Test
+    public void testMaxEntrySize() throws Exception {
+        ConcurrentHttpCache c = new ConcurrentHttpCache(1024 * 1024, 1024);
+        c.put("foo", new HttpCacheEntry("foo", new byte[1025], null, null));
+
+        assertNull(c.get("foo"));
+        assertEquals(0, c.weightedSize());
+    }
+
+    @Test
+    public void testMaxSize() throws Exception {
+        final long maxSize = 1024 * 64;
+        ConcurrentHttpCache c = new ConcurrentHttpCache(maxSize, 1024 * 4);
+
+        for (int i = 0; i < 1000; i++) {
+            String key = "key-" + i;
+            // Request twice to pass the admission filter
+            c.get(key);
+            c.get(key);
+            c.put(key, new HttpCacheEntry(key, new byte[1024 * (1 + (i % 4))], null, null));
+            assertTrue(c.weightedSize() <= maxSize);
+        }
+
+        assertTrue(c.weightedSize() > maxSize / 2);
+
+        // A frequently requested entry must be admitted
+        for (int i = 0; i < 5; i++) {
+            c.get("popular");
+        }
+        c.put("popular", new HttpCacheEntry("popular", new byte[1024], null, null));
+        assertNotNull(c.get("popular"));
+        assertTrue(c.weightedSize() <= maxSize);
+    }
+
+    @Test
+    public void testAdmission() throws Exception {
+        ConcurrentHttpCache c = new ConcurrentHttpCache(1024 * 8, 1024);
+
+        // Hot entries
+        for (int i = 0; i < 8; i++) {
+            String key = "hot-" + i;
+            c.put(key, new HttpCacheEntry(key, new byte[1024], null, null));
+            for (int j = 0; j < 5; j++) {
+                assertNotNull(c.get(key));
+            }
+        }
+
+        // One-off entries must not flush the hot entries
+        for (int i = 0; i < 100; i++) {
+            String key = "once-" + i;
+            assertNull(c.get(key));
+            c.put(key, new HttpCacheEntry(key, new byte[1024], null, null));
+        }
+
+        for (int i = 0; i < 8; i++) {
+            assertNotNull(c.get("hot-" + i));
+        }
+    }
+
+    @Test
+    public void testKeySetIsView() throws Exception {
+        ConcurrentHttpCache c = new ConcurrentHttpCache(1024 * 1024, 1024);
+        Set<String> keys = c.keySet();
+
+        c.put("foo", new HttpCacheEntry("foo", new byte[1], null, null));
+        assertTrue(keys.contains("foo"));
+        assertSame(keys, c.keySet());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testKeySetUnmodifiable() throws Exception {
+        ConcurrentHttpCache c = new ConcurrentHttpCache(1024 * 1024, 1024);
+        c.put("foo", new HttpCacheEntry("foo", new byte[1], null, null));
+        c.keySet().remove("foo");
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        final long maxSize = 1024 * 256;
+        final ConcurrentHttpCache c = new ConcurrentHttpCache(maxSize, 1024 * 4);
+
+        final int threads = 8;
+        final CountDownLatch latch = new CountDownLatch(threads);
+        final AtomicInteger errors = new AtomicInteger();
+
+        ExecutorService es = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            es.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 5000; i++) {
+                            String key = "key-" + ((i * (seed + 1)) % 500);
+                            if (c.get(key) == null) {
+                                c.put(key, new HttpCacheEntry(key, new byte[512 + (i % 2048)], null, null));
+                            }
+                            if (i % 100 == 0) {
+                                c.remove(key);
+                            }
+                        }
+                    } catch (RuntimeException ex) {
+                        errors.incrementAndGet();
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        es.shutdown();
+
+        assertEquals(0, errors.get());
+        assertTrue(c.weightedSize() <= maxSize);
+
+        long size = 0;
+        for (String key : c.keySet()) {
+            HttpCacheEntry e = c.get(key);
+            if (e != null) {
+                size += e.getContentLength();
+            }
+        }
+        assertEquals(size, c.weightedSize());
+    }
+
+    @Test
+    public void testFrequencySketch() throws Exception {
+        ConcurrentHttpCache.FrequencySketch sketch = new ConcurrentHttpCache.FrequencySketch(512);
+
+        assertEquals(0, sketch.frequency(42));
+        for (int i = 0; i < 20; i++) {
+            sketch.increment(42);
+        }
+        // 4-bit counters
+        assertEquals(15, sketch.frequency(42));
+    }
+
+    @Test
+    public void testFrequencySketchAging() throws Exception {
+        ConcurrentHttpCache.FrequencySketch sketch = new ConcurrentHttpCache.FrequencySketch(16);
+
+        for (int i = 0; i < 8; i++) {
+            sketch.increment(42);
+        }
+        int before = sketch.frequency(42);
+
+        // Exceed the sample size to force a reset
+        for (int i = 0; i < 1000; i++) {
+            sketch.increment(i * 31);
+        }
+        assertTrue(sketch.frequency(42) < before);
+    }
+
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import io.pictura.servlet.HttpCacheServlet.ServletOutputStreamCopier;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Simple microbenchmark to compare the single byte and the bulk write path of
+ * the {@link ContextOutputStream}. The content is written through the cache
+ * copier of the {@link HttpCacheServlet} into a byte array sink, like a
+ * cacheable response.
+ *
+ * @author Steffen Kremp
+ */
+public class ContextOutputStreamLT {
+
+    private static final int CONTENT_LENGTH = 1024 * 1024 * 4;
+    private static final int WARMUP_ITERATIONS = 20;
+    private static final int ITERATIONS = 50;
+
+    @Test
+    public void testBulkWrite() throws Exception {
+        final byte[] data = new byte[CONTENT_LENGTH];
+        final ByteArrayOutputStream sink = new ByteArrayOutputStream(CONTENT_LENGTH);
+
+        WriteStrategy singleByte = new WriteStrategy() {
+
+            @Override
+            public void write(OutputStream os) throws IOException {
+                for (byte b : data) {
+                    os.write(b);
+                }
+            }
+        };
+
+        WriteStrategy bulk = new WriteStrategy() {
+
+            @Override
+            public void write(OutputStream os) throws IOException {
+                os.write(data, 0, data.length);
+            }
+        };
+
+        final ByteBuffer direct = ByteBuffer.allocateDirect(CONTENT_LENGTH);
+        WriteStrategy byteBuffer = new WriteStrategy() {
+
+            @Override
+            public void write(OutputStream os) throws IOException {
+                direct.clear();
+                ((ContextOutputStream) os).write(direct);
+            }
+        };
+
+        long tSingleByte = measure(singleByte, sink);
+        long tBulk = measure(bulk, sink);
+        long tByteBuffer = measure(byteBuffer, sink);
+
+        System.out.println("ContextOutputStream (" + (CONTENT_LENGTH / 1024) + "kB):");
+        System.out.println("  single byte: " + (tSingleByte / 1000) + "us/op");
+        System.out.println("  bulk:        " + (tBulk / 1000) + "us/op");
+        System.out.println("  byte buffer: " + (tByteBuffer / 1000) + "us/op");
+
+        assertTrue(tBulk < tSingleByte);
+    }
+
+    private static long measure(WriteStrategy strategy, ByteArrayOutputStream sink)
+            throws IOException {
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            write(strategy, sink);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            write(strategy, sink);
+        }
+        return (System.nanoTime() - start) / ITERATIONS;
+    }
+
+    private static void write(WriteStrategy strategy, ByteArrayOutputStream sink)
+            throws IOException {
+
+        sink.reset();
+        ServletOutputStreamCopier copier = new ServletOutputStreamCopier(sink);
+        strategy.write(new ContextOutputStream(null, copier));
+
+        if (sink.size() != CONTENT_LENGTH || copier.getCopy().length != CONTENT_LENGTH) {
+            throw new IllegalStateException("Unexpected content length");
+        }
+    }
+
+    private interface WriteStrategy {
+
+        void write(OutputStream os) throws IOException;
+    }
+
+}
@@ -0,0 +1,228 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * @author Steffen Kremp
+ */
+public class ContextOutputStreamTest {
+
+    @Test
+    public void testWrite() throws Exception {
+        ServletRequest req = createRequest();
+        CountingServletOutputStream sos = new CountingServletOutputStream();
+
+        byte[] data = createData(16532);
+
+        ContextOutputStream os = new ContextOutputStream(req, sos);
+        os.write(data, 0, 1000);
+        assertEquals(1000L, req.getAttribute("io.pictura.servlet.BYTES_WRITTEN"));
+
+        os.write(data, 1000, data.length - 1000);
+        assertEquals((long) data.length, req.getAttribute("io.pictura.servlet.BYTES_WRITTEN"));
+
+        // One call per bulk write
+        assertEquals(2, sos.calls);
+        assertArrayEquals(data, sos.bos.toByteArray());
+    }
+
+    @Test
+    public void testWriteSingleBytes() throws Exception {
+        ServletRequest req = createRequest();
+        CountingServletOutputStream sos = new CountingServletOutputStream();
+
+        ContextOutputStream os = new ContextOutputStream(req, sos);
+        for (int i = 0; i < 100; i++) {
+            os.write(i);
+        }
+        os.close();
+
+        assertEquals(100L, req.getAttribute("io.pictura.servlet.BYTES_WRITTEN"));
+        assertEquals(100, sos.bos.size());
+        assertFalse(os.isOpen());
+    }
+
+    @Test
+    public void testWriteByteBuffer() throws Exception {
+        ServletRequest req = createRequest();
+        CountingServletOutputStream sos = new CountingServletOutputStream();
+
+        byte[] data = createData(20000);
+
+        ByteBuffer heap = ByteBuffer.wrap(data, 100, 5000).slice();
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length - 5100);
+        direct.put(data, 5100, data.length - 5100).flip();
+
+        ContextOutputStream os = new ContextOutputStream(req, sos);
+        assertTrue(os.isOpen());
+
+        assertEquals(100, os.write(ByteBuffer.wrap(data, 0, 100)));
+        assertEquals(5000, os.write(heap));
+        assertEquals(data.length - 5100, os.write(direct));
+
+        assertFalse(heap.hasRemaining());
+        assertFalse(direct.hasRemaining());
+        assertEquals((long) data.length, req.getAttribute("io.pictura.servlet.BYTES_WRITTEN"));
+        assertArrayEquals(data, sos.bos.toByteArray());
+    }
+
+    @Test
+    public void testWriteByteBuffers() throws Exception {
+        ServletRequest req = createRequest();
+        CountingServletOutputStream sos = new CountingServletOutputStream();
+
+        byte[] data = createData(3000);
+        ByteBuffer[] srcs = new ByteBuffer[]{
+            ByteBuffer.wrap(data, 0, 1000),
+            ByteBuffer.wrap(data, 1000, 1000),
+            ByteBuffer.wrap(data, 2000, 1000)
+        };
+
+        ContextOutputStream os = new ContextOutputStream(req, sos);
+        assertEquals(3000L, os.write(srcs));
+
+        assertEquals(3000L, req.getAttribute("io.pictura.servlet.BYTES_WRITTEN"));
+        assertArrayEquals(data, sos.bos.toByteArray());
+    }
+
+    @Test
+    public void testTransferFrom() throws Exception {
+        ServletRequest req = createRequest();
+        CountingServletOutputStream sos = new CountingServletOutputStream();
+
+        byte[] data = createData(150000);
+        File f = File.createTempFile("pictura-", ".tmp");
+        try {
+            try (FileOutputStream fos = new FileOutputStream(f)) {
+                fos.write(data);
+            }
+
+            try (FileInputStream fis = new FileInputStream(f)) {
+                FileChannel ch = fis.getChannel();
+                ContextOutputStream os = new ContextOutputStream(req, sos);
+                assertEquals(100000L, os.transferFrom(ch, 1000, 100000));
+
+                // Positional reads do not change the channel position
+                assertEquals(0L, ch.position());
+            }
+
+            assertEquals(100000L, req.getAttribute("io.pictura.servlet.BYTES_WRITTEN"));
+            assertArrayEquals(Arrays.copyOfRange(data, 1000, 101000), sos.bos.toByteArray());
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testTransferFromPrematureEOF() throws Exception {
+        File f = File.createTempFile("pictura-", ".tmp");
+        try {
+            try (FileOutputStream fos = new FileOutputStream(f)) {
+                fos.write(createData(100));
+            }
+            try (FileInputStream fis = new FileInputStream(f)) {
+                ContextOutputStream os = new ContextOutputStream(null, new CountingServletOutputStream());
+                os.transferFrom(fis.getChannel(), 50, 100);
+            }
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testWriteByteBuffersIndexOutOfBounds() throws Exception {
+        ContextOutputStream os = new ContextOutputStream(null, new CountingServletOutputStream());
+        os.write(new ByteBuffer[]{ByteBuffer.allocate(1)}, 1, 1);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testWriteIndexOutOfBounds() throws Exception {
+        ContextOutputStream os = new ContextOutputStream(null, new CountingServletOutputStream());
+        os.write(new byte[10], 5, 6);
+    }
+
+    private static byte[] createData(int len) {
+        byte[] data = new byte[len];
+        new Random(len).nextBytes(data);
+        return data;
+    }
+
+    private static ServletRequest createRequest() {
+        final HashMap<String, Object> attributes = new HashMap<>();
+
+        ServletRequest req = mock(ServletRequest.class);
+        when(req.getAttribute(anyString())).thenAnswer(new Answer<Object>() {
+
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                return attributes.get((String) invocation.getArguments()[0]);
+            }
+        });
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                attributes.put((String) invocation.getArguments()[0], invocation.getArguments()[1]);
+                return null;
+            }
+        }).when(req).setAttribute(anyString(), anyObject());
+        return req;
+    }
+
+    private static final class CountingServletOutputStream extends ServletOutputStream {
+
+        private final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        private int calls;
+
+        @Override
+        public void write(int b) throws IOException {
+            bos.write(b);
+            calls++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            bos.write(b, off, len);
+            calls++;
+        }
+    }
+
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Steffen Kremp
+ */
+public class DetachedHttpServletRequestTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateNull() throws Exception {
+        new DetachedHttpServletRequest(null);
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        when(req.getMethod()).thenReturn("GET");
+        when(req.getRequestURI()).thenReturn("/pictura/F=JPG/foo.png");
+        when(req.getRequestURL()).thenReturn(new StringBuffer("http://localhost/pictura/F=JPG/foo.png"));
+        when(req.getContextPath()).thenReturn("/pictura");
+        when(req.getQueryString()).thenReturn("a=b");
+        when(req.getServerPort()).thenReturn(8080);
+
+        when(req.getHeaderNames()).thenReturn(Collections.enumeration(
+                Arrays.asList("Accept", "If-None-Match", "Range")));
+        when(req.getHeaders("Accept")).thenReturn(Collections.enumeration(
+                Arrays.asList("image/webp", "image/*")));
+
+        Map<String, String[]> params = new HashMap<>();
+        params.put("a", new String[]{"b"});
+        when(req.getParameterMap()).thenReturn(params);
+
+        when(req.getAttributeNames()).thenReturn(Collections.enumeration(
+                Arrays.asList("io.pictura.servlet.DEBUG")));
+        when(req.getAttribute("io.pictura.servlet.DEBUG")).thenReturn(Boolean.TRUE);
+
+        DetachedHttpServletRequest dReq = new DetachedHttpServletRequest(req);
+
+        assertEquals("GET", dReq.getMethod());
+        assertEquals("/pictura/F=JPG/foo.png", dReq.getRequestURI());
+        assertEquals("http://localhost/pictura/F=JPG/foo.png", dReq.getRequestURL().toString());
+        assertEquals("/pictura", dReq.getContextPath());
+        assertEquals("a=b", dReq.getQueryString());
+        assertEquals(8080, dReq.getServerPort());
+
+        assertEquals("image/webp", dReq.getHeader("accept"));
+        assertEquals(Arrays.asList("image/webp", "image/*"), Collections.list(dReq.getHeaders("Accept")));
+        assertNull(dReq.getHeader("If-None-Match"));
+        assertNull(dReq.getHeader("Range"));
+        assertEquals(-1L, dReq.getDateHeader("If-Modified-Since"));
+
+        assertEquals("b", dReq.getParameter("a"));
+        assertArrayEquals(new String[]{"b"}, dReq.getParameterValues("a"));
+
+        assertEquals(Boolean.TRUE, dReq.getAttribute("io.pictura.servlet.DEBUG"));
+        dReq.setAttribute("foo", "bar");
+        assertEquals("bar", dReq.getAttribute("foo"));
+        dReq.setAttribute("foo", null);
+        assertNull(dReq.getAttribute("foo"));
+
+        assertFalse(dReq.isAsyncSupported());
+        assertEquals(-1, dReq.getInputStream().read());
+
+        // Independent from the origin request
+        verify(req, never()).setAttribute("foo", "bar");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateSyntheticInvalidURI() throws Exception {
+        new DetachedHttpServletRequest(null, "", "lenna.jpg");
+    }
+
+    @Test
+    public void testCreateSynthetic() throws Exception {
+        ServletContext ctx = mock(ServletContext.class);
+        when(ctx.getContextPath()).thenReturn("/pictura");
+
+        DetachedHttpServletRequest dReq = new DetachedHttpServletRequest(ctx, "/images",
+                "/pictura/images/S=W100/lenna.jpg?a=b%20c&a=d&e");
+
+        assertEquals("GET", dReq.getMethod());
+        assertEquals("/pictura/images/S=W100/lenna.jpg", dReq.getRequestURI());
+        assertEquals("a=b%20c&a=d&e", dReq.getQueryString());
+        assertEquals("/pictura", dReq.getContextPath());
+        assertEquals("/images", dReq.getServletPath());
+        assertEquals("/S=W100/lenna.jpg", dReq.getPathInfo());
+        assertEquals(ctx, dReq.getServletContext());
+
+        assertArrayEquals(new String[]{"b c", "d"}, dReq.getParameterValues("a"));
+        assertEquals("", dReq.getParameter("e"));
+        assertNull(dReq.getHeader("Accept"));
+
+        dReq = new DetachedHttpServletRequest(null, null, "/lenna.jpg");
+        assertEquals("", dReq.getContextPath());
+        assertEquals("", dReq.getServletPath());
+        assertEquals("/lenna.jpg", dReq.getPathInfo());
+        assertNull(dReq.getQueryString());
+    }
+
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import javax.servlet.http.HttpServletResponse;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * @author Steffen Kremp
+ */
+public class DetachedHttpServletResponseTest {
+
+    @Test
+    public void testHeaders() throws Exception {
+        DetachedHttpServletResponse resp = new DetachedHttpServletResponse();
+        assertEquals(HttpServletResponse.SC_OK, resp.getStatus());
+
+        resp.setHeader("Cache-Control", "max-age=60");
+        resp.addHeader("Vary", "Accept");
+        resp.addHeader("vary", "Save-Data");
+        resp.setContentType("image/jpeg");
+        resp.setContentLength(10);
+        resp.setDateHeader("Last-Modified", 0L);
+
+        assertEquals("max-age=60", resp.getHeader("cache-control"));
+        assertEquals(2, resp.getHeaders("Vary").size());
+        assertEquals("image/jpeg", resp.getContentType());
+        assertEquals("image/jpeg", resp.getHeader("Content-Type"));
+        assertEquals("10", resp.getHeader("Content-Length"));
+        assertEquals("Thu, 01 Jan 1970 00:00:00 GMT", resp.getHeader("Last-Modified"));
+        assertTrue(resp.getHeaderNames().contains("Cache-Control"));
+
+        resp.setHeader("Cache-Control", null);
+        assertFalse(resp.containsHeader("Cache-Control"));
+    }
+
+    @Test
+    public void testContent() throws Exception {
+        DetachedHttpServletResponse resp = new DetachedHttpServletResponse();
+        resp.getOutputStream().write(new byte[]{1, 2, 3});
+        resp.getOutputStream().write(4);
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, resp.getContent());
+
+        resp.resetBuffer();
+        assertEquals(0, resp.getContent().length);
+    }
+
+    @Test
+    public void testWriter() throws Exception {
+        DetachedHttpServletResponse resp = new DetachedHttpServletResponse();
+        resp.getWriter().print("foo");
+        assertArrayEquals("foo".getBytes("ISO-8859-1"), resp.getContent());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testWriterAfterOutputStream() throws Exception {
+        DetachedHttpServletResponse resp = new DetachedHttpServletResponse();
+        resp.getOutputStream();
+        resp.getWriter();
+    }
+
+    @Test
+    public void testSendError() throws Exception {
+        DetachedHttpServletResponse resp = new DetachedHttpServletResponse();
+        resp.sendError(HttpServletResponse.SC_BAD_GATEWAY);
+        assertEquals(HttpServletResponse.SC_BAD_GATEWAY, resp.getStatus());
+        assertTrue(resp.isCommitted());
+        assertNull(resp.getContentType());
+    }
+
+}
@@ -0,0 +1,280 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+import org.junit.After;
+import static io.pictura.servlet.HttpCacheEntries.createEntry;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Steffen Kremp
+ */
+public class DiskHttpCacheTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("pictura", "cache");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdirs());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateDirNull() throws Exception {
+        new DiskHttpCache(null, 1024 * 1024 * 16, 1024);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateInvalidMaxSize() throws Exception {
+        new DiskHttpCache(dir, 1024, 1024);
+    }
+
+    @Test
+    public void testPutGetRemove() throws Exception {
+        try (DiskHttpCache c = new DiskHttpCache(dir, 1024 * 1024 * 16, 1024 * 64)) {
+            assertNull(c.get("foo"));
+            assertTrue(c.keySet().isEmpty());
+
+            byte[] data = createData(5000);
+            c.put("foo", createEntry("foo", data));
+
+            HttpCacheEntry e = c.get("foo");
+            assertNotNull(e);
+            assertTrue(e.isContentDirect());
+            assertEquals("foo", e.getKey());
+            assertEquals(200, e.getStatus());
+            assertEquals("image/jpeg", e.getContentType());
+            assertEquals(5000, e.getContentLength());
+            assertArrayEquals(data, e.getContent());
+
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            e.writeContentTo(bos);
+            assertArrayEquals(data, bos.toByteArray());
+
+            assertTrue(c.remove("foo"));
+            assertFalse(c.remove("foo"));
+            assertNull(c.get("foo"));
+        }
+    }
+
+    @Test
+    public void testTransferTo() throws Exception {
+        byte[] data = createData(5000);
+        HttpCacheEntry e;
+
+        try (DiskHttpCache c = new DiskHttpCache(dir, 1024 * 1024 * 16, 1024 * 64)) {
+            c.put("foo", createEntry("foo", data));
+            e = c.get("foo");
+
+            for (int i = 0; i < 2; i++) {
+                ChannelOutputStream os = new ChannelOutputStream();
+                e.writeContentTo(os);
+                assertArrayEquals(data, os.toByteArray());
+            }
+        }
+
+        // Segment is closed, so the content is copied from the mapped region
+        ChannelOutputStream os = new ChannelOutputStream();
+        e.writeContentTo(os);
+        assertArrayEquals(data, os.toByteArray());
+    }
+
+    @Test
+    public void testMaxEntrySize() throws Exception {
+        try (DiskHttpCache c = new DiskHttpCache(dir, 1024 * 1024 * 16, 1024)) {
+            c.put("foo", createEntry("foo", createData(1025)));
+            assertNull(c.get("foo"));
+        }
+    }
+
+    @Test
+    public void testRestore() throws Exception {
+        byte[] data = createData(4096);
+
+        try (DiskHttpCache c = new DiskHttpCache(dir, 1024 * 1024 * 16, 1024 * 64)) {
+            c.put("foo", createEntry("foo", createData(1024)));
+            HttpCacheEntry foo = createEntry("foo", data);
+            foo.setUserProperty("__delta", "42");
+            c.put("foo", foo);
+            c.put("bar", createEntry("bar", createData(1024)));
+            c.remove("bar");
+        }
+
+        try (DiskHttpCache c = new DiskHttpCache(dir, 1024 * 1024 * 16, 1024 * 64)) {
+            assertEquals(1, c.keySet().size());
+            assertNull(c.get("bar"));
+
+            HttpCacheEntry e = c.get("foo");
+            assertNotNull(e);
+            assertArrayEquals(data, e.getContent());
+            assertEquals("image/jpeg", e.getContentType());
+            assertEquals("max-age=60", e.getHeader("Cache-Control"));
+            assertEquals("42", e.getUserProperty("__delta"));
+        }
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        final long maxSize = 1024 * 1024;
+
+        try (DiskHttpCache c = new DiskHttpCache(dir, maxSize, 1024 * 16)) {
+            byte[] hot = createData(2048);
+            c.put("hot", createEntry("hot", hot));
+
+            for (int i = 0; i < 1000; i++) {
+                String key = "key-" + i;
+                c.put(key, createEntry(key, createData(1024 * (1 + (i % 8)))));
+                c.awaitCompaction();
+
+                // Keep the hot entry alive
+                assertNotNull(c.get("hot"));
+
+                assertTrue(c.segmentCount() * (long) c.segmentSize() <= maxSize);
+            }
+
+            assertArrayEquals(hot, c.get("hot").getContent());
+            assertNotNull(c.get("key-999"));
+            assertTrue(c.keySet().size() < 1000);
+
+            File[] files = dir.listFiles();
+            assertNotNull(files);
+            assertEquals(c.segmentCount(), files.length);
+        }
+    }
+
+    @Test
+    public void testBackgroundCompaction() throws Exception {
+        final long maxSize = 1024 * 1024;
+
+        try (DiskHttpCache c = new DiskHttpCache(dir, maxSize, 1024 * 16)) {
+            for (int i = 0; i < 1000; i++) {
+                String key = "key-" + i;
+                c.put(key, createEntry(key, createData(1024 * 8)));
+                if (i % 10 == 0) {
+                    c.remove("key-" + (i - 5));
+                }
+                assertTrue(c.segmentCount() * (long) c.segmentSize() <= maxSize);
+            }
+
+            c.awaitCompaction();
+            c.put("foo", createEntry("foo", createData(1024 * 8)));
+            assertNotNull(c.get("foo"));
+        }
+    }
+
+    @Test
+    public void testRestoreRemovedAfterCompaction() throws Exception {
+        final long maxSize = 1024 * 1024;
+
+        try (DiskHttpCache c = new DiskHttpCache(dir, maxSize, 1024 * 16)) {
+            // The first segment keeps its live data and will not be compacted
+            c.put("foo", createEntry("foo", createData(1024)));
+            int i = 0;
+            while (c.segmentCount() == 1) {
+                c.put("filler-" + i, createEntry("filler-" + i, createData(1024 * 8)));
+                c.awaitCompaction();
+                i++;
+            }
+
+            // The tombstones are written to a segment which becomes garbage
+            assertTrue(c.remove("filler-" + (i - 1)));
+            assertTrue(c.remove("foo"));
+            for (i = 0; i < 200; i++) {
+                String key = "churn-" + (i % 4);
+                c.put(key, createEntry(key, createData(1024 * 8)));
+                c.awaitCompaction();
+            }
+            assertNotNull(c.get("filler-0"));
+            assertNull(c.get("foo"));
+        }
+
+        try (DiskHttpCache c = new DiskHttpCache(dir, maxSize, 1024 * 16)) {
+            assertNotNull(c.get("filler-0"));
+            assertNull(c.get("foo"));
+        }
+    }
+
+    @Test
+    public void testCorruptedSegment() throws Exception {
+        try (DiskHttpCache c = new DiskHttpCache(dir, 1024 * 1024 * 16, 1024 * 64)) {
+            c.put("foo", createEntry("foo", createData(1024)));
+        }
+
+        File[] files = dir.listFiles();
+        assertNotNull(files);
+        assertEquals(1, files.length);
+
+        // Overwrite some bytes of the record
+        try (RandomAccessFile raf = new RandomAccessFile(files[0], "rw")) {
+            raf.seek(100);
+            raf.write(new byte[64]);
+        }
+
+        try (DiskHttpCache c = new DiskHttpCache(dir, 1024 * 1024 * 16, 1024 * 64)) {
+            assertNull(c.get("foo"));
+        }
+    }
+
+    private static final class ChannelOutputStream extends ByteArrayOutputStream
+            implements WritableByteChannel {
+
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            byte[] b = new byte[n];
+            src.get(b);
+            write(b, 0, n);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+    }
+
+    private static byte[] createData(int len) {
+        byte[] data = new byte[len];
+        new Random(len).nextBytes(data);
+        return data;
+    }
+
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Replays a request trace against the LRU and the cost-aware (GDSF) cache and
+ * compares the saved processing time per GB of cache.
+ * <p>
+ * By default a synthetic trace with a Zipf distributed key popularity is
+ * used. To replay a recorded trace, set the system property
+ * <code>pictura.trace</code> to a file with one request per line in the
+ * format <code>key size cost</code>, where <i>size</i> is the content length
+ * in bytes and <i>cost</i> the processing time in millis (e.g. from the
+ * <code>PROC_DURATION</code> column of the access log).
+ *
+ * @author Steffen Kremp
+ */
+public class GreedyDualHttpCacheLT {
+
+    private static final long CACHE_SIZE = 1024L * 1024 * 64;
+    private static final int MAX_ENTRY_SIZE = 1024 * 1024;
+
+    private static final int OBJECTS = 20000;
+    private static final int REQUESTS = 500000;
+    private static final double ZIPF_EXPONENT = 0.8;
+
+    @Test
+    public void testReplay() throws Exception {
+        List<Request> trace = System.getProperty("pictura.trace") != null
+                ? readTrace(System.getProperty("pictura.trace"))
+                : createTrace(new Random(42));
+
+        Result lru = replay(trace, new ConcurrentHttpCache(CACHE_SIZE, MAX_ENTRY_SIZE));
+        Result gdsf = replay(trace, new GreedyDualHttpCache(CACHE_SIZE, MAX_ENTRY_SIZE));
+
+        double gb = CACHE_SIZE / (1024d * 1024 * 1024);
+
+        System.out.println("Cache replay (" + trace.size() + " requests, "
+                + (CACHE_SIZE / (1024 * 1024)) + "MB cache):");
+        System.out.println(String.format("  LRU:  hit ratio %.3f, %.1f CPU-seconds saved per GB",
+                lru.hitRatio(), lru.savedMillis / 1000d / gb));
+        System.out.println(String.format("  GDSF: hit ratio %.3f, %.1f CPU-seconds saved per GB",
+                gdsf.hitRatio(), gdsf.savedMillis / 1000d / gb));
+
+        assertTrue(gdsf.savedMillis >= lru.savedMillis);
+    }
+
+    private static Result replay(List<Request> trace, HttpCache cache) {
+        Result r = new Result();
+        for (Request req : trace) {
+            if (cache.get(req.key) != null) {
+                r.hits++;
+                r.savedMillis += req.cost;
+            } else {
+                r.misses++;
+                HttpCacheEntry e = new HttpCacheEntry(req.key, new byte[req.size], null, null);
+                e.setUserProperty("__delta", String.valueOf(req.cost));
+                cache.put(req.key, e);
+            }
+        }
+        return r;
+    }
+
+    // Zipf distributed popularity, log-normal sizes and processing times
+    // which are only weakly correlated with the size (e.g. a small image
+    // with an expensive effect)
+    private static List<Request> createTrace(Random rnd) {
+        int[] sizes = new int[OBJECTS];
+        long[] costs = new long[OBJECTS];
+        for (int i = 0; i < OBJECTS; i++) {
+            sizes[i] = (int) Math.min(MAX_ENTRY_SIZE, Math.max(512,
+                    Math.exp(10.5 + rnd.nextGaussian())));
+            costs[i] = Math.max(1, (long) (Math.exp(3 + 1.5 * rnd.nextGaussian())
+                    + sizes[i] / (1024 * 32)));
+        }
+
+        double[] cdf = new double[OBJECTS];
+        double sum = 0;
+        for (int i = 0; i < OBJECTS; i++) {
+            sum += 1d / Math.pow(i + 1, ZIPF_EXPONENT);
+            cdf[i] = sum;
+        }
+
+        List<Request> trace = new ArrayList<>(REQUESTS);
+        for (int i = 0; i < REQUESTS; i++) {
+            int idx = Arrays.binarySearch(cdf, rnd.nextDouble() * sum);
+            if (idx < 0) {
+                idx = Math.min(OBJECTS - 1, -idx - 1);
+            }
+            trace.add(new Request("obj-" + idx, sizes[idx], costs[idx]));
+        }
+        return trace;
+    }
+
+    private static List<Request> readTrace(String path) throws IOException {
+        List<Request> trace = new ArrayList<>();
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(
+                new FileInputStream(path), StandardCharsets.UTF_8))) {
+
+            String line;
+            while ((line = r.readLine()) != null) {
+                String[] cols = line.trim().split("\\s+");
+                if (cols.length < 3 || line.startsWith("#")) {
+                    continue;
+                }
+                trace.add(new Request(cols[0], Integer.parseInt(cols[1]),
+                        Long.parseLong(cols[2])));
+            }
+        }
+        return trace;
+    }
+
+    private static final class Request {
+
+        private final String key;
+        private final int size;
+        private final long cost;
+
+        private Request(String key, int size, long cost) {
+            this.key = key;
+            this.size = size;
+            this.cost = cost;
+        }
+    }
+
+    private static final class Result {
+
+        private long hits;
+        private long misses;
+        private long savedMillis;
+
+        private double hitRatio() {
+            return (double) hits / (hits + misses);
+        }
+    }
+
+}
@@ -0,0 +1,220 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * @author Steffen Kremp
+ */
+public class GreedyDualHttpCacheTest {
+
+    // Small enough to use only one segment
+    private static final long MAX_SIZE = 1024 * 12;
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateInvalidMaxSize() throws Exception {
+        new GreedyDualHttpCache(0, 1024);
+    }
+
+    @Test
+    public void testPutGetRemove() throws Exception {
+        GreedyDualHttpCache c = new GreedyDualHttpCache(1024 * 1024, 1024);
+
+        assertNull(c.get("foo"));
+        assertTrue(c.keySet().isEmpty());
+
+        HttpCacheEntry e = createEntry("foo", 512, 10);
+        c.put("foo", e);
+
+        assertSame(e, c.get("foo"));
+        assertEquals(1, c.keySet().size());
+        assertEquals(512, c.weightedSize());
+
+        HttpCacheEntry e2 = createEntry("foo", 256, 10);
+        c.put("foo", e2);
+
+        assertSame(e2, c.get("foo"));
+        assertEquals(256, c.weightedSize());
+
+        assertTrue(c.remove("foo"));
+        assertFalse(c.remove("foo"));
+        assertNull(c.get("foo"));
+        assertEquals(0, c.weightedSize());
+
+        c.put("foo", e);
+        c.put("foo", null);
+        assertNull(c.get("foo"));
+    }
+
+    @Test
+    public void testMaxEntrySize() throws Exception {
+        GreedyDualHttpCache c = new GreedyDualHttpCache(1024 * 1024, 1024);
+        c.put("foo", createEntry("foo", 1025, 10));
+        assertNull(c.get("foo"));
+    }
+
+    @Test
+    public void testCostOf() throws Exception {
+        assertEquals(900d, GreedyDualHttpCache.costOf(createEntry("foo", 1, 900)), 0d);
+        assertEquals(GreedyDualHttpCache.DEFAULT_COST,
+                GreedyDualHttpCache.costOf(new HttpCacheEntry("foo", new byte[1], null, null)), 0d);
+
+        HttpCacheEntry e = new HttpCacheEntry("foo", new byte[1], null, null);
+        e.setUserProperty("__delta", "abc");
+        assertEquals(GreedyDualHttpCache.DEFAULT_COST, GreedyDualHttpCache.costOf(e), 0d);
+    }
+
+    @Test
+    public void testExpensiveEntriesSurvive() throws Exception {
+        GreedyDualHttpCache c = new GreedyDualHttpCache(MAX_SIZE, 1024);
+
+        for (int i = 0; i < 4; i++) {
+            c.put("expensive-" + i, createEntry("expensive-" + i, 1024, 900));
+        }
+        for (int i = 0; i < 100; i++) {
+            c.put("cheap-" + i, createEntry("cheap-" + i, 1024, 50));
+            assertTrue(c.weightedSize() <= MAX_SIZE);
+        }
+
+        for (int i = 0; i < 4; i++) {
+            assertNotNull(c.get("expensive-" + i));
+        }
+        assertNotNull(c.get("cheap-99"));
+        assertNull(c.get("cheap-0"));
+    }
+
+    @Test
+    public void testFrequentEntriesSurvive() throws Exception {
+        GreedyDualHttpCache c = new GreedyDualHttpCache(MAX_SIZE, 1024);
+
+        for (int i = 0; i < 4; i++) {
+            String key = "hot-" + i;
+            c.put(key, createEntry(key, 1024, 50));
+            for (int j = 0; j < 5; j++) {
+                assertNotNull(c.get(key));
+            }
+        }
+        for (int i = 0; i < 20; i++) {
+            c.put("once-" + i, createEntry("once-" + i, 1024, 50));
+        }
+
+        for (int i = 0; i < 4; i++) {
+            assertNotNull(c.get("hot-" + i));
+        }
+        assertNull(c.get("once-0"));
+    }
+
+    @Test
+    public void testLargeEntriesFirst() throws Exception {
+        GreedyDualHttpCache c = new GreedyDualHttpCache(MAX_SIZE, 1024 * 8);
+
+        c.put("large", createEntry("large", 1024 * 8, 100));
+        for (int i = 0; i < 4; i++) {
+            c.put("small-" + i, createEntry("small-" + i, 512, 100));
+        }
+
+        // Requires to evict one entry
+        c.put("small-4", createEntry("small-4", 1024 * 3, 100));
+
+        assertNull(c.get("large"));
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(c.get("small-" + i));
+        }
+    }
+
+    @Test
+    public void testAging() throws Exception {
+        GreedyDualHttpCache c = new GreedyDualHttpCache(MAX_SIZE, 1024);
+
+        c.put("expensive", createEntry("expensive", 1024, 900));
+
+        // The inflation value increases with each eviction, so the expensive
+        // entry will be evicted if it is not requested any longer
+        for (int i = 0; i < 10000 && c.keySet().contains("expensive"); i++) {
+            c.put("cheap-" + i, createEntry("cheap-" + i, 1024, 10));
+        }
+        assertNull(c.get("expensive"));
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        final long maxSize = 1024 * 256;
+        final GreedyDualHttpCache c = new GreedyDualHttpCache(maxSize, 1024 * 4);
+
+        final int threads = 8;
+        final CountDownLatch latch = new CountDownLatch(threads);
+        final AtomicInteger errors = new AtomicInteger();
+
+        ExecutorService es = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            es.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 5000; i++) {
+                            String key = "key-" + ((i * (seed + 1)) % 500);
+                            if (c.get(key) == null) {
+                                c.put(key, createEntry(key, 512 + (i % 2048), 1 + (i % 500)));
+                            }
+                            if (i % 100 == 0) {
+                                c.remove(key);
+                            }
+                        }
+                    } catch (RuntimeException ex) {
+                        errors.incrementAndGet();
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        es.shutdown();
+
+        assertEquals(0, errors.get());
+        assertTrue(c.weightedSize() <= maxSize);
+
+        long size = 0;
+        for (String key : c.keySet()) {
+            HttpCacheEntry e = c.get(key);
+            if (e != null) {
+                size += e.getContentLength();
+            }
+        }
+        assertEquals(size, c.weightedSize());
+    }
+
+    private static HttpCacheEntry createEntry(String key, int size, long cost) {
+        HttpCacheEntry e = new HttpCacheEntry(key, new byte[size], null, null);
+        e.setUserProperty("__delta", String.valueOf(cost));
+        return e;
+    }
+
+}
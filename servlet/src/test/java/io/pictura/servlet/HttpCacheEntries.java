@@ -0,0 +1,51 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.util.HashMap;
+import javax.servlet.http.HttpServletResponse;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Creates cache entries for the HTTP cache tests.
+ *
+ * @author Steffen Kremp
+ */
+final class HttpCacheEntries {
+
+    private HttpCacheEntries() {
+    }
+
+    static HttpCacheEntry createEntry(String key, byte[] data) {
+        return createEntry(key, data, "max-age=60");
+    }
+
+    static HttpCacheEntry createEntry(String key, byte[] data, String cacheControl) {
+        HashMap<String, String> headers = new HashMap<>();
+        headers.put("Cache-Control", cacheControl);
+        headers.put("Content-Type", "image/jpeg");
+
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        when(resp.getStatus()).thenReturn(200);
+        when(resp.getHeaderNames()).thenReturn(headers.keySet());
+        when(resp.getHeader("Cache-Control")).thenReturn(headers.get("Cache-Control"));
+        when(resp.getHeader("Content-Type")).thenReturn(headers.get("Content-Type"));
+
+        return new HttpCacheEntry(key, data, null, resp);
+    }
+
+}
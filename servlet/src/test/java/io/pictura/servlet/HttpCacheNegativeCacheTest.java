@@ -0,0 +1,138 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * @author Steffen Kremp
+ */
+public class HttpCacheNegativeCacheTest {
+
+    @Test
+    public void testParseTtls() throws Exception {
+        Map<Integer, Long> ttls = HttpCacheNegativeCache.parseTtls(" 404=10, 415 = 60,413=0,");
+        assertEquals(2, ttls.size());
+        assertEquals(Long.valueOf(10000L), ttls.get(404));
+        assertEquals(Long.valueOf(60000L), ttls.get(415));
+
+        assertTrue(HttpCacheNegativeCache.parseTtls(null).isEmpty());
+        assertTrue(HttpCacheNegativeCache.parseTtls("").isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseTtlsInvalidPair() throws Exception {
+        HttpCacheNegativeCache.parseTtls("404");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseTtlsInvalidNumber() throws Exception {
+        HttpCacheNegativeCache.parseTtls("404=abc");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseTtlsInvalidStatus() throws Exception {
+        HttpCacheNegativeCache.parseTtls("200=10");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateInvalidCapacity() throws Exception {
+        new HttpCacheNegativeCache(0, Collections.<Integer, Long>emptyMap());
+    }
+
+    @Test
+    public void testPutGetRemove() throws Exception {
+        HttpCacheNegativeCache nc = new HttpCacheNegativeCache(16,
+                HttpCacheNegativeCache.parseTtls("404=60"));
+
+        assertTrue(nc.isCacheable(404));
+        assertFalse(nc.isCacheable(500));
+
+        assertFalse(nc.put("/foo.jpg", "foo.jpg", 500, null));
+        assertTrue(nc.put("/lenna.jpg", "lenna.jpg", 404, "Not found"));
+        assertEquals(1, nc.size());
+
+        HttpCacheNegativeCache.Entry e = nc.get("/lenna.jpg");
+        assertNotNull(e);
+        assertEquals(404, e.getStatus());
+        assertEquals("Not found", e.getMessage());
+        assertEquals(1, nc.getHitCount());
+
+        assertNull(nc.get("/foo.jpg"));
+        assertNull(nc.get(null));
+        assertEquals(1, nc.getHitCount());
+
+        assertTrue(nc.remove("/lenna.jpg"));
+        assertFalse(nc.remove("/lenna.jpg"));
+        assertNull(nc.get("/lenna.jpg"));
+    }
+
+    @Test
+    public void testExpired() throws Exception {
+        Map<Integer, Long> ttls = new HashMap<>();
+        ttls.put(404, 50L);
+        ttls.put(415, 60000L);
+        HttpCacheNegativeCache nc = new HttpCacheNegativeCache(16, ttls);
+
+        nc.put("/foo.jpg", null, 404, null);
+        nc.put("/bar.jpg", null, 415, null);
+        Thread.sleep(100);
+
+        assertNull(nc.get("/foo.jpg"));
+        assertNotNull(nc.get("/bar.jpg"));
+        assertEquals(1, nc.size());
+    }
+
+    @Test
+    public void testCapacity() throws Exception {
+        HttpCacheNegativeCache nc = new HttpCacheNegativeCache(4,
+                HttpCacheNegativeCache.parseTtls("404=60"));
+
+        for (int i = 0; i < 10; i++) {
+            nc.put("/img-" + i + ".jpg", null, 404, null);
+        }
+        assertEquals(4, nc.size());
+        assertNull(nc.get("/img-5.jpg"));
+        assertNotNull(nc.get("/img-6.jpg"));
+        assertNotNull(nc.get("/img-9.jpg"));
+    }
+
+    @Test
+    public void testRemoveTag() throws Exception {
+        HttpCacheNegativeCache nc = new HttpCacheNegativeCache(16,
+                HttpCacheNegativeCache.parseTtls("404=60"));
+
+        nc.put("/S=W100/lenna.jpg", "lenna.jpg", 404, null);
+        nc.put("/S=W200/lenna.jpg", "lenna.jpg", 404, null);
+        nc.put("/foo.jpg", "foo.jpg", 404, null);
+
+        assertEquals(2, nc.removeTag("lenna.jpg"));
+        assertEquals(0, nc.removeTag(null));
+        assertEquals(1, nc.size());
+
+        nc.clear();
+        assertEquals(0, nc.size());
+    }
+
+}
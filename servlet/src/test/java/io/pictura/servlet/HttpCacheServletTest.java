@@ -20,14 +20,32 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
@@ -35,9 +53,15 @@ import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import org.junit.Ignore;
 import org.junit.Test;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -160,6 +184,944 @@ public class HttpCacheServletTest {
         }
     }
 
+    @Test
+    public void testCreateConcurrentHttpCache() throws Exception {
+        HttpCache c = HttpCacheServletMock.createConcurrentHttpCache(1024 * 1024, 1024);
+        assertNotNull(c);
+        assertTrue(c.keySet().isEmpty());
+
+        HttpCacheEntry e = new HttpCacheEntry("foo", new byte[512], null, null);
+        c.put("foo", e);
+        assertSame(e, c.get("foo"));
+    }
+
+    @Test
+    public void testCreateOffHeapHttpCache() throws Exception {
+        HttpCache c = HttpCacheServletMock.createOffHeapHttpCache(1024 * 1024, 1024);
+        assertNotNull(c);
+        assertTrue(c.keySet().isEmpty());
+
+        c.put("foo", new HttpCacheEntry("foo", new byte[512], null, null));
+        assertNotNull(c.get("foo"));
+        assertEquals(512, c.get("foo").getContentLength());
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        final HttpCacheServletMock s = new HttpCacheServletMock();
+        s.setHttpCache(HttpCacheServletMock.createConcurrentHttpCache(1024 * 1024, 1024 * 64));
+        assertEquals(0, s.getHttpCacheCoalescedCount());
+
+        final byte[] data = new byte[4096];
+        final AtomicInteger processed = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final ByteArrayOutputStream bos1 = new ByteArrayOutputStream();
+        final RequestProcessor rp1 = createCacheableRequestProcessor(bos1,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        processed.incrementAndGet();
+                        started.countDown();
+                        try {
+                            release.await(5, TimeUnit.SECONDS);
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }, data);
+
+        final ByteArrayOutputStream bos2 = new ByteArrayOutputStream();
+        final RequestProcessor rp2 = createCacheableRequestProcessor(bos2,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        processed.incrementAndGet();
+                    }
+                }, data);
+
+        Thread t1 = new Thread(new CoalescingRunnable(s.createCacheRequestProcessor(rp1)));
+        t1.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        Thread t2 = new Thread(new CoalescingRunnable(s.createCacheRequestProcessor(rp2)));
+        t2.start();
+
+        // Give the second request the time to wait for the first one
+        Thread.sleep(250);
+        release.countDown();
+
+        t1.join(5000);
+        t2.join(5000);
+
+        assertEquals(1, processed.get());
+        assertEquals(1, s.getHttpCacheCoalescedCount());
+        assertArrayEquals(data, bos1.toByteArray());
+        assertArrayEquals(data, bos2.toByteArray());
+        assertNotNull(s.getHttpCache().get("test"));
+    }
+
+    @Test
+    public void testStaleWhileRevalidate() throws Exception {
+        final HttpCacheServletMock s = new HttpCacheServletMock();
+        s.setHttpCache(HttpCacheServletMock.createConcurrentHttpCache(1024 * 1024, 1024 * 64));
+
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        s.setHttpCacheRefreshExecutor(exec);
+        s.setHttpCacheStaleWhileRevalidate(60 * 1000);
+
+        // Expired entry
+        byte[] staleData = new byte[2048];
+        HttpCacheEntry stale = createCacheEntry("test", staleData, System.currentTimeMillis() - 10000);
+        assertTrue(stale.isExpired());
+        s.getHttpCache().put("test", stale);
+
+        final byte[] data = new byte[4096];
+        data[0] = 1;
+
+        final AtomicInteger processed = new AtomicInteger();
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final RequestProcessor rp = createCacheableRequestProcessor(bos,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        fail("The client request processor must not be used to revalidate");
+                    }
+                }, data);
+        s.refreshProcessor = createCacheableRequestProcessor(new ByteArrayOutputStream(),
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        processed.incrementAndGet();
+                    }
+                }, data);
+
+        HttpServletResponse resp = rp.getResponse();
+        RequestProcessor crp = s.createCacheRequestProcessor(rp);
+        crp.doProcess(crp.getRequest(), crp.getResponse());
+
+        // The stale entry was sent
+        assertArrayEquals(staleData, bos.toByteArray());
+        assertSame(resp, ((HttpServletResponseWrapper) rp.getResponse()).getResponse());
+
+        exec.shutdown();
+        assertTrue(exec.awaitTermination(5, TimeUnit.SECONDS));
+
+        // ... and revalidated in the background
+        assertEquals(1, processed.get());
+        HttpCacheEntry e = s.getHttpCache().get("test");
+        assertNotNull(e);
+        assertFalse(e.isExpired());
+        assertArrayEquals(data, e.getContent());
+    }
+
+    @Test
+    public void testEarlyRefresh() throws Exception {
+        final HttpCacheServletMock s = new HttpCacheServletMock();
+        s.setHttpCache(HttpCacheServletMock.createConcurrentHttpCache(1024 * 1024, 1024 * 64));
+
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        s.setHttpCacheRefreshExecutor(exec);
+        s.setHttpCacheEarlyRefreshBeta(1.0);
+
+        // Expires in 1s, but took a very long time to produce
+        HttpCacheEntry entry = createCacheEntry("test", new byte[1024], System.currentTimeMillis() + 1000);
+        entry.setUserProperty("__delta", String.valueOf(Long.MAX_VALUE / 4));
+        s.getHttpCache().put("test", entry);
+
+        final byte[] data = new byte[4096];
+        final AtomicInteger processed = new AtomicInteger();
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final RequestProcessor rp = createCacheableRequestProcessor(bos,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        fail("The client request processor must not be used to revalidate");
+                    }
+                }, data);
+        s.refreshProcessor = createCacheableRequestProcessor(new ByteArrayOutputStream(),
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        processed.incrementAndGet();
+                    }
+                }, data);
+
+        RequestProcessor crp = s.createCacheRequestProcessor(rp);
+        crp.doProcess(crp.getRequest(), crp.getResponse());
+        assertArrayEquals(entry.getContent(), bos.toByteArray());
+
+        exec.shutdown();
+        assertTrue(exec.awaitTermination(5, TimeUnit.SECONDS));
+
+        assertEquals(1, processed.get());
+        assertNotSame(entry, s.getHttpCache().get("test"));
+    }
+
+    @Test
+    public void testRange() throws Exception {
+        final HttpCacheServletMock s = new HttpCacheServletMock();
+        s.setHttpCache(HttpCacheServletMock.createConcurrentHttpCache(1024 * 1024, 1024 * 64));
+
+        byte[] data = createTextData(4096);
+        s.getHttpCache().put("test", createCacheEntry("test", data, System.currentTimeMillis() + 60000));
+
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final RequestProcessor rp = createCacheableRequestProcessor(bos,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                    }
+                }, data);
+        when(rp.getRequest().getHeader("Range")).thenReturn("bytes=100-199");
+        HttpServletResponse resp = rp.getResponse();
+
+        RequestProcessor crp = s.createCacheRequestProcessor(rp);
+        crp.doProcess(crp.getRequest(), crp.getResponse());
+
+        verify(resp).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        verify(resp).setHeader("Content-Range", "bytes 100-199/4096");
+        assertArrayEquals(Arrays.copyOfRange(data, 100, 200), bos.toByteArray());
+    }
+
+    @Test
+    public void testOffHeapHitNotCopied() throws Exception {
+        final HttpCacheServletMock s = new HttpCacheServletMock();
+        s.setHttpCache(HttpCacheServletMock.createOffHeapHttpCache(1024 * 1024, 1024 * 64));
+
+        byte[] data = createTextData(32 * 1024);
+        s.getHttpCache().put("test", createCacheEntry("test", data, System.currentTimeMillis() + 60000));
+        assertTrue(s.getHttpCache().get("test").isContentDirect());
+
+        assertHitNotCopied(s, data);
+    }
+
+    @Test
+    public void testDiskHitNotCopied() throws Exception {
+        File dir = File.createTempFile("pictura-", "-cache");
+        dir.delete();
+
+        final HttpCacheServletMock s = new HttpCacheServletMock();
+        HttpCache c = HttpCacheServletMock.createDiskHttpCache(dir, 1024 * 1024, 1024 * 64);
+        s.setHttpCache(c);
+        try {
+            byte[] data = createTextData(32 * 1024);
+            c.put("test", createCacheEntry("test", data, System.currentTimeMillis() + 60000));
+            assertTrue(c.get("test").isContentDirect());
+
+            assertHitNotCopied(s, data);
+        } finally {
+            ((DiskHttpCache) c).close();
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    // A cache hit is written to the client without a copy for the cache
+    private static void assertHitNotCopied(HttpCacheServletMock s, byte[] data) throws Exception {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final RequestProcessor rp = createCacheableRequestProcessor(bos,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        fail("Cache miss");
+                    }
+                }, data);
+
+        RequestProcessor crp = s.createCacheRequestProcessor(rp);
+        crp.doProcess(crp.getRequest(), crp.getResponse());
+        assertArrayEquals(data, bos.toByteArray());
+
+        ServletOutputStream os = crp.getResponse().getOutputStream();
+        assertTrue(os instanceof HttpCacheServlet.ServletOutputStreamCopier);
+        assertEquals(0, ((HttpCacheServlet.ServletOutputStreamCopier) os).getCopy().length);
+    }
+
+    @Test
+    public void testStaleWhileRevalidateRejected() throws Exception {
+        final HttpCacheServletMock s = new HttpCacheServletMock();
+        s.setHttpCache(HttpCacheServletMock.createConcurrentHttpCache(1024 * 1024, 1024 * 64));
+
+        // The only worker is busy and there is no queue
+        final CountDownLatch release = new CountDownLatch(1);
+        ThreadPoolExecutor exec = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<Runnable>());
+        exec.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        s.setHttpCacheRefreshExecutor(exec);
+        s.setHttpCacheStaleWhileRevalidate(60 * 1000);
+
+        s.getHttpCache().put("test", createCacheEntry("test", new byte[2048],
+                System.currentTimeMillis() - 10000));
+        s.refreshProcessor = createCacheableRequestProcessor(new ByteArrayOutputStream(),
+                new Runnable() {
+                    @Override
+                    public void run() {
+                    }
+                }, new byte[1024]);
+
+        try {
+            // The origin fails and the error must be sent to the client
+            final RequestProcessor rp = createCacheableRequestProcessor(new ByteArrayOutputStream(),
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                        }
+                    }, null);
+            HttpServletResponse resp = rp.getResponse();
+
+            RequestProcessor crp = s.createCacheRequestProcessor(rp);
+            crp.doProcess(crp.getRequest(), crp.getResponse());
+
+            verify(resp).sendError(HttpServletResponse.SC_BAD_GATEWAY);
+        } finally {
+            release.countDown();
+            exec.shutdown();
+        }
+    }
+
+    @Test
+    public void testEvictedBeforeSend() throws Exception {
+        final HttpCacheServletMock s = new HttpCacheServletMock();
+        s.setHttpCache(HttpCacheServletMock.createConcurrentHttpCache(1024 * 1024, 1024 * 64));
+
+        // The content of the entry is no longer available
+        HttpCacheEntry entry = createCacheEntry("test", new byte[2048], System.currentTimeMillis() + 60000);
+        s.getHttpCache().put("test", new HttpCacheEntry(entry, entry.getContent()) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            boolean retain() {
+                return false;
+            }
+        });
+
+        final byte[] data = createTextData(4096);
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final RequestProcessor rp = createCacheableRequestProcessor(bos,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                    }
+                }, data);
+
+        RequestProcessor crp = s.createCacheRequestProcessor(rp);
+        crp.doProcess(crp.getRequest(), crp.getResponse());
+
+        // Treated as a miss
+        assertArrayEquals(data, bos.toByteArray());
+    }
+
+    @Test
+    public void testStaleWhileRevalidateDisabled() throws Exception {
+        final HttpCacheServletMock s = new HttpCacheServletMock();
+        s.setHttpCache(HttpCacheServletMock.createConcurrentHttpCache(1024 * 1024, 1024 * 64));
+        s.getHttpCache().put("test", createDummyCacheEntry("test", new Date(System.currentTimeMillis() - 10000)));
+
+        final byte[] data = new byte[4096];
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final RequestProcessor rp = createCacheableRequestProcessor(bos,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                    }
+                }, data);
+
+        RequestProcessor crp = s.createCacheRequestProcessor(rp);
+        crp.doProcess(crp.getRequest(), crp.getResponse());
+
+        // Processed synchronously
+        assertArrayEquals(data, bos.toByteArray());
+    }
+
+    @Test
+    public void testStaleIfError() throws Exception {
+        final HttpCacheServletMock s = new HttpCacheServletMock();
+        s.setHttpCache(HttpCacheServletMock.createConcurrentHttpCache(1024 * 1024, 1024 * 64));
+        s.setHttpCacheStaleIfError(60 * 1000);
+
+        byte[] staleData = new byte[2048];
+        s.getHttpCache().put("test", createCacheEntry("test", staleData, System.currentTimeMillis() - 10000));
+
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final RequestProcessor rp = createCacheableRequestProcessor(bos, null, null);
+
+        HttpServletResponse resp = rp.getResponse();
+        RequestProcessor crp = s.createCacheRequestProcessor(rp);
+        crp.doProcess(crp.getRequest(), crp.getResponse());
+
+        assertArrayEquals(staleData, bos.toByteArray());
+        verify(resp, never()).sendError(anyInt());
+        verify(resp).setHeader("X-Pictura-Cache", "Stale");
+
+        // The stale entry is still cached
+        assertNotNull(s.getHttpCache().get("test"));
+    }
+
+    @Test
+    public void testStaleIfErrorExceeded() throws Exception {
+        final HttpCacheServletMock s = new HttpCacheServletMock();
+        s.setHttpCache(HttpCacheServletMock.createConcurrentHttpCache(1024 * 1024, 1024 * 64));
+        s.setHttpCacheStaleIfError(5 * 1000);
+
+        s.getHttpCache().put("test", createCacheEntry("test", new byte[2048], System.currentTimeMillis() - 10000));
+
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final RequestProcessor rp = createCacheableRequestProcessor(bos, null, null);
+
+        HttpServletResponse resp = rp.getResponse();
+        RequestProcessor crp = s.createCacheRequestProcessor(rp);
+        crp.doProcess(crp.getRequest(), crp.getResponse());
+
+        assertEquals(0, bos.size());
+        verify(resp).sendError(HttpServletResponse.SC_BAD_GATEWAY);
+        verify(resp, never()).setHeader("X-Pictura-Cache", "Stale");
+    }
+
+    @Test
+    public void testSendStaleHttpCacheEntry() throws Exception {
+        final HttpCacheServletMock s = new HttpCacheServletMock();
+        s.setHttpCache(HttpCacheServletMock.createConcurrentHttpCache(1024 * 1024, 1024 * 64));
+
+        byte[] staleData = new byte[2048];
+        s.getHttpCache().put("test", createCacheEntry("test", staleData, System.currentTimeMillis() - 10000));
+
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        RequestProcessor crp = s.createCacheRequestProcessor(createCacheableRequestProcessor(bos, null, null));
+
+        assertFalse(s.sendStaleHttpCacheEntry(crp));
+        assertEquals(0, bos.size());
+
+        s.setHttpCacheStaleIfError(60 * 1000);
+        assertTrue(s.sendStaleHttpCacheEntry(crp));
+        assertArrayEquals(staleData, bos.toByteArray());
+    }
+
+    @Test
+    public void testIdentityVariant() throws Exception {
+        final HttpCacheServletMock s = new HttpCacheServletMock();
+        s.setHttpCache(HttpCacheServletMock.createConcurrentHttpCache(1024 * 1024, 1024 * 64));
+
+        byte[] data = createTextData(4096);
+        ByteArrayOutputStream gzipData = new ByteArrayOutputStream();
+        try (GZIPOutputStream gos = new GZIPOutputStream(gzipData)) {
+            gos.write(data);
+        }
+
+        HttpCacheEntry entry = createCacheEntry("test", gzipData.toByteArray(), "text/plain", "gzip");
+        s.getHttpCache().put("test", entry);
+
+        DetachedHttpServletResponse resp = new DetachedHttpServletResponse();
+        RequestProcessor crp = s.createCacheRequestProcessor(createVariantRequestProcessor(null, resp));
+        crp.doProcess(crp.getRequest(), crp.getResponse());
+
+        assertNull(resp.getHeader("Content-Encoding"));
+        assertArrayEquals(data, resp.getContent());
+
+        HttpCacheEntry identity = s.getHttpCache().get("test#identity");
+        assertNotNull(identity);
+        assertNull(identity.getContentEncoding());
+        assertEquals(entry.getTimestamp(), identity.getTimestamp());
+        assertArrayEquals(data, identity.getContent());
+
+        // Served from the identity variant
+        resp = new DetachedHttpServletResponse();
+        crp = s.createCacheRequestProcessor(createVariantRequestProcessor(null, resp));
+        crp.doProcess(crp.getRequest(), crp.getResponse());
+
+        assertArrayEquals(data, resp.getContent());
+        assertSame(identity, s.getHttpCache().get("test#identity"));
+    }
+
+    @Test
+    public void testGZipVariant() throws Exception {
+        final HttpCacheServletMock s = new HttpCacheServletMock();
+        s.setHttpCache(HttpCacheServletMock.createConcurrentHttpCache(1024 * 1024, 1024 * 64));
+
+        byte[] data = createTextData(4096);
+        s.getHttpCache().put("test", createCacheEntry("test", data, "text/plain", null));
+
+        DetachedHttpServletResponse resp = new DetachedHttpServletResponse();
+        RequestProcessor crp = s.createCacheRequestProcessor(createVariantRequestProcessor("gzip, deflate", resp));
+        crp.doProcess(crp.getRequest(), crp.getResponse());
+
+        HttpCacheEntry gzip = s.getHttpCache().get("test#gzip");
+        assertNotNull(gzip);
+        assertEquals("gzip", gzip.getContentEncoding());
+        assertEquals("gzip", resp.getHeader("Content-Encoding"));
+        assertArrayEquals(gzip.getContent(), resp.getContent());
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (GZIPInputStream gis = new GZIPInputStream(new ByteArrayInputStream(resp.getContent()))) {
+            int b;
+            while ((b = gis.read()) > -1) {
+                bos.write(b);
+            }
+        }
+        assertArrayEquals(data, bos.toByteArray());
+
+        // Small entries are sent uncompressed, the variant of the previous
+        // entry is ignored
+        Thread.sleep(10);
+        s.getHttpCache().put("test", createCacheEntry("test", createTextData(512), "text/plain", null));
+
+        resp = new DetachedHttpServletResponse();
+        crp = s.createCacheRequestProcessor(createVariantRequestProcessor("gzip, deflate", resp));
+        crp.doProcess(crp.getRequest(), crp.getResponse());
+
+        assertNull(resp.getHeader("Content-Encoding"));
+        assertEquals(512, resp.getContent().length);
+    }
+
+    @Test
+    public void testVariantOutdated() throws Exception {
+        final HttpCacheServletMock s = new HttpCacheServletMock();
+        s.setHttpCache(HttpCacheServletMock.createConcurrentHttpCache(1024 * 1024, 1024 * 64));
+
+        HttpCacheEntry outdated = createCacheEntry("test", createTextData(2048), "text/plain", null);
+        Thread.sleep(10);
+
+        HttpCacheEntry entry = createCacheEntry("test", createTextData(4096), "text/plain", null);
+        s.getHttpCache().put("test", entry);
+
+        // Variant of an older representation
+        s.getHttpCache().put("test#gzip", new HttpCacheEntry(outdated, "test#gzip", new byte[8], "gzip"));
+
+        DetachedHttpServletResponse resp = new DetachedHttpServletResponse();
+        RequestProcessor crp = s.createCacheRequestProcessor(createVariantRequestProcessor("gzip", resp));
+        crp.doProcess(crp.getRequest(), crp.getResponse());
+
+        HttpCacheEntry gzip = s.getHttpCache().get("test#gzip");
+        assertNotNull(gzip);
+        assertEquals(entry.getTimestamp(), gzip.getTimestamp());
+        assertArrayEquals(gzip.getContent(), resp.getContent());
+    }
+
+    @Test
+    public void testPurgeHttpCache() throws Exception {
+        HttpCacheServletMock s = new HttpCacheServletMock();
+        assertTrue(s.purgeHttpCache("lenna.jpg").isEmpty());
+
+        s.setHttpCache(HttpCacheServletMock.createConcurrentHttpCache(1024 * 1024, 1024 * 64));
+
+        String[] keys = new String[]{"/F=webp/lenna.jpg", "/S=W100/lenna.jpg", "/S=W200/lenna.jpg"};
+        for (String key : keys) {
+            RequestProcessor rp = s.createCacheRequestProcessor(
+                    createTaggedRequestProcessor(key, "lenna.jpg"));
+            rp.doProcess(rp.getRequest(), rp.getResponse());
+        }
+        RequestProcessor rp = s.createCacheRequestProcessor(
+                createTaggedRequestProcessor("/S=W100/foo.jpg", "foo.jpg"));
+        rp.doProcess(rp.getRequest(), rp.getResponse());
+
+        HttpCacheEntry e = s.getHttpCache().get("/S=W100/lenna.jpg");
+        assertNotNull(e);
+        assertEquals("lenna.jpg", e.getUserProperty("__tag"));
+        assertEquals(4, s.getHttpCacheTagIndex().size());
+
+        // Variant of an entry
+        s.getHttpCache().put(HttpCacheServlet.getVariantKey("/S=W100/lenna.jpg", "gzip"),
+                new HttpCacheEntry(e, HttpCacheServlet.getVariantKey("/S=W100/lenna.jpg", "gzip"),
+                        e.getContent(), "gzip"));
+
+        Collection<String> purged = s.purgeHttpCache("/lenna.jpg");
+        assertEquals(new HashSet<>(Arrays.asList(keys)), new HashSet<>(purged));
+
+        for (String key : keys) {
+            assertNull(s.getHttpCache().get(key));
+        }
+        assertNull(s.getHttpCache().get(HttpCacheServlet.getVariantKey("/S=W100/lenna.jpg", "gzip")));
+        assertNotNull(s.getHttpCache().get("/S=W100/foo.jpg"));
+        assertEquals(1, s.getHttpCacheTagIndex().size());
+
+        assertTrue(s.purgeHttpCache("lenna.jpg").isEmpty());
+    }
+
+    @Test
+    public void testIndexHttpCache() throws Exception {
+        HttpCacheServletMock s = new HttpCacheServletMock();
+        s.setHttpCache(HttpCacheServletMock.createConcurrentHttpCache(1024 * 1024, 1024 * 64));
+
+        HttpCacheEntry e = createCacheEntry("/S=W100/lenna.jpg", new byte[128],
+                System.currentTimeMillis() + 60000);
+        e.setUserProperty("__tag", "lenna.jpg");
+        s.getHttpCache().put(e.getKey(), e);
+        s.getHttpCache().put("foo", createCacheEntry("foo", new byte[128],
+                System.currentTimeMillis() + 60000));
+
+        s.indexHttpCache();
+        assertEquals(1, s.getHttpCacheTagIndex().size());
+        assertEquals(Collections.singletonList("/S=W100/lenna.jpg"),
+                new ArrayList<>(s.purgeHttpCache("lenna.jpg")));
+    }
+
+    @Test
+    public void testNormalizeHttpCacheTag() throws Exception {
+        assertNull(HttpCacheServlet.normalizeHttpCacheTag(null));
+        assertNull(HttpCacheServlet.normalizeHttpCacheTag(""));
+        assertNull(HttpCacheServlet.normalizeHttpCacheTag("//"));
+        assertEquals("lenna.jpg", HttpCacheServlet.normalizeHttpCacheTag("/lenna.jpg"));
+        assertEquals("http://foo/lenna.jpg", HttpCacheServlet.normalizeHttpCacheTag("http://foo/lenna.jpg"));
+    }
+
+    @Test
+    public void testInvalidParameterNotServedFromCache() throws Exception {
+        HttpCacheServletMock s = new HttpCacheServletMock();
+        s.setHttpCache(HttpCacheServletMock.createConcurrentHttpCache(1024 * 1024, 1024 * 64));
+
+        // The auto quality variant is already cached
+        String key = createImageRequestProcessor("/q=auto/lenna.jpg", new ByteArrayOutputStream()).getTrueCacheKey();
+        assertEquals("/pictura-web/images/lenna.jpg", key);
+        s.getHttpCache().put(key, createCacheEntry(key, createTextData(64), System.currentTimeMillis() + 60000));
+
+        for (String path : new String[]{"/q=xyz/lenna.jpg", "/r=xyz/lenna.jpg"}) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            RequestProcessor rp = createImageRequestProcessor(path, bos);
+            HttpServletResponse resp = rp.getResponse();
+
+            RequestProcessor crp = s.createCacheRequestProcessor(rp);
+            crp.doProcess(crp.getRequest(), crp.getResponse());
+
+            verify(resp).sendError(eq(HttpServletResponse.SC_BAD_REQUEST), anyString());
+            verify(resp).setHeader("X-Pictura-Cache", "Miss");
+            assertEquals(0, bos.size());
+        }
+    }
+
+    private static ImageRequestProcessor createImageRequestProcessor(String path,
+            final ByteArrayOutputStream bos) throws IOException {
+
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        when(req.getMethod()).thenReturn("GET");
+        when(req.getContextPath()).thenReturn("/pictura-web");
+        when(req.getServletPath()).thenReturn("/images");
+        when(req.getRequestURI()).thenReturn("/pictura-web/images" + path);
+        when(req.getParameterNames()).thenReturn(Collections.enumeration(new ArrayList<String>(0)));
+        when(req.getAttribute("io.pictura.servlet.MAX_IMAGE_FILE_SIZE")).thenReturn(1024L * 1024L * 2L);
+        when(req.getAttribute("io.pictura.servlet.MAX_IMAGE_RESOLUTION")).thenReturn(6000000L);
+
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        when(resp.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                bos.write(b);
+            }
+        });
+
+        ImageRequestProcessor irp = new ImageRequestProcessor() {
+
+            @Override
+            public URL getResource(String path) throws MalformedURLException {
+                return HttpCacheServletTest.class.getResource("/lenna.jpg");
+            }
+        };
+        irp.setRequest(req);
+        irp.setResponse(resp);
+        return irp;
+    }
+
+    @Test
+    public void testNegativeCache() throws Exception {
+        HttpCacheServletMock s = new HttpCacheServletMock();
+        s.setHttpCache(HttpCacheServletMock.createConcurrentHttpCache(1024 * 1024, 1024 * 64));
+        assertEquals(-1, s.getHttpCacheNegativeSize());
+
+        s.setHttpCacheNegativeCache(new HttpCacheNegativeCache(16,
+                HttpCacheNegativeCache.parseTtls("404=60")));
+
+        AtomicInteger count = new AtomicInteger();
+        HttpServletResponse resp = null;
+        RequestProcessor rp;
+        for (int i = 0; i < 3; i++) {
+            rp = createFailingRequestProcessor("/S=W100/lenna.jpg", "lenna.jpg",
+                    HttpServletResponse.SC_NOT_FOUND, count);
+            resp = rp.getResponse();
+            rp = s.createCacheRequestProcessor(rp);
+            rp.doProcess(rp.getRequest(), rp.getResponse());
+        }
+        assertEquals(1, count.get());
+        assertEquals(1, s.getHttpCacheNegativeSize());
+        assertEquals(2, s.getHttpCacheNegativeHitCount());
+        assertNull(s.getHttpCache().get("/S=W100/lenna.jpg"));
+        verify(resp).setHeader("X-Pictura-Cache", "Negative");
+        verify(resp).sendError(HttpServletResponse.SC_NOT_FOUND, "Not found");
+
+        // Not configured status code
+        for (int i = 0; i < 2; i++) {
+            rp = s.createCacheRequestProcessor(createFailingRequestProcessor(
+                    "/S=W100/foo.jpg", "foo.jpg", HttpServletResponse.SC_BAD_REQUEST, count));
+            rp.doProcess(rp.getRequest(), rp.getResponse());
+        }
+        assertEquals(3, count.get());
+        assertEquals(1, s.getHttpCacheNegativeSize());
+
+        // Purging the source also removes the error response
+        s.purgeHttpCache("lenna.jpg");
+        assertEquals(0, s.getHttpCacheNegativeSize());
+        rp = s.createCacheRequestProcessor(createFailingRequestProcessor(
+                "/S=W100/lenna.jpg", "lenna.jpg", HttpServletResponse.SC_NOT_FOUND, count));
+        rp.doProcess(rp.getRequest(), rp.getResponse());
+        assertEquals(4, count.get());
+    }
+
+    @Test
+    public void testNegativeCacheDelete() throws Exception {
+        HttpCacheServletMock s = new HttpCacheServletMock();
+        s.setHttpCache(HttpCacheServletMock.createConcurrentHttpCache(1024 * 1024, 1024 * 64));
+        s.setHttpCacheNegativeCache(new HttpCacheNegativeCache(16,
+                HttpCacheNegativeCache.parseTtls("404=60")));
+
+        AtomicInteger count = new AtomicInteger();
+        RequestProcessor rp = s.createCacheRequestProcessor(createFailingRequestProcessor(
+                "/lenna.jpg", "lenna.jpg", HttpServletResponse.SC_NOT_FOUND, count));
+        rp.doProcess(rp.getRequest(), rp.getResponse());
+        assertEquals(1, s.getHttpCacheNegativeSize());
+
+        rp = createFailingRequestProcessor("/lenna.jpg", "lenna.jpg",
+                HttpServletResponse.SC_NOT_FOUND, count);
+        HttpServletResponse resp = rp.getResponse();
+        when(rp.getRequest().getMethod()).thenReturn("DELETE");
+        rp = s.createCacheRequestProcessor(rp);
+        rp.doProcess(rp.getRequest(), rp.getResponse());
+
+        verify(resp).setStatus(HttpServletResponse.SC_NO_CONTENT);
+        assertEquals(0, s.getHttpCacheNegativeSize());
+        assertEquals(1, count.get());
+    }
+
+    private static RequestProcessor createFailingRequestProcessor(final String key,
+            final String tag, final int sc, final AtomicInteger count) throws IOException {
+
+        final HttpServletRequest req = mock(HttpServletRequest.class);
+        when(req.getMethod()).thenReturn("GET");
+
+        final HttpServletResponse resp = mock(HttpServletResponse.class);
+        when(resp.getStatus()).thenReturn(sc);
+
+        RequestProcessor rp = new RequestProcessor() {
+
+            @Override
+            public boolean isCacheable() {
+                return true;
+            }
+
+            @Override
+            public String getTrueCacheKey() {
+                return key;
+            }
+
+            @Override
+            public String getCacheTag() {
+                return tag;
+            }
+
+            @Override
+            protected void doProcess(HttpServletRequest req, HttpServletResponse resp)
+                    throws ServletException, IOException {
+                count.incrementAndGet();
+                doInterrupt(sc, "Not found");
+            }
+        };
+        rp.setRequest(req);
+        rp.setResponse(resp);
+        return rp;
+    }
+
+    private static RequestProcessor createTaggedRequestProcessor(final String key,
+            final String tag) throws IOException {
+
+        final HttpServletRequest req = mock(HttpServletRequest.class);
+        when(req.getMethod()).thenReturn("GET");
+
+        final HttpServletResponse resp = mock(HttpServletResponse.class);
+        when(resp.getStatus()).thenReturn(200);
+        when(resp.getHeaderNames()).thenReturn(Collections.singleton("Cache-Control"));
+        when(resp.getHeader("Cache-Control")).thenReturn("max-age=60");
+        when(resp.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+            }
+        });
+
+        RequestProcessor rp = new RequestProcessor() {
+
+            @Override
+            public boolean isCacheable() {
+                return true;
+            }
+
+            @Override
+            public String getTrueCacheKey() {
+                return key;
+            }
+
+            @Override
+            public String getCacheTag() {
+                return tag;
+            }
+
+            @Override
+            protected void doProcess(HttpServletRequest req, HttpServletResponse resp)
+                    throws ServletException, IOException {
+                resp.getOutputStream().write(new byte[256]);
+            }
+        };
+        rp.setRequest(req);
+        rp.setResponse(resp);
+        return rp;
+    }
+
+    private static byte[] createTextData(int len) {
+        byte[] data = new byte[len];
+        for (int i = 0; i < len; i++) {
+            data[i] = (byte) ('a' + (i % 26));
+        }
+        return data;
+    }
+
+    private static HttpCacheEntry createCacheEntry(String key, byte[] data,
+            String contentType, String contentEncoding) {
+
+        HashMap<String, String> headers = new HashMap<>();
+        headers.put("Cache-Control", "max-age=60");
+        headers.put("Content-Type", contentType);
+        if (contentEncoding != null) {
+            headers.put("Content-Encoding", contentEncoding);
+        }
+
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        when(resp.getStatus()).thenReturn(200);
+        when(resp.getHeaderNames()).thenReturn(headers.keySet());
+        for (String name : headers.keySet()) {
+            when(resp.getHeader(name)).thenReturn(headers.get(name));
+        }
+
+        return new HttpCacheEntry(key, data, null, resp);
+    }
+
+    private static RequestProcessor createVariantRequestProcessor(String acceptEncoding,
+            HttpServletResponse resp) {
+
+        final HttpServletRequest req = mock(HttpServletRequest.class);
+        when(req.getMethod()).thenReturn("GET");
+        when(req.getHeader("Accept-Encoding")).thenReturn(acceptEncoding);
+        when(req.getAttribute("io.pictura.servlet.DEFLATER_COMPRESSION_MIN_SIZE")).thenReturn(1024);
+        when(req.getAttribute("io.pictura.servlet.DEFLATER_COMPRESSION_LEVEL")).thenReturn(6);
+
+        RequestProcessor rp = new RequestProcessor() {
+
+            @Override
+            public boolean isCacheable() {
+                return true;
+            }
+
+            @Override
+            public String getTrueCacheKey() {
+                return "test";
+            }
+
+            @Override
+            protected void doProcess(HttpServletRequest req, HttpServletResponse resp)
+                    throws ServletException, IOException {
+                throw new IllegalStateException("Cache miss");
+            }
+        };
+        rp.setRequest(req);
+        rp.setResponse(resp);
+        return rp;
+    }
+
+    private static HttpCacheEntry createCacheEntry(String key, byte[] data, long expires) {
+        HashMap<String, String> headers = new HashMap<>();
+        headers.put(HEADER_EXPIRES, new SimpleDateFormat("EEEE, dd-MMM-yy HH:mm:ss zzz", Locale.US)
+                .format(new Date(expires)));
+        headers.put("Cache-Control", "max-age=60");
+
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        when(resp.getStatus()).thenReturn(200);
+        when(resp.getHeaderNames()).thenReturn(headers.keySet());
+        when(resp.getHeader(HEADER_EXPIRES)).thenReturn(headers.get(HEADER_EXPIRES));
+        when(resp.getHeader("Cache-Control")).thenReturn(headers.get("Cache-Control"));
+
+        return new HttpCacheEntry(key, data, null, resp);
+    }
+
+    private static RequestProcessor createCacheableRequestProcessor(
+            final ByteArrayOutputStream bos, final Runnable r, final byte[] data) throws IOException {
+
+        final HttpServletRequest req = mock(HttpServletRequest.class);
+        when(req.getMethod()).thenReturn("GET");
+        when(req.getAttribute("io.pictura.servlet.DEFLATER_COMPRESSION_MIN_SIZE")).thenReturn(1024);
+
+        final HttpServletResponse resp = mock(HttpServletResponse.class);
+        when(resp.getStatus()).thenReturn(200);
+        when(resp.getHeaderNames()).thenReturn(Collections.singleton("Cache-Control"));
+        when(resp.getHeader("Cache-Control")).thenReturn("max-age=60");
+        when(resp.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                bos.write(b);
+            }
+        });
+
+        RequestProcessor rp = new RequestProcessor() {
+
+            @Override
+            public boolean isCacheable() {
+                return true;
+            }
+
+            @Override
+            public String getTrueCacheKey() {
+                return "test";
+            }
+
+            @Override
+            protected void doProcess(HttpServletRequest req, HttpServletResponse resp)
+                    throws ServletException, IOException {
+                if (data == null) {
+                    doInterrupt(HttpServletResponse.SC_BAD_GATEWAY);
+                    return;
+                }
+                r.run();
+                resp.getOutputStream().write(data);
+            }
+        };
+        rp.setRequest(req);
+        rp.setResponse(resp);
+        return rp;
+    }
+
+    private static final class CoalescingRunnable implements Runnable {
+
+        private final RequestProcessor rp;
+
+        private CoalescingRunnable(RequestProcessor rp) {
+            this.rp = rp;
+        }
+
+        @Override
+        public void run() {
+            try {
+                rp.doProcess(rp.getRequest(), rp.getResponse());
+            } catch (ServletException | IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void testSaveHttpCacheToStreamStreamNull() throws Exception {
         HttpCacheServlet.saveHttpCacheToStream(null, HttpCacheServlet.createDefaultHttpCache(1, 1));
@@ -254,6 +1216,16 @@ public class HttpCacheServletTest {
 
         private static final long serialVersionUID = -802317978849685708L;
 
+        // The processor for the next background revalidation
+        private volatile RequestProcessor refreshProcessor;
+
+        @Override
+        protected RequestProcessor createRequestProcessor(HttpServletRequest req) {
+            RequestProcessor rp = refreshProcessor;
+            refreshProcessor = null;
+            return rp;
+        }
+
     }
 
 }
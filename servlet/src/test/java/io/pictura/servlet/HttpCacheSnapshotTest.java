@@ -0,0 +1,310 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import static io.pictura.servlet.HttpCacheEntries.createEntry;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * @author Steffen Kremp
+ */
+public class HttpCacheSnapshotTest {
+
+    @Test
+    public void testWriteRead() throws Exception {
+        HttpCache cache = HttpCacheServlet.createConcurrentHttpCache(1024 * 1024, 1024 * 64);
+
+        HttpCacheEntry foo = createEntry("foo", createData(5000), "max-age=60");
+        foo.setUserProperty("__delta", "42");
+        foo.hitCount = 7;
+        cache.put("foo", foo);
+        cache.put("bar", createEntry("bar", new byte[0], "max-age=60"));
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        assertEquals(2, HttpCacheSnapshot.write(bos, cache));
+
+        HttpCache cache2 = HttpCacheServlet.createConcurrentHttpCache(1024 * 1024, 1024 * 64);
+        assertEquals(2, HttpCacheSnapshot.read(new ByteArrayInputStream(bos.toByteArray()), cache2));
+
+        HttpCacheEntry e = cache2.get("foo");
+        assertNotNull(e);
+        assertEquals(foo.getTimestamp(), e.getTimestamp());
+        assertEquals(foo.getExpires(), e.getExpires());
+        assertEquals(200, e.getStatus());
+        assertEquals(7, e.getHitCount());
+        assertEquals("image/jpeg", e.getContentType());
+        assertEquals("max-age=60", e.getHeader("Cache-Control"));
+        assertEquals("42", e.getUserProperty("__delta"));
+        assertArrayEquals(foo.getContent(), e.getContent());
+
+        assertEquals(0, cache2.get("bar").getContentLength());
+    }
+
+    @Test
+    public void testHitCountOrder() throws Exception {
+        HttpCache cache = HttpCacheServlet.createConcurrentHttpCache(1024 * 1024, 1024 * 64);
+        for (int i = 0; i < 10; i++) {
+            HttpCacheEntry e = createEntry("key-" + i, createData(100), "max-age=60");
+            e.hitCount = i;
+            cache.put(e.getKey(), e);
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        HttpCacheSnapshot.write(bos, cache);
+
+        final ArrayList<String> order = new ArrayList<>();
+        HttpCache cache2 = new HttpCacheAdapter() {
+
+            @Override
+            public void put(String key, HttpCacheEntry entry) {
+                order.add(key);
+            }
+        };
+        HttpCacheSnapshot.read(new ByteArrayInputStream(bos.toByteArray()), cache2);
+
+        assertEquals(10, order.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("key-" + (9 - i), order.get(i));
+        }
+    }
+
+    @Test
+    public void testWriteWithoutAccess() throws Exception {
+        final HttpCacheEntry foo = createEntry("foo", createData(100), "max-age=60");
+        final HttpCacheEntry bar = createEntry("bar", createData(100), "max-age=60");
+
+        HttpCache cache = new IterableHttpCacheAdapter() {
+
+            @Override
+            public HttpCacheEntry get(String key) {
+                fail("Unexpected cache access");
+                return null;
+            }
+
+            @Override
+            public Collection<HttpCacheEntry> entries() {
+                return Arrays.asList(foo, bar);
+            }
+        };
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        assertEquals(2, HttpCacheSnapshot.write(bos, cache));
+    }
+
+    @Test
+    public void testWriteReadsEachEntryOnce() throws Exception {
+        final HttpCacheEntry foo = createEntry("foo", createData(100), "max-age=60");
+        final HashMap<String, Integer> gets = new HashMap<>();
+
+        HttpCache cache = new HttpCacheAdapter() {
+
+            @Override
+            public HttpCacheEntry get(String key) {
+                gets.put(key, gets.containsKey(key) ? gets.get(key) + 1 : 1);
+                return "foo".equals(key) ? foo : null;
+            }
+
+            @Override
+            public Set<String> keySet() {
+                return new HashSet<>(Arrays.asList("foo", "bar"));
+            }
+        };
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        assertEquals(1, HttpCacheSnapshot.write(bos, cache));
+        assertEquals(Integer.valueOf(1), gets.get("foo"));
+        assertEquals(Integer.valueOf(1), gets.get("bar"));
+    }
+
+    @Test
+    public void testWriteTieredWithoutPromotion() throws Exception {
+        HttpCache l1 = HttpCacheServlet.createConcurrentHttpCache(1024 * 1024, 1024 * 64);
+        HttpCache l2 = HttpCacheServlet.createConcurrentHttpCache(1024 * 1024, 1024 * 64);
+        TieredHttpCache cache = new TieredHttpCache(l1, l2, 1);
+
+        HttpCacheEntry foo = createEntry("foo", createData(100), "max-age=60");
+        cache.put("foo", foo);
+        HttpCacheEntry bar = createEntry("bar", createData(100), "max-age=60");
+        l2.put("bar", bar);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        assertEquals(2, HttpCacheSnapshot.write(bos, cache));
+        assertNull(l1.get("bar"));
+    }
+
+    @Test
+    public void testReadKeys() throws Exception {
+        HttpCache cache = HttpCacheServlet.createConcurrentHttpCache(1024 * 1024, 1024 * 64);
+        for (int i = 0; i < 10; i++) {
+            HttpCacheEntry e = createEntry("key-" + i, createData(100 * i), "max-age=60");
+            e.hitCount = i;
+            cache.put(e.getKey(), e);
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        HttpCacheSnapshot.write(bos, cache);
+
+        assertEquals(Arrays.asList("key-9", "key-8", "key-7"),
+                HttpCacheSnapshot.readKeys(new ByteArrayInputStream(bos.toByteArray()), 3));
+        assertEquals(10, HttpCacheSnapshot.readKeys(
+                new ByteArrayInputStream(bos.toByteArray()), 100).size());
+    }
+
+    @Test
+    public void testExpired() throws Exception {
+        HttpCache cache = HttpCacheServlet.createConcurrentHttpCache(1024 * 1024, 1024 * 64);
+        cache.put("foo", createEntry("foo", createData(100), "max-age=1"));
+        cache.put("bar", createEntry("bar", createData(100), "max-age=60"));
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        assertEquals(2, HttpCacheSnapshot.write(bos, cache));
+
+        Thread.sleep(1100);
+
+        HttpCache cache2 = HttpCacheServlet.createConcurrentHttpCache(1024 * 1024, 1024 * 64);
+        assertEquals(1, HttpCacheSnapshot.read(new ByteArrayInputStream(bos.toByteArray()), cache2));
+        assertNull(cache2.get("foo"));
+        assertNotNull(cache2.get("bar"));
+    }
+
+    @Test
+    public void testChecksumMismatch() throws Exception {
+        HttpCache cache = HttpCacheServlet.createConcurrentHttpCache(1024 * 1024, 1024 * 64);
+        HttpCacheEntry foo = createEntry("foo", createData(1000), "max-age=60");
+        foo.hitCount = 2;
+        cache.put("foo", foo);
+        cache.put("bar", createEntry("bar", createData(1000), "max-age=60"));
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        HttpCacheSnapshot.write(bos, cache);
+
+        // Modify the content of the first record (foo)
+        byte[] b = bos.toByteArray();
+        b[500] = (byte) ~b[500];
+
+        HttpCache cache2 = HttpCacheServlet.createConcurrentHttpCache(1024 * 1024, 1024 * 64);
+        assertEquals(1, HttpCacheSnapshot.read(new ByteArrayInputStream(b), cache2));
+        assertNull(cache2.get("foo"));
+        assertNotNull(cache2.get("bar"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncated() throws Exception {
+        HttpCache cache = HttpCacheServlet.createConcurrentHttpCache(1024 * 1024, 1024 * 64);
+        cache.put("foo", createEntry("foo", createData(1000), "max-age=60"));
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        HttpCacheSnapshot.write(bos, cache);
+
+        byte[] b = bos.toByteArray();
+        HttpCacheSnapshot.read(new ByteArrayInputStream(b, 0, b.length - 10),
+                HttpCacheServlet.createConcurrentHttpCache(1024 * 1024, 1024 * 64));
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnsupportedVersion() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        HttpCacheSnapshot.write(bos, HttpCacheServlet.createConcurrentHttpCache(1024, 1024));
+
+        byte[] b = bos.toByteArray();
+        b[7] = 99;
+        HttpCacheSnapshot.read(new ByteArrayInputStream(b),
+                HttpCacheServlet.createConcurrentHttpCache(1024, 1024));
+    }
+
+    @Test
+    public void testLoadLegacyFormat() throws Exception {
+        ArrayList<HttpCacheEntry> entryList = new ArrayList<>();
+        entryList.add(createEntry("foo", createData(100), "max-age=60"));
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            oos.writeObject(entryList);
+        }
+
+        HttpCache cache = HttpCacheServlet.createConcurrentHttpCache(1024 * 1024, 1024 * 64);
+        HttpCacheServlet.loadHttpCacheFromStream(new ByteArrayInputStream(bos.toByteArray()), cache);
+        assertNotNull(cache.get("foo"));
+    }
+
+    @Test
+    public void testSaveLoadHttpCacheToStream() throws Exception {
+        HttpCache cache = HttpCacheServlet.createConcurrentHttpCache(1024 * 1024, 1024 * 64);
+        byte[] data = createData(2000);
+        cache.put("foo", createEntry("foo", data, "max-age=60"));
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        HttpCacheServlet.saveHttpCacheToStream(bos, cache);
+
+        HttpCache cache2 = HttpCacheServlet.createConcurrentHttpCache(1024 * 1024, 1024 * 64);
+        HttpCacheServlet.loadHttpCacheFromStream(new ByteArrayInputStream(bos.toByteArray()), cache2);
+        assertArrayEquals(data, cache2.get("foo").getContent());
+    }
+
+    private static byte[] createData(int len) {
+        byte[] data = new byte[len];
+        new Random(len).nextBytes(data);
+        return data;
+    }
+
+    private static class IterableHttpCacheAdapter extends HttpCacheAdapter implements IterableHttpCache {
+
+        @Override
+        public Collection<HttpCacheEntry> entries() {
+            return Collections.emptyList();
+        }
+    }
+
+    private static class HttpCacheAdapter implements HttpCache {
+
+        @Override
+        public HttpCacheEntry get(String key) {
+            return null;
+        }
+
+        @Override
+        public void put(String key, HttpCacheEntry entry) {
+        }
+
+        @Override
+        public boolean remove(String key) {
+            return false;
+        }
+
+        @Override
+        public Set<String> keySet() {
+            return Collections.emptySet();
+        }
+    }
+
+}
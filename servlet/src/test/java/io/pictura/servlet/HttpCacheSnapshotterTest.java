@@ -0,0 +1,139 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.io.File;
+import java.util.Collections;
+import org.junit.After;
+import static io.pictura.servlet.HttpCacheEntries.createEntry;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Steffen Kremp
+ */
+public class HttpCacheSnapshotterTest {
+
+    private File dir;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("pictura", "snapshot");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdirs());
+        file = new File(dir, "cache.dat");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateCacheNull() throws Exception {
+        new HttpCacheSnapshotter(null, file, 0, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateFileNull() throws Exception {
+        new HttpCacheSnapshotter(HttpCacheServlet.createConcurrentHttpCache(1024, 1024), null, 0, 1);
+    }
+
+    @Test
+    public void testThreshold() throws Exception {
+        HttpCache cache = HttpCacheServlet.createConcurrentHttpCache(1024 * 1024, 1024 * 64);
+        HttpCacheSnapshotter s = new HttpCacheSnapshotter(cache, file, 0, 2);
+
+        cache.put("foo", createEntry("foo", new byte[1024]));
+        s.entryAdded();
+        cache.put("bar", createEntry("bar", new byte[1024]));
+        s.entryAdded();
+
+        // Not started yet
+        assertTrue(s.isDirty());
+        assertFalse(file.exists());
+
+        s.start();
+        s.close();
+
+        assertFalse(s.isDirty());
+        assertEquals(1, s.getSnapshotCount());
+        assertEquals(file.length(), s.getLastSnapshotSize());
+        assertTrue(s.getLastSnapshotDuration() >= 0);
+        assertTrue(s.getLastSnapshotTimestamp() > 0);
+
+        // No temporary files left
+        assertEquals(1, dir.listFiles().length);
+
+        HttpCache cache2 = HttpCacheServlet.createConcurrentHttpCache(1024 * 1024, 1024 * 64);
+        HttpCacheServlet.loadHttpCacheFromFile(file, cache2);
+        assertNotNull(cache2.get("foo"));
+        assertNotNull(cache2.get("bar"));
+    }
+
+    @Test
+    public void testInterval() throws Exception {
+        HttpCache cache = HttpCacheServlet.createConcurrentHttpCache(1024 * 1024, 1024 * 64);
+        HttpCacheSnapshotter s = new HttpCacheSnapshotter(cache, file, 50, 0);
+        s.start();
+
+        Thread.sleep(200);
+
+        // Nothing to write
+        assertEquals(0, s.getSnapshotCount());
+
+        cache.put("foo", createEntry("foo", new byte[1024]));
+        s.entryAdded();
+
+        for (int i = 0; i < 100 && s.getSnapshotCount() == 0; i++) {
+            Thread.sleep(20);
+        }
+        s.close();
+
+        assertEquals(1, s.getSnapshotCount());
+        assertTrue(file.exists());
+        assertFalse(s.isDirty());
+    }
+
+    @Test
+    public void testSaveHttpCacheToFileReplace() throws Exception {
+        HttpCache cache = HttpCacheServlet.createConcurrentHttpCache(1024 * 1024, 1024 * 64);
+        cache.put("foo", createEntry("foo", new byte[1024]));
+        HttpCacheServlet.saveHttpCacheToFile(file, cache);
+
+        cache.remove("foo");
+        cache.put("bar", createEntry("bar", new byte[1024]));
+        HttpCacheServlet.saveHttpCacheToFile(file, cache);
+
+        assertEquals(1, dir.listFiles().length);
+
+        HttpCache cache2 = HttpCacheServlet.createConcurrentHttpCache(1024 * 1024, 1024 * 64);
+        HttpCacheServlet.loadHttpCacheFromFile(file, cache2);
+        assertEquals(Collections.singleton("bar"), cache2.keySet());
+    }
+
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * @author Steffen Kremp
+ */
+public class HttpCacheTagIndexTest {
+
+    @Test
+    public void testAddRemove() throws Exception {
+        HttpCacheTagIndex idx = new HttpCacheTagIndex();
+
+        idx.add("lenna.jpg", "/F=webp/lenna.jpg");
+        idx.add("lenna.jpg", "/S=W100/lenna.jpg");
+        idx.add("lenna.jpg", "/S=W100/lenna.jpg");
+        idx.add("foo.jpg", "/foo.jpg");
+
+        // Ignored
+        idx.add(null, "/bar.jpg");
+        idx.add("", "/bar.jpg");
+        idx.add("bar.jpg", null);
+
+        assertEquals(3, idx.size());
+        assertEquals(2, idx.tagCount());
+        assertEquals(new HashSet<>(Arrays.asList("/F=webp/lenna.jpg", "/S=W100/lenna.jpg")),
+                idx.getKeys("lenna.jpg"));
+
+        idx.remove("lenna.jpg", "/F=webp/lenna.jpg");
+        idx.remove("lenna.jpg", "/F=webp/lenna.jpg");
+        assertEquals(2, idx.size());
+
+        idx.remove("foo.jpg", "/foo.jpg");
+        assertEquals(1, idx.size());
+        assertEquals(1, idx.tagCount());
+        assertTrue(idx.getKeys("foo.jpg").isEmpty());
+    }
+
+    @Test
+    public void testRemoveTag() throws Exception {
+        HttpCacheTagIndex idx = new HttpCacheTagIndex();
+
+        idx.add("lenna.jpg", "/F=webp/lenna.jpg");
+        idx.add("lenna.jpg", "/S=W100/lenna.jpg");
+        idx.add("foo.jpg", "/foo.jpg");
+
+        assertEquals(new HashSet<>(Arrays.asList("/F=webp/lenna.jpg", "/S=W100/lenna.jpg")),
+                idx.removeTag("lenna.jpg"));
+        assertTrue(idx.removeTag("lenna.jpg").isEmpty());
+        assertTrue(idx.removeTag(null).isEmpty());
+        assertEquals(1, idx.size());
+
+        // A new family is created for the same tag
+        idx.add("lenna.jpg", "/lenna.jpg");
+        assertEquals(Collections.singleton("/lenna.jpg"), idx.getKeys("lenna.jpg"));
+
+        idx.clear();
+        assertEquals(0, idx.size());
+        assertEquals(0, idx.tagCount());
+    }
+
+    @Test
+    public void testPrune() throws Exception {
+        HttpCacheTagIndex idx = new HttpCacheTagIndex();
+
+        Set<String> cached = new HashSet<>();
+        for (int i = 0; i < 2000; i++) {
+            String key = "/S=W" + i + "/lenna.jpg";
+            idx.add(i % 2 == 0 ? "lenna.jpg" : "foo-" + i + ".jpg", key);
+            if (i % 4 == 0) {
+                cached.add(key);
+            }
+        }
+        assertTrue(idx.isPruneRequired());
+
+        idx.prune(cached);
+
+        assertFalse(idx.isPruneRequired());
+        assertEquals(cached.size(), idx.size());
+        assertEquals(1, idx.tagCount());
+        assertEquals(cached, idx.getKeys("lenna.jpg"));
+    }
+
+    @Test
+    public void testConcurrentAddRemoveTag() throws Exception {
+        final HttpCacheTagIndex idx = new HttpCacheTagIndex();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Thread t = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                for (int i = 0; i < 100000; i++) {
+                    idx.add("lenna.jpg", "/S=W" + i + "/lenna.jpg");
+                }
+                done.countDown();
+            }
+        });
+        t.start();
+
+        int removed = 0;
+        while (done.getCount() > 0) {
+            removed += idx.removeTag("lenna.jpg").size();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        removed += idx.removeTag("lenna.jpg").size();
+
+        // No key was lost
+        assertEquals(100000, removed);
+        assertEquals(0, idx.size());
+    }
+
+}
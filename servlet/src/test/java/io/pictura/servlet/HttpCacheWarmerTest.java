@@ -0,0 +1,185 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * @author Steffen Kremp
+ */
+public class HttpCacheWarmerTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateNullPaths() throws Exception {
+        new HttpCacheWarmerMock(null, 1, 0f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateInvalidPoolSize() throws Exception {
+        new HttpCacheWarmerMock(Collections.<String>emptyList(), 0, 0f);
+    }
+
+    @Test
+    public void testWarmUp() throws Exception {
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            paths.add("/S=W" + i + "/lenna.jpg");
+        }
+        paths.add("/S=W0/lenna.jpg"); // duplicate
+        paths.add("/error.jpg");
+
+        HttpCacheWarmerMock w = new HttpCacheWarmerMock(paths, 2, 1f);
+        assertEquals(21, w.getTotalCount());
+        assertFalse(w.isReady());
+
+        w.start(null);
+        assertTrue(w.done.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 100 && !w.isDone(); i++) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(20, w.getWarmedCount());
+        assertEquals(21, w.getProcessedCount());
+        assertTrue(w.isReady());
+        assertTrue(w.isDone());
+        w.close();
+    }
+
+    @Test
+    public void testThrottle() throws Exception {
+        HttpCacheWarmerMock w = new HttpCacheWarmerMock(Arrays.asList("/lenna.jpg"), 1, 1f);
+        w.busy.set(true);
+        w.start(null);
+
+        Thread.sleep(HttpCacheWarmer.THROTTLE_DELAY * 3);
+        assertEquals(0, w.getProcessedCount());
+
+        w.busy.set(false);
+        assertTrue(w.done.await(10, TimeUnit.SECONDS));
+        w.close();
+    }
+
+    @Test
+    public void testPredecessor() throws Exception {
+        final CountDownLatch restored = new CountDownLatch(1);
+        Thread restore = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    restored.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        restore.start();
+
+        HttpCacheWarmerMock w = new HttpCacheWarmerMock(Arrays.asList("/lenna.jpg"), 1, 0f);
+        w.start(restore);
+
+        Thread.sleep(100);
+        assertEquals(0, w.getProcessedCount());
+
+        restored.countDown();
+        assertTrue(w.done.await(10, TimeUnit.SECONDS));
+        w.close();
+    }
+
+    @Test
+    public void testReadyRatio() throws Exception {
+        HttpCacheWarmerMock w = new HttpCacheWarmerMock(Arrays.asList("/a.jpg", "/b.jpg"), 1, 0f);
+        assertTrue(w.isReady());
+
+        w = new HttpCacheWarmerMock(Collections.<String>emptyList(), 1, 1f);
+        assertTrue(w.isReady());
+        assertTrue(w.isDone());
+    }
+
+    @Test
+    public void testReadManifest() throws Exception {
+        File f = File.createTempFile("pictura-warmup", ".txt");
+        f.deleteOnExit();
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8)) {
+            w.write("# Warm-up manifest\n");
+            w.write("/pictura/S=W100/lenna.jpg\n");
+            w.write("\n");
+            w.write("  /pictura/F=WEBP/lenna.jpg  \n");
+            w.write("127.0.0.1 - - [12/Jul/2016:10:00:00 +0200] \"GET /pictura/S=W200/lenna.jpg HTTP/1.1\" 200 1234\n");
+            w.write("/pictura/S=W100/lenna.jpg\n");
+            w.write("foo\n");
+        }
+
+        assertEquals(Arrays.asList("/pictura/S=W100/lenna.jpg", "/pictura/F=WEBP/lenna.jpg",
+                "/pictura/S=W200/lenna.jpg"), HttpCacheWarmer.readManifest(f, 0));
+        assertEquals(Arrays.asList("/pictura/S=W100/lenna.jpg"), HttpCacheWarmer.readManifest(f, 1));
+    }
+
+    @Test
+    public void testGetServletPath() throws Exception {
+        List<String> mappings = Arrays.asList("/images/*", "/images/thumbs/*", "*.jpg", "/");
+
+        assertEquals("/images", HttpCacheWarmer.getServletPath("/images/S=W100/lenna.jpg", mappings));
+        assertEquals("/images/thumbs", HttpCacheWarmer.getServletPath("/images/thumbs/lenna.jpg", mappings));
+        assertEquals("", HttpCacheWarmer.getServletPath("/imagesfoo/lenna.jpg", mappings));
+        assertEquals("", HttpCacheWarmer.getServletPath("/lenna.jpg", Arrays.asList("/*")));
+        assertEquals("", HttpCacheWarmer.getServletPath("/lenna.jpg", null));
+    }
+
+    private static final class HttpCacheWarmerMock extends HttpCacheWarmer {
+
+        private final AtomicBoolean busy = new AtomicBoolean();
+        private final CountDownLatch done;
+
+        private HttpCacheWarmerMock(List<String> paths, int poolSize, float readyRatio) {
+            super(paths, poolSize, readyRatio);
+            this.done = new CountDownLatch(getTotalCount());
+        }
+
+        @Override
+        boolean isBusy() {
+            return busy.get();
+        }
+
+        @Override
+        boolean warm(String path) throws Exception {
+            try {
+                if (path.startsWith("/error")) {
+                    throw new RuntimeException("Failed");
+                }
+                return true;
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+
+}
@@ -15,19 +15,41 @@
  */
 package io.pictura.servlet;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.awt.image.BufferedImageOp;
 import java.awt.image.LookupOp;
 import java.awt.image.RescaleOp;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
 import javax.print.attribute.HashAttributeSet;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
@@ -36,9 +58,15 @@ import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 /**
  * @author Steffen Kremp
@@ -2208,7 +2236,7 @@ public class ImageRequestProcessorTest {
 
 	when(req.getContextPath()).thenReturn("/pictura-web");
 	when(req.getServletPath()).thenReturn("/images");
-	when(req.getRequestURI()).thenReturn("/pictura-web/images/f=png/lenna.jpg");
+	when(req.getRequestURI()).thenReturn("/pictura-web/images/fn=png/lenna.jpg");
 	when(req.getQueryString()).thenReturn(null);
 	when(req.getParameterNames()).thenReturn(Collections.enumeration(new ArrayList<String>(0)));
         
@@ -2228,7 +2256,7 @@ public class ImageRequestProcessorTest {
         };
         irp.setRequest(req);
         
-        assertEquals("/pictura-web/images/f=png/lenna.jpg", irp.getTrueCacheKey());        
+        assertEquals("/pictura-web/images/fn=png/lenna.jpg", irp.getTrueCacheKey());        
         
         irp.setParamsInterceptor(new ParamsInterceptor() {
             @Override
@@ -2242,7 +2270,7 @@ public class ImageRequestProcessorTest {
             }
         });
         
-        assertEquals("/pictura-web/images/f=png/lenna.jpg#test", irp.getTrueCacheKey());
+        assertEquals("/pictura-web/images/fn=png/lenna.jpg#test", irp.getTrueCacheKey());
         
         irp.setImageInterceptor(new ImageInterceptor() {
             @Override
@@ -2256,7 +2284,85 @@ public class ImageRequestProcessorTest {
             }
         });
         
-        assertEquals("/pictura-web/images/f=png/lenna.jpg#tEsT#test", irp.getTrueCacheKey());
+        assertEquals("/pictura-web/images/fn=png/lenna.jpg#tEsT#test", irp.getTrueCacheKey());
+    }
+    
+    @Test
+    public void testGetCanonicalRequestURI() {
+        String expected = "/pictura-web/images/fn=webp/sw=100/lenna.jpg";
+
+        assertEquals(expected, createCanonicalRequestProcessor("/S=W100/F=webp/lenna.jpg", null).getTrueCacheKey());
+        assertEquals(expected, createCanonicalRequestProcessor("/F=webp/S=W100/lenna.jpg", null).getTrueCacheKey());
+        assertEquals(expected, createCanonicalRequestProcessor("/f=WEBP/s=w0100/lenna.jpg", null).getTrueCacheKey());
+        assertEquals(expected, createCanonicalRequestProcessor("/f=webp/s=w100,dpr1.0/o=85/lenna.jpg", null).getTrueCacheKey());
+        assertEquals(expected, createCanonicalRequestProcessor("/q=auto/F=webp/S=W100/lenna.jpg", null).getTrueCacheKey());
+
+        // Query parameters
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        when(req.getContextPath()).thenReturn("/pictura-web");
+        when(req.getServletPath()).thenReturn("/images");
+        when(req.getRequestURI()).thenReturn("/pictura-web/images/lenna.jpg");
+        when(req.getQueryString()).thenReturn("s=w100&f=webp");
+        when(req.getParameterNames()).thenReturn(Collections.enumeration(Arrays.asList("s", "f")));
+        when(req.getParameter("s")).thenReturn("w100");
+        when(req.getParameter("f")).thenReturn("webp");
+        when(req.getAttribute("io.pictura.servlet.ENABLE_QUERY_PARAMS")).thenReturn(Boolean.TRUE);
+
+        ImageRequestProcessor irp = new ImageRequestProcessor();
+        irp.setRequest(req);
+        assertEquals(expected, irp.getTrueCacheKey());
+
+        // Not equal
+        assertEquals("/pictura-web/images/fn=webp/o=85/q=h/sw=100/lenna.jpg",
+                createCanonicalRequestProcessor("/f=webp/s=w100/o=85/q=high/lenna.jpg", null).getTrueCacheKey());
+        assertEquals("/pictura-web/images/e=g,s/r=90/lenna.jpg",
+                createCanonicalRequestProcessor("/r=l/e=g,s/lenna.jpg", null).getTrueCacheKey());
+        assertEquals("/pictura-web/images/r=h/su=u/sw=100/lenna.jpg",
+                createCanonicalRequestProcessor("/r=H/s=w100,u/lenna.jpg", null).getTrueCacheKey());
+        assertEquals("/pictura-web/images/fn=webp/lenna.jpg?foo=bar",
+                createCanonicalRequestProcessor("/f=webp/lenna.jpg", "foo=bar").getTrueCacheKey());
+        assertEquals("/pictura-web/images/bc=aabbcc/bs=5/lenna.jpg",
+                createCanonicalRequestProcessor("/b=5,abc/lenna.jpg", null).getTrueCacheKey());
+
+        // Invalid parameters; origin request URI
+        assertEquals("/pictura-web/images/s=foo/lenna.jpg",
+                createCanonicalRequestProcessor("/s=foo/lenna.jpg", null).getTrueCacheKey());
+        assertEquals("/pictura-web/images/q=xyz/lenna.jpg",
+                createCanonicalRequestProcessor("/q=xyz/lenna.jpg", null).getTrueCacheKey());
+        assertEquals("/pictura-web/images/r=xyz/lenna.jpg",
+                createCanonicalRequestProcessor("/r=xyz/lenna.jpg", null).getTrueCacheKey());
+        assertEquals("/pictura-web/images/su=x/lenna.jpg",
+                createCanonicalRequestProcessor("/su=x/lenna.jpg", null).getTrueCacheKey());
+    }
+
+    private static ImageRequestProcessor createCanonicalRequestProcessor(String path, String query) {
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        when(req.getContextPath()).thenReturn("/pictura-web");
+        when(req.getServletPath()).thenReturn("/images");
+        when(req.getRequestURI()).thenReturn("/pictura-web/images" + path);
+        when(req.getQueryString()).thenReturn(query);
+        when(req.getParameterNames()).thenReturn(Collections.enumeration(new ArrayList<String>(0)));
+
+        ImageRequestProcessor irp = new ImageRequestProcessor();
+        irp.setRequest(req);
+        return irp;
+    }
+
+    @Test
+    public void testGetCacheTag() {
+        HttpServletRequest req = mock(HttpServletRequest.class);
+
+        when(req.getContextPath()).thenReturn("/pictura-web");
+        when(req.getServletPath()).thenReturn("/images");
+        when(req.getRequestURI()).thenReturn("/pictura-web/images/f=png/s=w100/lenna.jpg");
+        when(req.getQueryString()).thenReturn(null);
+        when(req.getParameterNames()).thenReturn(Collections.enumeration(new ArrayList<String>(0)));
+
+        ImageRequestProcessor irp = new ImageRequestProcessor();
+        assertNull(irp.getCacheTag());
+
+        irp.setRequest(req);
+        assertEquals("lenna.jpg", irp.getCacheTag());
     }
     
     @Test
@@ -2349,4 +2455,550 @@ public class ImageRequestProcessorTest {
                 "Invalid compression: the compression quality must be between 0 and 100");
     }
     
+    @Test
+    public void testDoProcessURL_OriginCache() throws Exception {
+        final byte[] body = new byte[2048];
+        new java.util.Random(2048).nextBytes(body);
+
+        final AtomicInteger fetched = new AtomicInteger();
+        final AtomicInteger notModified = new AtomicInteger();
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                ex.getResponseHeaders().set("ETag", "\"v1\"");
+                ex.getResponseHeaders().set("Content-Type", "image/jpeg");
+                ex.getResponseHeaders().set("Cache-Control", "public, max-age=60");
+                if ("\"v1\"".equals(ex.getRequestHeaders().getFirst("If-None-Match"))) {
+                    notModified.incrementAndGet();
+                    ex.sendResponseHeaders(304, -1);
+                } else {
+                    fetched.incrementAndGet();
+                    ex.sendResponseHeaders(200, body.length);
+                    try (OutputStream os = ex.getResponseBody()) {
+                        os.write(body);
+                    }
+                }
+                ex.close();
+            }
+        });
+        server.start();
+
+        try {
+            URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/lenna.jpg");
+            OriginCache cache = new OriginCache(64 * 1024, 16 * 1024, 60000, null);
+
+            // Six variants of the same source
+            for (int i = 0; i < 6; i++) {
+                assertArrayEquals(body, doProcessURL(url, cache));
+            }
+            assertEquals(1, fetched.get());
+            assertEquals(0, notModified.get());
+            assertEquals(5, cache.getHitCount());
+
+            // Revalidated after the TTL has expired
+            cache = new OriginCache(64 * 1024, 16 * 1024, 0, null);
+            assertArrayEquals(body, doProcessURL(url, cache));
+            assertArrayEquals(body, doProcessURL(url, cache));
+            assertEquals(2, fetched.get());
+            assertEquals(1, notModified.get());
+            assertEquals(1, cache.getRevalidationCount());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testDoProcessURL_FetchCoalescing() throws Exception {
+        final byte[] body = new byte[4096];
+        new java.util.Random(4096).nextBytes(body);
+
+        final AtomicInteger fetched = new AtomicInteger();
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                fetched.incrementAndGet();
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException ignore) {
+                }
+                ex.getResponseHeaders().set("Content-Type", "image/jpeg");
+                ex.getResponseHeaders().set("Cache-Control", "public, max-age=60");
+                ex.sendResponseHeaders(200, body.length);
+                try (OutputStream os = ex.getResponseBody()) {
+                    os.write(body);
+                }
+                ex.close();
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/lenna.jpg");
+            OriginFetchCoalescer coalescer = new OriginFetchCoalescer(10000);
+
+            // Four concurrent variants of the same source
+            for (Future<byte[]> f : doProcessURLConcurrent(executor, 4, url, null, coalescer)) {
+                assertArrayEquals(body, f.get());
+            }
+            assertEquals(1, fetched.get());
+            assertEquals(3, coalescer.getCoalescedCount());
+            assertEquals(0, coalescer.getPendingCount());
+
+            // The completed fetch is not reused
+            assertArrayEquals(body, doProcessURL(url, null, coalescer));
+            assertEquals(2, fetched.get());
+
+            // Concurrent misses of the origin cache
+            OriginCache cache = new OriginCache(64 * 1024, 16 * 1024, 60000, null);
+            for (Future<byte[]> f : doProcessURLConcurrent(executor, 4, url, cache, coalescer)) {
+                assertArrayEquals(body, f.get());
+            }
+            assertEquals(3, fetched.get());
+            assertEquals(6, coalescer.getCoalescedCount());
+            assertEquals(1, cache.getCount());
+        } finally {
+            executor.shutdown();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testDoProcessURL_OriginGuard() throws Exception {
+        final AtomicInteger fetched = new AtomicInteger();
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                fetched.incrementAndGet();
+                ex.sendResponseHeaders(500, -1);
+                ex.close();
+            }
+        });
+        server.start();
+
+        try {
+            URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/lenna.jpg");
+            OriginGuard guard = new OriginGuard(0, 50, 60000, 2);
+
+            doProcessURL(url, guard);
+            doProcessURL(url, guard);
+            assertEquals(2, fetched.get());
+            assertEquals(OriginGuard.State.OPEN, guard.getState(url));
+
+            // Fail fast without contacting the origin
+            HttpServletResponse resp = doProcessURL(url, guard);
+            verify(resp).sendError(eq(HttpServletResponse.SC_BAD_GATEWAY), anyString());
+            assertEquals(2, fetched.get());
+            assertEquals(1, guard.getRejectedCount());
+            assertEquals(0, guard.getOrigins().values().iterator().next().getActiveCount());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static HttpServletResponse doProcessURL(URL url, OriginGuard guard) throws Exception {
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        when(req.getAttribute("io.pictura.servlet.HEADER_ADD_CONTENT_LOCATION")).thenReturn(false);
+        when(req.getAttribute("io.pictura.servlet.ORIGIN_GUARD")).thenReturn(guard);
+
+        ImageRequestProcessor irp = new ImageRequestProcessor() {
+
+            @Override
+            protected boolean isProxyRequest(HttpServletRequest req) {
+                return false;
+            }
+        };
+        irp.setRequest(req);
+        irp.setResponse(resp);
+        irp.maxImageFileSize = 1024 * 1024;
+
+        irp.doProcessURL(url, req, resp);
+        return resp;
+    }
+
+    @Test
+    public void testDoProcessURL_UnknownLength() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                String path = ex.getRequestURI().getPath();
+                ex.getResponseHeaders().set("Content-Type", path.endsWith(".gif") ? "image/gif" : "image/jpeg");
+                ex.sendResponseHeaders(200, 0); // chunked
+                try (InputStream is = ImageRequestProcessorTest.class.getResourceAsStream(path);
+                        OutputStream os = ex.getResponseBody()) {
+                    byte[] buf = new byte[1000];
+                    int len;
+                    while ((len = is.read(buf)) > -1) {
+                        os.write(buf, 0, len);
+                        os.flush();
+                    }
+                }
+                ex.close();
+            }
+        });
+        server.start();
+
+        File tmpDir = java.nio.file.Files.createTempDirectory("pictura-spill").toFile();
+        try {
+            String origin = "http://127.0.0.1:" + server.getAddress().getPort();
+            byte[] lenna = read(ImageRequestProcessorTest.class.getResourceAsStream("/lenna.jpg"));
+
+            // Decoded directly from the network stream
+            HashMap<String, Object> attributes = new HashMap<>();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            HttpServletResponse resp = doProcessURL(new URL(origin + "/lenna.jpg"), "/s=w50/lenna.jpg",
+                    1024 * 1024, false, attributes, bos);
+            assertEquals(50, ImageIO.read(new ByteArrayInputStream(bos.toByteArray())).getWidth());
+            assertEquals((long) lenna.length, attributes.get("io.pictura.servlet.SRC_IMAGE_SIZE"));
+
+            // The size limit is checked while the image is decoded
+            resp = doProcessURL(new URL(origin + "/lenna.jpg"), "/s=w50/lenna.jpg",
+                    1024, false, new HashMap<String, Object>(), new ByteArrayOutputStream());
+            verify(resp).sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+
+            // Spilled to disk and passed through
+            attributes = new HashMap<>();
+            attributes.put("io.pictura.servlet.HTTP_SPILL_THRESHOLD", 1024);
+            attributes.put("io.pictura.servlet.IMAGEIO_CACHE_DIR", tmpDir);
+            attributes.put("io.pictura.servlet.IMAGEIO_USE_CACHE", false);
+            bos = new ByteArrayOutputStream();
+            doProcessURL(new URL(origin + "/lenna.jpg"), "/lenna.jpg", 1024 * 1024, true, attributes, bos);
+            assertArrayEquals(lenna, bos.toByteArray());
+            assertEquals(0, tmpDir.list().length);
+
+            // Spilled to disk and decoded from the temporary file
+            bos = new ByteArrayOutputStream();
+            doProcessURL(new URL(origin + "/lenna.gif"), "/n=0/lenna.gif", 1024 * 1024, false, attributes, bos);
+            assertNotNull(ImageIO.read(new ByteArrayInputStream(bos.toByteArray())));
+            assertEquals(0, tmpDir.list().length);
+        } finally {
+            tmpDir.delete();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testDoProcessFile_Range() throws Exception {
+        File f = new File(ImageRequestProcessorTest.class.getResource("/lenna.jpg").toURI());
+        byte[] lenna = read(ImageRequestProcessorTest.class.getResourceAsStream("/lenna.jpg"));
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        HttpServletResponse resp = doProcessFileProxy(f, "bytes=100-199", bos);
+        verify(resp).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        verify(resp).setHeader("Content-Range", "bytes 100-199/" + lenna.length);
+        verify(resp).setContentLength(100);
+        assertArrayEquals(Arrays.copyOfRange(lenna, 100, 200), bos.toByteArray());
+
+        // Suffix range
+        bos = new ByteArrayOutputStream();
+        doProcessFileProxy(f, "bytes=-50", bos);
+        assertArrayEquals(Arrays.copyOfRange(lenna, lenna.length - 50, lenna.length), bos.toByteArray());
+
+        // Not satisfiable
+        bos = new ByteArrayOutputStream();
+        resp = doProcessFileProxy(f, "bytes=" + lenna.length + "-", bos);
+        verify(resp).setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        verify(resp).setHeader("Content-Range", "bytes */" + lenna.length);
+        assertEquals(0, bos.size());
+
+        // Full body
+        bos = new ByteArrayOutputStream();
+        resp = doProcessFileProxy(f, null, bos);
+        verify(resp).setHeader("Accept-Ranges", "bytes");
+        verify(resp).setContentLength(lenna.length);
+        assertArrayEquals(lenna, bos.toByteArray());
+    }
+
+    private static HttpServletResponse doProcessFileProxy(File f, String range,
+            final ByteArrayOutputStream bos) throws Exception {
+
+        final HashMap<String, Object> attributes = new HashMap<>();
+
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        when(req.getMethod()).thenReturn("GET");
+        when(req.getHeader("Range")).thenReturn(range);
+        when(req.getDateHeader(anyString())).thenReturn(-1L);
+        when(req.getContextPath()).thenReturn("/");
+        when(req.getServletPath()).thenReturn("");
+        when(req.getRequestURI()).thenReturn("/lenna.jpg");
+        when(req.getParameterNames()).thenReturn(Collections.enumeration(new ArrayList<String>(0)));
+        when(req.getAttribute(anyString())).thenAnswer(new Answer<Object>() {
+
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                return attributes.get((String) invocation.getArguments()[0]);
+            }
+        });
+
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        when(resp.getOutputStream()).thenReturn(new ServletOutputStream() {
+
+            @Override
+            public void write(int b) throws IOException {
+                bos.write(b);
+            }
+
+            public boolean isReady() {
+                return true;
+            }
+
+            public void setWriteListener(WriteListener arg0) {
+            }
+        });
+
+        ImageRequestProcessor irp = new ImageRequestProcessor() {
+
+            @Override
+            protected boolean isProxyRequest(HttpServletRequest req) {
+                return true;
+            }
+        };
+        irp.setRequest(req);
+        irp.setResponse(resp);
+        irp.maxImageFileSize = 1024 * 1024;
+
+        irp.doProcessFile(f, req, resp);
+        return resp;
+    }
+
+    private static HttpServletResponse doProcessURL(URL url, String uri, long maxImageFileSize,
+            final boolean proxy, final Map<String, Object> attributes, final ByteArrayOutputStream bos)
+            throws Exception {
+
+        final ServletOutputStream sos = new ServletOutputStream() {
+
+            @Override
+            public void write(int b) throws IOException {
+                bos.write(b);
+            }
+
+            public boolean isReady() {
+                return true;
+            }
+
+            public void setWriteListener(WriteListener arg0) {
+            }
+        };
+
+        attributes.put("io.pictura.servlet.HEADER_ADD_CONTENT_LOCATION", false);
+        attributes.put("io.pictura.servlet.MAX_IMAGE_FILE_SIZE", maxImageFileSize);
+        attributes.put("io.pictura.servlet.MAX_IMAGE_RESOLUTION", 1000L * 1000L);
+        attributes.put("io.pictura.servlet.DEFLATER_COMPRESSION_MIN_SIZE", 1024 * 100);
+
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        when(req.getContextPath()).thenReturn("/");
+        when(req.getServletPath()).thenReturn("");
+        when(req.getRequestURI()).thenReturn(uri);
+        when(req.getQueryString()).thenReturn(null);
+        when(req.getParameterNames()).thenReturn(Collections.enumeration(new ArrayList<String>(0)));
+        when(req.getAttribute(anyString())).thenAnswer(new Answer<Object>() {
+
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                return attributes.get((String) invocation.getArguments()[0]);
+            }
+        });
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                attributes.put((String) invocation.getArguments()[0], invocation.getArguments()[1]);
+                return null;
+            }
+        }).when(req).setAttribute(anyString(), any());
+
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        when(resp.getOutputStream()).thenReturn(sos);
+
+        ImageRequestProcessor irp = new ImageRequestProcessor() {
+
+            @Override
+            protected boolean isProxyRequest(HttpServletRequest req) {
+                return proxy;
+            }
+        };
+        irp.setRequest(req);
+        irp.setResponse(resp);
+        irp.maxImageFileSize = maxImageFileSize;
+
+        irp.doProcessURL(url, req, resp);
+        return resp;
+    }
+
+    private static byte[] read(InputStream is) throws IOException {
+        try (InputStream in = is) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int len;
+            while ((len = in.read(buf)) > -1) {
+                bos.write(buf, 0, len);
+            }
+            return bos.toByteArray();
+        }
+    }
+
+    private static List<Future<byte[]>> doProcessURLConcurrent(ExecutorService executor, int n,
+            final URL url, final OriginCache cache, final OriginFetchCoalescer coalescer) {
+
+        List<Future<byte[]>> futures = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            futures.add(executor.submit(new Callable<byte[]>() {
+
+                @Override
+                public byte[] call() throws Exception {
+                    return doProcessURL(url, cache, coalescer);
+                }
+            }));
+        }
+        return futures;
+    }
+
+    private static byte[] doProcessURL(URL url, OriginCache cache) throws Exception {
+        return doProcessURL(url, cache, null);
+    }
+
+    private static byte[] doProcessURL(URL url, OriginCache cache,
+            OriginFetchCoalescer coalescer) throws Exception {
+
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        when(req.getAttribute("io.pictura.servlet.HEADER_ADD_CONTENT_LOCATION")).thenReturn(false);
+        when(req.getAttribute("io.pictura.servlet.ORIGIN_CACHE")).thenReturn(cache);
+        when(req.getAttribute("io.pictura.servlet.ORIGIN_FETCH_COALESCER")).thenReturn(coalescer);
+
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ImageRequestProcessor irp = new ImageRequestProcessor() {
+
+            @Override
+            protected boolean isProxyRequest(HttpServletRequest req) {
+                return false;
+            }
+
+            @Override
+            protected void doProcessImage(InputStream is, HttpServletRequest req,
+                    HttpServletResponse resp) throws ServletException, IOException {
+                int b;
+                while ((b = is.read()) != -1) {
+                    bos.write(b);
+                }
+            }
+        };
+        irp.setRequest(req);
+        irp.setResponse(resp);
+        irp.maxImageFileSize = 1024 * 1024;
+
+        irp.doProcessURL(url, req, resp);
+        verify(resp).setHeader("Cache-Control", "public, max-age=60");
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void testDoProcess_RasterCache() throws Exception {
+        RasterCache cache = new RasterCache(4 * 1024 * 1024);
+
+        BufferedImage img = doProcess("/s=w100/lenna.jpg", cache);
+        assertEquals(100, img.getWidth());
+        assertEquals(1, cache.getCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(0, cache.getHitCount());
+
+        // Another variant of the same source is processed from the cached raster
+        img = doProcess("/s=w50/f=png/lenna.jpg", cache);
+        assertEquals(50, img.getWidth());
+        assertEquals(1, cache.getHitCount());
+
+        // The cached raster was not modified by the first variants
+        img = doProcess("/f=png/lenna.jpg", cache);
+        assertEquals(ImageIO.read(ImageRequestProcessorTest.class.getResource("/lenna.jpg")).getWidth(),
+                img.getWidth());
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getCount());
+    }
+
+    private static BufferedImage doProcess(String uri, RasterCache cache) throws Exception {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final ServletOutputStream sos = new ServletOutputStream() {
+
+            @Override
+            public void write(int b) throws IOException {
+                bos.write(b);
+            }
+
+            public boolean isReady() {
+                return true;
+            }
+
+            public void setWriteListener(WriteListener arg0) {
+            }
+        };
+
+        FileResourceLocator frl = new FileResourceLocator() {
+
+            @Override
+            protected String getRootPath() {
+                try {
+                    URL url = ImageRequestProcessorTest.class.getResource("/lenna.jpg");
+                    return new File(url.toURI()).getParentFile().getAbsolutePath();
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        };
+
+        // Request attributes are set by the processor
+        final HashMap<String, Object> attributes = new HashMap<>();
+        attributes.put("io.pictura.servlet.MAX_IMAGE_FILE_SIZE", 1024L * 1024L);
+        attributes.put("io.pictura.servlet.MAX_IMAGE_RESOLUTION", 1000L * 1000L);
+        attributes.put("io.pictura.servlet.DEFLATER_COMPRESSION_MIN_SIZE", 1024 * 100);
+        attributes.put("io.pictura.servlet.RASTER_CACHE", cache);
+
+        HttpServletRequest req = mock(HttpServletRequest.class);
+        when(req.getContextPath()).thenReturn("/");
+        when(req.getServletPath()).thenReturn("");
+        when(req.getRequestURI()).thenReturn(uri);
+        when(req.getQueryString()).thenReturn(null);
+        when(req.getParameterNames()).thenReturn(Collections.enumeration(new ArrayList<String>(0)));
+        when(req.getAttribute(anyString())).thenAnswer(new Answer<Object>() {
+
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                return attributes.get((String) invocation.getArguments()[0]);
+            }
+        });
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                attributes.put((String) invocation.getArguments()[0], invocation.getArguments()[1]);
+                return null;
+            }
+        }).when(req).setAttribute(anyString(), any());
+
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        when(resp.getOutputStream()).thenReturn(sos);
+
+        ImageRequestProcessor irp = new ImageRequestProcessor();
+        irp.setRequest(req);
+        irp.setResponse(resp);
+        irp.setResourceLocators(new ResourceLocator[]{frl});
+        irp.doProcess(req, resp);
+
+        BufferedImage img = ImageIO.read(new ByteArrayInputStream(bos.toByteArray()));
+        assertNotNull(img);
+        return img;
+    }
+
 }
@@ -0,0 +1,70 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * @author Steffen Kremp
+ */
+public class LimitedInputStreamTest {
+
+    @Test
+    public void testRead() throws Exception {
+        LimitedInputStream is = new LimitedInputStream(new ByteArrayInputStream(new byte[100]), 100);
+
+        byte[] buf = new byte[30];
+        int n = 0;
+        int len;
+        while ((len = is.read(buf)) > -1) {
+            n += len;
+        }
+        assertEquals(100, n);
+        assertEquals(100, is.getCount());
+        assertFalse(is.isLimitExceeded());
+    }
+
+    @Test
+    public void testLimitExceeded() throws Exception {
+        LimitedInputStream is = new LimitedInputStream(new ByteArrayInputStream(new byte[100]), 50);
+
+        assertEquals(0, is.read());
+        assertEquals(40, is.skip(40));
+        assertFalse(is.isLimitExceeded());
+
+        try {
+            is.read(new byte[30]);
+            fail();
+        } catch (IOException ex) {
+            assertTrue(is.isLimitExceeded());
+        }
+
+        // Each further read fails, too
+        try {
+            is.read();
+            fail();
+        } catch (IOException ex) {
+        }
+        assertEquals(71, is.getCount());
+    }
+
+}
@@ -0,0 +1,465 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import static io.pictura.servlet.HttpCacheEntries.createEntry;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Steffen Kremp
+ */
+public class MemcachedHttpCacheTest {
+
+    private FakeMemcachedServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeMemcachedServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateNullLocal() throws Exception {
+        new MemcachedHttpCache(null, "127.0.0.1:11211", 1, 100);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateInvalidAddress() throws Exception {
+        new MemcachedHttpCache(HttpCacheServlet.createDefaultHttpCache(10, 1024), "127.0.0.1", 1, 100);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateInvalidPoolSize() throws Exception {
+        new MemcachedHttpCache(HttpCacheServlet.createDefaultHttpCache(10, 1024), "127.0.0.1:11211", 0, 100);
+    }
+
+    @Test
+    public void testPutGetRemove() throws Exception {
+        MemcachedHttpCache c = createCache();
+        try {
+            byte[] data = createData(4096);
+            c.put("/lenna.jpg", createEntry("/lenna.jpg", data, "max-age=60"));
+            assertTrue(c.awaitWrites(5000));
+            assertEquals(1, server.data.size());
+            assertTrue(server.data.containsKey(MemcachedHttpCache.hashKey("/lenna.jpg")));
+
+            // Evicted from the local cache
+            c.local.remove("/lenna.jpg");
+
+            HttpCacheEntry e = c.get("/lenna.jpg");
+            assertNotNull(e);
+            assertArrayEquals(data, e.getContent());
+            assertEquals("image/jpeg", e.getContentType());
+            assertEquals(200, e.getStatus());
+            assertEquals(1, c.getRemoteHitCount());
+
+            // Kept locally
+            assertSame(e, c.local.get("/lenna.jpg"));
+            assertSame(e, c.get("/lenna.jpg"));
+            assertEquals(1, c.getRemoteHitCount());
+
+            assertTrue(c.remove("/lenna.jpg"));
+            assertTrue(c.awaitWrites(5000));
+            assertTrue(server.data.isEmpty());
+            assertNull(c.get("/lenna.jpg"));
+            assertEquals(1, c.getRemoteMissCount());
+            assertEquals(0, c.getRemoteErrorCount());
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void testPutExpired() throws Exception {
+        MemcachedHttpCache c = createCache();
+        try {
+            c.put("/lenna.jpg", createEntry("/lenna.jpg", createData(64), "max-age=0"));
+            assertTrue(c.awaitWrites(5000));
+            assertTrue(server.data.isEmpty());
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void testPutTooLarge() throws Exception {
+        MemcachedHttpCache c = new MemcachedHttpCache(HttpCacheServlet.createDefaultHttpCache(10,
+                2 * MemcachedHttpCache.MAX_VALUE_SIZE), server.getAddress(), 2, 1000);
+        try {
+            c.put("/lenna.jpg", createEntry("/lenna.jpg",
+                    createData(MemcachedHttpCache.MAX_VALUE_SIZE + 1), "max-age=60"));
+            assertTrue(c.awaitWrites(5000));
+            assertTrue(server.data.isEmpty());
+            assertNotNull(c.local.get("/lenna.jpg"));
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void testPutAsync() throws Exception {
+        MemcachedHttpCache c = createCache();
+        try {
+            server.delay = 200;
+
+            // Does not wait for the server
+            long t = System.currentTimeMillis();
+            for (int i = 0; i < 5; i++) {
+                String key = "/S=W" + i + "/lenna.jpg";
+                c.put(key, createEntry(key, createData(i + 1), "max-age=60"));
+            }
+            assertTrue(System.currentTimeMillis() - t < 200);
+            assertNotNull(c.local.get("/S=W0/lenna.jpg"));
+
+            assertTrue(c.awaitWrites(5000));
+            assertEquals(5, server.data.size());
+            assertEquals(0, c.getRemoteErrorCount());
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void testRemoveAfterPendingPut() throws Exception {
+        MemcachedHttpCache c = createCache();
+        try {
+            server.delay = 100;
+            c.put("/lenna.jpg", createEntry("/lenna.jpg", createData(64), "max-age=60"));
+            assertTrue(c.remove("/lenna.jpg"));
+
+            // The delete is sent after the pending set
+            assertTrue(c.awaitWrites(5000));
+            assertTrue(server.data.isEmpty());
+            assertEquals(2, server.commands.get());
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void testGetAllPipelined() throws Exception {
+        MemcachedHttpCache c = createCache();
+        try {
+            List<String> keys = new ArrayList<>();
+            for (int i = 0; i < 250; i++) {
+                String key = "/S=W" + i + "/lenna.jpg";
+                keys.add(key);
+                if (i % 2 == 0) {
+                    c.put(key, createEntry(key, createData(i + 1), "max-age=60"));
+                }
+            }
+            assertTrue(c.awaitWrites(5000));
+            for (String key : keys) {
+                c.local.remove(key);
+            }
+            server.commands.set(0);
+
+            Map<String, HttpCacheEntry> entries = c.getAll(keys);
+            assertEquals(125, entries.size());
+            for (int i = 0; i < 250; i += 2) {
+                String key = "/S=W" + i + "/lenna.jpg";
+                assertArrayEquals(createData(i + 1), entries.get(key).getContent());
+                assertSame(entries.get(key), c.local.get(key));
+            }
+
+            // 250 keys in 3 get commands
+            assertEquals(3, server.commands.get());
+            assertEquals(125, c.getRemoteHitCount());
+            assertEquals(125, c.getRemoteMissCount());
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void testPrefetchHttpCache() throws Exception {
+        MemcachedHttpCache c = createCache();
+        try {
+            // Entries and representations stored by another instance
+            List<String> keys = new ArrayList<>();
+            for (int i = 0; i < 150; i++) {
+                String key = i % 3 == 0 ? "/S=W" + i + "/lenna.jpg#gzip" : "/S=W" + i + "/lenna.jpg";
+                keys.add(key);
+                server.data.put(MemcachedHttpCache.hashKey(key), MemcachedHttpCache.encode(
+                        createEntry(key, createData(i + 1), "max-age=60")));
+            }
+
+            HttpCacheServletTest.HttpCacheServletMock s = new HttpCacheServletTest.HttpCacheServletMock();
+            assertEquals(-1, s.prefetchHttpCache(keys));
+
+            s.setHttpCache(c);
+            assertEquals(150, s.prefetchHttpCache(keys));
+            assertEquals(2, server.commands.get());
+            for (String key : keys) {
+                assertNotNull(c.local.get(key));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void testCollision() throws Exception {
+        MemcachedHttpCache c = createCache();
+        try {
+            // Value which belongs to another key
+            server.data.put(MemcachedHttpCache.hashKey("/foo.jpg"), MemcachedHttpCache.encode(
+                    createEntry("/bar.jpg", createData(64), "max-age=60")));
+            assertNull(c.get("/foo.jpg"));
+
+            // Corrupted value
+            server.data.put(MemcachedHttpCache.hashKey("/foo.jpg"), new byte[]{0, 0, 0, 1, 0, 0, 0, 1, 1, 2});
+            assertNull(c.get("/foo.jpg"));
+            assertEquals(0, c.getRemoteErrorCount());
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void testCircuitBreakerSlowServer() throws Exception {
+        MemcachedHttpCache c = new MemcachedHttpCache(HttpCacheServlet.createDefaultHttpCache(10, 64 * 1024),
+                server.getAddress(), 2, 50);
+        try {
+            server.delay = 500;
+            for (int i = 0; i < MemcachedHttpCache.FAILURE_THRESHOLD; i++) {
+                assertFalse(c.isDegraded());
+                assertNull(c.get("/lenna.jpg"));
+            }
+            assertTrue(c.isDegraded());
+            assertEquals(MemcachedHttpCache.FAILURE_THRESHOLD, c.getRemoteErrorCount());
+
+            // Degraded to the local cache; no further remote calls
+            long t = System.currentTimeMillis();
+            HttpCacheEntry e = createEntry("/lenna.jpg", createData(64), "max-age=60");
+            c.put("/lenna.jpg", e);
+            assertSame(e, c.get("/lenna.jpg"));
+            assertNull(c.get("/foo.jpg"));
+            assertTrue(System.currentTimeMillis() - t < 250);
+            assertEquals(MemcachedHttpCache.FAILURE_THRESHOLD, c.getRemoteErrorCount());
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void testCircuitBreakerServerDown() throws Exception {
+        String address = server.getAddress();
+        server.close();
+
+        MemcachedHttpCache c = new MemcachedHttpCache(HttpCacheServlet.createDefaultHttpCache(10, 64 * 1024),
+                address, 2, 100);
+        try {
+            HttpCacheEntry e = createEntry("/lenna.jpg", createData(64), "max-age=60");
+            for (int i = 0; i < MemcachedHttpCache.FAILURE_THRESHOLD; i++) {
+                c.put("/lenna.jpg", e);
+                assertTrue(c.awaitWrites(5000));
+            }
+            assertTrue(c.isDegraded());
+            assertSame(e, c.get("/lenna.jpg"));
+            assertTrue(c.remove("/lenna.jpg"));
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void testGetExptime() throws Exception {
+        assertEquals(0, MemcachedHttpCache.getExptime(createEntry("/a.jpg", new byte[1], "max-age=0")));
+        long exptime = MemcachedHttpCache.getExptime(createEntry("/a.jpg", new byte[1], "max-age=60"));
+        assertTrue(exptime > 58 && exptime <= 61);
+
+        // Absolute unix time for more than 30 days
+        exptime = MemcachedHttpCache.getExptime(createEntry("/a.jpg", new byte[1], "max-age=31536000"));
+        assertTrue(exptime > System.currentTimeMillis() / 1000L);
+    }
+
+    @Test
+    public void testHashKey() throws Exception {
+        String h = MemcachedHttpCache.hashKey("/S=W100/F=WEBP/lenna.jpg?foo=bar baz");
+        assertTrue(h.startsWith("pictura:"));
+        assertEquals(48, h.length());
+        assertEquals(h, MemcachedHttpCache.hashKey("/S=W100/F=WEBP/lenna.jpg?foo=bar baz"));
+        assertFalse(h.equals(MemcachedHttpCache.hashKey("/S=W100/lenna.jpg")));
+    }
+
+    private MemcachedHttpCache createCache() {
+        return new MemcachedHttpCache(HttpCacheServlet.createDefaultHttpCache(1000, 64 * 1024),
+                server.getAddress(), 2, 1000);
+    }
+
+    private static byte[] createData(int len) {
+        byte[] data = new byte[len];
+        new Random(len).nextBytes(data);
+        return data;
+    }
+
+    // In-process memcached server (text protocol; get, set and delete only)
+    private static final class FakeMemcachedServer implements Closeable {
+
+        private final ServerSocket serverSocket;
+        private final Map<String, byte[]> data = new ConcurrentHashMap<>();
+        private final List<Socket> sockets = new ArrayList<>();
+
+        private final AtomicInteger commands = new AtomicInteger();
+
+        private volatile long delay;
+
+        private FakeMemcachedServer() throws IOException {
+            serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            Thread t = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    while (!serverSocket.isClosed()) {
+                        try {
+                            final Socket s = serverSocket.accept();
+                            synchronized (sockets) {
+                                sockets.add(s);
+                            }
+                            Thread h = new Thread(new Runnable() {
+
+                                @Override
+                                public void run() {
+                                    serve(s);
+                                }
+                            });
+                            h.setDaemon(true);
+                            h.start();
+                        } catch (IOException ex) {
+                            // Closed
+                        }
+                    }
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+        }
+
+        private String getAddress() {
+            return "127.0.0.1:" + serverSocket.getLocalPort();
+        }
+
+        private void serve(Socket s) {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                OutputStream out = s.getOutputStream();
+                String line;
+                while ((line = readLine(in)) != null) {
+                    if (delay > 0) {
+                        Thread.sleep(delay);
+                    }
+                    commands.incrementAndGet();
+
+                    String[] tokens = line.split(" ");
+                    ByteArrayOutputStream reply = new ByteArrayOutputStream();
+                    switch (tokens[0]) {
+                        case "get":
+                            for (int i = 1; i < tokens.length; i++) {
+                                byte[] value = data.get(tokens[i]);
+                                if (value != null) {
+                                    reply.write(("VALUE " + tokens[i] + " 0 " + value.length + "\r\n").getBytes("US-ASCII"));
+                                    reply.write(value);
+                                    reply.write("\r\n".getBytes("US-ASCII"));
+                                }
+                            }
+                            reply.write("END\r\n".getBytes("US-ASCII"));
+                            break;
+
+                        case "set":
+                            byte[] value = new byte[Integer.parseInt(tokens[4])];
+                            in.readFully(value);
+                            readLine(in);
+                            data.put(tokens[1], value);
+                            reply.write("STORED\r\n".getBytes("US-ASCII"));
+                            break;
+
+                        case "delete":
+                            reply.write((data.remove(tokens[1]) != null ? "DELETED\r\n"
+                                    : "NOT_FOUND\r\n").getBytes("US-ASCII"));
+                            break;
+
+                        default:
+                            reply.write("ERROR\r\n".getBytes("US-ASCII"));
+                    }
+                    out.write(reply.toByteArray());
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException ex) {
+                // Closed
+            } finally {
+                try {
+                    s.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c == '\n') {
+                    return sb.toString();
+                }
+                if (c != '\r') {
+                    sb.append((char) c);
+                }
+            }
+            return sb.length() > 0 ? sb.toString() : null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+            synchronized (sockets) {
+                for (Socket s : sockets) {
+                    s.close();
+                }
+            }
+        }
+    }
+
+}
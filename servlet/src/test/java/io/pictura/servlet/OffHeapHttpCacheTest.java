@@ -0,0 +1,176 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import static io.pictura.servlet.HttpCacheEntries.createEntry;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * @author Steffen Kremp
+ */
+public class OffHeapHttpCacheTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateInvalidMaxSize() throws Exception {
+        new OffHeapHttpCache(1024, 1024 * 1024);
+    }
+
+    @Test
+    public void testPutGetRemove() throws Exception {
+        OffHeapHttpCache c = new OffHeapHttpCache(1024 * 1024 * 2, 1024 * 64);
+
+        assertNull(c.get("foo"));
+        assertTrue(c.keySet().isEmpty());
+
+        byte[] data = createData(5000);
+        c.put("foo", createEntry("foo", data));
+
+        HttpCacheEntry e = c.get("foo");
+        assertNotNull(e);
+        assertTrue(e.isContentDirect());
+        assertEquals("foo", e.getKey());
+        assertEquals(200, e.getStatus());
+        assertEquals("image/jpeg", e.getContentType());
+        assertEquals(5000, e.getContentLength());
+        assertArrayEquals(data, e.getContent());
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        e.writeContentTo(bos);
+        assertArrayEquals(data, bos.toByteArray());
+
+        assertEquals(1, c.keySet().size());
+        assertEquals(5000, c.weightedSize());
+
+        assertTrue(c.remove("foo"));
+        assertFalse(c.remove("foo"));
+        assertNull(c.get("foo"));
+        assertEquals(0, c.weightedSize());
+    }
+
+    @Test
+    public void testReplace() throws Exception {
+        OffHeapHttpCache c = new OffHeapHttpCache(1024 * 1024 * 2, 1024 * 64);
+
+        c.put("foo", createEntry("foo", createData(2000)));
+        byte[] data = createData(30000);
+        c.put("foo", createEntry("foo", data));
+
+        assertArrayEquals(data, c.get("foo").getContent());
+        assertEquals(30000, c.weightedSize());
+    }
+
+    @Test
+    public void testMaxEntrySize() throws Exception {
+        OffHeapHttpCache c = new OffHeapHttpCache(1024 * 1024 * 2, 1024);
+        c.put("foo", createEntry("foo", createData(1025)));
+
+        assertNull(c.get("foo"));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        final long maxSize = 1024 * 1024 * 2;
+        OffHeapHttpCache c = new OffHeapHttpCache(maxSize, 1024 * 64);
+
+        for (int i = 0; i < 2000; i++) {
+            String key = "key-" + i;
+            c.put(key, createEntry(key, createData(1024 * (1 + (i % 32)))));
+            assertTrue(c.allocatedSize() <= maxSize);
+        }
+
+        // The most recent entry must be present
+        assertNotNull(c.get("key-1999"));
+        assertTrue(c.keySet().size() < 2000);
+    }
+
+    @Test
+    public void testEvictedWhileInUse() throws Exception {
+        OffHeapHttpCache c = new OffHeapHttpCache(1024 * 1024, 1024 * 1024);
+
+        byte[] data = createData(1024 * 1024);
+        c.put("foo", createEntry("foo", data));
+
+        HttpCacheEntry e = c.get("foo");
+        assertNotNull(e);
+
+        // Replaces the entry in the same chunk
+        c.put("bar", createEntry("bar", createData(1024 * 1024)));
+        assertNull(c.get("foo"));
+        assertNotNull(c.get("bar"));
+
+        // Already evicted entries will not return the content of other entries
+        assertFalse(Arrays.equals(c.get("bar").getContent(), e.getContent()));
+        assertNull(e.getContent());
+        assertFalse(e.retain());
+    }
+
+    @Test
+    public void testRetainedWhileEvicted() throws Exception {
+        OffHeapHttpCache c = new OffHeapHttpCache(1024 * 1024, 1024 * 1024);
+
+        byte[] data = createData(1024 * 1024);
+        c.put("foo", createEntry("foo", data));
+
+        HttpCacheEntry e = c.get("foo");
+        assertTrue(e.retain());
+
+        // The chunk of the pinned entry is not reused
+        c.put("bar", createEntry("bar", createData(1024 * 1024)));
+        assertNull(c.get("foo"));
+        assertArrayEquals(data, e.getContent());
+        assertEquals(data.length, e.getContentLength());
+
+        e.release();
+        assertNull(e.getContent());
+
+        c.put("bar", createEntry("bar", createData(1024 * 1024)));
+        assertNotNull(c.get("bar"));
+    }
+
+    @Test
+    public void testSaveLoadHttpCacheToStream() throws Exception {
+        OffHeapHttpCache c = new OffHeapHttpCache(1024 * 1024 * 2, 1024 * 64);
+
+        byte[] data = createData(4096);
+        c.put("foo", createEntry("foo", data));
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        HttpCacheServlet.saveHttpCacheToStream(bos, c);
+
+        OffHeapHttpCache c2 = new OffHeapHttpCache(1024 * 1024 * 2, 1024 * 64);
+        HttpCacheServlet.loadHttpCacheFromStream(new ByteArrayInputStream(bos.toByteArray()), c2);
+
+        assertArrayEquals(data, c2.get("foo").getContent());
+        assertEquals("image/jpeg", c2.get("foo").getContentType());
+    }
+
+    private static byte[] createData(int len) {
+        byte[] data = new byte[len];
+        new Random(len).nextBytes(data);
+        return data;
+    }
+
+}
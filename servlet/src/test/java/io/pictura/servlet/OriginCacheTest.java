@@ -0,0 +1,195 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Steffen Kremp
+ */
+public class OriginCacheTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateInvalidSize() throws Exception {
+        new OriginCache(1024, 2048, 1000, null);
+    }
+
+    @Test
+    public void testPutGetMemory() throws Exception {
+        OriginCache c = new OriginCache(1024, 512, 60000, null);
+        assertNull(c.get("http://localhost/lenna.jpg"));
+        assertEquals(1, c.getMissCount());
+
+        OriginCache.Entry e = c.put("http://localhost/lenna.jpg", createHeaders("\"abc\""),
+                1234000L, createBody(100));
+
+        assertSame(e, c.get("http://localhost/lenna.jpg"));
+        assertTrue(e.isFresh());
+        assertEquals(1, c.getHitCount());
+        assertEquals(100, e.getLength());
+        assertEquals("\"abc\"", e.getETag());
+        assertEquals("image/jpeg", e.getHeader("Content-Type"));
+        assertEquals(1234000L, e.getLastModified());
+        assertArrayEquals(createBody(100).toByteArray(), read(e));
+
+        assertEquals(1, c.getCount());
+        assertEquals(100, c.getSize());
+        assertTrue(c.remove("http://localhost/lenna.jpg"));
+        assertFalse(c.remove("http://localhost/lenna.jpg"));
+        assertEquals(0, c.getSize());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        OriginCache c = new OriginCache(1000, 400, 60000, null);
+        c.put("http://localhost/1.jpg", createHeaders(null), 0L, createBody(400));
+        c.put("http://localhost/2.jpg", createHeaders(null), 0L, createBody(400));
+
+        // Touch the first entry; the second one is the eldest now
+        assertNotNull(c.get("http://localhost/1.jpg"));
+        c.put("http://localhost/3.jpg", createHeaders(null), 0L, createBody(400));
+
+        assertNotNull(c.get("http://localhost/1.jpg"));
+        assertNull(c.get("http://localhost/2.jpg"));
+        assertNotNull(c.get("http://localhost/3.jpg"));
+        assertEquals(800, c.getSize());
+
+        // Replace
+        c.put("http://localhost/3.jpg", createHeaders(null), 0L, createBody(100));
+        assertEquals(500, c.getSize());
+        assertEquals(2, c.getCount());
+    }
+
+    @Test
+    public void testPutTooLarge() throws Exception {
+        OriginCache c = new OriginCache(1000, 400, 60000, null);
+        OriginCache.Entry e = c.put("http://localhost/lenna.jpg", createHeaders(null), 0L, createBody(401));
+
+        assertNotNull(e);
+        assertArrayEquals(createBody(401).toByteArray(), read(e));
+        assertNull(c.get("http://localhost/lenna.jpg"));
+        assertEquals(0, c.getSize());
+    }
+
+    @Test
+    public void testRevalidate() throws Exception {
+        OriginCache c = new OriginCache(1000, 400, 0, null);
+        OriginCache.Entry e = c.put("http://localhost/lenna.jpg", createHeaders("\"abc\""), 0L, createBody(10));
+        Thread.sleep(5);
+        assertFalse(e.isFresh());
+
+        // Not fresh, but still cached to revalidate it
+        assertSame(e, c.get("http://localhost/lenna.jpg"));
+        assertEquals(0, c.getHitCount());
+
+        c = new OriginCache(1000, 400, 60000, null);
+        e = c.put("http://localhost/lenna.jpg", createHeaders("\"abc\""), 0L, createBody(10));
+        c.revalidate(e, Collections.singletonMap("Cache-Control", "max-age=10"));
+
+        assertTrue(e.isFresh());
+        assertEquals("max-age=10", e.getHeader("Cache-Control"));
+        assertEquals("\"abc\"", e.getETag());
+        assertEquals(1, c.getRevalidationCount());
+    }
+
+    @Test
+    public void testDisk() throws Exception {
+        File dir = Files.createTempDirectory("pictura-origin").toFile();
+        File orphan = new File(dir, "foo.origin");
+        assertTrue(orphan.createNewFile());
+
+        OriginCache c = new OriginCache(1000, 600, 60000, dir);
+        assertFalse(orphan.exists());
+
+        c.put("http://localhost/1.jpg", createHeaders(null), 0L, createBody(600));
+        assertEquals(1, dir.listFiles().length);
+        assertArrayEquals(createBody(600).toByteArray(), read(c.get("http://localhost/1.jpg")));
+
+        // Evicted file is deleted
+        c.put("http://localhost/2.jpg", createHeaders(null), 0L, createBody(500));
+        assertNull(c.get("http://localhost/1.jpg"));
+        assertEquals(1, dir.listFiles().length);
+
+        // Deleted from outside
+        dir.listFiles()[0].delete();
+        assertNull(c.get("http://localhost/2.jpg"));
+        assertEquals(0, c.getSize());
+
+        c.put("http://localhost/3.jpg", createHeaders(null), 0L, createBody(500));
+        c.close();
+        assertEquals(0, dir.listFiles().length);
+        assertTrue(dir.delete());
+    }
+
+    @Test
+    public void testGetHeaders() throws Exception {
+        URLConnection con = mock(URLConnection.class);
+        when(con.getHeaderField("Content-Type")).thenReturn("image/png");
+        when(con.getHeaderField("ETag")).thenReturn("\"abc\"");
+        when(con.getHeaderField("Set-Cookie")).thenReturn("foo=bar");
+
+        Map<String, String> headers = OriginCache.getHeaders(con);
+        assertEquals(2, headers.size());
+        assertEquals("image/png", headers.get("Content-Type"));
+        assertEquals("\"abc\"", headers.get("ETag"));
+    }
+
+    private static Map<String, String> createHeaders(String etag) {
+        HashMap<String, String> headers = new HashMap<>();
+        headers.put("Content-Type", "image/jpeg");
+        if (etag != null) {
+            headers.put("ETag", etag);
+        }
+        return headers;
+    }
+
+    private static FastByteArrayOutputStream createBody(int len) {
+        FastByteArrayOutputStream bos = new FastByteArrayOutputStream();
+        for (int i = 0; i < len; i++) {
+            bos.write(i & 0xff);
+        }
+        return bos;
+    }
+
+    private static byte[] read(OriginCache.Entry e) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (InputStream is = e.openStream()) {
+            int b;
+            while ((b = is.read()) != -1) {
+                bos.write(b);
+            }
+        }
+        return bos.toByteArray();
+    }
+
+}
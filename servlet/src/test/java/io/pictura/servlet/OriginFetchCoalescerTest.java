@@ -0,0 +1,191 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Steffen Kremp
+ */
+public class OriginFetchCoalescerTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateInvalidTimeout() throws Exception {
+        new OriginFetchCoalescer(0);
+    }
+
+    @Test
+    public void testJoin() throws Exception {
+        OriginFetchCoalescer c = new OriginFetchCoalescer(1000);
+
+        OriginFetchCoalescer.Fetch leader = c.join("http://localhost/lenna.jpg");
+        assertTrue(leader.isLeader());
+        assertFalse(c.join("http://localhost/lenna.jpg").isLeader());
+        assertTrue(c.join("http://localhost/lenna.png").isLeader());
+        assertEquals(2, c.getPendingCount());
+
+        c.complete("http://localhost/lenna.jpg", leader, null);
+        assertEquals(1, c.getPendingCount());
+        assertTrue(c.join("http://localhost/lenna.jpg").isLeader());
+    }
+
+    @Test
+    public void testShareResponse() throws Exception {
+        final OriginFetchCoalescer c = new OriginFetchCoalescer(5000);
+        final String key = "http://localhost/lenna.jpg";
+        final byte[] body = "foobar".getBytes();
+
+        OriginFetchCoalescer.Fetch leader = c.join(key);
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            Future<?>[] futures = new Future<?>[3];
+            for (int i = 0; i < futures.length; i++) {
+                final OriginFetchCoalescer.Fetch follower = c.join(key);
+                futures[i] = executor.submit(new Callable<byte[]>() {
+
+                    @Override
+                    public byte[] call() throws Exception {
+                        assertTrue(c.await(follower));
+                        HttpURLConnection con = c.getResponse(follower);
+                        assertNotNull(con);
+                        return read(con.getInputStream());
+                    }
+                });
+            }
+
+            BufferedURLConnection response = new BufferedURLConnection(
+                    mockConnection(key, 200), body, body.length, true);
+            c.complete(key, leader, response);
+
+            for (Future<?> f : futures) {
+                assertArrayEquals(body, (byte[]) f.get());
+            }
+            assertEquals(3, c.getCoalescedCount());
+            assertEquals(0, c.getPendingCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testNotShared() throws Exception {
+        OriginFetchCoalescer c = new OriginFetchCoalescer(1000);
+        String key = "http://localhost/lenna.jpg";
+
+        OriginFetchCoalescer.Fetch leader = c.join(key);
+        OriginFetchCoalescer.Fetch follower = c.join(key);
+        c.complete(key, leader, null);
+
+        assertTrue(c.await(follower));
+        assertNull(c.getResponse(follower));
+        assertEquals(0, c.getCoalescedCount());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        OriginFetchCoalescer c = new OriginFetchCoalescer(100);
+        String key = "http://localhost/lenna.jpg";
+
+        c.join(key);
+        OriginFetchCoalescer.Fetch follower = c.join(key);
+
+        long start = System.currentTimeMillis();
+        assertFalse(c.await(follower));
+        assertTrue(System.currentTimeMillis() - start >= 90);
+        assertNull(c.getResponse(follower));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCompleteByFollower() throws Exception {
+        OriginFetchCoalescer c = new OriginFetchCoalescer(100);
+        c.join("http://localhost/lenna.jpg");
+        c.complete("http://localhost/lenna.jpg", c.join("http://localhost/lenna.jpg"), null);
+    }
+
+    @Test
+    public void testBufferedURLConnection() throws Exception {
+        byte[] body = "foobar".getBytes();
+        BufferedURLConnection con = new BufferedURLConnection(
+                mockConnection("http://localhost/lenna.jpg", 200), Arrays.copyOf(body, 16), 6, true);
+
+        assertEquals(200, con.getResponseCode());
+        assertEquals("OK", con.getResponseMessage());
+        assertEquals("image/jpeg", con.getContentType());
+        assertEquals("image/jpeg", con.getHeaderField("content-type"));
+        assertEquals("\"v1\"", con.getHeaderField("ETag"));
+        assertEquals(6, con.getContentLengthLong());
+        assertNull(con.getHeaderField("Transfer-Encoding"));
+        assertEquals("http://localhost/lenna.jpg", con.getURL().toExternalForm());
+        assertArrayEquals(body, read(con.getInputStream()));
+
+        BufferedURLConnection copy = con.copy();
+        assertNotSame(con, copy);
+        assertArrayEquals(body, read(copy.getInputStream()));
+        assertArrayEquals(body, read(con.getInputStream()));
+
+        // Truncated body
+        con = new BufferedURLConnection(mockConnection("http://localhost/lenna.jpg", 200), body, 3, false);
+        assertEquals(-1, con.getContentLengthLong());
+        assertEquals(3, con.getLength());
+    }
+
+    private static HttpURLConnection mockConnection(String url, int code) throws Exception {
+        Map<String, List<String>> headers = new HashMap<>();
+        headers.put(null, Arrays.asList("HTTP/1.1 " + code + " OK"));
+        headers.put("Content-Type", Arrays.asList("image/jpeg"));
+        headers.put("ETag", Arrays.asList("\"v1\""));
+        headers.put("Transfer-Encoding", Arrays.asList("chunked"));
+
+        HttpURLConnection con = mock(HttpURLConnection.class);
+        when(con.getURL()).thenReturn(new URL(url));
+        when(con.getResponseCode()).thenReturn(code);
+        when(con.getResponseMessage()).thenReturn("OK");
+        when(con.getHeaderFields()).thenReturn(headers);
+        return con;
+    }
+
+    private static byte[] read(InputStream is) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        int b;
+        while ((b = is.read()) != -1) {
+            bos.write(b);
+        }
+        return bos.toByteArray();
+    }
+
+}
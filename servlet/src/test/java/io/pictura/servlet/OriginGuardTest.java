@@ -0,0 +1,190 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * @author Steffen Kremp
+ */
+public class OriginGuardTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateInvalidThreshold() throws Exception {
+        new OriginGuard(0, 101, 1000, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateInvalidOpenDuration() throws Exception {
+        new OriginGuard(0, 50, -1, 1);
+    }
+
+    @Test
+    public void testGetOriginKey() throws Exception {
+        assertEquals("http://localhost:80", OriginGuard.getOriginKey(new URL("http://LocalHost/lenna.jpg")));
+        assertEquals("https://localhost:443", OriginGuard.getOriginKey(new URL("HTTPS://localhost/lenna.jpg")));
+        assertEquals("http://localhost:8080", OriginGuard.getOriginKey(new URL("http://localhost:8080/lenna.jpg")));
+    }
+
+    @Test
+    public void testBulkhead() throws Exception {
+        OriginGuard g = new OriginGuard(2, 0, 0, 1);
+        URL url = new URL("http://localhost/lenna.jpg");
+
+        OriginGuard.Permit p1 = g.acquire(url);
+        OriginGuard.Permit p2 = g.acquire(url);
+
+        // Other origins are not affected
+        g.acquire(new URL("http://127.0.0.1/lenna.jpg")).release();
+
+        try {
+            g.acquire(url);
+            fail();
+        } catch (OriginGuard.RejectedException ex) {
+            assertEquals(504, ex.getStatus());
+        }
+        assertEquals(1, g.getRejectedCount());
+
+        OriginGuard.Origin o = g.getOrigins().get("http://localhost:80");
+        assertEquals(2, o.getActiveCount());
+        assertEquals(1, o.getRejectedCount());
+
+        p1.release();
+        p1.release();
+        assertEquals(1, o.getActiveCount());
+
+        g.acquire(url).release();
+        p2.release();
+        assertEquals(0, o.getActiveCount());
+    }
+
+    @Test
+    public void testCircuitBreaker() throws Exception {
+        OriginGuard g = new OriginGuard(0, 50, 100, 4);
+        URL url = new URL("http://localhost/lenna.jpg");
+
+        // Below the minimum number of requests
+        complete(g, url, 500);
+        complete(g, url, 500);
+        complete(g, url, 200);
+        assertEquals(OriginGuard.State.CLOSED, g.getState(url));
+
+        complete(g, url, 502);
+        assertEquals(OriginGuard.State.OPEN, g.getState(url));
+
+        try {
+            g.acquire(url);
+            fail();
+        } catch (OriginGuard.RejectedException ex) {
+            assertEquals(502, ex.getStatus());
+        }
+
+        // Other origins are not affected
+        complete(g, new URL("http://127.0.0.1/lenna.jpg"), 200);
+        assertEquals(OriginGuard.State.CLOSED, g.getState(new URL("http://127.0.0.1/lenna.jpg")));
+
+        Thread.sleep(150);
+
+        // Only a single probe request
+        OriginGuard.Permit probe = g.acquire(url);
+        assertEquals(OriginGuard.State.HALF_OPEN, g.getState(url));
+        try {
+            g.acquire(url);
+            fail();
+        } catch (OriginGuard.RejectedException ex) {
+            assertEquals(502, ex.getStatus());
+        }
+
+        // Failed probe
+        probe.setException(new SocketTimeoutException());
+        probe.release();
+        assertEquals(OriginGuard.State.OPEN, g.getState(url));
+
+        Thread.sleep(150);
+
+        // Successful probe
+        complete(g, url, 304);
+        assertEquals(OriginGuard.State.CLOSED, g.getState(url));
+        assertEquals(0, g.getOrigins().get("http://localhost:80").getRequestCount());
+
+        complete(g, url, 200);
+        assertEquals(OriginGuard.State.CLOSED, g.getState(url));
+    }
+
+    @Test
+    public void testProbeNotContacted() throws Exception {
+        OriginGuard g = new OriginGuard(0, 100, 0, 1);
+        URL url = new URL("http://localhost/lenna.jpg");
+
+        complete(g, url, 500);
+        assertEquals(OriginGuard.State.OPEN, g.getState(url));
+
+        // The probe was released without a request, so the next one is let
+        // through
+        g.acquire(url).release();
+        assertEquals(OriginGuard.State.HALF_OPEN, g.getState(url));
+
+        complete(g, url, 200);
+        assertEquals(OriginGuard.State.CLOSED, g.getState(url));
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+        OriginGuard g = new OriginGuard(0, 0, 0, 1);
+        URL url = new URL("http://localhost/lenna.jpg");
+
+        complete(g, url, 200);
+        complete(g, url, 404);
+        complete(g, url, 503);
+
+        OriginGuard.Permit p = g.acquire(url);
+        p.setException(new SocketTimeoutException());
+        p.release();
+
+        p = g.acquire(url);
+        p.setException(new IOException());
+        p.release();
+
+        Map<String, OriginGuard.Origin> origins = g.getOrigins();
+        assertEquals(1, origins.size());
+
+        OriginGuard.Origin o = origins.get("http://localhost:80");
+        assertEquals(5, o.getRequestCount());
+        assertEquals(3, o.getFailureCount());
+        assertEquals(1, o.getTimeoutCount());
+        assertTrue(o.getAverageLatency() >= 0);
+
+        // The circuit breaker is disabled
+        assertEquals(OriginGuard.State.CLOSED, g.getState(url));
+
+        g.clear();
+        assertTrue(g.getOrigins().isEmpty());
+    }
+
+    private static void complete(OriginGuard g, URL url, int status) throws Exception {
+        OriginGuard.Permit p = g.acquire(url);
+        p.setStatus(status);
+        p.release();
+    }
+
+}
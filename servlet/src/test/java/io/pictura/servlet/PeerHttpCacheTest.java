@@ -0,0 +1,303 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.After;
+import static io.pictura.servlet.HttpCacheEntries.createEntry;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Steffen Kremp
+ */
+public class PeerHttpCacheTest {
+
+    private static final String SECRET = "secret";
+
+    private List<String> addresses;
+    private List<PeerHttpCache> peers;
+
+    @Before
+    public void setUp() throws Exception {
+        addresses = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            addresses.add("127.0.0.1:" + getFreePort());
+        }
+
+        peers = new ArrayList<>();
+        for (String address : addresses) {
+            peers.add(new PeerHttpCache(HttpCacheServlet.createDefaultHttpCache(100, 64 * 1024),
+                    address, addresses, SECRET, 1000, 64 * 1024));
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (PeerHttpCache p : peers) {
+            p.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateNullLocal() throws Exception {
+        new PeerHttpCache(null, "127.0.0.1:" + getFreePort(), Collections.<String>emptyList(),
+                SECRET, 100, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateEmptySecret() throws Exception {
+        new PeerHttpCache(HttpCacheServlet.createDefaultHttpCache(10, 1024), "127.0.0.1:" + getFreePort(),
+                Collections.<String>emptyList(), "", 100, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateInvalidAddress() throws Exception {
+        new PeerHttpCache(HttpCacheServlet.createDefaultHttpCache(10, 1024), "localhost",
+                Collections.<String>emptyList(), SECRET, 100, 0);
+    }
+
+    @Test
+    public void testOwnership() throws Exception {
+        int[] owned = new int[addresses.size()];
+        for (int i = 0; i < 300; i++) {
+            String key = "/pictura/S=W" + i + "/lenna.jpg";
+            String owner = peers.get(0).getOwnerAddress(key);
+            for (PeerHttpCache p : peers) {
+                assertEquals(owner, p.getOwnerAddress(key));
+            }
+            owned[addresses.indexOf(owner)]++;
+        }
+
+        // Each peer owns some keys
+        for (int n : owned) {
+            assertTrue(n > 0);
+        }
+    }
+
+    @Test
+    public void testOwnershipStable() throws Exception {
+        // Keys which are not owned by the removed peer must keep their owner
+        PeerHttpCache p = new PeerHttpCache(HttpCacheServlet.createDefaultHttpCache(10, 1024),
+                "127.0.0.1:" + getFreePort(), addresses.subList(0, 2), SECRET, 100, 0);
+        try {
+            for (int i = 0; i < 300; i++) {
+                String key = "/pictura/S=W" + i + "/lenna.jpg";
+                String owner = peers.get(0).getOwnerAddress(key);
+                if (!owner.equals(addresses.get(2))) {
+                    String other = p.getOwnerAddress(key);
+                    assertTrue(owner.equals(other) || !addresses.contains(other));
+                }
+            }
+        } finally {
+            p.close();
+        }
+    }
+
+    @Test
+    public void testPutGetRemote() throws Exception {
+        String key = findKey(addresses.get(1));
+        PeerHttpCache owner = peers.get(1);
+        PeerHttpCache other = peers.get(0);
+
+        byte[] data = createData(4096);
+        other.put(key, createEntry(key, data));
+
+        // Stored by the owner only
+        waitFor(owner.local, key);
+        assertNull(other.local.get(key));
+
+        // Fetched from the owner
+        for (PeerHttpCache p : peers) {
+            HttpCacheEntry e = p.get(key);
+            assertNotNull(e);
+            assertArrayEquals(data, e.getContent());
+            assertEquals("image/jpeg", e.getContentType());
+        }
+        assertEquals(1, other.getRemoteHitCount());
+        assertNull(other.local.get(key));
+
+        // Remove on a non owner
+        peers.get(2).remove(key);
+        for (int i = 0; i < 100 && owner.local.get(key) != null; i++) {
+            Thread.sleep(10);
+        }
+        assertNull(owner.local.get(key));
+        assertNull(other.get(key));
+        assertEquals(1, other.getRemoteMissCount());
+    }
+
+    @Test
+    public void testPutLocalOwner() throws Exception {
+        String key = findKey(addresses.get(0));
+        HttpCacheEntry e = createEntry(key, createData(512));
+        peers.get(0).put(key, e);
+
+        assertSame(e, peers.get(0).local.get(key));
+        assertSame(e, peers.get(0).get(key));
+        assertEquals(Collections.singleton(key), peers.get(0).keySet());
+    }
+
+    @Test
+    public void testFallbackPeerDown() throws Exception {
+        String key = findKey(addresses.get(2));
+        peers.get(2).close();
+
+        PeerHttpCache p = peers.get(0);
+        assertNull(p.get(key));
+        assertEquals(1, p.getRemoteErrorCount());
+
+        // The owner is skipped and the entry is stored locally
+        HttpCacheEntry e = createEntry(key, createData(512));
+        p.put(key, e);
+        assertSame(e, p.local.get(key));
+        assertSame(e, p.get(key));
+        assertEquals(1, p.getRemoteErrorCount());
+    }
+
+    @Test
+    public void testInvalidSecret() throws Exception {
+        PeerHttpCache p = createPeer("other", 0);
+        try {
+            String key = findKey(p, addresses.get(1));
+            peers.get(1).put(key, createEntry(key, createData(512)));
+
+            assertNull(p.get(key));
+            assertEquals(1, p.getRemoteErrorCount());
+        } finally {
+            p.close();
+        }
+    }
+
+    @Test
+    public void testUnauthenticatedRequest() throws Exception {
+        String key = findKey(addresses.get(1));
+        String[] address = addresses.get(1).split(":");
+
+        try (Socket socket = new Socket(address[0], Integer.parseInt(address[1]))) {
+            socket.setSoTimeout(5000);
+            DataInputStream dis = new DataInputStream(socket.getInputStream());
+            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+
+            // Challenge
+            dis.readFully(new byte[16]);
+
+            dos.writeInt(0x50435052);
+            dos.writeByte(3);
+            HttpCacheSnapshot.writeString(dos, key);
+            dos.flush();
+
+            assertEquals(-1, dis.read());
+        }
+    }
+
+    @Test
+    public void testUnknownAddress() throws Exception {
+        String self = "127.0.0.1:" + getFreePort();
+        PeerHttpCache p = new PeerHttpCache(HttpCacheServlet.createDefaultHttpCache(10, 1024),
+                self, Arrays.asList(self, "192.0.2.1:7070"), SECRET, 1000, 0);
+        try (Socket socket = new Socket("127.0.0.1", Integer.parseInt(self.split(":")[1]))) {
+            socket.setSoTimeout(5000);
+
+            // Closed without a challenge
+            assertEquals(-1, socket.getInputStream().read());
+        } finally {
+            p.close();
+        }
+    }
+
+    @Test
+    public void testMaxEntrySize() throws Exception {
+        PeerHttpCache p = createPeer(SECRET, 0);
+        try {
+            // Rejected by the owner, so the entry is stored locally
+            String key = findKey(p, addresses.get(1));
+            p.put(key, createEntry(key, createData(64 * 1024 + 1)));
+
+            for (int i = 0; i < 200 && p.getRemoteErrorCount() == 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, p.getRemoteErrorCount());
+            assertNotNull(p.local.get(key));
+            assertNull(peers.get(1).local.get(key));
+        } finally {
+            p.close();
+        }
+    }
+
+    @Test
+    public void testHash() throws Exception {
+        assertEquals(0xcbf29ce484222325L, PeerHttpCache.hash(""));
+        assertEquals(PeerHttpCache.hash("127.0.0.1:8080"), PeerHttpCache.hash("127.0.0.1:8080"));
+        assertTrue(PeerHttpCache.hash("127.0.0.1:8080") != PeerHttpCache.hash("127.0.0.1:8081"));
+    }
+
+    // A peer which replaces the first peer
+    private PeerHttpCache createPeer(String secret, int maxEntrySize) throws IOException {
+        List<String> others = new ArrayList<>(addresses);
+        others.set(0, "127.0.0.1:" + getFreePort());
+        return new PeerHttpCache(HttpCacheServlet.createDefaultHttpCache(10, 1024 * 1024),
+                others.get(0), others, secret, 1000, maxEntrySize);
+    }
+
+    private String findKey(String owner) {
+        return findKey(peers.get(0), owner);
+    }
+
+    private static String findKey(PeerHttpCache p, String owner) {
+        for (int i = 0;; i++) {
+            String key = "/pictura/S=W" + i + "/lenna.jpg";
+            if (owner.equals(p.getOwnerAddress(key))) {
+                return key;
+            }
+        }
+    }
+
+    private static void waitFor(HttpCache cache, String key) throws InterruptedException {
+        for (int i = 0; i < 200 && cache.get(key) == null; i++) {
+            Thread.sleep(10);
+        }
+        assertNotNull(cache.get(key));
+    }
+
+    private static int getFreePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    private static byte[] createData(int len) {
+        byte[] data = new byte[len];
+        new Random(len).nextBytes(data);
+        return data;
+    }
+
+}
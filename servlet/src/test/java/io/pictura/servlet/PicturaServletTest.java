@@ -16,7 +16,9 @@
 package io.pictura.servlet;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.net.ServerSocket;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Queue;
@@ -124,6 +126,193 @@ public class PicturaServletTest {
 	assertEquals(0, servlet.getRejectedTaskCount());
     }
 
+    @Test
+    public void testInit_CacheWarmup() throws Exception {
+	System.out.println("init_CacheWarmup");
+
+	File manifest = File.createTempFile("pictura-warmup", ".txt");
+	manifest.deleteOnExit();
+	try (FileOutputStream fos = new FileOutputStream(manifest)) {
+	    fos.write("/S=W100/lenna.jpg\n/foo/bar.jpg\n".getBytes("UTF-8"));
+	}
+
+	PicturaServlet servlet = new PicturaServlet();
+	ServletConfig config = mock(ServletConfig.class);
+	ServletContext context = mock(ServletContext.class);
+
+	when(config.getServletContext()).thenReturn(context);
+	when(config.getInitParameter(PicturaServlet.IPARAM_JMX_ENABLED)).thenReturn("false");
+	when(config.getInitParameter(PicturaServlet.IPARAM_CACHE_ENABLED)).thenReturn("true");
+	when(config.getInitParameter(PicturaServlet.IPARAM_CACHE_WARMUP_FILE)).thenReturn(manifest.getAbsolutePath());
+	when(config.getInitParameter(PicturaServlet.IPARAM_CACHE_WARMUP_READY_RATIO)).thenReturn("1");
+
+	servlet.init(config);
+	try {
+	    // Not alive before all warm-up requests were processed
+	    for (int i = 0; i < 1000 && !servlet.isAlive(); i++) {
+		Thread.sleep(10);
+	    }
+	    assertTrue(servlet.isAlive());
+	    assertEquals(0, servlet.getCompletedTaskCount());
+	} finally {
+	    servlet.destroy();
+	}
+    }
+
+    @Test
+    public void testInit_CachePeers() throws Exception {
+	System.out.println("init_CachePeers");
+
+	int port;
+	try (ServerSocket ss = new ServerSocket(0)) {
+	    port = ss.getLocalPort();
+	}
+
+	PicturaServlet servlet = new PicturaServlet();
+	ServletConfig config = mock(ServletConfig.class);
+	ServletContext context = mock(ServletContext.class);
+
+	when(config.getServletContext()).thenReturn(context);
+	when(config.getInitParameter(PicturaServlet.IPARAM_JMX_ENABLED)).thenReturn("false");
+	when(config.getInitParameter(PicturaServlet.IPARAM_CACHE_ENABLED)).thenReturn("true");
+	when(config.getInitParameter(PicturaServlet.IPARAM_CACHE_PEERS)).thenReturn("127.0.0.1:" + port + ", 127.0.0.1:1");
+	when(config.getInitParameter(PicturaServlet.IPARAM_CACHE_PEER_SELF)).thenReturn("127.0.0.1:" + port);
+	when(config.getInitParameter(PicturaServlet.IPARAM_CACHE_PEER_SECRET)).thenReturn("secret");
+
+	servlet.init(config);
+	try {
+	    assertTrue(servlet.getHttpCache() instanceof PeerHttpCache);
+	} finally {
+	    servlet.destroy();
+	}
+    }
+
+    @Test
+    public void testInit_CacheMemcached() throws Exception {
+	System.out.println("init_CacheMemcached");
+
+	PicturaServlet servlet = new PicturaServlet();
+	ServletConfig config = mock(ServletConfig.class);
+	ServletContext context = mock(ServletContext.class);
+
+	when(config.getServletContext()).thenReturn(context);
+	when(config.getInitParameter(PicturaServlet.IPARAM_JMX_ENABLED)).thenReturn("false");
+	when(config.getInitParameter(PicturaServlet.IPARAM_CACHE_ENABLED)).thenReturn("true");
+	when(config.getInitParameter(PicturaServlet.IPARAM_CACHE_MEMCACHED)).thenReturn("127.0.0.1:11211");
+
+	servlet.init(config);
+	try {
+	    assertTrue(servlet.getHttpCache() instanceof MemcachedHttpCache);
+	} finally {
+	    servlet.destroy();
+	}
+    }
+
+    @Test
+    public void testInit_RasterCache() throws Exception {
+	System.out.println("init_RasterCache");
+
+	PicturaServlet servlet = new PicturaServlet();
+	ServletConfig config = mock(ServletConfig.class);
+	ServletContext context = mock(ServletContext.class);
+
+	when(config.getServletContext()).thenReturn(context);
+	when(config.getInitParameter(PicturaServlet.IPARAM_JMX_ENABLED)).thenReturn("false");
+
+	servlet.init(config);
+	try {
+	    assertEquals(-1L, servlet.getRasterCacheSize());
+	    assertEquals(-1f, servlet.getRasterCacheHitRate(), 0f);
+	} finally {
+	    servlet.destroy();
+	}
+
+	when(config.getInitParameter(PicturaServlet.IPARAM_IMAGEIO_RASTER_CACHE_MAX_SIZE)).thenReturn("64m");
+
+	servlet = new PicturaServlet();
+	servlet.init(config);
+	try {
+	    assertEquals(0L, servlet.getRasterCacheSize());
+	    assertEquals(0, servlet.getRasterCacheCount());
+	    assertEquals(0f, servlet.getRasterCacheHitRate(), 0f);
+	} finally {
+	    servlet.destroy();
+	}
+    }
+
+    @Test
+    public void testInit_FileMappings() throws Exception {
+	System.out.println("init_FileMappings");
+
+	PicturaServlet servlet = new PicturaServlet();
+	assertEquals(-1, servlet.getFileMappingCount());
+	assertEquals(-1L, servlet.getFileMappedBytes());
+
+	ServletConfig config = mock(ServletConfig.class);
+	ServletContext context = mock(ServletContext.class);
+
+	when(config.getServletContext()).thenReturn(context);
+	when(config.getInitParameter(PicturaServlet.IPARAM_JMX_ENABLED)).thenReturn("false");
+	when(config.getInitParameter(PicturaServlet.IPARAM_IMAGEIO_MMAP_THRESHOLD)).thenReturn("64k");
+	when(config.getInitParameter(PicturaServlet.IPARAM_IMAGEIO_MAX_MAPPINGS)).thenReturn("4");
+
+	servlet.init(config);
+	try {
+	    assertEquals(0, servlet.getFileMappingCount());
+	    assertEquals(0L, servlet.getFileMappedBytes());
+	} finally {
+	    servlet.destroy();
+	}
+    }
+
+    @Test(expected = ServletException.class)
+    public void testInit_InvalidMaxMappings() throws Exception {
+	System.out.println("init_InvalidMaxMappings");
+
+	PicturaServlet servlet = new PicturaServlet();
+	ServletConfig config = mock(ServletConfig.class);
+	ServletContext context = mock(ServletContext.class);
+
+	when(config.getServletContext()).thenReturn(context);
+	when(config.getInitParameter(PicturaServlet.IPARAM_JMX_ENABLED)).thenReturn("false");
+	when(config.getInitParameter(PicturaServlet.IPARAM_IMAGEIO_MAX_MAPPINGS)).thenReturn("-1");
+
+	servlet.init(config);
+    }
+
+    @Test(expected = ServletException.class)
+    public void testInit_CachePeersWithoutSelf() throws Exception {
+	System.out.println("init_CachePeersWithoutSelf");
+
+	PicturaServlet servlet = new PicturaServlet();
+	ServletConfig config = mock(ServletConfig.class);
+	ServletContext context = mock(ServletContext.class);
+
+	when(config.getServletContext()).thenReturn(context);
+	when(config.getInitParameter(PicturaServlet.IPARAM_JMX_ENABLED)).thenReturn("false");
+	when(config.getInitParameter(PicturaServlet.IPARAM_CACHE_ENABLED)).thenReturn("true");
+	when(config.getInitParameter(PicturaServlet.IPARAM_CACHE_PEERS)).thenReturn("127.0.0.1:1");
+
+	servlet.init(config);
+    }
+
+    @Test(expected = ServletException.class)
+    public void testInit_CachePeersWithoutSecret() throws Exception {
+	System.out.println("init_CachePeersWithoutSecret");
+
+	PicturaServlet servlet = new PicturaServlet();
+	ServletConfig config = mock(ServletConfig.class);
+	ServletContext context = mock(ServletContext.class);
+
+	when(config.getServletContext()).thenReturn(context);
+	when(config.getInitParameter(PicturaServlet.IPARAM_JMX_ENABLED)).thenReturn("false");
+	when(config.getInitParameter(PicturaServlet.IPARAM_CACHE_ENABLED)).thenReturn("true");
+	when(config.getInitParameter(PicturaServlet.IPARAM_CACHE_PEERS)).thenReturn("127.0.0.1:1");
+	when(config.getInitParameter(PicturaServlet.IPARAM_CACHE_PEER_SELF)).thenReturn("127.0.0.1:1");
+
+	servlet.init(config);
+    }
+
     @Test
     public void testInit_1() throws ServletException {
 	System.out.println("init_1");
@@ -0,0 +1,341 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Steffen Kremp
+ */
+public class PooledURLConnectionFactoryTest {
+
+    private static final byte[] BODY = new byte[100 * 1024];
+
+    static {
+        new Random(1).nextBytes(BODY);
+    }
+
+    private HttpServer server;
+    private Set<Integer> clientPorts;
+    private PooledURLConnectionFactory factory;
+
+    @Before
+    public void setUp() throws Exception {
+        clientPorts = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                clientPorts.add(ex.getRemoteAddress().getPort());
+
+                String path = ex.getRequestURI().getPath();
+                ex.getResponseHeaders().set("Content-Type", "image/jpeg");
+                ex.getResponseHeaders().set("X-User-Agent", String.valueOf(ex.getRequestHeaders().getFirst("User-Agent")));
+
+                switch (path) {
+                    case "/chunked.jpg":
+                        ex.sendResponseHeaders(200, 0);
+                        try (OutputStream os = ex.getResponseBody()) {
+                            for (int i = 0; i < BODY.length; i += 1000) {
+                                os.write(BODY, i, Math.min(1000, BODY.length - i));
+                                os.flush();
+                            }
+                        }
+                        break;
+                    case "/cached.jpg":
+                        if (ex.getRequestHeaders().getFirst("If-Modified-Since") != null) {
+                            ex.sendResponseHeaders(304, -1);
+                        } else {
+                            ex.sendResponseHeaders(200, BODY.length);
+                            ex.getResponseBody().write(BODY);
+                        }
+                        break;
+                    case "/redirect.jpg":
+                        ex.getResponseHeaders().set("Location", "/lenna.jpg");
+                        ex.sendResponseHeaders(302, -1);
+                        break;
+                    case "/slow.jpg":
+                        try {
+                            Thread.sleep(500);
+                        } catch (InterruptedException ignore) {
+                        }
+                        ex.sendResponseHeaders(200, BODY.length);
+                        ex.getResponseBody().write(BODY);
+                        break;
+                    case "/lenna.jpg":
+                        ex.sendResponseHeaders(200, BODY.length);
+                        ex.getResponseBody().write(BODY);
+                        break;
+                    default:
+                        ex.sendResponseHeaders(404, 3);
+                        ex.getResponseBody().write("foo".getBytes());
+                        break;
+                }
+                ex.close();
+            }
+        });
+        server.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+        server.start();
+
+        factory = new PooledURLConnectionFactory(2, 10000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        factory.close();
+        server.stop(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateInvalidMaxConnections() throws Exception {
+        new PooledURLConnectionFactory(0, 1000);
+    }
+
+    @Test
+    public void testKeepAlive() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            HttpURLConnection con = open("/lenna.jpg");
+            assertEquals(200, con.getResponseCode());
+            assertEquals("image/jpeg", con.getContentType());
+            assertEquals(BODY.length, con.getContentLengthLong());
+            assertEquals("Pictura", con.getHeaderField("X-User-Agent"));
+            assertArrayEquals(BODY, read(con));
+            con.disconnect();
+        }
+
+        assertEquals(1, clientPorts.size());
+        assertEquals(1, factory.getConnectCount());
+        assertEquals(4, factory.getReuseCount());
+        assertEquals(1, factory.getIdleCount());
+    }
+
+    @Test
+    public void testChunked() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            HttpURLConnection con = open("/chunked.jpg");
+            assertEquals(200, con.getResponseCode());
+            assertEquals(-1, con.getContentLengthLong());
+            assertArrayEquals(BODY, read(con));
+            con.disconnect();
+        }
+        assertEquals(1, factory.getConnectCount());
+    }
+
+    @Test
+    public void testNotModified() throws Exception {
+        HttpURLConnection con = open("/cached.jpg");
+        con.setIfModifiedSince(System.currentTimeMillis());
+        assertEquals(304, con.getResponseCode());
+        con.disconnect();
+
+        // The embedded server closes the connection after a response without
+        // a body, so the stale pooled connection is replaced
+        con = open("/cached.jpg");
+        assertEquals(200, con.getResponseCode());
+        assertArrayEquals(BODY, read(con));
+        con.disconnect();
+    }
+
+    @Test
+    public void testNotFound() throws Exception {
+        HttpURLConnection con = open("/foo.jpg");
+        assertEquals(404, con.getResponseCode());
+        assertEquals("Not Found", con.getResponseMessage());
+        try {
+            con.getInputStream();
+            fail();
+        } catch (FileNotFoundException ex) {
+        }
+        assertEquals("foo", new String(read(con.getErrorStream())));
+        con.disconnect();
+
+        con = open("/lenna.jpg");
+        assertNull(con.getErrorStream());
+        assertEquals(200, con.getResponseCode());
+        con.disconnect();
+        assertEquals(1, factory.getConnectCount());
+    }
+
+    @Test
+    public void testRedirect() throws Exception {
+        HttpURLConnection con = open("/redirect.jpg");
+        con.setInstanceFollowRedirects(false);
+        assertEquals(302, con.getResponseCode());
+        assertEquals("/lenna.jpg", con.getHeaderField("Location"));
+        con.disconnect();
+
+        con = open("/redirect.jpg");
+        assertEquals(200, con.getResponseCode());
+        assertTrue(con.getURL().toExternalForm().endsWith("/lenna.jpg"));
+        assertArrayEquals(BODY, read(con));
+        con.disconnect();
+    }
+
+    @Test
+    public void testDisconnectBeforeRead() throws Exception {
+        // Too large to skip the body
+        HttpURLConnection con = open("/lenna.jpg");
+        assertEquals(200, con.getResponseCode());
+        con.disconnect();
+        assertEquals(0, factory.getIdleCount());
+
+        con = open("/lenna.jpg");
+        assertArrayEquals(BODY, read(con));
+        con.disconnect();
+        assertEquals(2, factory.getConnectCount());
+        assertEquals(1, factory.getIdleCount());
+    }
+
+    @Test
+    public void testMaxConnectionsPerHost() throws Exception {
+        HttpURLConnection con1 = open("/lenna.jpg");
+        HttpURLConnection con2 = open("/lenna.jpg");
+        assertEquals(200, con1.getResponseCode());
+        assertEquals(200, con2.getResponseCode());
+
+        // Both connections are in use
+        HttpURLConnection con3 = open("/lenna.jpg");
+        con3.setConnectTimeout(100);
+        try {
+            con3.getResponseCode();
+            fail();
+        } catch (SocketTimeoutException ex) {
+        }
+
+        read(con1);
+        con1.disconnect();
+
+        con3 = open("/lenna.jpg");
+        con3.setConnectTimeout(100);
+        assertEquals(200, con3.getResponseCode());
+        assertArrayEquals(BODY, read(con3));
+
+        con2.disconnect();
+        con3.disconnect();
+        assertEquals(2, factory.getConnectCount());
+    }
+
+    @Test
+    public void testStaleConnection() throws Exception {
+        HttpURLConnection con = open("/lenna.jpg");
+        assertArrayEquals(BODY, read(con));
+        con.disconnect();
+
+        // The origin closes the idle connection
+        server.stop(0);
+        server = HttpServer.create(server.getAddress(), 0);
+        server.createContext("/", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                ex.sendResponseHeaders(200, BODY.length);
+                ex.getResponseBody().write(BODY);
+                ex.close();
+            }
+        });
+        server.start();
+
+        con = open("/lenna.jpg");
+        assertEquals(200, con.getResponseCode());
+        assertArrayEquals(BODY, read(con));
+        con.disconnect();
+        assertEquals(2, factory.getConnectCount());
+    }
+
+    @Test
+    public void testReadTimeout() throws Exception {
+        HttpURLConnection con = open("/slow.jpg");
+        con.setReadTimeout(100);
+        try {
+            con.getResponseCode();
+            fail();
+        } catch (SocketTimeoutException ex) {
+        }
+        assertEquals(0, factory.getIdleCount());
+    }
+
+    @Test
+    public void testFallback() throws Exception {
+        Properties props = new Properties();
+        props.put("io.pictura.servlet.HTTP_PROXY_HOST", "127.0.0.1");
+        props.put("io.pictura.servlet.HTTP_PROXY_PORT", 3128);
+
+        URLConnection con = factory.newConnection(new URL("http://localhost/lenna.jpg"), props);
+        assertFalse(con instanceof PooledHttpURLConnection);
+
+        con = factory.newConnection(new URL("file:///lenna.jpg"), new Properties());
+        assertFalse(con instanceof PooledHttpURLConnection);
+
+        factory.close();
+        con = factory.newConnection(new URL("http://localhost/lenna.jpg"), new Properties());
+        assertFalse(con instanceof PooledHttpURLConnection);
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        Properties props = new Properties();
+        props.put("io.pictura.servlet.HTTP_AGENT", "Pictura");
+        props.put("io.pictura.servlet.HTTP_CONNECT_TIMEOUT", 1000);
+        props.put("io.pictura.servlet.HTTP_READ_TIMEOUT", 1000);
+
+        URLConnection con = factory.newConnection(new URL("http://127.0.0.1:"
+                + server.getAddress().getPort() + path), props);
+        assertTrue(con instanceof PooledHttpURLConnection);
+        return (HttpURLConnection) con;
+    }
+
+    private static byte[] read(HttpURLConnection con) throws IOException {
+        return read(con.getInputStream());
+    }
+
+    private static byte[] read(InputStream is) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int len;
+        while ((len = is.read(buf)) != -1) {
+            bos.write(buf, 0, len);
+        }
+        return bos.toByteArray();
+    }
+
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.awt.image.BufferedImage;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * @author Steffen Kremp
+ */
+public class RasterCacheTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateInvalidSize() throws Exception {
+        new RasterCache(0);
+    }
+
+    @Test
+    public void testGetSize() throws Exception {
+        assertEquals(10 * 10 * 4, RasterCache.getSize(new BufferedImage(10, 10, BufferedImage.TYPE_INT_ARGB)));
+        assertEquals(10 * 10 * 3, RasterCache.getSize(new BufferedImage(10, 10, BufferedImage.TYPE_3BYTE_BGR)));
+        assertEquals(10 * 10, RasterCache.getSize(new BufferedImage(10, 10, BufferedImage.TYPE_BYTE_GRAY)));
+    }
+
+    @Test
+    public void testPutGet() throws Exception {
+        RasterCache c = new RasterCache(10000);
+        assertNull(c.get("/lenna.jpg@1#0"));
+        assertEquals(1, c.getMissCount());
+
+        BufferedImage img = new BufferedImage(20, 20, BufferedImage.TYPE_INT_RGB);
+        assertTrue(c.put("/lenna.jpg@1#0", img, "JPEG", 6));
+
+        RasterCache.Entry e = c.get("/lenna.jpg@1#0");
+        assertNotNull(e);
+        assertSame(img, e.getImage());
+        assertEquals("JPEG", e.getFormatName());
+        assertEquals(6, e.getOrientation());
+        assertEquals(1600, e.getLength());
+        assertEquals(1, c.getHitCount());
+        assertEquals(0.5f, c.getHitRate(), 0.001f);
+
+        assertEquals(1, c.getCount());
+        assertEquals(1600, c.getSize());
+        assertTrue(c.remove("/lenna.jpg@1#0"));
+        assertFalse(c.remove("/lenna.jpg@1#0"));
+        assertEquals(0, c.getSize());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        // Each image has 1600 bytes of pixel data
+        RasterCache c = new RasterCache(4000 * 4);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(c.put("/" + i + ".jpg@1#0", new BufferedImage(20, 20, BufferedImage.TYPE_INT_RGB),
+                    "JPEG", RasterCache.ORIENTATION_UNKNOWN));
+
+            // Keep the first image hot
+            assertNotNull(c.get("/0.jpg@1#0"));
+        }
+
+        assertEquals(10, c.getCount());
+        c.put("/10.jpg@1#0", new BufferedImage(20, 20, BufferedImage.TYPE_INT_RGB),
+                "JPEG", RasterCache.ORIENTATION_UNKNOWN);
+
+        assertEquals(10, c.getCount());
+        assertEquals(16000, c.getSize());
+        assertNotNull(c.get("/0.jpg@1#0"));
+        assertNull(c.get("/1.jpg@1#0"));
+        assertNotNull(c.get("/10.jpg@1#0"));
+
+        // Replace
+        c.put("/10.jpg@1#0", new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB),
+                "JPEG", RasterCache.ORIENTATION_UNKNOWN);
+        assertEquals(16000 - 1200, c.getSize());
+
+        c.clear();
+        assertEquals(0, c.getCount());
+        assertEquals(0, c.getSize());
+    }
+
+    @Test
+    public void testLock() throws Exception {
+        final RasterCache c = new RasterCache(10000);
+        assertTrue(c.lock("/lenna.jpg@1#0"));
+
+        // Waits for the concurrent decode
+        Thread t = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException ignore) {
+                }
+                c.put("/lenna.jpg@1#0", new BufferedImage(20, 20, BufferedImage.TYPE_INT_RGB),
+                        "JPEG", RasterCache.ORIENTATION_UNKNOWN);
+                c.unlock("/lenna.jpg@1#0");
+            }
+        };
+        t.start();
+
+        long start = System.currentTimeMillis();
+        assertFalse(c.lock("/lenna.jpg@1#0"));
+        assertTrue(System.currentTimeMillis() - start >= 150);
+        assertNotNull(c.get("/lenna.jpg@1#0"));
+        t.join();
+
+        // Unlocked
+        assertTrue(c.lock("/lenna.jpg@1#0"));
+        c.unlock("/lenna.jpg@1#0");
+    }
+
+    @Test
+    public void testPutTooLarge() throws Exception {
+        RasterCache c = new RasterCache(1600 * 4 - 1);
+        assertFalse(c.put("/lenna.jpg@1#0", new BufferedImage(20, 20, BufferedImage.TYPE_INT_RGB),
+                "JPEG", RasterCache.ORIENTATION_UNKNOWN));
+        assertNull(c.get("/lenna.jpg@1#0"));
+        assertEquals(0, c.getSize());
+    }
+
+}
@@ -0,0 +1,229 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * @author Steffen Kremp
+ */
+public class SourceFileReaderTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateInvalidThreshold() throws Exception {
+        new SourceFileReader(-1, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateInvalidMaxMappings() throws Exception {
+        new SourceFileReader(1024, -1);
+    }
+
+    @Test
+    public void testPooledRead() throws Exception {
+        SourceFileReader r = new SourceFileReader(1024, 4);
+        byte[] data = createData(1000);
+        File f = createFile(data);
+        try {
+            InputStream is1 = r.open(f);
+            InputStream is2 = r.open(f);
+            assertArrayEquals(data, read(is1));
+            assertArrayEquals(data, read(is2));
+            assertEquals(0, r.getPooledBufferCount());
+
+            is1.close();
+            is2.close();
+            is2.close();
+            assertEquals(2, r.getPooledBufferCount());
+
+            // Reuse of a pooled buffer
+            try (InputStream is = r.open(createFile(f, createData(10)))) {
+                assertEquals(1, r.getPooledBufferCount());
+                assertEquals(10, read(is).length);
+            }
+            assertEquals(0, r.getMappingCount());
+            assertEquals(0L, r.getMappedBytes());
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testPooledReadSizeClasses() throws Exception {
+        SourceFileReader r = new SourceFileReader(200 * 1024, 4);
+        File f = createFile(createData(1000));
+        try {
+            // Smallest size class
+            try (InputStream is = r.open(f)) {
+                assertEquals(0L, r.getPooledBytes());
+                assertEquals(1000, read(is).length);
+            }
+            assertEquals(4096L, r.getPooledBytes());
+
+            // Rounded up to the next power of two
+            byte[] data = createData(100 * 1024);
+            try (InputStream is = r.open(createFile(f, data))) {
+                assertArrayEquals(data, read(is));
+            }
+            assertEquals(2, r.getPooledBufferCount());
+            assertEquals(4096L + 128 * 1024, r.getPooledBytes());
+
+            // Largest size class is limited to the threshold
+            data = createData(200 * 1024 - 1);
+            try (InputStream is = r.open(createFile(f, data))) {
+                assertArrayEquals(data, read(is));
+            }
+            assertEquals(4096L + 128 * 1024 + 200 * 1024, r.getPooledBytes());
+
+            // Reuse of the small buffer
+            try (InputStream is = r.open(createFile(f, createData(10)))) {
+                assertEquals(128L * 1024 + 200 * 1024, r.getPooledBytes());
+                assertEquals(10, read(is).length);
+            }
+
+            r.clear();
+            assertEquals(0, r.getPooledBufferCount());
+            assertEquals(0L, r.getPooledBytes());
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testCachedMapping() throws Exception {
+        SourceFileReader r = new SourceFileReader(1024, 1);
+        byte[] data1 = createData(4096);
+        byte[] data2 = createData(2048);
+        File f1 = createFile(data1);
+        File f2 = createFile(data2);
+        try {
+            try (InputStream is = r.open(f1)) {
+                assertArrayEquals(data1, read(is));
+            }
+            assertEquals(1, r.getMappingCount());
+            assertEquals(4096L, r.getMappedBytes());
+
+            // Shared mapping
+            InputStream is1 = r.open(f1);
+            InputStream is2 = r.open(f1);
+            assertEquals(1, r.getMappingCount());
+            assertArrayEquals(data1, read(is2));
+            is2.close();
+
+            // Evicted but still in use
+            try (InputStream is = r.open(f2)) {
+                assertArrayEquals(data2, read(is));
+            }
+            assertEquals(2, r.getMappingCount());
+            assertEquals(4096L + 2048L, r.getMappedBytes());
+
+            assertArrayEquals(data1, read(is1));
+            is1.close();
+            assertEquals(1, r.getMappingCount());
+            assertEquals(2048L, r.getMappedBytes());
+
+            r.clear();
+            assertEquals(0, r.getMappingCount());
+            assertEquals(0L, r.getMappedBytes());
+        } finally {
+            f1.delete();
+            f2.delete();
+        }
+    }
+
+    @Test
+    public void testModifiedFile() throws Exception {
+        SourceFileReader r = new SourceFileReader(1024, 4);
+        File f = createFile(createData(4096));
+        try {
+            r.open(f).close();
+            assertEquals(4096L, r.getMappedBytes());
+
+            byte[] data = createData(8192);
+            createFile(f, data);
+            try (InputStream is = r.open(f)) {
+                assertArrayEquals(data, read(is));
+            }
+            assertEquals(1, r.getMappingCount());
+            assertEquals(8192L, r.getMappedBytes());
+        } finally {
+            r.clear();
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testUncachedMapping() throws Exception {
+        SourceFileReader r = new SourceFileReader(0, 0);
+        byte[] data = createData(4096);
+        File f = createFile(data);
+        try {
+            InputStream is = r.open(f);
+            assertEquals(1, r.getMappingCount());
+            assertArrayEquals(data, read(is));
+            is.close();
+            assertEquals(0, r.getMappingCount());
+            assertEquals(0L, r.getMappedBytes());
+
+            // Closed streams can not be read
+            try {
+                is.read();
+                fail();
+            } catch (IOException ex) {
+                // expected
+            }
+        } finally {
+            f.delete();
+        }
+    }
+
+    private static byte[] createData(int len) {
+        byte[] data = new byte[len];
+        new Random(len).nextBytes(data);
+        return data;
+    }
+
+    private static File createFile(byte[] data) throws IOException {
+        return createFile(File.createTempFile("pictura-", ".tmp"), data);
+    }
+
+    private static File createFile(File f, byte[] data) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(f)) {
+            fos.write(data);
+        }
+        return f;
+    }
+
+    private static byte[] read(InputStream is) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        int len;
+        while ((len = is.read(buf)) > -1) {
+            bos.write(buf, 0, len);
+        }
+        return bos.toByteArray();
+    }
+
+}
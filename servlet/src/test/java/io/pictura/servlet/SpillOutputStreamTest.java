@@ -0,0 +1,124 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Steffen Kremp
+ */
+public class SpillOutputStreamTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("pictura-spill").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testInMemory() throws Exception {
+        byte[] data = new byte[1000];
+        new Random(1).nextBytes(data);
+
+        SpillOutputStream os = new SpillOutputStream(1000, dir);
+        os.write(data, 0, 999);
+        os.write(data[999]);
+        os.close();
+
+        assertFalse(os.isSpilled());
+        assertNull(os.getFile());
+        assertEquals(1000, os.size());
+        assertEquals(0, dir.list().length);
+
+        InputStream is = os.newInputStream();
+        assertFalse(is instanceof SpillOutputStream.FileInput);
+        assertArrayEquals(data, read(is));
+        os.dispose();
+    }
+
+    @Test
+    public void testSpill() throws Exception {
+        byte[] data = new byte[100 * 1024];
+        new Random(2).nextBytes(data);
+
+        SpillOutputStream os = new SpillOutputStream(1024, dir);
+        os.write(data, 0, 1000);
+        assertFalse(os.isSpilled());
+
+        for (int i = 1000; i < data.length; i += 4000) {
+            os.write(data, i, Math.min(4000, data.length - i));
+        }
+        os.close();
+
+        assertTrue(os.isSpilled());
+        assertEquals(data.length, os.size());
+        assertEquals(data.length, os.getFile().length());
+        assertEquals(dir, os.getFile().getParentFile());
+
+        try (InputStream is = os.newInputStream()) {
+            assertTrue(is instanceof SpillOutputStream.FileInput);
+            assertEquals(os.getFile(), ((SpillOutputStream.FileInput) is).getFile());
+            assertArrayEquals(data, read(is));
+        }
+
+        os.dispose();
+        assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    public void testZeroThreshold() throws Exception {
+        SpillOutputStream os = new SpillOutputStream(0, dir);
+        os.write(1);
+        os.close();
+        assertTrue(os.isSpilled());
+        assertArrayEquals(new byte[]{1}, read(os.newInputStream()));
+        os.dispose();
+        assertEquals(0, dir.list().length);
+    }
+
+    private static byte[] read(InputStream is) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int len;
+        while ((len = is.read(buf)) > -1) {
+            bos.write(buf, 0, len);
+        }
+        is.close();
+        return bos.toByteArray();
+    }
+
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2016 Steffen Kremp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.pictura.servlet;
+
+import java.util.Collections;
+import java.util.HashSet;
+import javax.servlet.http.HttpServletResponse;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Steffen Kremp
+ */
+public class TieredHttpCacheTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateNull() throws Exception {
+        new TieredHttpCache(null, HttpCacheServlet.createDefaultHttpCache(10, 1024), 2);
+    }
+
+    @Test
+    public void testPutGetRemove() throws Exception {
+        HttpCache l1 = HttpCacheServlet.createDefaultHttpCache(10, 1024);
+        HttpCache l2 = HttpCacheServlet.createDefaultHttpCache(10, 1024);
+        TieredHttpCache c = new TieredHttpCache(l1, l2, 2);
+
+        HttpCacheEntry e = new HttpCacheEntry("foo", new byte[512], null, null);
+        c.put("foo", e);
+
+        assertSame(e, l1.get("foo"));
+        assertSame(e, l2.get("foo"));
+        assertSame(e, c.get("foo"));
+
+        assertTrue(c.remove("foo"));
+        assertFalse(c.remove("foo"));
+        assertNull(l1.get("foo"));
+        assertNull(l2.get("foo"));
+    }
+
+    @Test
+    public void testPromotion() throws Exception {
+        HttpCache l1 = HttpCacheServlet.createDefaultHttpCache(10, 1024);
+        HttpCache l2 = HttpCacheServlet.createDefaultHttpCache(10, 1024);
+        TieredHttpCache c = new TieredHttpCache(l1, l2, 2);
+
+        HttpServletResponse resp = mock(HttpServletResponse.class);
+        when(resp.getStatus()).thenReturn(200);
+        when(resp.getHeaderNames()).thenReturn(Collections.singleton("Cache-Control"));
+        when(resp.getHeader("Cache-Control")).thenReturn("max-age=60");
+
+        HttpCacheEntry e = new HttpCacheEntry("foo", new byte[512], null, resp);
+        l2.put("foo", e);
+
+        // First hit, not promoted
+        assertSame(e, c.get("foo"));
+        assertNull(l1.get("foo"));
+        e.hitCount++;
+
+        // Second hit, promoted
+        assertSame(e, c.get("foo"));
+        assertNotNull(l1.get("foo"));
+    }
+
+    @Test
+    public void testKeySet() throws Exception {
+        HttpCache l1 = HttpCacheServlet.createDefaultHttpCache(10, 1024);
+        HttpCache l2 = HttpCacheServlet.createDefaultHttpCache(10, 1024);
+        TieredHttpCache c = new TieredHttpCache(l1, l2, 2);
+
+        c.put("foo", new HttpCacheEntry("foo", new byte[1], null, null));
+        l1.put("bar", new HttpCacheEntry("bar", new byte[1], null, null));
+        l2.put("baz", new HttpCacheEntry("baz", new byte[1], null, null));
+
+        assertEquals(3, c.keySet().size());
+        assertTrue(c.keySet().contains("foo"));
+        assertTrue(c.keySet().contains("bar"));
+        assertTrue(c.keySet().contains("baz"));
+        assertEquals(3, new HashSet<>(c.keySet()).size());
+    }
+
+}